@@ -19,6 +19,8 @@ public class MainActivity extends AppCompatActivity {
 
     private EssData appData;
 
+    private final EssData.OnChangeListener onListChange = (document, field, changes) -> refreshList();
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -32,22 +34,21 @@ public class MainActivity extends AppCompatActivity {
         remove = findViewById(R.id.remove);
 
         refreshList();
+        appData.observe("list", onListChange);
+
+        add.setOnClickListener(v -> appData.addToList("Default", "list", "ItemTest", 0));
 
-        add.setOnClickListener(v -> {
-            appData.addToList("Default", "list", "ItemTest", 0);
-            refreshList();
-        });
+        remove.setOnClickListener(v -> appData.removeFromList("Default", "list", 0));
 
-        remove.setOnClickListener(v -> {
-            appData.removeFromList("Default", "list", 0);
-            refreshList();
-        });
+        listView.setOnItemClickListener((parent, view, position, id) ->
+                appData.setInList("Default", "list", "Clicked", position));
 
-        listView.setOnItemClickListener((parent, view, position, id) -> {
-            appData.setInList("Default", "list", "Clicked", position);
-            refreshList();
-        });
+    }
 
+    @Override
+    protected void onDestroy() {
+        appData.stopObserving("list", onListChange);
+        super.onDestroy();
     }
 
     private void refreshList() {
@@ -0,0 +1,414 @@
+package com.fivesoft.database;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.Serializable;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+
+/**
+ * Non-blocking access to {@link EssData}.
+ * <br><br>
+ * Every method returns immediately with an {@link EssFuture}, the work
+ * runs on the IO executor (see {@link EssData.Builder#setIoExecutor(Executor)}),
+ * so loading a document from disk never blocks the main thread.
+ * Callbacks are delivered on the callback executor passed to
+ * {@link EssData#async(Executor)}, by default on the main thread.
+ * <br><br>
+ * Modifications run one after another in the order they were made.
+ * Reads made while any modification is pending wait for it, so you always
+ * read your own writes. Modifications are saved like
+ * {@link android.content.SharedPreferences.Editor#apply()}: the future
+ * completes when the change is visible, it's written to disk in background.
+ *
+ * @see EssData#async()
+ */
+
+@SuppressWarnings({"unchecked", "unused"})
+public class AsyncEssData {
+
+    private final EssData essData;
+    private final Executor ioExecutor;
+    private final IoExecutor.SerialExecutor writeQueue;
+    private final Executor callbackExecutor;
+
+    AsyncEssData(@NonNull EssData essData, @NonNull Executor ioExecutor,
+                 @NonNull IoExecutor.SerialExecutor writeQueue, @NonNull Executor callbackExecutor){
+        this.essData = essData;
+        this.ioExecutor = ioExecutor;
+        this.writeQueue = writeQueue;
+        this.callbackExecutor = callbackExecutor;
+    }
+
+    /**
+     * Returns synchronous instance this one works on.
+     * @return EssData instance.
+     */
+
+    @NonNull
+    public EssData sync(){
+        return essData;
+    }
+
+    /**
+     * Reads field value.
+     * @param document The name of document.
+     * @param field The name of field.
+     * @return Future with field value.
+     * @see EssData#get(String, String)
+     */
+
+    @NonNull
+    public <T> EssFuture<T> get(final String document, final String field){
+        return read(new Callable<T>() {
+            @Override
+            public T call() {
+                return essData.get(document, field);
+            }
+        });
+    }
+
+    /**
+     * Reads field value.
+     * @param field The name of field.
+     * @return Future with field value.
+     * @see EssData#get(String)
+     */
+
+    @NonNull
+    public <T> EssFuture<T> get(String field){
+        return get(essData.getDocument(), field);
+    }
+
+    /**
+     * Reads list saved in a field.
+     * @param document The name of document.
+     * @param field The name of field.
+     * @return Future with the list, never null.
+     * @see EssData#getList(String, String)
+     */
+
+    @NonNull
+    public <T extends List<?>> EssFuture<T> getList(final String document, final String field){
+        return read(new Callable<T>() {
+            @Override
+            public T call() {
+                return essData.getList(document, field);
+            }
+        });
+    }
+
+    /**
+     * Reads list saved in a field.
+     * @param field The name of field.
+     * @return Future with the list, never null.
+     * @see EssData#getList(String)
+     */
+
+    @NonNull
+    public <T extends List<?>> EssFuture<T> getList(String field){
+        return getList(essData.getDocument(), field);
+    }
+
+    /**
+     * Reads an element of list saved in a field.
+     * @param document The name of document.
+     * @param field The name of field.
+     * @param position The position of the element.
+     * @return Future with the element.
+     * @see EssData#getFromList(String, String, int)
+     */
+
+    @NonNull
+    public <T> EssFuture<T> getFromList(final String document, final String field, final int position){
+        return read(new Callable<T>() {
+            @Override
+            public T call() {
+                return essData.getFromList(document, field, position);
+            }
+        });
+    }
+
+    /**
+     * Decodes bitmap saved in a field.
+     * @param document The name of document.
+     * @param field The name of field.
+     * @param options Decoding options or null.
+     * @return Future with the bitmap.
+     * @see EssData#getBitmap(String, String, BitmapFactory.Options)
+     */
+
+    @NonNull
+    public EssFuture<Bitmap> getBitmap(final String document, final String field,
+                                       @Nullable final BitmapFactory.Options options){
+        return read(new Callable<Bitmap>() {
+            @Override
+            public Bitmap call() {
+                return essData.getBitmap(document, field, options);
+            }
+        });
+    }
+
+    /**
+     * Decodes bitmap saved in a field.
+     * @param document The name of document.
+     * @param field The name of field.
+     * @return Future with the bitmap.
+     */
+
+    @NonNull
+    public EssFuture<Bitmap> getBitmap(String document, String field){
+        return getBitmap(document, field, null);
+    }
+
+    /**
+     * Decodes bitmap saved in a field.
+     * @param field The name of field.
+     * @return Future with the bitmap.
+     */
+
+    @NonNull
+    public EssFuture<Bitmap> getBitmap(String field){
+        return getBitmap(essData.getDocument(), field, null);
+    }
+
+    /**
+     * Overrides a field or creates a new one.
+     * @param document The name of document.
+     * @param field The name of field.
+     * @param value The value of a field.
+     * @return Future completed when the value is saved.
+     * @see EssData#set(String, String, Serializable)
+     */
+
+    @NonNull
+    public EssFuture<Void> set(final String document, final String field, final Serializable value){
+        return write(new Runnable() {
+            @Override
+            public void run() {
+                essData.set(document, field, value);
+            }
+        });
+    }
+
+    /**
+     * Overrides a field or creates a new one.
+     * @param field The name of field.
+     * @param value The value of a field.
+     * @return Future completed when the value is saved.
+     */
+
+    @NonNull
+    public EssFuture<Void> set(String field, Serializable value){
+        return set(essData.getDocument(), field, value);
+    }
+
+    /**
+     * Saves bitmap in a given field. Compressing runs on the IO executor too.
+     * @param document The name of document.
+     * @param field The name of field.
+     * @param value The bitmap you want to save.
+     * @return Future completed when the bitmap is saved.
+     * @see EssData#set(String, String, Bitmap)
+     */
+
+    @NonNull
+    public EssFuture<Void> set(final String document, final String field, final Bitmap value){
+        return write(new Runnable() {
+            @Override
+            public void run() {
+                essData.set(document, field, value);
+            }
+        });
+    }
+
+    /**
+     * Saves bitmap in a given field. Compressing runs on the IO executor too.
+     * @param field The name of field.
+     * @param value The bitmap you want to save.
+     * @return Future completed when the bitmap is saved.
+     */
+
+    @NonNull
+    public EssFuture<Void> set(String field, Bitmap value){
+        return set(essData.getDocument(), field, value);
+    }
+
+    /**
+     * Removes given field.
+     * @param document The name of document.
+     * @param field The name of field.
+     * @return Future completed when the field is removed.
+     * @see EssData#remove(String, String)
+     */
+
+    @NonNull
+    public EssFuture<Void> remove(final String document, final String field){
+        return write(new Runnable() {
+            @Override
+            public void run() {
+                essData.remove(document, field);
+            }
+        });
+    }
+
+    /**
+     * Removes given field.
+     * @param field The name of field.
+     * @return Future completed when the field is removed.
+     */
+
+    @NonNull
+    public EssFuture<Void> remove(String field){
+        return remove(essData.getDocument(), field);
+    }
+
+    /**
+     * Atomically replaces value of a field with the value returned by updater.
+     * Updater is called on the IO executor.
+     * @param document The name of document.
+     * @param field The name of field.
+     * @param updater Receives current value and returns the new one.
+     * @return Future with the new value.
+     * @see EssData#update(String, String, EssData.Updater)
+     */
+
+    @NonNull
+    public <T> EssFuture<T> update(final String document, final String field, @NonNull final EssData.Updater<T> updater){
+        EssFuture<T> res = new EssFuture<>(new Callable<T>() {
+            @Override
+            public T call() {
+                return essData.update(document, field, updater);
+            }
+        }, callbackExecutor);
+        writeQueue.execute(res);
+        return res;
+    }
+
+    /**
+     * Adds new element to list at given field.
+     * @param document The name of document.
+     * @param field The name of field.
+     * @param value The element.
+     * @param position The position where the element is inserted.
+     * @return Future completed when the list is saved.
+     * @see EssData#addToList(String, String, Serializable, int)
+     */
+
+    @NonNull
+    public EssFuture<Void> addToList(final String document, final String field,
+                                     final Serializable value, final int position){
+        return write(new Runnable() {
+            @Override
+            public void run() {
+                essData.addToList(document, field, value, position);
+            }
+        });
+    }
+
+    /**
+     * Adds new element to list at given field.
+     * @param field The name of field.
+     * @param value The element.
+     * @param position The position where the element is inserted.
+     * @return Future completed when the list is saved.
+     */
+
+    @NonNull
+    public EssFuture<Void> addToList(String field, Serializable value, int position){
+        return addToList(essData.getDocument(), field, value, position);
+    }
+
+    /**
+     * Replaces an element of list at given field.
+     * @param document The name of document.
+     * @param field The name of field.
+     * @param value The element.
+     * @param position The position of the element you want to replace.
+     * @return Future completed when the list is saved.
+     * @see EssData#setInList(String, String, Serializable, int)
+     */
+
+    @NonNull
+    public EssFuture<Void> setInList(final String document, final String field,
+                                     final Serializable value, final int position){
+        return write(new Runnable() {
+            @Override
+            public void run() {
+                essData.setInList(document, field, value, position);
+            }
+        });
+    }
+
+    /**
+     * Replaces an element of list at given field.
+     * @param field The name of field.
+     * @param value The element.
+     * @param position The position of the element you want to replace.
+     * @return Future completed when the list is saved.
+     */
+
+    @NonNull
+    public EssFuture<Void> setInList(String field, Serializable value, int position){
+        return setInList(essData.getDocument(), field, value, position);
+    }
+
+    /**
+     * Removes an element of list at given field.
+     * @param document The name of document.
+     * @param field The name of field.
+     * @param position The position of the element.
+     * @return Future completed when the list is saved.
+     * @see EssData#removeFromList(String, String, int)
+     */
+
+    @NonNull
+    public EssFuture<Void> removeFromList(final String document, final String field, final int position){
+        return write(new Runnable() {
+            @Override
+            public void run() {
+                essData.removeFromList(document, field, position);
+            }
+        });
+    }
+
+    /**
+     * Removes an element of list at given field.
+     * @param field The name of field.
+     * @param position The position of the element.
+     * @return Future completed when the list is saved.
+     */
+
+    @NonNull
+    public EssFuture<Void> removeFromList(String field, int position){
+        return removeFromList(essData.getDocument(), field, position);
+    }
+
+    private <T> EssFuture<T> read(Callable<T> callable){
+        EssFuture<T> res = new EssFuture<>(callable, callbackExecutor);
+        //Wait for pending modifications, so they are visible.
+        if(writeQueue.isIdle())
+            ioExecutor.execute(res);
+        else
+            writeQueue.execute(res);
+        return res;
+    }
+
+    private EssFuture<Void> write(final Runnable runnable){
+        EssFuture<Void> res = new EssFuture<>(new Callable<Void>() {
+            @Override
+            public Void call() {
+                runnable.run();
+                return null;
+            }
+        }, callbackExecutor);
+        writeQueue.execute(res);
+        return res;
+    }
+
+}
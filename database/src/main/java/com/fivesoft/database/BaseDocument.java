@@ -0,0 +1,296 @@
+package com.fivesoft.database;
+
+import android.content.SharedPreferences;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Base of documents kept by EssData's own backends.
+ * <br><br>
+ * Handles the {@link SharedPreferences} contract: typed getters,
+ * editors, listeners and coalescing of {@link Editor#apply()} writes.
+ * Subclasses decide how fields are kept in memory and on disk.
+ * Listeners are notified on the thread which modified the document.
+ */
+
+abstract class BaseDocument implements SharedPreferences {
+
+    /**
+     * Marks removed field in modifications passed to {@link #commitToMemory(boolean, Map)}.
+     */
+
+    static final Object REMOVED = new Object();
+
+    /**
+     * Returned by {@link #commitToMemory(boolean, Map)} when modifications couldn't be applied.
+     */
+
+    static final List<String> FAILED = Collections.unmodifiableList(new ArrayList<String>(0));
+
+    private static final Object PRESENT = new Object();
+
+    private final String name;
+    private final DirectoryBackend backend;
+    private final WeakHashMap<OnSharedPreferenceChangeListener, Object> listeners = new WeakHashMap<>();
+    private boolean writeScheduled;
+    //Time of the last open, see DirectoryBackend#releaseUnused.
+    volatile long lastOpened;
+
+    BaseDocument(@NonNull String name, @NonNull DirectoryBackend backend){
+        this.name = name;
+        this.backend = backend;
+    }
+
+    /**
+     * Checks if the document has no fields without loading it. A document
+     * which isn't loaded has nothing unsaved, so its file tells instead.
+     * @return True if the document is empty, null if it isn't loaded.
+     */
+
+    @Nullable
+    abstract Boolean isEmptyIfLoaded();
+
+    /**
+     * Returns value of given field.
+     * @param key The name of field.
+     * @return The value or null if field doesn't exist.
+     */
+
+    @Nullable
+    abstract Object getValue(@NonNull String key);
+
+    /**
+     * Applies modifications to the in-memory state.
+     * @param clear Whether all fields should be removed first.
+     * @param modified New values of fields, {@link #REMOVED} for removed fields.
+     * @return Modified fields, null if nothing changed or {@link #FAILED}
+     *         if modifications were dropped, e.g. when the file is damaged.
+     */
+
+    @Nullable
+    abstract List<String> commitToMemory(boolean clear, @NonNull Map<String, Object> modified);
+
+    /**
+     * Saves modifications made since the last write.
+     * @return True if the document is saved.
+     */
+
+    abstract boolean writeToDisk();
+
+    /**
+     * Drops values kept in memory if all modifications are saved.
+     * The document is loaded again on the next read.
+     * @return True if values were dropped.
+     */
+
+    boolean unload(){
+        return false;
+    }
+
+    @Nullable
+    @Override
+    public String getString(String key, @Nullable String defValue) {
+        String res = (String) getValue(key);
+        return res != null ? res : defValue;
+    }
+
+    @Nullable
+    @Override
+    @SuppressWarnings("unchecked")
+    public Set<String> getStringSet(String key, @Nullable Set<String> defValues) {
+        Set<String> res = (Set<String>) getValue(key);
+        return res != null ? res : defValues;
+    }
+
+    @Override
+    public int getInt(String key, int defValue) {
+        Integer res = (Integer) getValue(key);
+        return res != null ? res : defValue;
+    }
+
+    @Override
+    public long getLong(String key, long defValue) {
+        Long res = (Long) getValue(key);
+        return res != null ? res : defValue;
+    }
+
+    @Override
+    public float getFloat(String key, float defValue) {
+        Float res = (Float) getValue(key);
+        return res != null ? res : defValue;
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue) {
+        Boolean res = (Boolean) getValue(key);
+        return res != null ? res : defValue;
+    }
+
+    @Override
+    public Editor edit() {
+        return new DocumentEditor();
+    }
+
+    @Override
+    public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        synchronized (listeners){
+            listeners.put(listener, PRESENT);
+        }
+    }
+
+    @Override
+    public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        synchronized (listeners){
+            listeners.remove(listener);
+        }
+    }
+
+    /**
+     * Reports that the document was loaded from disk.
+     * @param fields The number of fields.
+     * @param nanos Time spent loading.
+     */
+
+    void onLoaded(int fields, long nanos){
+        backend.onDocumentLoaded(name, fields, nanos);
+    }
+
+    void notifyListeners(boolean cleared, List<String> keys){
+        List<OnSharedPreferenceChangeListener> copy;
+        synchronized (listeners){
+            if(listeners.isEmpty())
+                return;
+            copy = new ArrayList<>(listeners.keySet());
+        }
+        for(OnSharedPreferenceChangeListener listener: copy){
+            if(cleared)
+                listener.onSharedPreferenceChanged(this, null);
+            for(String key: keys)
+                listener.onSharedPreferenceChanged(this, key);
+        }
+    }
+
+    /**
+     * Schedules {@link #writeToDisk()} on the write thread
+     * unless a write is already waiting.
+     */
+
+    void scheduleWrite(){
+        synchronized (this){
+            if(writeScheduled)
+                return;
+            writeScheduled = true;
+        }
+        IoExecutor.writes().execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (BaseDocument.this){
+                    writeScheduled = false;
+                }
+                writeToDisk();
+            }
+        });
+    }
+
+    private final class DocumentEditor implements Editor {
+
+        private final Map<String, Object> modified = new LinkedHashMap<>();
+        private boolean clear;
+
+        @Override
+        public synchronized Editor putString(String key, @Nullable String value) {
+            modified.put(key, value == null ? REMOVED : value);
+            return this;
+        }
+
+        @Override
+        public synchronized Editor putStringSet(String key, @Nullable Set<String> values) {
+            modified.put(key, values == null ? REMOVED : Collections.unmodifiableSet(new HashSet<>(values)));
+            return this;
+        }
+
+        @Override
+        public synchronized Editor putInt(String key, int value) {
+            modified.put(key, value);
+            return this;
+        }
+
+        @Override
+        public synchronized Editor putLong(String key, long value) {
+            modified.put(key, value);
+            return this;
+        }
+
+        @Override
+        public synchronized Editor putFloat(String key, float value) {
+            modified.put(key, value);
+            return this;
+        }
+
+        @Override
+        public synchronized Editor putBoolean(String key, boolean value) {
+            modified.put(key, value);
+            return this;
+        }
+
+        @Override
+        public synchronized Editor remove(String key) {
+            modified.put(key, REMOVED);
+            return this;
+        }
+
+        @Override
+        public synchronized Editor clear() {
+            clear = true;
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            List<String> keys = toMemory();
+            if(keys == FAILED)
+                return false;
+            if(keys == null)
+                return true;
+            return writeToDisk();
+        }
+
+        @Override
+        public void apply() {
+            List<String> keys = toMemory();
+            if(keys != null && keys != FAILED)
+                scheduleWrite();
+        }
+
+        /**
+         * @return Modified fields, null if nothing changed or {@link #FAILED}.
+         */
+
+        private List<String> toMemory(){
+            boolean cleared;
+            Map<String, Object> copy;
+            synchronized (this){
+                cleared = clear;
+                copy = new LinkedHashMap<>(modified);
+                clear = false;
+                modified.clear();
+            }
+            List<String> keys = commitToMemory(cleared, copy);
+            if(keys != null && keys != FAILED)
+                notifyListeners(cleared, keys);
+            return keys;
+        }
+
+    }
+
+}
@@ -0,0 +1,425 @@
+package com.fivesoft.database;
+
+import android.content.SharedPreferences;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.google.gson.JsonArray;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Collects many modifications and saves them at once.
+ * <br><br>
+ * Every document touched by the batch is written with one
+ * {@link SharedPreferences.Editor}, list modifications are applied
+ * in memory and each list is saved once. Nothing is saved
+ * until you call {@link #commit()}, {@link #apply()} or
+ * {@link #commit(OnCommitListener)}.
+ * <br><br>
+ * List modifications are replayed on the list saved at the time
+ * of writing, so elements changed by others meanwhile aren't lost.
+ * <br><br>
+ * Batch isn't thread safe, use it from one thread.
+ *
+ * @see EssData#beginBatch()
+ * @see EssData#batch(String, Block)
+ */
+
+@SuppressWarnings({"UnusedReturnValue", "unused"})
+public class Batch {
+
+    /**
+     * Modifications made in {@link EssData#batch(String, Block)}.
+     */
+
+    public interface Block {
+
+        /**
+         * Called with the batch which should be modified.
+         * @param batch The batch.
+         */
+
+        void run(@NonNull Batch batch);
+
+    }
+
+    /**
+     * Notified when asynchronous commit finishes.
+     */
+
+    public interface OnCommitListener {
+
+        /**
+         * Called on background thread when all documents are saved.
+         * @param success True if all documents were saved successfully.
+         */
+
+        void onCommit(boolean success);
+
+    }
+
+    //Marks removed field.
+    private static final Object REMOVED = new Object();
+
+    private final EssData essData;
+    private final Map<String, Map<String, Object>> documents = new LinkedHashMap<>();
+    private String document;
+
+    Batch(@NonNull EssData essData, @NonNull String document){
+        this.essData = essData;
+        this.document = document;
+    }
+
+    /**
+     * Sets the document used by methods without document parameter.
+     * @param document The name of document.
+     * @return Current Batch instance.
+     */
+
+    public Batch setDocument(@NonNull String document){
+        this.document = document;
+        return this;
+    }
+
+    /**
+     * Overrides a field or creates a new one weather it doesn't exist.
+     * @param document The name of document.
+     * @param field The name of field.
+     * @param value The value of a field.
+     * @return Current Batch instance.
+     */
+
+    public Batch set(String document, String field, Serializable value){
+        return setInternal(document, field, value);
+    }
+
+    /**
+     * Overrides a field or creates a new one weather it doesn't exist.
+     * @param field The name of field.
+     * @param value The value of a field.
+     * @return Current Batch instance.
+     */
+
+    public Batch set(String field, Serializable value){
+        return setInternal(document, field, value);
+    }
+
+    /**
+     * Removes given field from given document.
+     * @param document The name of document.
+     * @param field The name of field.
+     * @return Current Batch instance.
+     */
+
+    public Batch remove(String document, String field){
+        if(document != null && field != null)
+            fields(document).put(field, REMOVED);
+        return this;
+    }
+
+    /**
+     * Removes given field from the document.
+     * @param field The name of field.
+     * @return Current Batch instance.
+     */
+
+    public Batch remove(String field){
+        return remove(document, field);
+    }
+
+    /**
+     * Adds new element to list at given field and document.
+     * @see EssData#addToList(String, String, Serializable, int)
+     * @return Current Batch instance.
+     */
+
+    public Batch addToList(String document, String field, Serializable value, int position){
+        PendingList list = list(document, field);
+        if(list != null)
+            list.add(PendingList.ADD, position, value);
+        return this;
+    }
+
+    /**
+     * Adds new element to list at given field.
+     * @see EssData#addToList(String, Serializable, int)
+     * @return Current Batch instance.
+     */
+
+    public Batch addToList(String field, Serializable value, int position){
+        return addToList(document, field, value, position);
+    }
+
+    /**
+     * Replaces given element in the list at given field and document.
+     * @see EssData#setInList(String, String, Serializable, int)
+     * @return Current Batch instance.
+     */
+
+    public Batch setInList(String document, String field, Serializable value, int position){
+        PendingList list = list(document, field);
+        if(list != null)
+            list.add(PendingList.SET, position, value);
+        return this;
+    }
+
+    /**
+     * Replaces given element in the list at given field.
+     * @see EssData#setInList(String, Serializable, int)
+     * @return Current Batch instance.
+     */
+
+    public Batch setInList(String field, Serializable value, int position){
+        return setInList(document, field, value, position);
+    }
+
+    /**
+     * Removes given position from list at given field and document.
+     * @see EssData#removeFromList(String, String, int)
+     * @return Current Batch instance.
+     */
+
+    public Batch removeFromList(String document, String field, int position){
+        PendingList list = list(document, field);
+        if(list != null)
+            list.add(PendingList.REMOVE, position, null);
+        return this;
+    }
+
+    /**
+     * Removes given position from list at given field.
+     * @see EssData#removeFromList(String, int)
+     * @return Current Batch instance.
+     */
+
+    public Batch removeFromList(String field, int position){
+        return removeFromList(document, field, position);
+    }
+
+    /**
+     * Saves all modifications synchronously.
+     * Don't call it on the main thread.
+     * @return True if all documents were saved successfully.
+     */
+
+    public boolean commit(){
+        boolean res = true;
+        for(Map.Entry<String, Map<String, Object>> entry: documents.entrySet())
+            res &= write(entry.getKey(), entry.getValue(), true);
+        documents.clear();
+        return res;
+    }
+
+    /**
+     * Saves all modifications in memory immediately and
+     * writes them to disk in background, like {@link SharedPreferences.Editor#apply()}.
+     */
+
+    public void apply(){
+        for(Map.Entry<String, Map<String, Object>> entry: documents.entrySet())
+            write(entry.getKey(), entry.getValue(), false);
+        documents.clear();
+    }
+
+    /**
+     * Saves all modifications on background thread.
+     * Modifications aren't visible to reads until they are saved.
+     * @param listener Notified when saving finishes. May be null.
+     */
+
+    public void commit(@Nullable final OnCommitListener listener){
+        final Batch copy = new Batch(essData, document);
+        copy.documents.putAll(documents);
+        documents.clear();
+
+        IoExecutor.writes().execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean res = copy.commit();
+                if(listener != null)
+                    listener.onCommit(res);
+            }
+        });
+    }
+
+    /**
+     * Checks if the batch contains no modifications.
+     * @return True if there is nothing to save.
+     */
+
+    public boolean isEmpty(){
+        return documents.isEmpty();
+    }
+
+    private Batch setInternal(String document, String field, Object value){
+        if(document != null && field != null)
+            fields(document).put(field, Primitives.isNative(value) ? value : essData.getCodec().encode(value));
+        return this;
+    }
+
+    private Map<String, Object> fields(String document){
+        Map<String, Object> res = documents.get(document);
+        if(res == null){
+            res = new LinkedHashMap<>();
+            documents.put(document, res);
+        }
+        return res;
+    }
+
+    /**
+     * Returns pending list of given field. A list set or removed earlier
+     * in this batch is modified, otherwise modifications are applied
+     * to the list read from the document when the batch is written.
+     */
+
+    @Nullable
+    private PendingList list(String document, String field){
+        if(document == null || field == null)
+            return null;
+
+        Map<String, Object> fields = fields(document);
+        Object pending = fields.get(field);
+        if(pending instanceof PendingList)
+            return (PendingList) pending;
+
+        PendingList res;
+        if(pending == null){
+            res = new PendingList(null);
+        } else {
+            res = new PendingList(new ArrayList<>());
+            if(pending instanceof String){
+                try {
+                    List<Object> values = essData.getCodec().decodeList((String) pending);
+                    if(values != null)
+                        res.base.addAll(values);
+                } catch (Exception ignored){}
+            }
+        }
+        fields.put(field, res);
+        return res;
+    }
+
+    private boolean write(String document, Map<String, Object> fields, boolean commit){
+        //Values set earlier in write-behind mode and counters mustn't override the batch.
+        essData.flush(document);
+        SharedPreferences data = essData.getData(document);
+        ReentrantLock[] locks = FieldLocks.lockAll(data, fields.keySet());
+        try {
+            essData.discardCounters(document, fields.keySet());
+            return write(document, data, fields, commit);
+        } finally {
+            FieldLocks.unlockAll(locks);
+        }
+    }
+
+    private boolean write(String document, SharedPreferences data, Map<String, Object> fields, boolean commit){
+        SharedPreferences.Editor editor = data.edit();
+        Codec codec = essData.getCodec();
+        //Values replaced by this batch, bitmap files they reference are deleted after saving.
+        List<String> previous = new ArrayList<>();
+
+        for(Map.Entry<String, Object> entry: fields.entrySet()){
+            String field = entry.getKey();
+            Object value = entry.getValue();
+            if(value instanceof PendingList)
+                value = ((PendingList) value).apply(essData, document, field);
+
+            if(value instanceof List && essData.getListStorage() == ListStorage.CHUNKED){
+                String raw = null;
+                try {
+                    raw = data.getString(field, null);
+                } catch (ClassCastException ignored){}
+                ChunkedList list = ChunkedList.parse(raw);
+                if(list == null){
+                    list = ChunkedList.empty();
+                    previous.add(raw);
+                }
+                list.writeAll(editor, field, (JsonArray) codec.toTree(value));
+                continue;
+            }
+
+            previous.add(EssData.release(data, editor, field));
+            if(value == REMOVED)
+                editor.remove(field);
+            else if(value instanceof List)
+                editor.putString(field, essData.compress(data, codec.encode(value)));
+            else if(!Primitives.put(editor, field, value))
+                editor.putString(field, essData.compress(data, (String) value));
+        }
+
+        boolean res = true;
+        if(commit)
+            res = editor.commit();
+        else
+            editor.apply();
+
+        for(String field: fields.keySet()){
+            essData.getCache().invalidate(data, field);
+            essData.getIndexes().invalidate(data, field);
+        }
+        if(res)
+            for(String raw: previous)
+                essData.getBitmaps().delete(raw);
+        return res;
+    }
+
+    /**
+     * Modifications of a list made in this batch, applied in order when the batch is written.
+     */
+
+    private static final class PendingList {
+
+        static final int ADD = 0;
+        static final int SET = 1;
+        static final int REMOVE = 2;
+
+        //List set earlier in this batch or null if the saved one is modified.
+        final List<Object> base;
+        private final List<Object[]> modifications = new ArrayList<>();
+
+        PendingList(@Nullable List<Object> base){
+            this.base = base;
+        }
+
+        void add(int type, int position, Object value){
+            modifications.add(new Object[]{type, position, value});
+        }
+
+        /**
+         * Applies modifications like EssData does, positions out of bounds
+         * are clamped for inserts and ignored otherwise. Called with the
+         * lock of the field held.
+         */
+
+        ArrayList<Object> apply(EssData essData, String document, String field){
+            ArrayList<Object> res = new ArrayList<>(base != null
+                    ? base : essData.<List<Object>>getList(document, field));
+            for(Object[] modification: modifications){
+                int position = (Integer) modification[1];
+                switch((Integer) modification[0]){
+                    case ADD:
+                        res.add(Math.max(0, Math.min(res.size(), position)), modification[2]);
+                        break;
+                    case SET:
+                        if(position >= 0 && position < res.size())
+                            res.set(position, modification[2]);
+                        break;
+                    case REMOVE:
+                        if(position >= 0 && position < res.size())
+                            res.remove(position);
+                        break;
+                }
+            }
+            return res;
+        }
+
+    }
+
+}
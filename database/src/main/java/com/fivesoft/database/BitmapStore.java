@@ -0,0 +1,171 @@
+package com.fivesoft.database;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Base64;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+
+/**
+ * Keeps bitmaps in files next to the documents.
+ * <br><br>
+ * Every saved bitmap gets its own file in a directory of its document,
+ * the field holds only a short reference to the file. Reading other fields
+ * never loads the image and bitmaps are decoded straight from the file.
+ * Fields saved by older versions as Base64 text are still readable.
+ */
+
+final class BitmapStore {
+
+    //Directory in app files where bitmaps are saved.
+    static final String DIRECTORY = "essdata_bitmaps";
+
+    private static final String REFERENCE_PREFIX = ChunkedList.INTERNAL_PREFIX + "bitmap#";
+
+    private final Context context;
+    private volatile File directory;
+
+    BitmapStore(@NonNull Context context){
+        this.context = context;
+    }
+
+    /**
+     * Checks if the raw value of a field is a bitmap file reference.
+     * @param raw Stored value.
+     * @return True if value is a reference.
+     */
+
+    static boolean isReference(@Nullable String raw){
+        return raw != null && raw.startsWith(REFERENCE_PREFIX);
+    }
+
+    /**
+     * Compresses bitmap to a new file.
+     * @param document The name of document the bitmap belongs to.
+     * @param bitmap The bitmap.
+     * @param format Compression format.
+     * @param quality Compression quality, 0-100. Ignored by lossless formats.
+     * @return Reference which should be saved in the field.
+     * @throws IOException When bitmap can't be written.
+     */
+
+    @NonNull
+    String save(@NonNull String document, @NonNull Bitmap bitmap,
+                @NonNull Bitmap.CompressFormat format, int quality) throws IOException {
+        File dir = new File(getDirectory(), FileBackend.encodeName(document));
+        if(!dir.exists() && !dir.mkdirs() && !dir.exists())
+            throw new IOException("Can't create directory: " + dir);
+
+        //Every write gets a new file, so readers never see a half written image.
+        String name = UUID.randomUUID().toString() + "." + format.name().toLowerCase();
+        File file = new File(dir, name);
+        FileOutputStream fos = new FileOutputStream(file);
+        boolean res = false;
+        try {
+            OutputStream out = new BufferedOutputStream(fos, 64 * 1024);
+            res = bitmap.compress(format, quality, out);
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+            if(!res)
+                file.delete();
+        }
+        if(!res)
+            throw new IOException("Can't compress bitmap: " + file);
+
+        return REFERENCE_PREFIX + dir.getName() + "/" + name;
+    }
+
+    /**
+     * Decodes bitmap saved in a field.
+     * @param raw Stored value, a reference or legacy Base64 text.
+     * @param options Decoding options or null.
+     * @return The bitmap or null if it can't be decoded.
+     */
+
+    @Nullable
+    Bitmap load(@Nullable String raw, @Nullable BitmapFactory.Options options){
+        if(raw == null)
+            return null;
+        try {
+            if(isReference(raw))
+                return BitmapFactory.decodeFile(file(raw).getPath(), options);
+
+            byte[] bytes = Base64.decode(raw, Base64.DEFAULT);
+            return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+        } catch (Exception e){
+            return null;
+        }
+    }
+
+    /**
+     * @param raw Stored value, a reference or legacy Base64 text.
+     * @return Size of the saved bitmap in bytes.
+     */
+
+    long size(@Nullable String raw){
+        if(raw == null)
+            return 0;
+        return isReference(raw) ? file(raw).length() : raw.length();
+    }
+
+    /**
+     * Deletes file of a bitmap which is no longer referenced.
+     * Does nothing if raw value isn't a reference.
+     * @param raw Previous value of a field.
+     */
+
+    void delete(@Nullable String raw){
+        if(isReference(raw))
+            file(raw).delete();
+    }
+
+    /**
+     * Deletes files of all bitmaps saved in given document.
+     * @param document The name of document.
+     */
+
+    void deleteDocument(@NonNull String document, @NonNull Executor executor){
+        File dir = new File(getDirectory(), FileBackend.encodeName(document));
+        if(!dir.exists())
+            return;
+
+        //Renamed first, so bitmaps saved after the clear aren't deleted.
+        //Encoded document names never contain '#'.
+        final File trash = new File(getDirectory(), "trash#" + UUID.randomUUID());
+        final File target = dir.renameTo(trash) ? trash : dir;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                File[] files = target.listFiles();
+                if(files != null)
+                    for(File file: files)
+                        file.delete();
+                target.delete();
+            }
+        });
+    }
+
+    private File file(String reference){
+        return new File(getDirectory(), reference.substring(REFERENCE_PREFIX.length()));
+    }
+
+    private File getDirectory(){
+        File res = directory;
+        if(res == null)
+            directory = res = new File(context.getFilesDir(), DIRECTORY);
+        return res;
+    }
+
+}
@@ -0,0 +1,280 @@
+package com.fivesoft.database;
+
+import android.content.SharedPreferences;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Delivers field changes to {@link EssData.OnChangeListener}s.
+ * <br><br>
+ * Changes are detected with {@link SharedPreferences.OnSharedPreferenceChangeListener}
+ * and delivered in one task posted to the callback executor (the main thread),
+ * so a burst of writes made in one main thread task or frame results in one
+ * notification per field. List mutators additionally record what they did.
+ * Every recorded change remembers the raw value before and after it, the changes
+ * are delivered only if they lead exactly from the last delivered value to the
+ * current one. Otherwise, e.g. when the field was also changed in another way,
+ * the listener is told that the whole field changed.
+ */
+
+final class ChangeDispatcher {
+
+    private static volatile ChangeDispatcher defaultDispatcher;
+
+    private final Executor executor;
+    private final Map<SharedPreferences, Document> documents = new IdentityHashMap<>();
+    private boolean scheduled;
+
+    private final Runnable deliver = new Runnable() {
+        @Override
+        public void run() {
+            deliver();
+        }
+    };
+
+    /**
+     * Returns dispatcher delivering changes on the main thread.
+     * @return Shared dispatcher.
+     */
+
+    @NonNull
+    static ChangeDispatcher getDefault(){
+        ChangeDispatcher res = defaultDispatcher;
+        if(res == null){
+            synchronized (ChangeDispatcher.class){
+                res = defaultDispatcher;
+                if(res == null)
+                    defaultDispatcher = res = new ChangeDispatcher(IoExecutor.mainThread());
+            }
+        }
+        return res;
+    }
+
+    ChangeDispatcher(@NonNull Executor executor){
+        this.executor = executor;
+    }
+
+    synchronized void observe(@NonNull SharedPreferences data, @NonNull String document,
+                              @NonNull String field, @NonNull EssData.OnChangeListener listener){
+        Document doc = documents.get(data);
+        if(doc == null){
+            doc = new Document(document);
+            documents.put(data, doc);
+            //SharedPreferences keeps listeners as weak references.
+            data.registerOnSharedPreferenceChangeListener(doc);
+        }
+
+        Field state = doc.fields.get(field);
+        if(state == null){
+            state = new Field(raw(data, field));
+            doc.fields.put(field, state);
+        }
+        if(!state.listeners.contains(listener))
+            state.listeners.add(listener);
+    }
+
+    synchronized void stopObserving(@NonNull SharedPreferences data, @NonNull String field,
+                                    @NonNull EssData.OnChangeListener listener){
+        Document doc = documents.get(data);
+        Field state = doc == null ? null : doc.fields.get(field);
+        if(state == null)
+            return;
+
+        state.listeners.remove(listener);
+        if(state.listeners.isEmpty())
+            doc.fields.remove(field);
+        if(doc.fields.isEmpty()){
+            documents.remove(data);
+            data.unregisterOnSharedPreferenceChangeListener(doc);
+        }
+    }
+
+    /**
+     * Checks if anyone observes given field. Cheap, call it before
+     * reading the value needed by {@link #onListChange}.
+     */
+
+    synchronized boolean isObserved(@NonNull SharedPreferences data, @NonNull String field){
+        Document doc = documents.get(data);
+        return doc != null && doc.fields.containsKey(field);
+    }
+
+    /**
+     * Records list change which was just applied.
+     * @param data The document.
+     * @param field The name of field.
+     * @param before Raw value of the field before the change.
+     * @param change The change.
+     */
+
+    synchronized void onListChange(@NonNull SharedPreferences data, @NonNull String field,
+                                   @Nullable String before, @NonNull ListChange change){
+        Document doc = documents.get(data);
+        Field state = doc == null ? null : doc.fields.get(field);
+        if(state == null)
+            return;
+
+        state.ops.add(new Op(before, raw(data, field), change));
+        state.dirty = true;
+        schedule();
+    }
+
+    private synchronized void onChanged(SharedPreferences data, @Nullable String field){
+        Document doc = documents.get(data);
+        if(doc == null)
+            return;
+
+        if(field == null){
+            //Document was cleared.
+            for(Field state: doc.fields.values())
+                state.dirty = true;
+        } else {
+            Field state = doc.fields.get(field);
+            if(state == null)
+                return;
+            state.dirty = true;
+        }
+        schedule();
+    }
+
+    private void schedule(){
+        if(!scheduled){
+            scheduled = true;
+            executor.execute(deliver);
+        }
+    }
+
+    private void deliver(){
+        List<Runnable> notifications = new ArrayList<>();
+        synchronized (this){
+            scheduled = false;
+            for(Map.Entry<SharedPreferences, Document> entry: documents.entrySet()){
+                Document doc = entry.getValue();
+                for(Map.Entry<String, Field> fieldEntry: doc.fields.entrySet()){
+                    Field state = fieldEntry.getValue();
+                    if(!state.dirty)
+                        continue;
+                    state.dirty = false;
+
+                    String current = raw(entry.getKey(), fieldEntry.getKey());
+                    List<ListChange> changes = state.changesTo(current);
+                    state.ops.clear();
+                    if(changes != null && changes.isEmpty())
+                        continue;
+                    state.raw = current;
+                    notifications.add(notification(doc.document, fieldEntry.getKey(),
+                            changes, new ArrayList<>(state.listeners)));
+                }
+            }
+        }
+
+        for(Runnable notification: notifications)
+            notification.run();
+    }
+
+    private static Runnable notification(final String document, final String field,
+                                         final List<ListChange> changes,
+                                         final List<EssData.OnChangeListener> listeners){
+        return new Runnable() {
+            @Override
+            public void run() {
+                for(EssData.OnChangeListener listener: listeners)
+                    listener.onChange(document, field, changes);
+            }
+        };
+    }
+
+    /**
+     * Returns value of a field used to compare states.
+     */
+
+    @Nullable
+    static String raw(SharedPreferences data, String field){
+        try {
+            return data.getString(field, null);
+        } catch (ClassCastException e){
+            return "native:" + Primitives.get(data, field);
+        }
+    }
+
+    private static boolean same(String a, String b){
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private final class Document implements SharedPreferences.OnSharedPreferenceChangeListener {
+
+        private final String document;
+        private final Map<String, Field> fields = new HashMap<>();
+
+        Document(String document){
+            this.document = document;
+        }
+
+        @Override
+        public void onSharedPreferenceChanged(SharedPreferences data, String field) {
+            //Chunks of a list change together with its header.
+            if(field == null || !ChunkedList.isInternal(field))
+                onChanged(data, field);
+        }
+
+    }
+
+    private static final class Field {
+
+        private final List<EssData.OnChangeListener> listeners = new ArrayList<>(2);
+        private final List<Op> ops = new ArrayList<>();
+        //Value at the time of the last notification.
+        private String raw;
+        private boolean dirty;
+
+        Field(String raw){
+            this.raw = raw;
+        }
+
+        /**
+         * @return Changes leading from the last delivered value to current,
+         *         empty list if nothing changed or null if the whole field changed.
+         */
+
+        @Nullable
+        List<ListChange> changesTo(String current){
+            if(ops.isEmpty())
+                return same(raw, current) ? Collections.<ListChange>emptyList() : null;
+
+            String expected = raw;
+            List<ListChange> res = new ArrayList<>(ops.size());
+            for(Op op: ops){
+                if(!same(expected, op.before))
+                    return null;
+                res.add(op.change);
+                expected = op.after;
+            }
+            return same(expected, current) ? res : null;
+        }
+
+    }
+
+    private static final class Op {
+
+        private final String before;
+        private final String after;
+        private final ListChange change;
+
+        Op(String before, String after, ListChange change){
+            this.before = before;
+            this.after = after;
+            this.change = change;
+        }
+
+    }
+
+}
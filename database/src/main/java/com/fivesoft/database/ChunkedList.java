@@ -0,0 +1,493 @@
+package com.fivesoft.database;
+
+import android.content.SharedPreferences;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+
+/**
+ * List stored in chunks of json arrays.
+ * <br><br>
+ * The field itself holds a small header with chunk ids and sizes,
+ * elements live in internal fields, one json array per chunk.
+ * Inserting, replacing or removing a single element rewrites
+ * only the header and one chunk instead of the whole list.
+ * <br><br>
+ * Chunks are never changed in place, a modified chunk is saved under
+ * a new id and the old one is removed by the same edit. Readers don't
+ * take locks, so a reader which finds a chunk of its header missing
+ * knows the list changed and reads it again from the new header.
+ * <br><br>
+ * Header format: {@code PREFIX version;nextId;id:size,id:size,...}
+ */
+
+final class ChunkedList {
+
+    /**
+     * Preferred number of elements in one chunk.
+     * Chunks twice as big are split.
+     */
+
+    static final int CHUNK_SIZE = 64;
+
+    //Prefix for internal fields, same idea as the document prefix.
+    static final String INTERNAL_PREFIX = "03f8eojdgf74#";
+
+    private static final String HEADER_PREFIX = INTERNAL_PREFIX + "list#";
+
+    private long version;
+    private long nextId;
+    private long[] ids;
+    private int[] sizes;
+    private int chunks;
+
+    private ChunkedList(){
+        ids = new long[4];
+        sizes = new int[4];
+    }
+
+    /**
+     * Checks if the raw value of a field is a chunked list header.
+     * @param raw Stored value.
+     * @return True if value is a chunked list header.
+     */
+
+    static boolean isHeader(@Nullable String raw){
+        return raw != null && raw.startsWith(HEADER_PREFIX);
+    }
+
+    /**
+     * Checks if the field is internal and shouldn't be visible to users.
+     * @param field The name of field.
+     * @return True for internal fields.
+     */
+
+    static boolean isInternal(@NonNull String field){
+        return field.startsWith(INTERNAL_PREFIX);
+    }
+
+    /**
+     * Parses list header.
+     * @param raw Stored value of a field.
+     * @return Parsed list or null if the value isn't a chunked list header.
+     */
+
+    @Nullable
+    static ChunkedList parse(@Nullable String raw){
+        if(!isHeader(raw))
+            return null;
+
+        try {
+            ChunkedList res = new ChunkedList();
+            int start = HEADER_PREFIX.length();
+            int end = raw.indexOf(';', start);
+            res.version = Long.parseLong(raw.substring(start, end));
+            start = end + 1;
+            end = raw.indexOf(';', start);
+            res.nextId = Long.parseLong(raw.substring(start, end));
+            start = end + 1;
+
+            while(start < raw.length()){
+                int colon = raw.indexOf(':', start);
+                end = raw.indexOf(',', colon);
+                if(end < 0)
+                    end = raw.length();
+                res.addChunk(res.chunks, Long.parseLong(raw.substring(start, colon)),
+                        Integer.parseInt(raw.substring(colon + 1, end)));
+                start = end + 1;
+            }
+            return res;
+        } catch (RuntimeException e){
+            return null;
+        }
+    }
+
+    /**
+     * Creates an empty list.
+     * @return New empty list.
+     */
+
+    @NonNull
+    static ChunkedList empty(){
+        return new ChunkedList();
+    }
+
+    /**
+     * Returns the number of elements.
+     * @return List size.
+     */
+
+    int size(){
+        int res = 0;
+        for(int i = 0; i < chunks; i++)
+            res += sizes[i];
+        return res;
+    }
+
+    /**
+     * Reads whole list.
+     * @param data The document.
+     * @param field The name of field.
+     * @param codec Codec to decode elements with.
+     * @return All elements.
+     */
+
+    @NonNull
+    List<Object> read(SharedPreferences data, String field, Codec codec) throws Exception {
+        boolean strict = true;
+        while(true){
+            List<Object> res = new ArrayList<>(size());
+            int i = 0;
+            for(; i < chunks; i++){
+                String chunk = data.getString(chunkKey(field, ids[i]), null);
+                if(chunk == null){
+                    if(strict)
+                        break;
+                    continue;
+                }
+                List<Object> values = codec.decodeList(chunk);
+                if(values != null)
+                    res.addAll(values);
+            }
+            if(i == chunks)
+                return res;
+            strict = reload(data, field);
+        }
+    }
+
+    /**
+     * Joins all chunks into one json array without decoding them.
+     * @param data The document.
+     * @param field The name of field.
+     * @return Json array with all elements.
+     */
+
+    @NonNull
+    String readJson(SharedPreferences data, String field){
+        List<String> parts = readChunks(data, field);
+        StringBuilder res = new StringBuilder(size() * 16 + 2).append('[');
+        for(String chunk: parts){
+            //Chunks are written by JsonArray#toString(), so they are "[...]".
+            if(chunk.length() <= 2)
+                continue;
+            if(res.length() > 1)
+                res.append(',');
+            res.append(chunk, 1, chunk.length() - 1);
+        }
+        return res.append(']').toString();
+    }
+
+    /**
+     * Returns json arrays of all chunks without decoding them.
+     * @param data The document.
+     * @param field The name of field.
+     * @return Raw chunks in list order.
+     */
+
+    @NonNull
+    List<String> readChunks(SharedPreferences data, String field){
+        boolean strict = true;
+        while(true){
+            List<String> res = new ArrayList<>(chunks);
+            int i = 0;
+            for(; i < chunks; i++){
+                String chunk = data.getString(chunkKey(field, ids[i]), null);
+                if(chunk == null){
+                    if(strict)
+                        break;
+                    continue;
+                }
+                res.add(chunk);
+            }
+            if(i == chunks)
+                return res;
+            strict = reload(data, field);
+        }
+    }
+
+    /**
+     * Reads a range of elements, decoding only chunks which contain them.
+     * @param data The document.
+     * @param field The name of field.
+     * @param offset Position of the first element.
+     * @param limit Maximum number of elements.
+     * @param type Type of elements.
+     * @param codec Codec to decode elements with.
+     * @param out Receives decoded elements.
+     */
+
+    <T> void readRange(SharedPreferences data, String field, int offset, int limit,
+                       Type type, Codec codec, List<T> out) throws Exception {
+        int initial = out.size();
+        boolean strict = true;
+        while(true){
+            int start = 0;
+            boolean missing = false;
+            for(int i = 0; i < chunks && out.size() - initial < limit; i++){
+                int end = start + sizes[i];
+                if(end > offset){
+                    String chunk = data.getString(chunkKey(field, ids[i]), null);
+                    if(chunk == null && strict){
+                        missing = true;
+                        break;
+                    }
+                    codec.decodeRange(chunk, Math.max(0, offset - start),
+                            limit - (out.size() - initial), type, out, false);
+                }
+                start = end;
+            }
+            if(!missing)
+                return;
+            out.subList(initial, out.size()).clear();
+            strict = reload(data, field);
+        }
+    }
+
+    /**
+     * Reads single element, decoding only the element itself.
+     * @param data The document.
+     * @param field The name of field.
+     * @param position Position of element.
+     * @param codec Codec to decode elements with.
+     * @return The element.
+     * @throws IndexOutOfBoundsException When the list doesn't contain the position.
+     */
+
+    @Nullable
+    Object get(SharedPreferences data, String field, int position, Codec codec) throws Exception {
+        boolean strict = true;
+        while(true){
+            checkIndex(position, size());
+            int chunk = chunkOf(position);
+            String raw = data.getString(chunkKey(field, ids[chunk]), null);
+            if(raw != null || !strict)
+                return codec.decodeElement(raw, position - offsetOf(chunk), Codec.OBJECT_TYPE);
+            strict = reload(data, field);
+        }
+    }
+
+    /**
+     * Writes given elements as a new chunked list, replacing
+     * chunks of this list. Used to migrate json lists.
+     * @param editor Editor of the document.
+     * @param field The name of field.
+     * @param values Elements as json array.
+     */
+
+    void writeAll(SharedPreferences.Editor editor, String field, JsonArray values){
+        removeChunks(editor, field);
+        chunks = 0;
+
+        for(int from = 0; from < values.size(); from += CHUNK_SIZE){
+            JsonArray chunk = new JsonArray();
+            for(int i = from; i < Math.min(values.size(), from + CHUNK_SIZE); i++)
+                chunk.add(values.get(i));
+            long id = nextId++;
+            addChunk(chunks, id, chunk.size());
+            editor.putString(chunkKey(field, id), chunk.toString());
+        }
+        writeHeader(editor, field);
+    }
+
+    /**
+     * Inserts element at given position.
+     * Position is clamped to list bounds.
+     */
+
+    void insert(SharedPreferences data, SharedPreferences.Editor editor, String field,
+                int position, JsonElement value){
+
+        position = Math.max(0, Math.min(size(), position));
+
+        if(chunks == 0){
+            JsonArray chunk = new JsonArray();
+            chunk.add(value);
+            long id = nextId++;
+            addChunk(0, id, 1);
+            editor.putString(chunkKey(field, id), chunk.toString());
+            writeHeader(editor, field);
+            return;
+        }
+
+        int chunk = position == size() ? chunks - 1 : chunkOf(position);
+        JsonArray values = readChunk(data, field, chunk);
+        insert(values, position - offsetOf(chunk), value);
+
+        if(values.size() >= CHUNK_SIZE * 2){
+            //Split in half, second half goes to a new chunk.
+            JsonArray first = new JsonArray();
+            JsonArray second = new JsonArray();
+            int half = values.size() / 2;
+            for(int i = 0; i < values.size(); i++)
+                (i < half ? first : second).add(values.get(i));
+            replaceChunk(editor, field, chunk, first);
+            long id = nextId++;
+            addChunk(chunk + 1, id, second.size());
+            editor.putString(chunkKey(field, id), second.toString());
+        } else {
+            replaceChunk(editor, field, chunk, values);
+        }
+        writeHeader(editor, field);
+    }
+
+    /**
+     * Replaces element at given position.
+     * @throws IndexOutOfBoundsException When the list doesn't contain the position.
+     */
+
+    void set(SharedPreferences data, SharedPreferences.Editor editor, String field,
+             int position, JsonElement value){
+        checkIndex(position, size());
+        int chunk = chunkOf(position);
+        JsonArray values = readChunk(data, field, chunk);
+        values.set(position - offsetOf(chunk), value);
+        replaceChunk(editor, field, chunk, values);
+        writeHeader(editor, field);
+    }
+
+    /**
+     * Removes element at given position.
+     * @throws IndexOutOfBoundsException When the list doesn't contain the position.
+     */
+
+    void remove(SharedPreferences data, SharedPreferences.Editor editor, String field, int position){
+        checkIndex(position, size());
+        int chunk = chunkOf(position);
+        JsonArray values = readChunk(data, field, chunk);
+        values.remove(position - offsetOf(chunk));
+
+        if(values.size() == 0){
+            editor.remove(chunkKey(field, ids[chunk]));
+            removeChunk(chunk);
+        } else {
+            replaceChunk(editor, field, chunk, values);
+        }
+        writeHeader(editor, field);
+    }
+
+    /**
+     * Removes all chunks of this list. Header must be overridden
+     * or removed by the caller.
+     */
+
+    void removeChunks(SharedPreferences.Editor editor, String field){
+        for(int i = 0; i < chunks; i++)
+            editor.remove(chunkKey(field, ids[i]));
+    }
+
+    /**
+     * Saves new content of a chunk under a new id and removes the old one.
+     */
+
+    private void replaceChunk(SharedPreferences.Editor editor, String field, int chunk, JsonArray values){
+        editor.remove(chunkKey(field, ids[chunk]));
+        ids[chunk] = nextId++;
+        sizes[chunk] = values.size();
+        editor.putString(chunkKey(field, ids[chunk]), values.toString());
+    }
+
+    /**
+     * Reads the header again after a chunk of this one was found missing.
+     * @return False if the header didn't change, so the chunk is lost
+     * and readers skip it like before.
+     * @throws ConcurrentModificationException When the field isn't a chunked list anymore.
+     */
+
+    private boolean reload(SharedPreferences data, String field){
+        String raw;
+        try {
+            raw = data.getString(field, null);
+        } catch (ClassCastException e){
+            raw = null;
+        }
+        ChunkedList current = parse(raw);
+        if(current == null)
+            throw new ConcurrentModificationException("List at " + field + " was replaced");
+        if(current.version == version && current.nextId == nextId)
+            return false;
+        version = current.version;
+        nextId = current.nextId;
+        ids = current.ids;
+        sizes = current.sizes;
+        chunks = current.chunks;
+        return true;
+    }
+
+    private JsonArray readChunk(SharedPreferences data, String field, int chunk){
+        String raw = data.getString(chunkKey(field, ids[chunk]), null);
+        JsonArray res = raw == null ? null : Codec.parseArray(raw);
+        return res == null ? new JsonArray() : res;
+    }
+
+    private void writeHeader(SharedPreferences.Editor editor, String field){
+        StringBuilder header = new StringBuilder(HEADER_PREFIX.length() + 24 + chunks * 12);
+        header.append(HEADER_PREFIX).append(++version).append(';').append(nextId).append(';');
+        for(int i = 0; i < chunks; i++){
+            if(i > 0)
+                header.append(',');
+            header.append(ids[i]).append(':').append(sizes[i]);
+        }
+        editor.putString(field, header.toString());
+    }
+
+    private int chunkOf(int position){
+        for(int i = 0; i < chunks; i++){
+            if(position < sizes[i])
+                return i;
+            position -= sizes[i];
+        }
+        throw new IndexOutOfBoundsException();
+    }
+
+    private int offsetOf(int chunk){
+        int res = 0;
+        for(int i = 0; i < chunk; i++)
+            res += sizes[i];
+        return res;
+    }
+
+    private void addChunk(int index, long id, int size){
+        if(chunks == ids.length){
+            ids = Arrays.copyOf(ids, chunks * 2);
+            sizes = Arrays.copyOf(sizes, chunks * 2);
+        }
+        System.arraycopy(ids, index, ids, index + 1, chunks - index);
+        System.arraycopy(sizes, index, sizes, index + 1, chunks - index);
+        ids[index] = id;
+        sizes[index] = size;
+        chunks++;
+    }
+
+    private void removeChunk(int index){
+        System.arraycopy(ids, index + 1, ids, index, chunks - index - 1);
+        System.arraycopy(sizes, index + 1, sizes, index, chunks - index - 1);
+        chunks--;
+    }
+
+    private static void insert(JsonArray array, int index, JsonElement value){
+        //JsonArray has no add(index, element).
+        array.add(value);
+        for(int i = array.size() - 1; i > index; i--)
+            array.set(i, array.get(i - 1));
+        array.set(index, value);
+    }
+
+    private static void checkIndex(int position, int size){
+        if(position < 0 || position >= size)
+            throw new IndexOutOfBoundsException("Position: " + position + ", size: " + size);
+    }
+
+    private static String chunkKey(String field, long id){
+        return INTERNAL_PREFIX + "chunk#" + id + "#" + field;
+    }
+
+}
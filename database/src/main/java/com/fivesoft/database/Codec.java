@@ -0,0 +1,550 @@
+package com.fivesoft.database;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StringReader;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Encodes and decodes field values.
+ * <br><br>
+ * {@link Gson} is thread safe and caches type adapters internally,
+ * so one instance is shared by every {@link EssData} which doesn't
+ * configure its own. Adapters for the types EssData uses are looked
+ * up once and kept here, so hot reads and writes don't allocate
+ * new {@link TypeToken}s.
+ */
+
+final class Codec {
+
+    static final Type OBJECT_TYPE = new TypeToken<Object>(){}.getType();
+    static final Type LIST_TYPE = new TypeToken<List<Object>>(){}.getType();
+
+    private static volatile Codec defaultCodec;
+
+    private final Gson gson;
+    private final TypeAdapter<Object> objectAdapter;
+    private final TypeAdapter<List<Object>> listAdapter;
+    private final ConcurrentHashMap<Type, TypeAdapter<?>> adapters = new ConcurrentHashMap<>();
+
+    /**
+     * Returns process-wide codec backed by default {@link Gson}.
+     * @return Shared codec.
+     */
+
+    @NonNull
+    static Codec getDefault(){
+        Codec res = defaultCodec;
+        if(res == null){
+            synchronized (Codec.class){
+                res = defaultCodec;
+                if(res == null)
+                    defaultCodec = res = new Codec(new Gson());
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Creates codec from given gson instance and extra factories.
+     * Returns shared default codec when nothing is customized.
+     * @param gson Custom gson or null to use default one.
+     * @param factories Extra type adapter factories. May be empty.
+     * @return Codec instance.
+     */
+
+    @NonNull
+    static Codec create(@Nullable Gson gson, @NonNull List<TypeAdapterFactory> factories){
+        if(gson == null && factories.isEmpty())
+            return getDefault();
+
+        if(!factories.isEmpty()){
+            GsonBuilder builder = gson == null ? new GsonBuilder() : gson.newBuilder();
+            for(TypeAdapterFactory factory: factories)
+                builder.registerTypeAdapterFactory(factory);
+            gson = builder.create();
+        }
+        return new Codec(gson);
+    }
+
+    Codec(@NonNull Gson gson){
+        this.gson = gson;
+        this.objectAdapter = adapter(OBJECT_TYPE);
+        this.listAdapter = adapter(LIST_TYPE);
+    }
+
+    @NonNull
+    Gson getGson(){
+        return gson;
+    }
+
+    /**
+     * Returns cached adapter for given type.
+     * @param type The type.
+     * @return Adapter for the type.
+     */
+
+    @NonNull
+    @SuppressWarnings("unchecked")
+    <T> TypeAdapter<T> adapter(@NonNull Type type){
+        TypeAdapter<?> res = adapters.get(type);
+        if(res == null){
+            res = gson.getAdapter(TypeToken.get(type));
+            TypeAdapter<?> prev = adapters.putIfAbsent(type, res);
+            if(prev != null)
+                res = prev;
+        }
+        return (TypeAdapter<T>) res;
+    }
+
+    /**
+     * Encodes value to json.
+     * @param value The value. May be null.
+     * @return Json string.
+     */
+
+    @NonNull
+    String encode(@Nullable Object value){
+        //Gson keeps its own adapter cache for runtime classes,
+        //going through it keeps custom gson settings (nulls, html escaping).
+        return gson.toJson(value);
+    }
+
+    /**
+     * Decodes json to object graph (maps, lists, strings, doubles, booleans).
+     * @param json Json string.
+     * @return Decoded value or null if json is null or empty.
+     * @throws IOException When json is malformed.
+     */
+
+    @Nullable
+    Object decode(@Nullable String json) throws IOException {
+        return decode(json, objectAdapter);
+    }
+
+    /**
+     * Decodes json array.
+     * @param json Json string.
+     * @return Decoded list or null if json is null or empty.
+     * @throws IOException When json is malformed or isn't an array.
+     */
+
+    @Nullable
+    List<Object> decodeList(@Nullable String json) throws IOException {
+        return decode(json, listAdapter);
+    }
+
+    /**
+     * Decodes json to given type.
+     * @param json Json string.
+     * @param type Target type.
+     * @return Decoded value or null if json is null or empty.
+     * @throws IOException When json is malformed.
+     */
+
+    @Nullable
+    <T> T decode(@Nullable String json, @NonNull Type type) throws IOException {
+        return decode(json, this.<T>adapter(type));
+    }
+
+    /**
+     * Decodes single element of json array, elements before it are skipped
+     * without decoding.
+     * @param json Json array.
+     * @param position Position of element.
+     * @param type Type of element.
+     * @return Decoded element.
+     * @throws IOException When json is malformed or isn't an array.
+     * @throws IndexOutOfBoundsException When array doesn't contain the position.
+     */
+
+    @Nullable
+    <T> T decodeElement(@Nullable String json, int position, @NonNull Type type) throws IOException {
+        JsonReader reader = arrayReader(json);
+        if(reader == null || position < 0)
+            throw new IndexOutOfBoundsException("Position: " + position);
+
+        for(int i = 0; i < position; i++){
+            if(!reader.hasNext())
+                throw new IndexOutOfBoundsException("Position: " + position + ", size: " + i);
+            reader.skipValue();
+        }
+        if(!reader.hasNext())
+            throw new IndexOutOfBoundsException("Position: " + position + ", size: " + position);
+        return this.<T>adapter(type).read(reader);
+    }
+
+    /**
+     * Decodes a range of json array elements, the others are skipped
+     * without decoding.
+     * @param json Json array.
+     * @param offset Position of the first decoded element.
+     * @param limit Maximum number of decoded elements.
+     * @param type Type of elements.
+     * @param out Receives decoded elements.
+     * @param count Whether elements after the range should be counted.
+     * @return The number of elements in the array if {@code count} is true,
+     *         otherwise position after the last read element.
+     * @throws IOException When json is malformed or isn't an array.
+     */
+
+    <T> int decodeRange(@Nullable String json, int offset, int limit, @NonNull Type type,
+                        @NonNull List<T> out, boolean count) throws IOException {
+        JsonReader reader = arrayReader(json);
+        if(reader == null)
+            return 0;
+
+        TypeAdapter<T> adapter = adapter(type);
+        int res = 0;
+        while(reader.hasNext()){
+            if(res >= offset && res - offset < limit){
+                out.add(adapter.read(reader));
+            } else if(res >= offset && !count){
+                break;
+            } else {
+                reader.skipValue();
+            }
+            res++;
+        }
+        return res;
+    }
+
+    /**
+     * Counts elements of json array without decoding them.
+     * @param json Json array.
+     * @return The number of elements, 0 if json is null or empty.
+     * @throws IOException When json is malformed or isn't an array.
+     */
+
+    static int count(@Nullable String json) throws IOException {
+        JsonReader reader = arrayReader(json);
+        if(reader == null)
+            return 0;
+
+        int res = 0;
+        while(reader.hasNext()){
+            reader.skipValue();
+            res++;
+        }
+        return res;
+    }
+
+    /**
+     * Returns iterator decoding elements of given json arrays one by one.
+     * Iteration stops at the first malformed array.
+     * @param arrays Json arrays, read one after another.
+     * @param type Type of elements.
+     * @return New iterator.
+     */
+
+    @NonNull
+    <T> Iterator<T> iterate(@NonNull List<String> arrays, @NonNull Type type){
+        return new ElementIterator<>(arrays, this.<T>adapter(type));
+    }
+
+    /**
+     * Decodes json array of numbers without boxing.
+     * @param json Json string.
+     * @return Decoded numbers, empty if json is null or empty.
+     * @throws IOException When json is malformed or isn't an array of numbers.
+     */
+
+    @NonNull
+    static int[] decodeInts(@Nullable String json) throws IOException {
+        JsonReader reader = arrayReader(json);
+        if(reader == null)
+            return new int[0];
+
+        int[] res = new int[16];
+        int size = 0;
+        while(reader.hasNext()){
+            if(size == res.length)
+                res = Arrays.copyOf(res, size * 2);
+            res[size++] = reader.nextInt();
+        }
+        reader.endArray();
+        return size == res.length ? res : Arrays.copyOf(res, size);
+    }
+
+    /**
+     * Decodes json array of numbers without boxing.
+     * @param json Json string.
+     * @return Decoded numbers, empty if json is null or empty.
+     * @throws IOException When json is malformed or isn't an array of numbers.
+     */
+
+    @NonNull
+    static long[] decodeLongs(@Nullable String json) throws IOException {
+        JsonReader reader = arrayReader(json);
+        if(reader == null)
+            return new long[0];
+
+        long[] res = new long[16];
+        int size = 0;
+        while(reader.hasNext()){
+            if(size == res.length)
+                res = Arrays.copyOf(res, size * 2);
+            res[size++] = reader.nextLong();
+        }
+        reader.endArray();
+        return size == res.length ? res : Arrays.copyOf(res, size);
+    }
+
+    /**
+     * Decodes json array of numbers without boxing.
+     * @param json Json string.
+     * @return Decoded numbers, empty if json is null or empty.
+     * @throws IOException When json is malformed or isn't an array of numbers.
+     */
+
+    @NonNull
+    static double[] decodeDoubles(@Nullable String json) throws IOException {
+        JsonReader reader = arrayReader(json);
+        if(reader == null)
+            return new double[0];
+
+        double[] res = new double[16];
+        int size = 0;
+        while(reader.hasNext()){
+            if(size == res.length)
+                res = Arrays.copyOf(res, size * 2);
+            res[size++] = reader.nextDouble();
+        }
+        reader.endArray();
+        return size == res.length ? res : Arrays.copyOf(res, size);
+    }
+
+    /**
+     * Reads a property of every element of given json arrays
+     * without decoding the elements.
+     * @param arrays Json arrays, read one after another.
+     * @param property The name of property.
+     * @param out Receives keys (see {@link ListIndexes#key(Object)}), null for elements
+     *            which aren't objects or don't have the property.
+     * @throws IOException When json is malformed.
+     */
+
+    static void extract(@NonNull List<String> arrays, @NonNull String property,
+                        @NonNull List<Object> out) throws IOException {
+        for(String json: arrays){
+            JsonReader reader = arrayReader(json);
+            if(reader == null)
+                continue;
+            while(reader.hasNext())
+                out.add(property(reader, property));
+            reader.endArray();
+        }
+    }
+
+    /**
+     * Decodes elements at given positions of json arrays, skipping the rest.
+     * @param arrays Json arrays, read one after another.
+     * @param positions Positions of elements in any order.
+     * @param type Type of elements.
+     * @return Elements in the order of positions.
+     * @throws IOException When json is malformed.
+     * @throws IndexOutOfBoundsException When list is shorter than a position.
+     */
+
+    @NonNull
+    @SuppressWarnings("unchecked")
+    <T> List<T> decodeAt(@NonNull List<String> arrays, @NonNull int[] positions,
+                         @NonNull Type type) throws IOException {
+        int[] sorted = positions.clone();
+        Arrays.sort(sorted);
+        Object[] decoded = new Object[sorted.length];
+        TypeAdapter<T> adapter = adapter(type);
+
+        int position = 0;
+        int next = 0;
+        for(String json: arrays){
+            if(next == sorted.length)
+                break;
+            JsonReader reader = arrayReader(json);
+            if(reader == null)
+                continue;
+            while(next < sorted.length && reader.hasNext()){
+                if(position == sorted[next]){
+                    decoded[next] = adapter.read(reader);
+                    //The same position may be requested twice.
+                    while(++next < sorted.length && sorted[next] == position)
+                        decoded[next] = decoded[next - 1];
+                } else {
+                    reader.skipValue();
+                }
+                position++;
+            }
+        }
+        if(next < sorted.length)
+            throw new IndexOutOfBoundsException("Position: " + sorted[next] + ", size: " + position);
+
+        List<T> res = new ArrayList<>(positions.length);
+        for(int p: positions)
+            res.add((T) decoded[Arrays.binarySearch(sorted, p)]);
+        return res;
+    }
+
+    /**
+     * Converts value to json tree.
+     * @param value The value. May be null.
+     * @return Json tree.
+     */
+
+    @NonNull
+    JsonElement toTree(@Nullable Object value){
+        return gson.toJsonTree(value);
+    }
+
+    /**
+     * Parses json array without converting its elements.
+     * @param json Json string.
+     * @return Parsed array or null if json is malformed or isn't an array.
+     */
+
+    @Nullable
+    static JsonArray parseArray(@NonNull String json){
+        try {
+            JsonElement res = JsonParser.parseString(json);
+            return res.isJsonArray() ? res.getAsJsonArray() : null;
+        } catch (JsonParseException e){
+            return null;
+        }
+    }
+
+    @Nullable
+    private static Object property(JsonReader reader, String property) throws IOException {
+        if(reader.peek() != JsonToken.BEGIN_OBJECT){
+            reader.skipValue();
+            return null;
+        }
+
+        Object res = null;
+        reader.beginObject();
+        while(reader.hasNext()){
+            if(!reader.nextName().equals(property)){
+                reader.skipValue();
+                continue;
+            }
+            switch (reader.peek()){
+                case STRING:
+                    res = reader.nextString();
+                    break;
+                case NUMBER:
+                    res = ListIndexes.number(reader.nextString());
+                    break;
+                case BOOLEAN:
+                    res = reader.nextBoolean();
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return res;
+    }
+
+    @Nullable
+    private static <T> T decode(@Nullable String json, TypeAdapter<T> adapter) throws IOException {
+        JsonReader reader = reader(json);
+        return reader == null ? null : adapter.read(reader);
+    }
+
+    /**
+     * Returns reader positioned inside json array or null if json is empty.
+     */
+
+    @Nullable
+    private static JsonReader arrayReader(@Nullable String json) throws IOException {
+        JsonReader reader = reader(json);
+        if(reader != null)
+            reader.beginArray();
+        return reader;
+    }
+
+    @Nullable
+    private static JsonReader reader(@Nullable String json) throws IOException {
+        if(json == null)
+            return null;
+        //Same lenient reading as Gson#fromJson so stored values
+        //written by older versions are still readable.
+        JsonReader reader = new JsonReader(new StringReader(json));
+        reader.setLenient(true);
+        try {
+            reader.peek();
+        } catch (EOFException e){
+            return null;
+        }
+        return reader;
+    }
+
+    private static final class ElementIterator<T> implements Iterator<T> {
+
+        private final List<String> arrays;
+        private final TypeAdapter<T> adapter;
+        private int next;
+        private JsonReader reader;
+
+        ElementIterator(List<String> arrays, TypeAdapter<T> adapter){
+            this.arrays = arrays;
+            this.adapter = adapter;
+        }
+
+        @Override
+        public boolean hasNext() {
+            try {
+                while(reader == null || !reader.hasNext()){
+                    if(next >= arrays.size())
+                        return false;
+                    reader = arrayReader(arrays.get(next++));
+                }
+                return true;
+            } catch (IOException | IllegalStateException e){
+                //Damaged list, treat it as finished.
+                next = arrays.size();
+                reader = null;
+                return false;
+            }
+        }
+
+        @Override
+        public T next() {
+            if(!hasNext())
+                throw new NoSuchElementException();
+            try {
+                return adapter.read(reader);
+            } catch (IOException e){
+                next = arrays.size();
+                reader = null;
+                throw new NoSuchElementException(e.getMessage());
+            }
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+    }
+
+}
@@ -0,0 +1,276 @@
+package com.fivesoft.database;
+
+import android.content.SharedPreferences;
+import android.util.Base64;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate compression of large encoded values.
+ * <br><br>
+ * Compressed value is {@code PREFIX} followed by Base64 of zlib data,
+ * json never starts with the prefix, so values are detected when read
+ * regardless of the configuration of the reading instance.
+ * <br><br>
+ * A document can have a dictionary built from its own values, which
+ * makes small values compress much better. Dictionaries are saved in
+ * internal fields of the document, keyed by their Adler-32 checksum which
+ * zlib stores in compressed data. Old dictionaries are kept, so values
+ * compressed before a new dictionary was built stay readable.
+ * <br><br>
+ * {@link Deflater}, {@link Inflater} and buffers are kept per thread.
+ */
+
+final class Compression {
+
+    static final String PREFIX = ChunkedList.INTERNAL_PREFIX + "z#";
+
+    //Field holding id of the dictionary used for new values.
+    static final String DICTIONARY = ChunkedList.INTERNAL_PREFIX + "dictionary";
+    private static final String DICTIONARY_PREFIX = DICTIONARY + "#";
+
+    //Largest dictionary deflate can use, its window size.
+    static final int MAX_DICTIONARY_SIZE = 32 * 1024;
+    //Characters taken from the beginning of each value when building a dictionary.
+    private static final int SAMPLE_SIZE = 1024;
+    //Larger buffers aren't kept after use.
+    private static final int MAX_KEPT_BUFFER = 256 * 1024;
+
+    private static final ThreadLocal<Buffers> buffers = new ThreadLocal<Buffers>(){
+        @Override
+        protected Buffers initialValue() {
+            return new Buffers();
+        }
+    };
+
+    //Decoded dictionaries by their saved Base64 form.
+    private static final Map<String, byte[]> dictionaries = new ConcurrentHashMap<>();
+
+    private final int minSize;
+
+    /**
+     * @param minSize Values shorter than this many characters aren't compressed.
+     */
+
+    Compression(int minSize){
+        this.minSize = Math.max(1, minSize);
+    }
+
+    /**
+     * Compresses encoded value if it's large enough and gets smaller.
+     * @param data The document, its dictionary is used if it has one.
+     * @param json Encoded value.
+     * @return Value to save, compressed or the json itself.
+     */
+
+    @NonNull
+    String compress(@NonNull SharedPreferences data, @NonNull String json){
+        if(json.length() < minSize)
+            return json;
+
+        Buffers buffers = Compression.buffers.get();
+        String id = data.getString(DICTIONARY, null);
+        byte[] dictionary = id == null ? null : dictionary(data, id);
+
+        ByteBuffer input = buffers.encode(json);
+        Deflater deflater = buffers.deflater;
+        deflater.reset();
+        if(dictionary != null)
+            deflater.setDictionary(dictionary);
+        deflater.setInput(input.array(), 0, input.limit());
+        deflater.finish();
+
+        byte[] output = buffers.output(input.limit() / 2 + 64);
+        int length = 0;
+        while(!deflater.finished()){
+            if(length == output.length)
+                output = buffers.grow(output);
+            length += deflater.deflate(output, length, output.length - length);
+        }
+        buffers.release();
+
+        //Base64 is 4/3 of compressed size.
+        if(PREFIX.length() + (length + 2) / 3 * 4 >= json.length())
+            return json;
+        return PREFIX.concat(Base64.encodeToString(output, 0, length, Base64.NO_WRAP));
+    }
+
+    /**
+     * Checks if a stored value is compressed.
+     * @param raw Stored value.
+     * @return True if value must be passed to {@link #inflate(SharedPreferences, String)}.
+     */
+
+    static boolean isCompressed(@Nullable String raw){
+        return raw != null && raw.startsWith(PREFIX);
+    }
+
+    /**
+     * Returns json of a stored value.
+     * @param data The document the value belongs to.
+     * @param raw Stored value, compressed or not.
+     * @return Json, raw itself when it isn't compressed or null
+     *         if it's damaged or its dictionary is missing.
+     */
+
+    @Nullable
+    static String inflate(@NonNull SharedPreferences data, @Nullable String raw){
+        if(!isCompressed(raw))
+            return raw;
+
+        Buffers buffers = Compression.buffers.get();
+        try {
+            byte[] input = Base64.decode(raw.substring(PREFIX.length()), Base64.NO_WRAP);
+            Inflater inflater = buffers.inflater;
+            inflater.reset();
+            inflater.setInput(input);
+
+            byte[] output = buffers.output(input.length * 4);
+            int length = 0;
+            while(!inflater.finished()){
+                if(length == output.length)
+                    output = buffers.grow(output);
+                int read = inflater.inflate(output, length, output.length - length);
+                length += read;
+                if(read == 0 && inflater.needsDictionary()){
+                    //Some versions return the checksum sign extended.
+                    byte[] dictionary = dictionary(data, Long.toString(inflater.getAdler() & 0xFFFFFFFFL));
+                    if(dictionary == null)
+                        return null;
+                    inflater.setDictionary(dictionary);
+                } else if(read == 0 && inflater.needsInput()){
+                    return null;
+                }
+            }
+            return new String(output, 0, length, FileBackend.UTF_8);
+        } catch (IllegalArgumentException | DataFormatException e){
+            return null;
+        } finally {
+            buffers.release();
+        }
+    }
+
+    /**
+     * Builds a dictionary from values of a document and makes it
+     * the dictionary of new values.
+     * @param data The document.
+     * @return False if document has no values to learn from.
+     */
+
+    static boolean train(@NonNull SharedPreferences data){
+        //Values are sampled from their beginning, where keys and structure repeat.
+        List<String> samples = new ArrayList<>();
+        for(Map.Entry<String, ?> entry: data.getAll().entrySet()){
+            Object value = entry.getValue();
+            if(!(value instanceof String) || ChunkedList.isInternal(entry.getKey())
+                    || ChunkedList.isHeader((String) value) || BitmapStore.isReference((String) value))
+                continue;
+            String json = inflate(data, (String) value);
+            if(json != null && json.length() > 1)
+                samples.add(json.length() > SAMPLE_SIZE ? json.substring(0, SAMPLE_SIZE) : json);
+        }
+        if(samples.isEmpty())
+            return false;
+
+        //Deflate finds close matches cheaper, the end of dictionary is the closest.
+        StringBuilder text = new StringBuilder();
+        for(String sample: samples){
+            text.append(sample);
+            if(text.length() >= MAX_DICTIONARY_SIZE)
+                break;
+        }
+        byte[] dictionary = text.toString().getBytes(FileBackend.UTF_8);
+        if(dictionary.length > MAX_DICTIONARY_SIZE)
+            dictionary = Arrays.copyOfRange(dictionary, dictionary.length - MAX_DICTIONARY_SIZE, dictionary.length);
+
+        Adler32 adler = new Adler32();
+        adler.update(dictionary, 0, dictionary.length);
+        String id = Long.toString(adler.getValue());
+        data.edit()
+                .putString(DICTIONARY_PREFIX + id, Base64.encodeToString(dictionary, Base64.NO_WRAP))
+                .putString(DICTIONARY, id)
+                .apply();
+        return true;
+    }
+
+    @Nullable
+    private static byte[] dictionary(SharedPreferences data, String id){
+        String encoded = data.getString(DICTIONARY_PREFIX + id, null);
+        if(encoded == null)
+            return null;
+        byte[] res = dictionaries.get(encoded);
+        if(res == null){
+            try {
+                res = Base64.decode(encoded, Base64.NO_WRAP);
+            } catch (IllegalArgumentException e){
+                return null;
+            }
+            dictionaries.put(encoded, res);
+        }
+        return res;
+    }
+
+    /**
+     * Compression state of one thread.
+     */
+
+    private static final class Buffers {
+
+        final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        final Inflater inflater = new Inflater();
+        final CharsetEncoder encoder = FileBackend.UTF_8.newEncoder();
+        ByteBuffer input = ByteBuffer.allocate(1024);
+        byte[] output = new byte[1024];
+
+        ByteBuffer encode(String json){
+            int size = (int) (json.length() * encoder.maxBytesPerChar()) + 1;
+            if(input.capacity() < size)
+                input = ByteBuffer.allocate(size);
+            input.clear();
+            encoder.reset();
+            //Strings from gson are valid UTF-16, encoding can't fail.
+            encoder.encode(CharBuffer.wrap(json), input, true);
+            encoder.flush(input);
+            input.flip();
+            return input;
+        }
+
+        byte[] output(int size){
+            if(output.length < size)
+                output = new byte[size];
+            return output;
+        }
+
+        byte[] grow(byte[] current){
+            output = Arrays.copyOf(current, current.length * 2);
+            return output;
+        }
+
+        /**
+         * Drops buffers grown above the kept size.
+         */
+
+        void release(){
+            if(input.capacity() > MAX_KEPT_BUFFER)
+                input = ByteBuffer.allocate(1024);
+            if(output.length > MAX_KEPT_BUFFER)
+                output = new byte[1024];
+        }
+
+    }
+
+}
@@ -0,0 +1,335 @@
+package com.fivesoft.database;
+
+import android.content.SharedPreferences;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory cells of numeric fields modified with
+ * {@link EssData#increment(String, String, long)} and similar methods.
+ * <br><br>
+ * A cell is created with the saved value of its field and then changed
+ * with atomic operations only, nothing is encoded nor saved per operation.
+ * A document is saved by {@link WriteBehind.Writer}, i.e. EssData,
+ * {@code delayMillis} after its first unsaved change.
+ * <br><br>
+ * Other modifications of a field retire its cell: operations in progress
+ * finish first, later ones create a new cell from the saved value.
+ * <br><br>
+ * Cells are kept per document handle and shared by all instances, like
+ * {@link FieldLocks}, so EssData instances using the same backend change
+ * the same cells. A scheduled save is done by the instance which scheduled it,
+ * every instance saves documents it used when flushed.
+ */
+
+final class Counters implements DeferredWrites {
+
+    static final long DEFAULT_DELAY_MILLIS = 1000;
+
+    /**
+     * Opens cell of a field when it has none of the requested kind.
+     */
+
+    interface Loader {
+
+        @NonNull
+        Cell load(@NonNull String document, @NonNull String field, boolean floating);
+
+    }
+
+    //Cells of all instances by document handle, handles of one backend are the same objects.
+    private static final Map<SharedPreferences, Document> SHARED = new WeakHashMap<>();
+
+    private final StorageBackend backend;
+    private final long delayMillis;
+    private final Loader loader;
+    private final WriteBehind.Writer writer;
+    //Shared documents used by this instance by name, so a handle is resolved once.
+    private final ConcurrentHashMap<String, Document> documents = new ConcurrentHashMap<>();
+
+    Counters(@NonNull StorageBackend backend, long delayMillis,
+             @NonNull Loader loader, @NonNull WriteBehind.Writer writer){
+        this.backend = backend;
+        this.delayMillis = Math.max(0, delayMillis);
+        this.loader = loader;
+        this.writer = writer;
+    }
+
+    /**
+     * Adds delta to a long field.
+     * @return The previous value.
+     */
+
+    long getAndAdd(@NonNull String document, @NonNull String field, long delta){
+        while(true){
+            Cell cell = cell(document, field, false);
+            if(!cell.enter())
+                continue;
+            try {
+                return cell.value.getAndAdd(delta);
+            } finally {
+                cell.exit();
+                changed(document);
+            }
+        }
+    }
+
+    /**
+     * Adds delta to a double field.
+     * @return The previous value.
+     */
+
+    double getAndAdd(@NonNull String document, @NonNull String field, double delta){
+        while(true){
+            Cell cell = cell(document, field, true);
+            if(!cell.enter())
+                continue;
+            try {
+                while(true){
+                    long bits = cell.value.get();
+                    double value = Double.longBitsToDouble(bits);
+                    if(cell.value.compareAndSet(bits, Double.doubleToRawLongBits(value + delta)))
+                        return value;
+                }
+            } finally {
+                cell.exit();
+                changed(document);
+            }
+        }
+    }
+
+    /**
+     * Sets a field to {@code update} if its value is {@code expect}.
+     * @param floating True if values are bits of doubles.
+     * @return False if the value was different.
+     */
+
+    boolean compareAndSet(@NonNull String document, @NonNull String field, boolean floating,
+                          long expect, long update){
+        while(true){
+            Cell cell = cell(document, field, floating);
+            if(!cell.enter())
+                continue;
+            boolean res = false;
+            try {
+                while(!res){
+                    long bits = cell.value.get();
+                    //Doubles are compared by value, so 0.0 equals -0.0.
+                    if(floating ? Double.longBitsToDouble(bits) != Double.longBitsToDouble(expect) : bits != expect)
+                        return false;
+                    res = cell.value.compareAndSet(bits, update);
+                }
+                return true;
+            } finally {
+                cell.exit();
+                if(res)
+                    changed(document);
+            }
+        }
+    }
+
+    /**
+     * @return Cell of a field or null if it has none.
+     */
+
+    @Nullable
+    Cell get(@NonNull String document, @Nullable String field){
+        return field == null ? null : document(document).cells.get(field);
+    }
+
+    /**
+     * Adds a cell, called by {@link Loader} while the field is locked.
+     * @param bits The saved value, bits of a double if {@code floating}.
+     */
+
+    @NonNull
+    Cell create(@NonNull String document, @NonNull String field, boolean floating, long bits){
+        Cell res = new Cell(floating, bits);
+        document(document).cells.put(field, res);
+        return res;
+    }
+
+    /**
+     * Removes cell of a field and waits for operations in progress,
+     * called while the field is locked.
+     * @return The retired cell or null if field had none.
+     */
+
+    @Nullable
+    Cell retire(@NonNull String document, @NonNull String field){
+        Cell res = document(document).cells.remove(field);
+        if(res == null)
+            return null;
+        res.users.addAndGet(Integer.MIN_VALUE);
+        while(res.users.get() != Integer.MIN_VALUE)
+            Thread.yield();
+        return res;
+    }
+
+    /**
+     * @return Cells with unsaved changes or null if there are none.
+     */
+
+    @Nullable
+    Map<String, Cell> getChanged(@NonNull String document){
+        Map<String, Cell> res = new LinkedHashMap<>();
+        for(Map.Entry<String, Cell> entry: document(document).cells.entrySet())
+            if(entry.getValue().isChanged())
+                res.put(entry.getKey(), entry.getValue());
+        return res.isEmpty() ? null : res;
+    }
+
+    boolean hasCells(@NonNull String document){
+        return !document(document).cells.isEmpty();
+    }
+
+    /**
+     * @return Names of fields which have cells.
+     */
+
+    @NonNull
+    Set<String> fields(@NonNull String document){
+        return new HashSet<>(document(document).cells.keySet());
+    }
+
+    /**
+     * Drops cells of a document without saving, e.g. when it's cleared.
+     * Cells are retired, operations in progress finish first and later
+     * ones open new cells, so no change lands in a dropped cell.
+     * Called while the fields are locked.
+     */
+
+    void discard(@NonNull String document){
+        for(String field: document(document).cells.keySet())
+            retire(document, field);
+    }
+
+    /**
+     * Drops cells of documents used by this instance, like {@link #discard(String)}.
+     */
+
+    void discardAll(){
+        for(String document: documents.keySet())
+            discard(document);
+    }
+
+    /**
+     * Saves cells of all documents on the calling thread.
+     */
+
+    @Override
+    public void flushAll(){
+        for(String document: documents.keySet())
+            if(getChanged(document) != null)
+                writer.write(document);
+    }
+
+    private Cell cell(String document, String field, boolean floating){
+        Cell res = get(document, field);
+        return res != null && res.floating == floating ? res : loader.load(document, field, floating);
+    }
+
+    private Document document(String document){
+        Document res = documents.get(document);
+        if(res == null){
+            SharedPreferences data = backend.open(document);
+            synchronized (SHARED){
+                res = SHARED.get(data);
+                if(res == null){
+                    res = new Document();
+                    SHARED.put(data, res);
+                }
+            }
+            documents.put(document, res);
+        }
+        return res;
+    }
+
+    private void changed(final String document){
+        final AtomicBoolean scheduled = document(document).scheduled;
+        if(!scheduled.compareAndSet(false, true))
+            return;
+        IoExecutor.scheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                scheduled.set(false);
+                writer.write(document);
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Current value of one field.
+     */
+
+    static final class Cell {
+
+        final boolean floating;
+        //The value, bits of a double if floating.
+        final AtomicLong value;
+        //Operations in progress, negative once the cell is retired.
+        private final AtomicInteger users = new AtomicInteger();
+        private volatile long saved;
+
+        Cell(boolean floating, long bits){
+            this.floating = floating;
+            this.value = new AtomicLong(bits);
+            this.saved = bits;
+        }
+
+        /**
+         * @return Current value as Long or Double.
+         */
+
+        @NonNull
+        Number get(){
+            long bits = value.get();
+            return floating ? (Number) Double.longBitsToDouble(bits) : (Number) bits;
+        }
+
+        boolean isChanged(){
+            return value.get() != saved;
+        }
+
+        /**
+         * Called with the field locked once given value is saved.
+         */
+
+        void onSaved(@NonNull Number value){
+            saved = floating ? Double.doubleToRawLongBits(value.doubleValue()) : value.longValue();
+        }
+
+        private boolean enter(){
+            if(users.incrementAndGet() > 0)
+                return true;
+            users.decrementAndGet();
+            return false;
+        }
+
+        private void exit(){
+            users.decrementAndGet();
+        }
+
+    }
+
+    private static final class Document {
+
+        final ConcurrentHashMap<String, Cell> cells = new ConcurrentHashMap<>();
+        //Set while a flush is waiting.
+        final AtomicBoolean scheduled = new AtomicBoolean();
+
+    }
+
+}
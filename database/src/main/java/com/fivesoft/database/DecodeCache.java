@@ -0,0 +1,394 @@
+package com.fivesoft.database;
+
+import android.content.SharedPreferences;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.lang.reflect.Type;
+import java.util.IdentityHashMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * LRU cache of decoded field values.
+ * <br><br>
+ * Every entry remembers the raw stored string it was decoded from,
+ * so a lookup only hits when the document still holds the same value.
+ * Entries are also dropped by EssData mutators and by
+ * {@link SharedPreferences.OnSharedPreferenceChangeListener} so stale
+ * values don't occupy memory. The cache is bounded by the total length
+ * of raw values it holds.
+ * <br><br>
+ * A few recently read list pages are kept too, validated
+ * and invalidated the same way.
+ * <br><br>
+ * Only values made of lists, maps, strings, numbers and booleans are
+ * cached, that's what untyped json decodes to. Values are copied when
+ * cached and when returned, so callers can modify what they get.
+ */
+
+final class DecodeCache {
+
+    /**
+     * Default limit of cached raw characters (about 2MB of json).
+     */
+
+    static final int DEFAULT_MAX_SIZE = 1024 * 1024;
+
+    /**
+     * The number of list pages kept.
+     */
+
+    static final int MAX_PAGES = 16;
+
+    private static final Object NULL = new Object();
+
+    private static volatile DecodeCache defaultCache;
+
+    private final int maxSize;
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private final LinkedHashMap<PageKey, Entry> pages = new LinkedHashMap<>(MAX_PAGES, 0.75f, true);
+    private final Map<SharedPreferences, Listener> listeners = new IdentityHashMap<>();
+    private int size;
+
+    /**
+     * Returns cache shared by instances using default codec.
+     * @return Shared cache.
+     */
+
+    @NonNull
+    static DecodeCache getDefault(){
+        DecodeCache res = defaultCache;
+        if(res == null){
+            synchronized (DecodeCache.class){
+                res = defaultCache;
+                if(res == null)
+                    defaultCache = res = new DecodeCache(DEFAULT_MAX_SIZE);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * @param maxSize Maximum total length of cached raw values.
+     *                Pass 0 to disable caching.
+     */
+
+    DecodeCache(int maxSize){
+        this.maxSize = Math.max(0, maxSize);
+    }
+
+    /**
+     * Returns copy of cached value decoded from given raw value.
+     * @param data The document.
+     * @param field The name of field.
+     * @param raw Currently stored raw value.
+     * @param miss Object returned when value isn't cached.
+     * @return Cached value (may be null) or {@code miss}.
+     */
+
+    @Nullable
+    Object get(SharedPreferences data, String field, String raw, Object miss){
+        Object res = peek(data, field, raw, miss);
+        return res == miss ? miss : copy(res);
+    }
+
+    /**
+     * Returns cached value itself, for reads which don't modify
+     * nor return it, like the size of a list.
+     * @see #get(SharedPreferences, String, String, Object)
+     */
+
+    @Nullable
+    synchronized Object peek(SharedPreferences data, String field, String raw, Object miss){
+        if(maxSize == 0)
+            return miss;
+
+        Entry entry = entries.get(new Key(data, field));
+        if(entry == null)
+            return miss;
+
+        if(entry.raw != raw && !entry.raw.equals(raw)){
+            remove(new Key(data, field));
+            return miss;
+        }
+        return entry.value == NULL ? null : entry.value;
+    }
+
+    /**
+     * Caches decoded value.
+     * @param data The document.
+     * @param field The name of field.
+     * @param raw Raw value the value was decoded from.
+     * @param value Decoded value.
+     */
+
+    synchronized void put(SharedPreferences data, String field, String raw, @Nullable Object value){
+        int weight = weight(raw);
+        if(weight > maxSize || !isCopyable(value))
+            return;
+
+        watch(data);
+        Key key = new Key(data, field);
+        remove(key);
+        entries.put(key, new Entry(raw, value == null ? NULL : copy(value)));
+        size += weight;
+
+        Iterator<Entry> iterator = entries.values().iterator();
+        while(size > maxSize && iterator.hasNext()){
+            size -= weight(iterator.next().raw);
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Returns cached page of a list.
+     * @param data The document.
+     * @param field The name of field.
+     * @param raw Currently stored raw value of the field.
+     * @param offset Position of the first element.
+     * @param limit Maximum number of elements.
+     * @param type Type of elements.
+     * @param miss Object returned when page isn't cached.
+     * @return Copy of cached page or {@code miss}.
+     */
+
+    synchronized Object getPage(SharedPreferences data, String field, String raw,
+                                int offset, int limit, Type type, Object miss){
+        if(maxSize == 0 || pages.isEmpty())
+            return miss;
+
+        PageKey key = new PageKey(data, field, offset, limit, type);
+        Entry entry = pages.get(key);
+        if(entry == null)
+            return miss;
+
+        if(entry.raw != raw && !entry.raw.equals(raw)){
+            pages.remove(key);
+            return miss;
+        }
+        ListPage<?> page = (ListPage<?>) entry.value;
+        return new ListPage<>((List<?>) copy(page.getItems()), page.getOffset(), page.getTotal());
+    }
+
+    /**
+     * Caches page of a list. The least recently used page is dropped
+     * when there are more than {@link #MAX_PAGES} pages.
+     */
+
+    synchronized void putPage(SharedPreferences data, String field, String raw,
+                              int offset, int limit, Type type, ListPage<?> page){
+        if(maxSize == 0 || !isCopyable(page.getItems()))
+            return;
+
+        watch(data);
+        page = new ListPage<>((List<?>) copy(page.getItems()), page.getOffset(), page.getTotal());
+        pages.put(new PageKey(data, field, offset, limit, type), new Entry(raw, page));
+        Iterator<Entry> iterator = pages.values().iterator();
+        while(pages.size() > MAX_PAGES && iterator.hasNext()){
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Drops cached value and pages of given field.
+     * @param data The document.
+     * @param field The name of field.
+     */
+
+    synchronized void invalidate(SharedPreferences data, String field){
+        if(!entries.isEmpty())
+            remove(new Key(data, field));
+
+        Iterator<PageKey> iterator = pages.keySet().iterator();
+        while(iterator.hasNext()){
+            PageKey key = iterator.next();
+            if(key.data == data && key.field.equals(field))
+                iterator.remove();
+        }
+    }
+
+    /**
+     * Drops all cached values of given document.
+     * @param data The document.
+     */
+
+    synchronized void invalidate(SharedPreferences data){
+        Iterator<Map.Entry<Key, Entry>> iterator = entries.entrySet().iterator();
+        while(iterator.hasNext()){
+            Map.Entry<Key, Entry> entry = iterator.next();
+            if(entry.getKey().data == data){
+                size -= weight(entry.getValue().raw);
+                iterator.remove();
+            }
+        }
+
+        Iterator<PageKey> pageIterator = pages.keySet().iterator();
+        while(pageIterator.hasNext())
+            if(pageIterator.next().data == data)
+                pageIterator.remove();
+    }
+
+    private void remove(Key key){
+        Entry entry = entries.remove(key);
+        if(entry != null)
+            size -= weight(entry.raw);
+    }
+
+    private void watch(SharedPreferences data){
+        if(!listeners.containsKey(data)){
+            //SharedPreferences keeps listeners as weak references,
+            //so the cache keeps them alive.
+            Listener listener = new Listener();
+            listeners.put(data, listener);
+            data.registerOnSharedPreferenceChangeListener(listener);
+        }
+    }
+
+    /**
+     * Checks if value can be copied with {@link #copy(Object)}.
+     */
+
+    static boolean isCopyable(@Nullable Object value){
+        if(value == null || value instanceof String || value instanceof Number || value instanceof Boolean)
+            return true;
+        if(value instanceof List){
+            for(Object element: (List<?>) value)
+                if(!isCopyable(element))
+                    return false;
+            return true;
+        }
+        if(value instanceof Map){
+            for(Map.Entry<?, ?> entry: ((Map<?, ?>) value).entrySet())
+                if(!(entry.getKey() instanceof String) || !isCopyable(entry.getValue()))
+                    return false;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns deep copy of lists and maps, strings, numbers
+     * and booleans are immutable and returned as they are.
+     */
+
+    @Nullable
+    static Object copy(@Nullable Object value){
+        if(value instanceof List){
+            List<?> list = (List<?>) value;
+            List<Object> res = new ArrayList<>(list.size());
+            for(Object element: list)
+                res.add(copy(element));
+            return res;
+        }
+        if(value instanceof Map){
+            Map<?, ?> map = (Map<?, ?>) value;
+            Map<Object, Object> res = new LinkedHashMap<>(map.size() * 4 / 3 + 1);
+            for(Map.Entry<?, ?> entry: map.entrySet())
+                res.put(entry.getKey(), copy(entry.getValue()));
+            return res;
+        }
+        return value;
+    }
+
+    private static int weight(String raw){
+        return Math.max(1, raw.length());
+    }
+
+    private final class Listener implements SharedPreferences.OnSharedPreferenceChangeListener {
+
+        @Override
+        public void onSharedPreferenceChanged(SharedPreferences data, String field) {
+            if(field == null)
+                invalidate(data);
+            else
+                invalidate(data, field);
+        }
+
+    }
+
+    private static final class Key {
+
+        private final SharedPreferences data;
+        private final String field;
+        private final int hash;
+
+        Key(SharedPreferences data, String field){
+            this.data = data;
+            this.field = field;
+            this.hash = 31 * System.identityHashCode(data) + field.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(this == o)
+                return true;
+            if(!(o instanceof Key))
+                return false;
+            Key key = (Key) o;
+            return data == key.data && field.equals(key.field);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+    }
+
+    private static final class PageKey {
+
+        private final SharedPreferences data;
+        private final String field;
+        private final int offset;
+        private final int limit;
+        private final Type type;
+
+        PageKey(SharedPreferences data, String field, int offset, int limit, Type type){
+            this.data = data;
+            this.field = field;
+            this.offset = offset;
+            this.limit = limit;
+            this.type = type;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(this == o)
+                return true;
+            if(!(o instanceof PageKey))
+                return false;
+            PageKey key = (PageKey) o;
+            return data == key.data && offset == key.offset && limit == key.limit
+                    && field.equals(key.field) && type.equals(key.type);
+        }
+
+        @Override
+        public int hashCode() {
+            int res = System.identityHashCode(data);
+            res = 31 * res + field.hashCode();
+            res = 31 * res + offset;
+            res = 31 * res + limit;
+            return 31 * res + type.hashCode();
+        }
+
+    }
+
+    private static final class Entry {
+
+        private final String raw;
+        private final Object value;
+
+        Entry(String raw, Object value){
+            this.raw = raw;
+            this.value = value;
+        }
+
+    }
+
+}
@@ -0,0 +1,17 @@
+package com.fivesoft.database;
+
+/**
+ * Holds values saved later, like {@link WriteBehind} and {@link Counters}.
+ * Registered instances are flushed when an activity is paused,
+ * see {@link WriteBehind#flushOnPause(android.content.Context, DeferredWrites)}.
+ */
+
+interface DeferredWrites {
+
+    /**
+     * Saves all waiting values on the calling thread.
+     */
+
+    void flushAll();
+
+}
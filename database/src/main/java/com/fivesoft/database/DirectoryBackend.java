@@ -0,0 +1,138 @@
+package com.fivesoft.database;
+
+import android.content.SharedPreferences;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Base of backends keeping every document in its own file in one directory.
+ */
+
+abstract class DirectoryBackend implements StorageBackend {
+
+    //Appended to names of files moved aside by moveAside(File).
+    static final String DAMAGED_SUFFIX = ".damaged-";
+
+    private final File directory;
+    private final String extension;
+    private final ConcurrentHashMap<String, BaseDocument> documents = new ConcurrentHashMap<>();
+    private volatile OnDocumentLoadedListener loadedListener;
+
+    DirectoryBackend(@NonNull File directory, @NonNull String extension){
+        this.directory = directory;
+        this.extension = extension;
+    }
+
+    /**
+     * Creates handle of a document.
+     * @param document The name of document.
+     * @param file File of the document.
+     * @return New document handle.
+     */
+
+    @NonNull
+    abstract BaseDocument createDocument(@NonNull String document, @NonNull File file);
+
+    @NonNull
+    @Override
+    public SharedPreferences open(@NonNull String document) {
+        BaseDocument res = documents.get(document);
+        if(res == null){
+            res = createDocument(document, new File(directory, FileBackend.encodeName(document) + extension));
+            BaseDocument prev = documents.putIfAbsent(document, res);
+            if(prev != null)
+                res = prev;
+        }
+        res.lastOpened = System.nanoTime();
+        return res;
+    }
+
+    @NonNull
+    @Override
+    public List<String> getDocuments() {
+        Set<String> res = new HashSet<>();
+        String[] files = directory.list();
+        if(files != null)
+            for(String file: files)
+                if(file.endsWith(extension))
+                    res.add(FileBackend.decodeName(file.substring(0, file.length() - extension.length())));
+
+        //Documents modified but not saved yet. Handles which aren't loaded
+        //have nothing unsaved and aren't loaded just to be listed.
+        for(Map.Entry<String, BaseDocument> entry: documents.entrySet()){
+            Boolean empty = entry.getValue().isEmptyIfLoaded();
+            if(empty == null)
+                continue;
+            if(empty)
+                res.remove(entry.getKey());
+            else
+                res.add(entry.getKey());
+        }
+        return new ArrayList<>(res);
+    }
+
+    @Override
+    public void clear(@NonNull String document) {
+        //Committed, so the file is gone before another backend reads the directory.
+        open(document).edit().clear().commit();
+    }
+
+    /**
+     * Releases values of documents which weren't opened for given time
+     * and have nothing left to save, e.g. from {@code onTrimMemory}.
+     * Handles stay valid, a released document is loaded again when it's read.
+     * Documents read through a handle kept by EssData count as not opened,
+     * releasing them only costs another load.
+     * @param idleMillis Minimum time since the document was last opened.
+     * @return The number of released documents.
+     */
+
+    public int releaseUnused(long idleMillis){
+        long now = System.nanoTime();
+        long idle = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+        int res = 0;
+        for(BaseDocument document: documents.values())
+            if(now - document.lastOpened >= idle && document.unload())
+                res++;
+        return res;
+    }
+
+    /**
+     * Sets listener notified every time a document is loaded from disk.
+     * Use it to measure how long opening documents takes, e.g. on app start.
+     * @param listener The listener or null to remove it.
+     */
+
+    public void setOnDocumentLoadedListener(@Nullable OnDocumentLoadedListener listener){
+        this.loadedListener = listener;
+    }
+
+    void onDocumentLoaded(@NonNull String document, int fields, long nanos){
+        OnDocumentLoadedListener listener = loadedListener;
+        if(listener != null)
+            listener.onDocumentLoaded(document, fields, nanos);
+    }
+
+    /**
+     * Renames a document file which can't be read, so the document
+     * can start empty without the next write destroying what's left of it.
+     * @param file The damaged file.
+     * @return False if the file is still there under its name.
+     */
+
+    static boolean moveAside(@NonNull File file){
+        File target = new File(file.getPath() + DAMAGED_SUFFIX + System.currentTimeMillis());
+        return file.renameTo(target) || !file.exists();
+    }
+
+}
@@ -4,19 +4,30 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.util.Base64;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.TypeAdapterFactory;
 import com.google.gson.reflect.TypeToken;
 
-import java.io.ByteArrayOutputStream;
-import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
+import java.lang.reflect.Type;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 /**
@@ -32,22 +43,78 @@ import java.util.List;
 @SuppressWarnings({"unchecked", "UnusedReturnValue", "unused", "deprecation"})
 public class EssData {
 
-    private final Context context;
-    private final SharedPreferences sp;
-    private String document = "APP_DATA_MAIN";
+    /**
+     * The document used when you don't set your own with {@link #setDocument(String)}.
+     */
+
+    public static final String DEFAULT_DOCUMENT = "APP_DATA_MAIN";
 
-    //Awful, random prefix to avoid collisions with other shared_prefs
-    //files from other libraries or the app.
-    private static final String DOC_PREFIX = "03f8eojdgf74_";
+    private final Context context;
+    private final StorageBackend backend;
+    private SharedPreferences sp;
+    private final Codec codec;
+    private final DecodeCache cache;
+    private final ListStorage listStorage;
+    private final BitmapStore bitmaps;
+    private final Bitmap.CompressFormat bitmapFormat;
+    private final int bitmapQuality;
+    private final Executor ioExecutor;
+    private final IoExecutor.SerialExecutor writeQueue;
+    private final ChangeDispatcher changes = ChangeDispatcher.getDefault();
+    private final ListIndexes indexes = ListIndexes.getDefault();
+    //Null when metrics are disabled, every use is guarded by one null check.
+    private final MetricsRegistry metrics;
+    //Null unless write-behind is enabled with Builder.setWriteBehind.
+    private final WriteBehind writeBehind;
+    //Null unless compression is enabled with Builder.setCompression.
+    private final Compression compression;
+    //Cells of fields modified with increment and similar methods.
+    private final Counters counters;
+    private String document = DEFAULT_DOCUMENT;
+
+    //Configuration shared by instances returned by with(Context).
+    private static volatile EssData defaultBase;
+
+    //Returned by the decode cache when value isn't cached.
+    private static final Object MISS = new Object();
 
     /**
-     * Creates new AppDatabase instance.
+     * Returns AppDatabase instance with default configuration. Every call
+     * returns a new lightweight instance, but the configuration, document handles,
+     * the decode cache and background executors are created once and shared,
+     * so calling this method is cheap. Each instance has its own default document,
+     * {@link #setDocument(String)} doesn't affect other instances.
      * @param context Non null context necessary to read and edit {@link SharedPreferences}
      * @return New AppDatabase instance.
      */
 
     public static EssData with(@NonNull Context context){
-        return new EssData(context);
+        EssData base = defaultBase;
+        if(base == null){
+            synchronized (EssData.class){
+                base = defaultBase;
+                if(base == null){
+                    Context app = context.getApplicationContext();
+                    defaultBase = base = new EssData(app != null ? app : context,
+                            SharedPreferencesBackend.getDefault(context),
+                            Codec.getDefault(), DecodeCache.getDefault(), ListStorage.JSON,
+                            Bitmap.CompressFormat.PNG, 100, IoExecutor.io(), null, 0, 0, 0,
+                            Counters.DEFAULT_DELAY_MILLIS);
+                }
+            }
+        }
+        return new EssData(base, DEFAULT_DOCUMENT);
+    }
+
+    /**
+     * Creates new builder which lets you configure how values are
+     * serialized, e.g. pass your own {@link Gson} or {@link TypeAdapterFactory}.
+     * @param context Non null context necessary to read and edit {@link SharedPreferences}
+     * @return New builder.
+     */
+
+    public static Builder builder(@NonNull Context context){
+        return new Builder(context);
     }
 
     /**
@@ -59,6 +126,7 @@ public class EssData {
 
     public EssData setDocument(String document){
         this.document = document;
+        this.sp = backend.open(document);
         return this;
     }
 
@@ -120,6 +188,8 @@ public class EssData {
 
     /**
      * Saves bitmap in a given field.
+     * The bitmap is compressed to its own file, the document keeps
+     * only a reference. Format is set with {@link Builder#setBitmapFormat(Bitmap.CompressFormat, int)}.
      * @param document The name of document.
      * @param field The name of field.
      * @param value The bitmap you want to save.
@@ -127,8 +197,49 @@ public class EssData {
      */
 
     public EssData set(String document, String field, Bitmap value){
-        getData(document).edit().putString(field, toString(value)).apply();
-        return this;
+        return set(document, field, value, bitmapFormat, bitmapQuality);
+    }
+
+    /**
+     * Saves bitmap in a given field with given format.
+     * The bitmap is compressed to its own file, the document keeps
+     * only a reference.
+     * @param document The name of document.
+     * @param field The name of field.
+     * @param value The bitmap you want to save.
+     * @param format Compression format, e.g. {@link Bitmap.CompressFormat#WEBP}.
+     * @param quality Compression quality, 0-100. Ignored by lossless formats.
+     * @return Current AppDatabase instance.
+     */
+
+    public EssData set(String document, String field, Bitmap value,
+                       Bitmap.CompressFormat format, int quality){
+        if(document == null || field == null || value == null)
+            return this;
+
+        long start = metrics != null ? System.nanoTime() : 0;
+        String reference;
+        try {
+            reference = bitmaps.save(document, value, format, quality);
+        } catch (IOException e){
+            return this;
+        }
+
+        SharedPreferences data = getData(document, field);
+        ReentrantLock lock = FieldLocks.get(data, field);
+        lock.lock();
+        try {
+            SharedPreferences.Editor editor = data.edit();
+            String previous = release(data, editor, field);
+            editor.putString(field, reference).apply();
+            cache.invalidate(data, field);
+            bitmaps.delete(previous);
+            return this;
+        } finally {
+            lock.unlock();
+            if(metrics != null)
+                metrics.record(document, MetricsRegistry.Operation.BITMAP_WRITE, start, bitmaps.size(reference));
+        }
     }
 
     /**
@@ -160,9 +271,7 @@ public class EssData {
      */
 
     public EssData addToList(String document, String field, Serializable value, int position){
-        ArrayList<Object> res = new ArrayList<>(getList(document, field));
-        res.add(Math.max(0, Math.min(res.size(), position)), value);
-        return set(document, field, res);
+        return addToListInternal(document, field, value, position);
     }
 
     /**
@@ -203,9 +312,7 @@ public class EssData {
      */
 
     public EssData setInList(String document, String field, Serializable value, int position){
-        ArrayList<Object> res = new ArrayList<>(getList(document, field));
-        try{ res.set(position, value); } catch (Exception ignored){}
-        return set(document, field, res);
+        return setInListInternal(document, field, value, position);
     }
 
     /**
@@ -253,9 +360,7 @@ public class EssData {
 
     @Deprecated
     public EssData addToList(String document, String field, Object value, int position){
-        ArrayList<Object> res = new ArrayList<>(getList(document, field));
-        res.add(Math.max(0, Math.min(res.size(), position)), value);
-        return set(document, field, res);
+        return addToListInternal(document, field, value, position);
     }
 
     /**
@@ -306,9 +411,7 @@ public class EssData {
 
     @Deprecated
     public EssData setInList(String document, String field, Object value, int position){
-        ArrayList<Object> res = new ArrayList<>(getList(document, field));
-        try{ res.set(position, value); } catch (Exception ignored){}
-        return set(document, field, res);
+        return setInListInternal(document, field, value, position);
     }
 
     /**
@@ -339,6 +442,257 @@ public class EssData {
         return setInList(document, field, value, position);
     }
 
+    /**
+     * Atomically replaces value of a field with the value returned by updater.
+     * Other modifications of the field made with EssData wait until the update
+     * finishes, modifications of other fields aren't blocked.
+     * <pre>{@code
+     * db.update("doc", "tags", (List<Object> tags) -> {
+     *     if(tags == null) tags = new ArrayList<>();
+     *     tags.add("new");
+     *     return tags;
+     * });
+     * }</pre>
+     * @param document The name of document.
+     * @param field The name of field.
+     * @param updater Receives current value (null if field doesn't exist) and returns
+     *                the new one. Returning null removes the field. Keep it short.
+     * @return The new value.
+     */
+
+    @Nullable
+    public <T> T update(String document, String field, @NonNull Updater<T> updater){
+        return updateInternal(document, field, null, updater);
+    }
+
+    /**
+     * Atomically replaces value of a field in the default document.
+     * @param field The name of field.
+     * @param updater Receives current value and returns the new one.
+     * @return The new value.
+     * @see #update(String, String, Updater)
+     */
+
+    @Nullable
+    public <T> T update(String field, @NonNull Updater<T> updater){
+        return updateInternal(document, field, null, updater);
+    }
+
+    /**
+     * Atomically replaces value of a field, current value is decoded
+     * to given class, e.g. {@code Integer.class} for counters.
+     * @param document The name of document.
+     * @param field The name of field.
+     * @param type Class of the value.
+     * @param updater Receives current value and returns the new one.
+     * @return The new value.
+     * @see #update(String, String, Updater)
+     */
+
+    @Nullable
+    public <T> T update(String document, String field, Class<T> type, @NonNull Updater<T> updater){
+        return updateInternal(document, field, type, updater);
+    }
+
+    /**
+     * Atomically adds delta to a long field and returns the new value.
+     * The value is kept in memory and changed without locks nor encoding,
+     * a document is saved once per {@link Builder#setCounterFlushDelay(long)},
+     * so counters can be changed many times per second. Reads like
+     * {@link #getLong(String, String)} see the value immediately, also in other
+     * instances using the same {@link StorageBackend}.
+     * <br><br>
+     * A field which doesn't exist or isn't a whole number starts at 0.
+     * Other modifications of the field, like {@code set} or {@code remove},
+     * are applied after changes in progress. Values are saved when an activity
+     * is paused or on {@link #flush()}, changes made shortly before the
+     * process is killed otherwise may be lost.
+     * @param document The name of document.
+     * @param field The name of field.
+     * @param delta Value to add, negative to subtract.
+     * @return The new value.
+     */
+
+    public long increment(String document, String field, long delta){
+        return getAndAdd(document, field, delta) + delta;
+    }
+
+    /**
+     * Atomically adds delta to a long field in the default document.
+     * @param field The name of field.
+     * @param delta Value to add.
+     * @return The new value.
+     * @see #increment(String, String, long)
+     */
+
+    public long increment(String field, long delta){
+        return increment(document, field, delta);
+    }
+
+    /**
+     * Atomically adds delta to a double field and returns the new value.
+     * A field which doesn't exist or isn't a number starts at 0.
+     * @param document The name of document.
+     * @param field The name of field.
+     * @param delta Value to add, negative to subtract.
+     * @return The new value.
+     * @see #increment(String, String, long)
+     */
+
+    public double increment(String document, String field, double delta){
+        return getAndAdd(document, field, delta) + delta;
+    }
+
+    /**
+     * Atomically adds delta to a double field in the default document.
+     * @param field The name of field.
+     * @param delta Value to add.
+     * @return The new value.
+     * @see #increment(String, String, long)
+     */
+
+    public double increment(String field, double delta){
+        return increment(document, field, delta);
+    }
+
+    /**
+     * Atomically subtracts delta from a long field and returns the new value.
+     * @param document The name of document.
+     * @param field The name of field.
+     * @param delta Value to subtract.
+     * @return The new value.
+     * @see #increment(String, String, long)
+     */
+
+    public long decrement(String document, String field, long delta){
+        return increment(document, field, -delta);
+    }
+
+    /**
+     * Atomically subtracts delta from a long field in the default document.
+     * @param field The name of field.
+     * @param delta Value to subtract.
+     * @return The new value.
+     * @see #increment(String, String, long)
+     */
+
+    public long decrement(String field, long delta){
+        return increment(document, field, -delta);
+    }
+
+    /**
+     * Atomically subtracts delta from a double field and returns the new value.
+     * @param document The name of document.
+     * @param field The name of field.
+     * @param delta Value to subtract.
+     * @return The new value.
+     * @see #increment(String, String, long)
+     */
+
+    public double decrement(String document, String field, double delta){
+        return increment(document, field, -delta);
+    }
+
+    /**
+     * Atomically subtracts delta from a double field in the default document.
+     * @param field The name of field.
+     * @param delta Value to subtract.
+     * @return The new value.
+     * @see #increment(String, String, long)
+     */
+
+    public double decrement(String field, double delta){
+        return increment(document, field, -delta);
+    }
+
+    /**
+     * Atomically adds delta to a long field and returns the previous value.
+     * Returns 0 when document or field is null.
+     * @param document The name of document.
+     * @param field The name of field.
+     * @param delta Value to add, negative to subtract.
+     * @return The value before adding.
+     * @see #increment(String, String, long)
+     */
+
+    public long getAndAdd(String document, String field, long delta){
+        if(document == null || field == null)
+            return 0;
+
+        long start = metrics != null ? System.nanoTime() : 0;
+        long res = counters.getAndAdd(document, field, delta);
+        if(metrics != null)
+            metrics.record(document, MetricsRegistry.Operation.WRITE, start, 0);
+        return res;
+    }
+
+    /**
+     * Atomically adds delta to a double field and returns the previous value.
+     * Returns 0 when document or field is null.
+     * @param document The name of document.
+     * @param field The name of field.
+     * @param delta Value to add, negative to subtract.
+     * @return The value before adding.
+     * @see #increment(String, String, double)
+     */
+
+    public double getAndAdd(String document, String field, double delta){
+        if(document == null || field == null)
+            return 0;
+
+        long start = metrics != null ? System.nanoTime() : 0;
+        double res = counters.getAndAdd(document, field, delta);
+        if(metrics != null)
+            metrics.record(document, MetricsRegistry.Operation.WRITE, start, 0);
+        return res;
+    }
+
+    /**
+     * Atomically sets a long field to {@code update} if its current value
+     * is {@code expect}. A field which doesn't exist is 0.
+     * @param document The name of document.
+     * @param field The name of field.
+     * @param expect The expected value.
+     * @param update The new value.
+     * @return False if the current value was different.
+     * @see #increment(String, String, long)
+     */
+
+    public boolean compareAndSet(String document, String field, long expect, long update){
+        if(document == null || field == null)
+            return false;
+
+        long start = metrics != null ? System.nanoTime() : 0;
+        boolean res = counters.compareAndSet(document, field, false, expect, update);
+        if(metrics != null)
+            metrics.record(document, MetricsRegistry.Operation.WRITE, start, 0);
+        return res;
+    }
+
+    /**
+     * Atomically sets a double field to {@code update} if its current value
+     * is {@code expect}. Values are compared with {@code ==}, so a NaN
+     * field is never updated. A field which doesn't exist is 0.
+     * @param document The name of document.
+     * @param field The name of field.
+     * @param expect The expected value.
+     * @param update The new value.
+     * @return False if the current value was different.
+     * @see #increment(String, String, double)
+     */
+
+    public boolean compareAndSet(String document, String field, double expect, double update){
+        if(document == null || field == null)
+            return false;
+
+        long start = metrics != null ? System.nanoTime() : 0;
+        boolean res = counters.compareAndSet(document, field, true,
+                Double.doubleToRawLongBits(expect), Double.doubleToRawLongBits(update));
+        if(metrics != null)
+            metrics.record(document, MetricsRegistry.Operation.WRITE, start, 0);
+        return res;
+    }
+
     /**
      * Removes given field from given document.
      * @param document The name of document.
@@ -347,8 +701,27 @@ public class EssData {
      */
 
     public EssData remove(String document, String field){
-        getData(document).edit().remove(field).apply();
-        return this;
+        long start = metrics != null ? System.nanoTime() : 0;
+        SharedPreferences data = getData(document, field);
+        ReentrantLock lock = FieldLocks.get(data, field);
+        lock.lock();
+        try {
+            //Cell opened or value set since getData would save the field again.
+            counters.retire(document, field);
+            if(writeBehind != null)
+                writeBehind.discard(document, field);
+            SharedPreferences.Editor editor = data.edit();
+            String previous = release(data, editor, field);
+            editor.remove(field).apply();
+            cache.invalidate(data, field);
+            indexes.invalidate(data, field);
+            bitmaps.delete(previous);
+            return this;
+        } finally {
+            lock.unlock();
+            if(metrics != null)
+                metrics.record(document, MetricsRegistry.Operation.REMOVE, start, 0);
+        }
     }
 
     /**
@@ -362,14 +735,30 @@ public class EssData {
     }
 
     /**
-     * Removes all fields in a document.
+     * Removes all fields in a document. Values are dropped from memory
+     * immediately, files are removed in background.
      * @param document The document you want to clear.
      * @return Current AppDatabase instance.
      */
 
     public EssData clear(String document){
-        File dir = new File(context.getFilesDir().getParent() + "/shared_prefs/");
-        boolean res = new File(dir, DOC_PREFIX.concat(document).concat(".xml")).delete();
+        if(document == null)
+            return this;
+
+        if(writeBehind != null)
+            writeBehind.discard(document);
+        SharedPreferences data = getData(document);
+        //Counters can't open a cell with a value which is being cleared.
+        ReentrantLock[] locks = FieldLocks.lockAll(data, clearedFields(document, data));
+        try {
+            counters.discard(document);
+            backend.clear(document);
+        } finally {
+            FieldLocks.unlockAll(locks);
+        }
+        cache.invalidate(data);
+        indexes.invalidate(data);
+        bitmaps.deleteDocument(document, ioExecutor);
         return this;
     }
 
@@ -380,8 +769,102 @@ public class EssData {
      */
 
     public EssData clearAll(){
-        for(String document: getDocumentsInternal()){
-            clear(document);
+        if(writeBehind != null)
+            writeBehind.discardAll();
+        counters.discardAll();
+        List<String> documents = backend.getDocuments();
+        Map<SharedPreferences, Set<String>> fields = new HashMap<>();
+        for(String document: documents){
+            SharedPreferences data = getData(document);
+            fields.put(data, clearedFields(document, data));
+        }
+
+        ReentrantLock[] locks = FieldLocks.lockAll(fields);
+        try {
+            //Counters are shared, other instances could use documents this one didn't.
+            for(String document: documents)
+                counters.discard(document);
+            if(backend instanceof SharedPreferencesBackend){
+                //Catalog is updated once for all documents.
+                ((SharedPreferencesBackend) backend).clear(documents);
+            } else {
+                for(String document: documents)
+                    backend.clear(document);
+            }
+        } finally {
+            FieldLocks.unlockAll(locks);
+        }
+
+        for(String document: documents){
+            SharedPreferences data = getData(document);
+            cache.invalidate(data);
+            indexes.invalidate(data);
+            bitmaps.deleteDocument(document, ioExecutor);
+        }
+        return this;
+    }
+
+    /**
+     * Returns fields to lock while a document is cleared: saved fields
+     * and fields with counter cells.
+     */
+
+    private Set<String> clearedFields(String document, SharedPreferences data){
+        Set<String> res = counters.fields(document);
+        res.addAll(data.getAll().keySet());
+        return res;
+    }
+
+    /**
+     * Saves values set in write-behind mode and counters changed with
+     * {@link #increment(String, String, long)} to given document now,
+     * instead of waiting for the delay.
+     * @param document The name of document.
+     * @return Current AppDatabase instance.
+     * @see Builder#setWriteBehind(long, int)
+     */
+
+    public EssData flush(String document){
+        if(document == null)
+            return this;
+        if(writeBehind != null)
+            flushInternal(document);
+        flushCounters(document);
+        return this;
+    }
+
+    /**
+     * Saves values set in write-behind mode and changed counters to all
+     * documents now. Call it e.g. in {@code onPause} of a service,
+     * activities are flushed automatically.
+     * @return Current AppDatabase instance.
+     * @see Builder#setWriteBehind(long, int)
+     */
+
+    public EssData flush(){
+        if(writeBehind != null)
+            writeBehind.flushAll();
+        counters.flushAll();
+        return this;
+    }
+
+    /**
+     * Builds compression dictionary from current values of a document.
+     * Values saved afterwards are compressed with it, which works much
+     * better for values of a few hundred characters with the same keys.
+     * Existing values aren't recompressed and stay readable. Call it
+     * once the document holds typical values, the dictionary is kept
+     * in the document until it's cleared.
+     * Does nothing when compression is disabled.
+     * @param document The name of document.
+     * @return Current AppDatabase instance.
+     * @see Builder#setCompression(int)
+     */
+
+    public EssData trainCompressionDictionary(String document){
+        if(compression != null && document != null){
+            flush(document);
+            Compression.train(getData(document));
         }
         return this;
     }
@@ -401,12 +884,45 @@ public class EssData {
      */
 
     public EssData removeFromList(String document, String field, int position){
-        ArrayList<Object> res = new ArrayList<>(getList(document, field));
-        try{
-            res.remove(position);
-            return set(document, field, res);
-        } catch (Exception e){
+        if(document == null || field == null)
+            return this;
+
+        long start = metrics != null ? System.nanoTime() : 0;
+        SharedPreferences data = getData(document, field);
+        ReentrantLock lock = FieldLocks.get(data, field);
+        lock.lock();
+        try {
+            //Read before json lists are migrated, migration doesn't change elements.
+            boolean observed = changes.isObserved(data, field);
+            boolean indexed = indexes.isIndexed(data, field);
+            String before = observed || indexed ? ChangeDispatcher.raw(data, field) : null;
+            ChunkedList list = getChunkedList(data, field, false);
+
+            try {
+                if(list != null){
+                    SharedPreferences.Editor editor = data.edit();
+                    list.remove(data, editor, field, position);
+                    editor.apply();
+                    cache.invalidate(data, field);
+                } else {
+                    ArrayList<Object> res = new ArrayList<>(this.<List<Object>>readList(document, field));
+                    res.remove(position);
+                    put(document, field, res);
+                }
+            } catch (IndexOutOfBoundsException e){
+                return this;
+            }
+
+            ListChange change = new ListChange(ListChange.Type.REMOVED, position);
+            if(indexed)
+                indexes.onListChange(data, field, before, change, null);
+            if(observed)
+                changes.onListChange(data, field, before, change);
             return this;
+        } finally {
+            lock.unlock();
+            if(metrics != null)
+                metrics.record(document, MetricsRegistry.Operation.LIST_WRITE, start, 0);
         }
     }
 
@@ -444,7 +960,17 @@ public class EssData {
     @Nullable
     public <T> T getFromList(String document, String field, int position){
         try {
-            return (T) new ArrayList<>(getList(document, field)).get(position);
+            SharedPreferences data = getData(document, field);
+            String raw = data.getString(field, null);
+            ChunkedList list = ChunkedList.parse(raw);
+            if(list != null)
+                return (T) list.get(data, field, position, codec);
+
+            Object cached = cache.peek(data, field, raw, MISS);
+            if(cached instanceof List)
+                return (T) DecodeCache.copy(((List<?>) cached).get(position));
+            //Skip to the element instead of decoding the whole list.
+            return codec.decodeElement(Compression.inflate(data, raw), position, Codec.OBJECT_TYPE);
         } catch (Exception e){
             return null;
         }
@@ -470,6 +996,8 @@ public class EssData {
 
     /**
      * Returns field value.
+     * Decoded values are cached until the field changes,
+     * every call returns its own copy.
      * @param document The name of document.
      * @param field The name of field.
      * @return Field value.
@@ -481,9 +1009,23 @@ public class EssData {
         if(document == null || field == null)
             return null;
 
-        try { return new Gson().fromJson(
-                getData(document).getString(field, null), new TypeToken<Object>() {}.getType());
-        } catch (Exception e){ return null; }
+        long start = metrics != null ? System.nanoTime() : 0;
+        Object pending = getPending(document, field);
+        Counters.Cell counter = counters.get(document, field);
+        if(Primitives.isNative(pending) || counter != null){
+            if(metrics != null)
+                metrics.record(document, MetricsRegistry.Operation.READ, start, 0);
+            return (T) (counter != null ? counter.get() : pending);
+        }
+
+        SharedPreferences data = getData(document, field);
+        try { return (T) getDecoded(document, data, field);
+        } catch (ClassCastException e){ return (T) Primitives.get(data, field);
+        } catch (Exception e){ return null;
+        } finally {
+            if(metrics != null)
+                metrics.record(document, MetricsRegistry.Operation.READ, start, 0);
+        }
     }
 
     /**
@@ -498,117 +1040,240 @@ public class EssData {
     }
 
     /**
-     * Returns field value.
+     * Returns field value decoded straight to given class,
+     * without going through maps and doubles.
      * Returns default value (null) if:
      * <ul>
      *     <li>Filed doesn't exist</li>
-     *     <li>Filed is not a Bitmap</li>
+     *     <li>Filed can't be decoded to given class</li>
      * </ul>
-     * @param field The name of field.
+     * Typed values aren't cached, every call decodes a new object.
      * @param document The name of document.
+     * @param field The name of field.
+     * @param type Class of the value.
      * @return Field value.
      */
 
     @Nullable
-    public Bitmap getBitmap(String document, String field){
-        return toBitmap(getString(document, field));
+    public <T> T get(String document, String field, Class<T> type){
+        return getTyped(document, field, type);
     }
 
     /**
-     * Returns field value.
-     * Returns default value (null) if:
-     * <ul>
-     *     <li>Filed doesn't exist</li>
-     *     <li>Filed is not a Bitmap</li>
-     * </ul>
+     * Returns field value decoded straight to given class.
      * @param field The name of field.
+     * @param type Class of the value.
      * @return Field value.
+     * @see #get(String, String, Class)
      */
 
     @Nullable
-    public Bitmap getBitmap(String field){
-        return toBitmap(getString(document, field));
+    public <T> T get(String field, Class<T> type){
+        return getTyped(document, field, type);
     }
 
     /**
-     * Returns field value.
-     * Returns default value (false) if:
-     * <ul>
-     *     <li>Filed doesn't exist</li>
-     *     <li>Filed is not a boolean</li>
-     * </ul>
+     * Returns field value decoded straight to given generic type,
+     * e.g. {@code new TypeToken<Map<String, User>>(){}}.
      * @param document The name of document.
      * @param field The name of field.
+     * @param type Type of the value.
      * @return Field value.
+     * @see #get(String, String, Class)
      */
 
-    public boolean getBoolean(String document, String field){
-        return getData(document).getBoolean(field, false);
+    @Nullable
+    public <T> T get(String document, String field, TypeToken<T> type){
+        return type == null ? null : this.<T>getTyped(document, field, type.getType());
     }
 
     /**
-     * Returns field value.
-     * Returns default value (false) if:
-     * <ul>
-     *     <li>Filed doesn't exist</li>
-     *     <li>Filed is not a boolean</li>
-     * </ul>
+     * Returns field value decoded straight to given generic type.
      * @param field The name of field.
+     * @param type Type of the value.
      * @return Field value.
+     * @see #get(String, String, TypeToken)
      */
 
-    public boolean getBoolean(String field){
-        return getBoolean(document, field);
+    @Nullable
+    public <T> T get(String field, TypeToken<T> type){
+        return get(document, field, type);
     }
 
-
     /**
      * Returns field value.
      * Returns default value (null) if:
      * <ul>
      *     <li>Filed doesn't exist</li>
-     *     <li>Filed is not a String</li>
+     *     <li>Filed is not a Bitmap</li>
      * </ul>
-     * @param document The name of document.
      * @param field The name of field.
+     * @param document The name of document.
      * @return Field value.
      */
 
     @Nullable
-    public String getString(String document, String field){
-        return getData(document).getString(field, null);
+    public Bitmap getBitmap(String document, String field){
+        return getBitmap(document, field, null);
     }
 
     /**
-     * Returns field value.
+     * Returns field value decoded with given options, e.g. use
+     * {@link BitmapFactory.Options#inSampleSize} to load smaller bitmap
+     * or {@link BitmapFactory.Options#inBitmap} to reuse memory of an old one.
      * Returns default value (null) if:
      * <ul>
      *     <li>Filed doesn't exist</li>
-     *     <li>Filed is not a String</li>
+     *     <li>Filed is not a Bitmap</li>
      * </ul>
+     * @param document The name of document.
      * @param field The name of field.
+     * @param options Decoding options or null.
      * @return Field value.
      */
 
     @Nullable
-    public String getString(String field){
-        return getString(document, field);
+    public Bitmap getBitmap(String document, String field, @Nullable BitmapFactory.Options options){
+        long start = metrics != null ? System.nanoTime() : 0;
+        String raw;
+        try {
+            raw = getString(document, field);
+        } catch (ClassCastException e){
+            return null;
+        }
+        Bitmap res = bitmaps.load(raw, options);
+        if(metrics != null)
+            metrics.record(document, MetricsRegistry.Operation.BITMAP_READ, start, res != null ? bitmaps.size(raw) : 0);
+        return res;
     }
 
     /**
      * Returns field value.
-     * Returns default value ({@link Integer#MIN_VALUE}) if:
+     * Returns default value (null) if:
      * <ul>
      *     <li>Filed doesn't exist</li>
-     *     <li>Filed is not an Integer</li>
+     *     <li>Filed is not a Bitmap</li>
      * </ul>
-     * @param document The name of document.
+     * @param field The name of field.
+     * @return Field value.
+     */
+
+    @Nullable
+    public Bitmap getBitmap(String field){
+        return getBitmap(document, field, null);
+    }
+
+    /**
+     * Returns field value.
+     * Returns default value (false) if:
+     * <ul>
+     *     <li>Filed doesn't exist</li>
+     *     <li>Filed is not a boolean</li>
+     * </ul>
+     * @param document The name of document.
+     * @param field The name of field.
+     * @return Field value.
+     */
+
+    public boolean getBoolean(String document, String field){
+        Object pending = getPending(document, field);
+        if(pending instanceof Boolean)
+            return (Boolean) pending;
+
+        SharedPreferences data = getData(document, field);
+        try {
+            return data.getBoolean(field, false);
+        } catch (ClassCastException e){
+            Object res = Primitives.migrate(data, field, Boolean.class, codec);
+            return res != null ? (Boolean) res : false;
+        }
+    }
+
+    /**
+     * Returns field value.
+     * Returns default value (false) if:
+     * <ul>
+     *     <li>Filed doesn't exist</li>
+     *     <li>Filed is not a boolean</li>
+     * </ul>
+     * @param field The name of field.
+     * @return Field value.
+     */
+
+    public boolean getBoolean(String field){
+        return getBoolean(document, field);
+    }
+
+
+    /**
+     * Returns field value.
+     * Returns default value (null) if:
+     * <ul>
+     *     <li>Filed doesn't exist</li>
+     *     <li>Filed is not a String</li>
+     * </ul>
+     * @param document The name of document.
+     * @param field The name of field.
+     * @return Field value.
+     */
+
+    @Nullable
+    public String getString(String document, String field){
+        SharedPreferences data = getData(document, field);
+        try {
+            return Compression.inflate(data, data.getString(field, null));
+        } catch (ClassCastException e){
+            //Native value, return it as it used to be saved.
+            Object res = Primitives.get(data, field);
+            return Primitives.isNative(res) ? String.valueOf(res) : null;
+        }
+    }
+
+    /**
+     * Returns field value.
+     * Returns default value (null) if:
+     * <ul>
+     *     <li>Filed doesn't exist</li>
+     *     <li>Filed is not a String</li>
+     * </ul>
+     * @param field The name of field.
+     * @return Field value.
+     */
+
+    @Nullable
+    public String getString(String field){
+        return getString(document, field);
+    }
+
+    /**
+     * Returns field value.
+     * Returns default value ({@link Integer#MIN_VALUE}) if:
+     * <ul>
+     *     <li>Filed doesn't exist</li>
+     *     <li>Filed is not an Integer</li>
+     * </ul>
+     * @param document The name of document.
      * @param field The name of field.
      * @return Field value.
      */
 
     public int getInt(String document, String field){
-        return getData(document).getInt(field, Integer.MIN_VALUE);
+        Object pending = getPending(document, field);
+        if(pending instanceof Integer)
+            return (Integer) pending;
+        Counters.Cell counter = counters.get(document, field);
+        if(counter != null && !counter.floating){
+            long value = counter.value.get();
+            return value == (int) value ? (int) value : Integer.MIN_VALUE;
+        }
+
+        SharedPreferences data = getData(document, field);
+        try {
+            return data.getInt(field, Integer.MIN_VALUE);
+        } catch (ClassCastException e){
+            Object res = Primitives.migrate(data, field, Integer.class, codec);
+            return res != null ? (Integer) res : Integer.MIN_VALUE;
+        }
     }
 
     /**
@@ -639,7 +1304,20 @@ public class EssData {
      */
 
     public float getFloat(String document, String field){
-        return getData(document).getFloat(field, Float.MIN_VALUE);
+        Object pending = getPending(document, field);
+        if(pending instanceof Float)
+            return (Float) pending;
+        Counters.Cell counter = counters.get(document, field);
+        if(counter != null)
+            return counter.get().floatValue();
+
+        SharedPreferences data = getData(document, field);
+        try {
+            return data.getFloat(field, Float.MIN_VALUE);
+        } catch (ClassCastException e){
+            Object res = Primitives.migrate(data, field, Float.class, codec);
+            return res != null ? (Float) res : Float.MIN_VALUE;
+        }
     }
 
     /**
@@ -671,7 +1349,20 @@ public class EssData {
      */
 
     public long getLong(String document, String field){
-        return getData(document).getLong(field, Long.MIN_VALUE);
+        Object pending = getPending(document, field);
+        if(pending instanceof Long)
+            return (Long) pending;
+        Counters.Cell counter = counters.get(document, field);
+        if(counter != null && !counter.floating)
+            return counter.value.get();
+
+        SharedPreferences data = getData(document, field);
+        try {
+            return data.getLong(field, Long.MIN_VALUE);
+        } catch (ClassCastException e){
+            Object res = Primitives.migrate(data, field, Long.class, codec);
+            return res != null ? (Long) res : Long.MIN_VALUE;
+        }
     }
 
     /**
@@ -703,13 +1394,45 @@ public class EssData {
 
     @NonNull
     public <T extends List<?>> T getList(String document, String field){
+        long start = metrics != null ? System.nanoTime() : 0;
+        try {
+            return readList(document, field);
+        } finally {
+            if(metrics != null)
+                metrics.record(document, MetricsRegistry.Operation.LIST_READ, start, 0);
+        }
+    }
+
+    /**
+     * Reads a list without recording it as {@link MetricsRegistry.Operation#LIST_READ},
+     * used by list modifications.
+     */
+
+    private <T extends List<?>> T readList(String document, String field){
         try{
-            T res;
-            res = new Gson().fromJson(getData(document).getString(field, "[]"), new TypeToken<List<Object>>(){}.getType());
-            if(res == null) {
+            SharedPreferences data = getData(document, field);
+            String raw = data.getString(field, null);
+            if(raw == null)
                 return (T) new ArrayList<>();
+
+            Object res = cache.get(data, field, raw, MISS);
+            if(res == MISS){
+                long decodeStart = metrics != null ? System.nanoTime() : 0;
+                ChunkedList list = ChunkedList.parse(raw);
+                res = list != null ? list.read(data, field, codec) : codec.decodeList(Compression.inflate(data, raw));
+                cache.put(data, field, raw, res);
+                if(metrics != null){
+                    metrics.onCacheMiss(document);
+                    metrics.record(document, MetricsRegistry.Operation.DECODE, decodeStart, 0);
+                }
+            } else if(metrics != null){
+                metrics.onCacheHit(document);
+            }
+
+            if(res instanceof List) {
+                return (T) new ArrayList<>((List<?>) res);
             } else {
-                return res;
+                return (T) new ArrayList<>();
             }
         } catch (Exception e){
             return (T) new ArrayList<>();
@@ -732,89 +1455,1623 @@ public class EssData {
         return getList(document, field);
     }
 
+    /**
+     * Returns elements of list saved in a field, decoded one by one while
+     * iterating, so the whole list is never kept in memory. Values are
+     * read when this method is called, later modifications aren't visible.
+     * <pre>{@code
+     * for(Object item: db.iterateList("doc", "items")){ ... }
+     * }</pre>
+     * Returns no elements if field doesn't exist or isn't a list.
+     * @param document The name of document.
+     * @param field The name of field.
+     * @return Elements which can be iterated many times.
+     */
+
+    @NonNull
+    public <T> Iterable<T> iterateList(String document, String field){
+        return iterateInternal(document, field, Codec.OBJECT_TYPE);
+    }
 
     /**
-     * Returns all documents names.
-     * @return All documents names.
+     * Returns elements of list saved in a field, decoded one by one while iterating.
+     * @param field The name of field.
+     * @return Elements which can be iterated many times.
+     * @see #iterateList(String, String)
      */
 
-    public List<String> getDocuments(){
-        return getDocumentsInternal();
+    @NonNull
+    public <T> Iterable<T> iterateList(String field){
+        return iterateInternal(document, field, Codec.OBJECT_TYPE);
     }
 
     /**
-     * Returns all field names located in given document.
+     * Returns elements of list saved in a field, decoded one by one
+     * straight to given class while iterating.
      * @param document The name of document.
-     * @return All field names from document.
+     * @param field The name of field.
+     * @param elementType Class of list elements.
+     * @return Elements which can be iterated many times.
+     * @see #iterateList(String, String)
      */
 
-    public List<String> getFields(String document){
-        return new ArrayList<>(getData(document).getAll().keySet());
+    @NonNull
+    public <T> Iterable<T> iterateList(String document, String field, Class<T> elementType){
+        return iterateInternal(document, field, elementType);
     }
 
     /**
-     * Returns all field names located in given document.
-     * @return All field names from document.
+     * Returns elements of list saved in a field, decoded one by one
+     * straight to given class while iterating.
+     * @param field The name of field.
+     * @param elementType Class of list elements.
+     * @return Elements which can be iterated many times.
+     * @see #iterateList(String, String)
      */
 
-    public List<String> getFields(){
-        return new ArrayList<>(getData(document).getAll().keySet());
+    @NonNull
+    public <T> Iterable<T> iterateList(String field, Class<T> elementType){
+        return iterateInternal(document, field, elementType);
+    }
+
+    /**
+     * Returns elements {@code [offset, offset + limit)} of list saved in a field
+     * and the size of the whole list. Only the requested elements are decoded,
+     * so it's suitable for showing long lists page by page, e.g. in a RecyclerView.
+     * A few recently read pages are cached.
+     * Returns empty page if field doesn't exist or isn't a list.
+     * @param document The name of document.
+     * @param field The name of field.
+     * @param offset Position of the first element.
+     * @param limit Maximum number of elements.
+     * @return The page.
+     */
+
+    @NonNull
+    public <T> ListPage<T> getListPage(String document, String field, int offset, int limit){
+        return getListPageInternal(document, field, offset, limit, Codec.OBJECT_TYPE);
     }
 
+    /**
+     * Returns elements {@code [offset, offset + limit)} of list saved in a field.
+     * @param field The name of field.
+     * @param offset Position of the first element.
+     * @param limit Maximum number of elements.
+     * @return The page.
+     * @see #getListPage(String, String, int, int)
+     */
 
+    @NonNull
+    public <T> ListPage<T> getListPage(String field, int offset, int limit){
+        return getListPageInternal(document, field, offset, limit, Codec.OBJECT_TYPE);
+    }
 
-    //Private methods
+    /**
+     * Returns elements {@code [offset, offset + limit)} of list saved in a field
+     * decoded straight to given class.
+     * @param document The name of document.
+     * @param field The name of field.
+     * @param offset Position of the first element.
+     * @param limit Maximum number of elements.
+     * @param elementType Class of list elements.
+     * @return The page.
+     * @see #getListPage(String, String, int, int)
+     */
 
-    private SharedPreferences getData(String document){
-        if(!document.equals(this.document)) {
-            return context.getSharedPreferences(DOC_PREFIX.concat(document), Context.MODE_PRIVATE);
-        } else {
-            return sp;
+    @NonNull
+    public <T> ListPage<T> getListPage(String document, String field, int offset, int limit, Class<T> elementType){
+        return getListPageInternal(document, field, offset, limit, elementType);
+    }
+
+    /**
+     * Returns the number of elements of list saved in a field
+     * without decoding them.
+     * Returns 0 if field doesn't exist or isn't a list.
+     * @param document The name of document.
+     * @param field The name of field.
+     * @return List size.
+     */
+
+    public int listSize(String document, String field){
+        try {
+            SharedPreferences data = getData(document, field);
+            String raw = data.getString(field, null);
+            ChunkedList list = ChunkedList.parse(raw);
+            if(list != null)
+                return list.size();
+
+            Object cached = cache.peek(data, field, raw, MISS);
+            if(cached instanceof List)
+                return ((List<?>) cached).size();
+            return Codec.count(Compression.inflate(data, raw));
+        } catch (Exception e){
+            return 0;
         }
     }
 
-    @SuppressWarnings("ConstantConditions")
-    private List<String> getDocumentsInternal(){
+    /**
+     * Returns the number of elements of list saved in a field
+     * without decoding them.
+     * @param field The name of field.
+     * @return List size.
+     * @see #listSize(String, String)
+     */
+
+    public int listSize(String field){
+        return listSize(document, field);
+    }
 
-        List<String> res = new ArrayList<>();
+    /**
+     * Returns list with elements decoded straight to given class.
+     * Returns empty list if field doesn't exist or can't be decoded.
+     * @param document The name of document.
+     * @param field The name of field.
+     * @param elementType Class of list elements.
+     * @return The list, never null.
+     */
 
-        File prefsdir = new File(context.getApplicationInfo().dataDir,"shared_prefs");
-        if(prefsdir.exists() && prefsdir.isDirectory()){
-            if(prefsdir.list() != null)
-                for(String document: prefsdir.list())
-                    if(document.startsWith(DOC_PREFIX) && !document.equals(DOC_PREFIX.concat(".xml")))
-                        res.add(document.substring(DOC_PREFIX.length(), document.length() - 4));
-        }
-        return res;
+    @NonNull
+    public <T> List<T> getList(String document, String field, Class<T> elementType){
+        List<T> res = elementType == null ? null :
+                this.<List<T>>getTyped(document, field, TypeToken.getParameterized(List.class, elementType).getType());
+        return res == null ? new ArrayList<T>() : res;
     }
 
-    private EssData setInternal(String document, String field, Object value){
+    /**
+     * Returns list with elements decoded straight to given class.
+     * @param field The name of field.
+     * @param elementType Class of list elements.
+     * @return The list, never null.
+     * @see #getList(String, String, Class)
+     */
 
-        if(document == null || field == null)
-            return this;
+    @NonNull
+    public <T> List<T> getList(String field, Class<T> elementType){
+        return getList(document, field, elementType);
+    }
 
-        getData(document).edit().putString(field, new Gson().toJson(value)).apply();
-        return this;
+    /**
+     * Returns list of numbers as int array, without boxing.
+     * Returns empty array if field doesn't exist or isn't a list of numbers.
+     * @param document The name of document.
+     * @param field The name of field.
+     * @return The array, never null.
+     */
+
+    @NonNull
+    public int[] getIntList(String document, String field){
+        try {
+            return Codec.decodeInts(getJson(getData(document, field), field));
+        } catch (Exception e){
+            return new int[0];
+        }
     }
 
-    private EssData(Context context){
-        this.context = context;
-        sp = context.getSharedPreferences(document, Context.MODE_PRIVATE);
+    /**
+     * Returns list of numbers as int array, without boxing.
+     * @param field The name of field.
+     * @return The array, never null.
+     * @see #getIntList(String, String)
+     */
+
+    @NonNull
+    public int[] getIntList(String field){
+        return getIntList(document, field);
+    }
+
+    /**
+     * Returns list of numbers as long array, without boxing.
+     * Returns empty array if field doesn't exist or isn't a list of numbers.
+     * @param document The name of document.
+     * @param field The name of field.
+     * @return The array, never null.
+     */
+
+    @NonNull
+    public long[] getLongList(String document, String field){
+        try {
+            return Codec.decodeLongs(getJson(getData(document, field), field));
+        } catch (Exception e){
+            return new long[0];
+        }
     }
 
-    private static String toString(Bitmap bitmap){
-        ByteArrayOutputStream byteArrayOutputStream = new  ByteArrayOutputStream();
-        bitmap.compress(Bitmap.CompressFormat.PNG,100, byteArrayOutputStream);
-        byte [] b = byteArrayOutputStream.toByteArray();
-        return Base64.encodeToString(b, Base64.DEFAULT);
+    /**
+     * Returns list of numbers as long array, without boxing.
+     * @param field The name of field.
+     * @return The array, never null.
+     * @see #getLongList(String, String)
+     */
+
+    @NonNull
+    public long[] getLongList(String field){
+        return getLongList(document, field);
     }
 
-    private static Bitmap toBitmap(String encodedString){
+    /**
+     * Returns list of numbers as double array, without boxing.
+     * Returns empty array if field doesn't exist or isn't a list of numbers.
+     * @param document The name of document.
+     * @param field The name of field.
+     * @return The array, never null.
+     */
+
+    @NonNull
+    public double[] getDoubleList(String document, String field){
         try {
-            byte [] encodeByte = Base64.decode(encodedString,Base64.DEFAULT);
-            return BitmapFactory.decodeByteArray(encodeByte, 0, encodeByte.length);
-        } catch(Exception e) {
-            return null;
+            return Codec.decodeDoubles(getJson(getData(document, field), field));
+        } catch (Exception e){
+            return new double[0];
         }
     }
+
+    /**
+     * Returns list of numbers as double array, without boxing.
+     * @param field The name of field.
+     * @return The array, never null.
+     * @see #getDoubleList(String, String)
+     */
+
+    @NonNull
+    public double[] getDoubleList(String field){
+        return getDoubleList(document, field);
+    }
+
+
+    /**
+     * Returns all documents names.
+     * @return All documents names.
+     */
+
+    public List<String> getDocuments(){
+        flush();
+        return backend.getDocuments();
+    }
+
+    /**
+     * Checks if a document exists. With the default backend it doesn't
+     * load the document nor list other documents.
+     * @param document The name of document.
+     * @return True if the document has any fields.
+     */
+
+    public boolean hasDocument(String document){
+        if(document == null)
+            return false;
+        if((writeBehind != null && writeBehind.getAll(document) != null) || counters.hasCells(document))
+            return true;
+        if(backend instanceof SharedPreferencesBackend)
+            return ((SharedPreferencesBackend) backend).contains(document);
+        return !getData(document).getAll().isEmpty();
+    }
+
+    /**
+     * Returns all field names located in given document.
+     * @param document The name of document.
+     * @return All field names from document.
+     */
+
+    public List<String> getFields(String document){
+        flush(document);
+        return getFieldsInternal(getData(document));
+    }
+
+    /**
+     * Returns all field names located in given document.
+     * @return All field names from document.
+     */
+
+    public List<String> getFields(){
+        flush(document);
+        return getFieldsInternal(getData(document));
+    }
+
+    /**
+     * Declares an index on a property of objects stored in a list, so
+     * {@link #findInList(String, String, String, Object)} and
+     * {@link #findRangeInList(String, String, String, Object, Object)}
+     * don't scan the list. The index is built on the first query and kept up
+     * to date by {@code addToList}, {@code setInList} and {@code removeFromList}.
+     * Only string, number and boolean properties are indexed.
+     * <br><br>
+     * Indexes are kept in memory and shared by all instances,
+     * declare them once per process, e.g. in {@code Application.onCreate}.
+     * @param document The name of document.
+     * @param field The name of field with the list.
+     * @param property The name of property of list elements.
+     * @return Current AppDatabase instance.
+     */
+
+    public EssData createIndex(String document, String field, String property){
+        if(document != null && field != null && property != null)
+            indexes.create(getData(document), field, property);
+        return this;
+    }
+
+    /**
+     * Declares an index on a property of objects stored in a list.
+     * @param field The name of field with the list.
+     * @param property The name of property of list elements.
+     * @return Current AppDatabase instance.
+     * @see #createIndex(String, String, String)
+     */
+
+    public EssData createIndex(String field, String property){
+        return createIndex(document, field, property);
+    }
+
+    /**
+     * Removes an index created with {@link #createIndex(String, String, String)}.
+     * @param document The name of document.
+     * @param field The name of field with the list.
+     * @param property The name of property of list elements.
+     * @return Current AppDatabase instance.
+     */
+
+    public EssData dropIndex(String document, String field, String property){
+        if(document != null && field != null && property != null)
+            indexes.drop(getData(document), field, property);
+        return this;
+    }
+
+    /**
+     * Returns elements of a list which property equals given value,
+     * in list order. Only matching elements are decoded. Without an index
+     * (see {@link #createIndex(String, String, String)}) property values
+     * are read from the whole list on every call.
+     * <pre>{@code
+     * List<Map<String, Object>> users = db.findInList("doc", "users", "id", 42);
+     * }</pre>
+     * @param document The name of document.
+     * @param field The name of field with the list.
+     * @param property The name of property of list elements.
+     * @param value String, number or boolean.
+     * @return Matching elements, empty if none.
+     */
+
+    @NonNull
+    public <T> List<T> findInList(String document, String field, String property, Object value){
+        return findInternal(document, field, property, value, value, true);
+    }
+
+    /**
+     * Returns elements of a list which property equals given value.
+     * @param field The name of field with the list.
+     * @param property The name of property of list elements.
+     * @param value String, number or boolean.
+     * @return Matching elements, empty if none.
+     * @see #findInList(String, String, String, Object)
+     */
+
+    @NonNull
+    public <T> List<T> findInList(String field, String property, Object value){
+        return findInList(document, field, property, value);
+    }
+
+    /**
+     * Returns position of the first element of a list which property equals given value.
+     * @param document The name of document.
+     * @param field The name of field with the list.
+     * @param property The name of property of list elements.
+     * @param value String, number or boolean.
+     * @return The position or -1 if no element matches.
+     * @see #findInList(String, String, String, Object)
+     */
+
+    public int indexOfInList(String document, String field, String property, Object value){
+        Object key = ListIndexes.key(value);
+        if(document == null || field == null || property == null || key == null)
+            return -1;
+
+        SharedPreferences data = getData(document, field);
+        ReentrantLock lock = FieldLocks.get(data, field);
+        lock.lock();
+        try {
+            int[] positions = find(document, data, field, property, key, key, true);
+            return positions.length == 0 ? -1 : positions[0];
+        } catch (Exception e){
+            return -1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns elements of a list which property is between given values,
+     * ordered by the property. Numbers are lower than strings, strings
+     * are compared with {@link String#compareTo(String)}.
+     * <pre>{@code
+     * List<Map<String, Object>> adults = db.findRangeInList("doc", "users", "age", 18, null);
+     * }</pre>
+     * @param document The name of document.
+     * @param field The name of field with the list.
+     * @param property The name of property of list elements.
+     * @param from The lowest value, inclusive, or null for no lower bound.
+     * @param to The highest value, exclusive, or null for no upper bound.
+     * @return Matching elements, empty if none.
+     * @see #createIndex(String, String, String)
+     */
+
+    @NonNull
+    public <T> List<T> findRangeInList(String document, String field, String property,
+                                       @Nullable Object from, @Nullable Object to){
+        return findInternal(document, field, property, from, to, false);
+    }
+
+    /**
+     * Returns elements of a list which property is between given values.
+     * @param field The name of field with the list.
+     * @param property The name of property of list elements.
+     * @param from The lowest value, inclusive, or null for no lower bound.
+     * @param to The highest value, exclusive, or null for no upper bound.
+     * @return Matching elements, empty if none.
+     * @see #findRangeInList(String, String, String, Object, Object)
+     */
+
+    @NonNull
+    public <T> List<T> findRangeInList(String field, String property, @Nullable Object from, @Nullable Object to){
+        return findRangeInList(document, field, property, from, to);
+    }
+
+    /**
+     * Starts observing a field. Listener is called on the main thread
+     * after the field changes, writes made in a burst (one main thread
+     * task or frame) are reported with one call. Changes made by
+     * {@code addToList}, {@code setInList} and {@code removeFromList}
+     * are described as {@link ListChange}s, so you can update a list view
+     * incrementally, e.g. with {@code notifyItemInserted}.
+     * <br><br>
+     * The listener is kept until you call {@link #stopObserving(String, String, OnChangeListener)}.
+     * @param document The name of document.
+     * @param field The name of field.
+     * @param listener The listener.
+     * @return Current AppDatabase instance.
+     */
+
+    public EssData observe(String document, String field, @NonNull OnChangeListener listener){
+        if(document != null && field != null)
+            changes.observe(getData(document), document, field, listener);
+        return this;
+    }
+
+    /**
+     * Starts observing a field of the default document.
+     * @param field The name of field.
+     * @param listener The listener.
+     * @return Current AppDatabase instance.
+     * @see #observe(String, String, OnChangeListener)
+     */
+
+    public EssData observe(String field, @NonNull OnChangeListener listener){
+        return observe(document, field, listener);
+    }
+
+    /**
+     * Stops observing a field.
+     * @param document The name of document.
+     * @param field The name of field.
+     * @param listener The listener passed to {@link #observe(String, String, OnChangeListener)}.
+     * @return Current AppDatabase instance.
+     */
+
+    public EssData stopObserving(String document, String field, @NonNull OnChangeListener listener){
+        if(document != null && field != null)
+            changes.stopObserving(getData(document), field, listener);
+        return this;
+    }
+
+    /**
+     * Stops observing a field of the default document.
+     * @param field The name of field.
+     * @param listener The listener passed to {@link #observe(String, OnChangeListener)}.
+     * @return Current AppDatabase instance.
+     */
+
+    public EssData stopObserving(String field, @NonNull OnChangeListener listener){
+        return stopObserving(document, field, listener);
+    }
+
+    /**
+     * Returns non-blocking interface to this instance.
+     * Callbacks are delivered on the main thread.
+     * @return Async interface.
+     * @see AsyncEssData
+     */
+
+    public AsyncEssData async(){
+        return async(IoExecutor.mainThread());
+    }
+
+    /**
+     * Returns non-blocking interface to this instance.
+     * Modifications made with all async interfaces of this instance
+     * run one after another.
+     * @param callbackExecutor Executor on which callbacks are delivered.
+     * @return Async interface.
+     * @see AsyncEssData
+     */
+
+    public AsyncEssData async(@NonNull Executor callbackExecutor){
+        return new AsyncEssData(this, ioExecutor, writeQueue, callbackExecutor);
+    }
+
+    /**
+     * Loads given documents in parallel in background and decodes their
+     * values, so later reads don't block on disk. Call it early, e.g. in
+     * {@code Application.onCreate()}, with documents you'll need soon.
+     * @param documents Names of documents.
+     * @return Handle which lets you wait for the documents and see how long they took to load.
+     */
+
+    public Prefetch prefetch(String... documents){
+        final Prefetch res = new Prefetch(documents);
+        for(final String document: documents){
+            ioExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    long start = System.nanoTime();
+                    try {
+                        preload(document);
+                    } finally {
+                        res.onLoaded(document, System.nanoTime() - start);
+                    }
+                }
+            });
+        }
+        return res;
+    }
+
+    /**
+     * Starts a batch of modifications which are saved at once.
+     * Use it when you modify many fields or list elements in a row.
+     * @return New batch bound to the default document.
+     */
+
+    public Batch beginBatch(){
+        return new Batch(this, document);
+    }
+
+    /**
+     * Runs modifications in one batch and saves them synchronously.
+     * Don't call it on the main thread.
+     * <pre>
+     * essData.batch("doc", b -> {
+     *     for(String item: items)
+     *         b.addToList("list", item, Integer.MAX_VALUE);
+     * });
+     * </pre>
+     * @param document The document used by batch methods without document parameter.
+     * @param block Modifications.
+     * @return True if all modifications were saved successfully.
+     */
+
+    public boolean batch(String document, Batch.Block block){
+        Batch batch = new Batch(this, document);
+        block.run(batch);
+        return batch.commit();
+    }
+
+
+
+    //Private methods
+
+    SharedPreferences getData(String document){
+        if(!document.equals(this.document)) {
+            return backend.open(document);
+        } else {
+            return sp;
+        }
+    }
+
+    private List<String> getFieldsInternal(SharedPreferences data){
+        List<String> res = new ArrayList<>();
+        for(String field: data.getAll().keySet())
+            if(!ChunkedList.isInternal(field))
+                res.add(field);
+        return res;
+    }
+
+    private EssData setInternal(String document, String field, Object value){
+
+        if(document == null || field == null)
+            return this;
+
+        long start = metrics != null ? System.nanoTime() : 0;
+        int size = 0;
+        SharedPreferences data = getData(document);
+        ReentrantLock lock = FieldLocks.get(data, field);
+        lock.lock();
+        try {
+            //Replaced without saving, counter opened meanwhile reads the new value.
+            counters.retire(document, field);
+            if(writeBehind != null && value != null){
+                writeBehind.put(document, field, value);
+            } else {
+                //Pending value set earlier would be flushed over the removal.
+                if(writeBehind != null)
+                    writeBehind.discard(document, field);
+                size = put(document, field, value);
+            }
+        } finally {
+            lock.unlock();
+        }
+        if(metrics != null)
+            metrics.record(document, MetricsRegistry.Operation.WRITE, start, size);
+        return this;
+    }
+
+    /**
+     * Puts native or encoded value to the editor, large values are compressed.
+     * @return Length of the saved value, 0 for native values.
+     */
+
+    private int putValue(String document, SharedPreferences data, SharedPreferences.Editor editor,
+                         String field, Object value){
+        if(Primitives.put(editor, field, value))
+            return 0;
+        long start = metrics != null ? System.nanoTime() : 0;
+        String json = compress(data, codec.encode(value));
+        if(metrics != null)
+            metrics.record(document, MetricsRegistry.Operation.ENCODE, start, json.length());
+        editor.putString(field, json);
+        return json.length();
+    }
+
+    /**
+     * Compresses encoded value when compression is enabled and value is large enough.
+     */
+
+    String compress(SharedPreferences data, String json){
+        return compression != null ? compression.compress(data, json) : json;
+    }
+
+    /**
+     * Returns document after saving pending write-behind value and counter
+     * of given field, use it before reading or modifying the field.
+     */
+
+    private SharedPreferences getData(String document, String field){
+        flushField(document, field);
+        retireCounter(document, field);
+        return getData(document);
+    }
+
+    @Nullable
+    private Object getPending(String document, String field){
+        return writeBehind == null || document == null ? null : writeBehind.get(document, field);
+    }
+
+    private void flushField(String document, String field){
+        if(getPending(document, field) == null)
+            return;
+
+        SharedPreferences data = getData(document);
+        ReentrantLock lock = FieldLocks.get(data, field);
+        lock.lock();
+        try {
+            Object value = writeBehind.get(document, field);
+            if(value != null){
+                put(document, field, value);
+                writeBehind.onFlushed(document, field, value);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Saves all pending write-behind values of a document with one editor.
+     */
+
+    private void flushInternal(String document){
+        Map<String, Object> pending = writeBehind.getAll(document);
+        if(pending == null)
+            return;
+
+        SharedPreferences data = getData(document);
+        ReentrantLock[] locks = FieldLocks.lockAll(data, pending.keySet());
+        try {
+            //Values read again while locked, fields could be flushed or set meanwhile.
+            Map<String, Object> fields = new LinkedHashMap<>();
+            for(String field: pending.keySet()){
+                Object value = writeBehind.get(document, field);
+                if(value != null)
+                    fields.put(field, value);
+            }
+            putAll(document, data, fields);
+            for(Map.Entry<String, Object> entry: fields.entrySet())
+                writeBehind.onFlushed(document, entry.getKey(), entry.getValue());
+        } finally {
+            FieldLocks.unlockAll(locks);
+        }
+    }
+
+    /**
+     * Saves changed counters of a document with one editor.
+     */
+
+    private void flushCounters(String document){
+        Map<String, Counters.Cell> changed = counters.getChanged(document);
+        if(changed == null)
+            return;
+
+        SharedPreferences data = getData(document);
+        ReentrantLock[] locks = FieldLocks.lockAll(data, changed.keySet());
+        try {
+            Map<String, Object> fields = new LinkedHashMap<>();
+            for(Map.Entry<String, Counters.Cell> entry: changed.entrySet()){
+                //Retired cells were saved or replaced meanwhile.
+                if(counters.get(document, entry.getKey()) == entry.getValue())
+                    fields.put(entry.getKey(), entry.getValue().get());
+            }
+            putAll(document, data, fields);
+            for(Map.Entry<String, Object> entry: fields.entrySet())
+                changed.get(entry.getKey()).onSaved((Number) entry.getValue());
+        } finally {
+            FieldLocks.unlockAll(locks);
+        }
+    }
+
+    /**
+     * Saves values with one editor, called with the fields locked.
+     */
+
+    private void putAll(String document, SharedPreferences data, Map<String, Object> values){
+        if(values.isEmpty())
+            return;
+
+        Map<String, String> previous = new LinkedHashMap<>();
+        SharedPreferences.Editor editor = data.edit();
+        for(Map.Entry<String, Object> entry: values.entrySet()){
+            previous.put(entry.getKey(), release(data, editor, entry.getKey()));
+            putValue(document, data, editor, entry.getKey(), entry.getValue());
+        }
+        editor.apply();
+
+        for(Map.Entry<String, String> entry: previous.entrySet()){
+            String field = entry.getKey();
+            cache.invalidate(data, field);
+            if(ChunkedList.isHeader(entry.getValue()))
+                indexes.invalidate(data, field);
+            bitmaps.delete(entry.getValue());
+        }
+    }
+
+    /**
+     * Opens counter of a field with its saved value, see {@link Counters.Loader}.
+     */
+
+    private Counters.Cell openCounter(String document, String field, boolean floating){
+        SharedPreferences data = getData(document);
+        ReentrantLock lock = FieldLocks.get(data, field);
+        lock.lock();
+        try {
+            Counters.Cell cell = counters.get(document, field);
+            if(cell != null && cell.floating == floating)
+                return cell;
+            //Counter of the other type is saved and read again.
+            retireCounter(document, field);
+            flushField(document, field);
+
+            long bits;
+            if(!floating){
+                try {
+                    bits = data.getLong(field, 0);
+                } catch (ClassCastException e){
+                    Object res = Primitives.migrate(data, field, Long.class, codec);
+                    bits = res != null ? (Long) res : 0;
+                }
+            } else {
+                Object value;
+                try {
+                    value = decodeFresh(data, field);
+                } catch (Exception e){
+                    value = null;
+                }
+                bits = Double.doubleToRawLongBits(value instanceof Number ? ((Number) value).doubleValue() : 0);
+            }
+            return counters.create(document, field, floating, bits);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Saves counter of a field if it changed and removes it,
+     * so the field can be read or modified directly.
+     */
+
+    private void retireCounter(String document, String field){
+        if(document == null || counters.get(document, field) == null)
+            return;
+
+        SharedPreferences data = getData(document);
+        ReentrantLock lock = FieldLocks.get(data, field);
+        lock.lock();
+        try {
+            Counters.Cell cell = counters.retire(document, field);
+            if(cell != null && cell.isChanged())
+                put(document, field, cell.get());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops counters of fields replaced by a batch, called with the fields locked.
+     */
+
+    void discardCounters(String document, Collection<String> fields){
+        for(String field: fields)
+            counters.retire(document, field);
+    }
+
+    /**
+     * Saves a value, used by setters and to rewrite json lists.
+     * @return Length of the encoded value, 0 for native values.
+     */
+
+    private int put(String document, String field, Object value){
+        SharedPreferences data = getData(document);
+        ReentrantLock lock = FieldLocks.get(data, field);
+        lock.lock();
+        try {
+            SharedPreferences.Editor editor = data.edit();
+            String previous = release(data, editor, field);
+            int size = putValue(document, data, editor, field, value);
+            editor.apply();
+            cache.invalidate(data, field);
+            if(ChunkedList.isHeader(previous))
+                indexes.invalidate(data, field);
+            bitmaps.delete(previous);
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private EssData addToListInternal(String document, String field, Object value, int position){
+        if(document == null || field == null)
+            return this;
+
+        long start = metrics != null ? System.nanoTime() : 0;
+        SharedPreferences data = getData(document, field);
+        ReentrantLock lock = FieldLocks.get(data, field);
+        lock.lock();
+        try {
+            //Read before json lists are migrated, migration doesn't change elements.
+            boolean observed = changes.isObserved(data, field);
+            boolean indexed = indexes.isIndexed(data, field);
+            String before = observed || indexed ? ChangeDispatcher.raw(data, field) : null;
+            ChunkedList list = getChunkedList(data, field, true);
+
+            JsonElement element = list != null || indexed ? codec.toTree(value) : null;
+            if(list == null){
+                ArrayList<Object> res = new ArrayList<>(this.<List<Object>>readList(document, field));
+                position = Math.max(0, Math.min(res.size(), position));
+                res.add(position, value);
+                put(document, field, res);
+            } else {
+                position = Math.max(0, Math.min(list.size(), position));
+                SharedPreferences.Editor editor = data.edit();
+                list.insert(data, editor, field, position, element);
+                editor.apply();
+                cache.invalidate(data, field);
+            }
+
+            ListChange change = new ListChange(ListChange.Type.INSERTED, position);
+            if(indexed)
+                indexes.onListChange(data, field, before, change, element);
+            if(observed)
+                changes.onListChange(data, field, before, change);
+            return this;
+        } finally {
+            lock.unlock();
+            if(metrics != null)
+                metrics.record(document, MetricsRegistry.Operation.LIST_WRITE, start, 0);
+        }
+    }
+
+    private EssData setInListInternal(String document, String field, Object value, int position){
+        if(document == null || field == null)
+            return this;
+
+        long start = metrics != null ? System.nanoTime() : 0;
+        SharedPreferences data = getData(document, field);
+        ReentrantLock lock = FieldLocks.get(data, field);
+        lock.lock();
+        try {
+            //Read before json lists are migrated, migration doesn't change elements.
+            boolean observed = changes.isObserved(data, field);
+            boolean indexed = indexes.isIndexed(data, field);
+            String before = observed || indexed ? ChangeDispatcher.raw(data, field) : null;
+            ChunkedList list = getChunkedList(data, field, true);
+            boolean changed = false;
+            JsonElement element = list != null || indexed ? codec.toTree(value) : null;
+
+            if(list == null){
+                ArrayList<Object> res = new ArrayList<>(this.<List<Object>>readList(document, field));
+                try{ res.set(position, value); changed = true; } catch (Exception ignored){}
+                put(document, field, res);
+            } else {
+                try {
+                    SharedPreferences.Editor editor = data.edit();
+                    list.set(data, editor, field, position, element);
+                    editor.apply();
+                    cache.invalidate(data, field);
+                    changed = true;
+                } catch (IndexOutOfBoundsException ignored){}
+            }
+
+            ListChange change = new ListChange(ListChange.Type.CHANGED, position);
+            if(indexed && changed)
+                indexes.onListChange(data, field, before, change, element);
+            if(observed && changed)
+                changes.onListChange(data, field, before, change);
+            return this;
+        } finally {
+            lock.unlock();
+            if(metrics != null)
+                metrics.record(document, MetricsRegistry.Operation.LIST_WRITE, start, 0);
+        }
+    }
+
+    /**
+     * Returns chunked list saved at given field. In {@link ListStorage#CHUNKED}
+     * mode json lists are migrated first.
+     * @param create Whether fields which aren't lists should be replaced
+     *               with an empty chunked list.
+     * @return The list or null when field should be handled as json.
+     */
+
+    @Nullable
+    private ChunkedList getChunkedList(SharedPreferences data, String field, boolean create){
+        String raw;
+        try {
+            raw = data.getString(field, null);
+        } catch (ClassCastException e){
+            raw = null;
+        }
+
+        ChunkedList res = ChunkedList.parse(raw);
+        if(res != null || listStorage != ListStorage.CHUNKED)
+            return res;
+
+        String json = Compression.inflate(data, raw);
+        JsonArray values = json == null ? null : Codec.parseArray(json);
+        if(values == null && !create)
+            return null;
+
+        res = ChunkedList.empty();
+        SharedPreferences.Editor editor = data.edit();
+        res.writeAll(editor, field, values == null ? new JsonArray() : values);
+        //Applied separately, chunks are read back from the document
+        //by the modification which follows.
+        editor.apply();
+        cache.invalidate(data, field);
+        bitmaps.delete(raw);
+        return res;
+    }
+
+    /**
+     * Removes chunks of a chunked list saved at given field.
+     * Previous value is returned, so a bitmap file it references can be
+     * deleted with {@link BitmapStore#delete(String)} once the field is overridden.
+     * @return Previous raw value or null.
+     */
+
+    @Nullable
+    static String release(SharedPreferences data, SharedPreferences.Editor editor, String field){
+        String raw;
+        try {
+            raw = data.getString(field, null);
+        } catch (ClassCastException e){
+            return null;
+        }
+        ChunkedList list = ChunkedList.parse(raw);
+        if(list != null)
+            list.removeChunks(editor, field);
+        return raw;
+    }
+
+    String getDocument(){
+        return document;
+    }
+
+    Codec getCodec(){
+        return codec;
+    }
+
+    DecodeCache getCache(){
+        return cache;
+    }
+
+    ListStorage getListStorage(){
+        return listStorage;
+    }
+
+    BitmapStore getBitmaps(){
+        return bitmaps;
+    }
+
+    ListIndexes getIndexes(){
+        return indexes;
+    }
+
+    /**
+     * Returns registry set with {@link Builder#setMetrics(MetricsRegistry)}.
+     * @return The registry or null if metrics are disabled.
+     */
+
+    @Nullable
+    public MetricsRegistry getMetrics(){
+        return metrics;
+    }
+
+    /**
+     * Loads the document and decodes its values into the cache.
+     */
+
+    private void preload(String document){
+        SharedPreferences data = getData(document);
+        for(Map.Entry<String, ?> entry: data.getAll().entrySet()){
+            Object value = entry.getValue();
+            if(!(value instanceof String) || ChunkedList.isInternal(entry.getKey())
+                    || BitmapStore.isReference((String) value))
+                continue;
+            try {
+                getDecoded(document, data, entry.getKey());
+            } catch (Exception ignored){}
+        }
+    }
+
+    private <T> List<T> findInternal(String document, String field, String property,
+                                     Object from, Object to, boolean toInclusive){
+        Object fromKey = ListIndexes.key(from);
+        Object toKey = ListIndexes.key(to);
+        if(document == null || field == null || property == null
+                || (from != null && fromKey == null) || (to != null && toKey == null))
+            return new ArrayList<>();
+
+        SharedPreferences data = getData(document, field);
+        ReentrantLock lock = FieldLocks.get(data, field);
+        lock.lock();
+        try {
+            int[] positions = find(document, data, field, property, fromKey, toKey, toInclusive);
+            if(positions.length == 0)
+                return new ArrayList<>();
+
+            Object cached = cache.peek(data, field, ChangeDispatcher.raw(data, field), MISS);
+            if(cached instanceof List){
+                List<T> res = new ArrayList<>(positions.length);
+                for(int position: positions)
+                    res.add((T) DecodeCache.copy(((List<?>) cached).get(position)));
+                return res;
+            }
+            return codec.decodeAt(getArrays(document, field), positions, Codec.OBJECT_TYPE);
+        } catch (Exception e){
+            return new ArrayList<>();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns positions of elements with keys in given range. Must be called with the field locked.
+     */
+
+    private int[] find(final String document, SharedPreferences data, final String field, String property,
+                       Object from, Object to, boolean toInclusive) throws IOException {
+        ListIndexes.Index index = indexes.get(data, field, property);
+        if(index == null)
+            index = new ListIndexes.Index(property);
+
+        index.validate(ChangeDispatcher.raw(data, field), new ListIndexes.Source() {
+            @NonNull
+            @Override
+            public List<String> get() {
+                return getArrays(document, field);
+            }
+        });
+        return index.find(from, to, toInclusive);
+    }
+
+    private <T> T updateInternal(String document, String field, Type type, Updater<T> updater){
+        if(document == null || field == null)
+            return null;
+
+        SharedPreferences data = getData(document);
+        ReentrantLock lock = FieldLocks.get(data, field);
+        lock.lock();
+        try {
+            //Flushed while locked, so a value set by a concurrent update isn't missed.
+            flushField(document, field);
+            retireCounter(document, field);
+            T current;
+            try {
+                //Decoded without the cache, so updater can modify it.
+                current = type == null ? (T) decodeFresh(data, field) : codec.<T>decode(getJson(data, field), type);
+            } catch (Exception e){
+                current = null;
+            }
+
+            T res = updater.update(current);
+            if(res == null)
+                remove(document, field);
+            else
+                setInternal(document, field, res);
+            return res;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Nullable
+    private Object decodeFresh(SharedPreferences data, String field) throws Exception {
+        String raw;
+        try {
+            raw = data.getString(field, null);
+        } catch (ClassCastException e){
+            return Primitives.get(data, field);
+        }
+        ChunkedList list = ChunkedList.parse(raw);
+        return list != null ? list.read(data, field, codec) : codec.decode(Compression.inflate(data, raw));
+    }
+
+    private <T> ListPage<T> getListPageInternal(String document, String field, int offset, int limit, Type type){
+        offset = Math.max(0, offset);
+        limit = Math.max(0, limit);
+        if(document == null || field == null || type == null)
+            return new ListPage<>(new ArrayList<T>(0), offset, 0);
+
+        long start = metrics != null ? System.nanoTime() : 0;
+        try {
+            SharedPreferences data = getData(document, field);
+            String raw = data.getString(field, null);
+            if(raw == null)
+                return new ListPage<>(new ArrayList<T>(0), offset, 0);
+
+            Object cached = cache.getPage(data, field, raw, offset, limit, type, MISS);
+            if(metrics != null){
+                if(cached != MISS)
+                    metrics.onCacheHit(document);
+                else
+                    metrics.onCacheMiss(document);
+            }
+            if(cached != MISS)
+                return (ListPage<T>) cached;
+
+            List<T> items = new ArrayList<>(Math.min(limit, 256));
+            int total;
+            ChunkedList list = ChunkedList.parse(raw);
+            if(list != null){
+                list.readRange(data, field, offset, limit, type, codec, items);
+                total = list.size();
+            } else {
+                total = codec.decodeRange(Compression.inflate(data, raw), offset, limit, type, items, true);
+            }
+
+            ListPage<T> res = new ListPage<>(items, offset, total);
+            cache.putPage(data, field, raw, offset, limit, type, res);
+            return res;
+        } catch (Exception e){
+            return new ListPage<>(new ArrayList<T>(0), offset, 0);
+        } finally {
+            if(metrics != null)
+                metrics.record(document, MetricsRegistry.Operation.LIST_READ, start, 0);
+        }
+    }
+
+    private <T> Iterable<T> iterateInternal(String document, String field, final Type type){
+        final List<String> arrays = getArrays(document, field);
+        return new Iterable<T>() {
+            @NonNull
+            @Override
+            public Iterator<T> iterator() {
+                return codec.iterate(arrays, type);
+            }
+        };
+    }
+
+    /**
+     * Returns raw json arrays of a list, one per chunk of chunked lists.
+     */
+
+    private List<String> getArrays(String document, String field){
+        if(document == null || field == null)
+            return Collections.emptyList();
+
+        SharedPreferences data = getData(document, field);
+        String raw;
+        try {
+            raw = data.getString(field, null);
+        } catch (ClassCastException e){
+            return Collections.emptyList();
+        }
+        if(raw == null)
+            return Collections.emptyList();
+
+        ChunkedList list = ChunkedList.parse(raw);
+        if(list != null)
+            return list.readChunks(data, field);
+        String json = Compression.inflate(data, raw);
+        return json != null ? Collections.singletonList(json) : Collections.<String>emptyList();
+    }
+
+    @Nullable
+    private <T> T getTyped(String document, String field, Type type){
+        if(document == null || field == null || type == null)
+            return null;
+
+        long start = metrics != null ? System.nanoTime() : 0;
+        try {
+            return codec.decode(getJson(getData(document, field), field), type);
+        } catch (Exception e){
+            return null;
+        } finally {
+            if(metrics != null)
+                metrics.record(document, MetricsRegistry.Operation.READ, start, 0);
+        }
+    }
+
+    /**
+     * Returns json saved in a field, chunked lists are joined into one array.
+     */
+
+    @Nullable
+    private String getJson(SharedPreferences data, String field){
+        String raw;
+        try {
+            raw = data.getString(field, null);
+        } catch (ClassCastException e){
+            Object value = Primitives.get(data, field);
+            return Primitives.isNative(value) ? codec.encode(value) : null;
+        }
+        ChunkedList list = ChunkedList.parse(raw);
+        return list != null ? list.readJson(data, field) : Compression.inflate(data, raw);
+    }
+
+    private Object getDecoded(String document, SharedPreferences data, String field) throws Exception {
+        String raw = data.getString(field, null);
+        if(raw == null)
+            return null;
+
+        Object res = cache.get(data, field, raw, MISS);
+        if(res == MISS){
+            long start = metrics != null ? System.nanoTime() : 0;
+            ChunkedList list = ChunkedList.parse(raw);
+            res = list != null ? list.read(data, field, codec) : codec.decode(Compression.inflate(data, raw));
+            cache.put(data, field, raw, res);
+            if(metrics != null){
+                metrics.onCacheMiss(document);
+                metrics.record(document, MetricsRegistry.Operation.DECODE, start, 0);
+            }
+        } else if(metrics != null){
+            metrics.onCacheHit(document);
+        }
+        return res;
+    }
+
+    private EssData(Context context, StorageBackend backend, Codec codec,
+                    DecodeCache cache, ListStorage listStorage,
+                    Bitmap.CompressFormat bitmapFormat, int bitmapQuality,
+                    Executor ioExecutor, MetricsRegistry metrics,
+                    long writeBehindDelay, int writeBehindFields, int compressionMinSize,
+                    long counterDelay){
+        this.context = context;
+        this.backend = backend;
+        this.codec = codec;
+        this.cache = cache;
+        this.listStorage = listStorage;
+        this.bitmaps = new BitmapStore(context);
+        this.bitmapFormat = bitmapFormat;
+        this.bitmapQuality = bitmapQuality;
+        this.ioExecutor = ioExecutor;
+        this.writeQueue = new IoExecutor.SerialExecutor(ioExecutor);
+        this.metrics = metrics;
+        if(writeBehindDelay > 0){
+            this.writeBehind = new WriteBehind(writeBehindDelay, writeBehindFields, new WriteBehind.Writer() {
+                @Override
+                public void write(@NonNull String document) {
+                    flushInternal(document);
+                }
+            });
+            WriteBehind.flushOnPause(context, writeBehind);
+        } else {
+            this.writeBehind = null;
+        }
+        this.compression = compressionMinSize > 0 ? new Compression(compressionMinSize) : null;
+        this.counters = new Counters(backend, counterDelay, new Counters.Loader() {
+            @NonNull
+            @Override
+            public Counters.Cell load(@NonNull String document, @NonNull String field, boolean floating) {
+                return openCounter(document, field, floating);
+            }
+        }, new WriteBehind.Writer() {
+            @Override
+            public void write(@NonNull String document) {
+                flushCounters(document);
+            }
+        });
+        WriteBehind.flushOnPause(context, counters);
+        sp = backend.open(document);
+    }
+
+    /**
+     * Creates instance sharing configuration of given one.
+     */
+
+    private EssData(EssData base, String document){
+        this.context = base.context;
+        this.backend = base.backend;
+        this.codec = base.codec;
+        this.cache = base.cache;
+        this.listStorage = base.listStorage;
+        this.bitmaps = base.bitmaps;
+        this.bitmapFormat = base.bitmapFormat;
+        this.bitmapQuality = base.bitmapQuality;
+        this.ioExecutor = base.ioExecutor;
+        this.writeQueue = base.writeQueue;
+        this.metrics = base.metrics;
+        this.writeBehind = base.writeBehind;
+        this.compression = base.compression;
+        this.counters = base.counters;
+        this.document = document;
+        this.sp = backend.open(document);
+    }
+
+    /**
+     * Computes new value of a field in {@link #update(String, String, Updater)}.
+     * @param <T> The type of value.
+     */
+
+    public interface Updater<T> {
+
+        /**
+         * Called while the field is locked.
+         * @param current Current value or null if field doesn't exist.
+         * @return The new value or null to remove the field.
+         */
+
+        @Nullable
+        T update(@Nullable T current);
+
+    }
+
+    /**
+     * Notified when an observed field changes.
+     *
+     * @see #observe(String, String, OnChangeListener)
+     */
+
+    public interface OnChangeListener {
+
+        /**
+         * Called on the main thread.
+         * @param document The name of document.
+         * @param field The name of field.
+         * @param changes List changes in the order they were made
+         *                or null if the whole field changed, e.g. was
+         *                set, removed or modified in a batch.
+         */
+
+        void onChange(@NonNull String document, @NonNull String field, @Nullable List<ListChange> changes);
+
+    }
+
+    /**
+     * Configures new {@link EssData} instance.
+     */
+
+    public static class Builder {
+
+        private final Context context;
+        private final List<TypeAdapterFactory> factories = new ArrayList<>();
+        private Gson gson;
+        private String document;
+        private int cacheSize = -1;
+        private ListStorage listStorage = ListStorage.JSON;
+        private StorageBackend backend;
+        private Bitmap.CompressFormat bitmapFormat = Bitmap.CompressFormat.PNG;
+        private int bitmapQuality = 100;
+        private Executor ioExecutor;
+        private MetricsRegistry metrics;
+        private long writeBehindDelay;
+        private int writeBehindFields;
+        private int compressionMinSize;
+        private long counterFlushDelay = Counters.DEFAULT_DELAY_MILLIS;
+
+        private Builder(@NonNull Context context){
+            this.context = context;
+        }
+
+        /**
+         * Sets gson used to save and read values.
+         * By default one shared {@link Gson} instance is used.
+         * @param gson Your gson instance.
+         * @return Current Builder instance.
+         */
+
+        public Builder setGson(@Nullable Gson gson){
+            this.gson = gson;
+            return this;
+        }
+
+        /**
+         * Registers type adapter factory for your own types.
+         * @param factory The factory.
+         * @return Current Builder instance.
+         */
+
+        public Builder addTypeAdapterFactory(@NonNull TypeAdapterFactory factory){
+            factories.add(factory);
+            return this;
+        }
+
+        /**
+         * Sets maximum total length of raw values whose decoded form
+         * is kept in memory. Pass 0 to disable the cache.
+         * By default a shared cache of {@link DecodeCache#DEFAULT_MAX_SIZE} is used.
+         * @param cacheSize Cache size in characters.
+         * @return Current Builder instance.
+         */
+
+        public Builder setCacheSize(int cacheSize){
+            this.cacheSize = cacheSize;
+            return this;
+        }
+
+        /**
+         * Sets how lists modified with {@code addToList}, {@code setInList}
+         * and {@code removeFromList} are stored. Default is {@link ListStorage#JSON}.
+         * @param listStorage List storage mode.
+         * @return Current Builder instance.
+         */
+
+        public Builder setListStorage(@NonNull ListStorage listStorage){
+            this.listStorage = listStorage;
+            return this;
+        }
+
+        /**
+         * Sets where documents are stored.
+         * By default every document is saved as {@link SharedPreferences}.
+         * @param backend Storage backend, e.g. {@link FileBackend}.
+         * @return Current Builder instance.
+         */
+
+        public Builder setStorageBackend(@Nullable StorageBackend backend){
+            this.backend = backend;
+            return this;
+        }
+
+        /**
+         * Sets how bitmaps are compressed. Default is lossless PNG,
+         * {@link Bitmap.CompressFormat#WEBP} or {@link Bitmap.CompressFormat#JPEG}
+         * give much smaller files for photos.
+         * @param format Compression format.
+         * @param quality Compression quality, 0-100. Ignored by lossless formats.
+         * @return Current Builder instance.
+         */
+
+        public Builder setBitmapFormat(@NonNull Bitmap.CompressFormat format, int quality){
+            this.bitmapFormat = format;
+            this.bitmapQuality = Math.max(0, Math.min(100, quality));
+            return this;
+        }
+
+        /**
+         * Sets executor running {@link AsyncEssData} operations.
+         * By default a shared pool of up to 4 threads is used.
+         * @param ioExecutor The executor or null to use the default one.
+         * @return Current Builder instance.
+         */
+
+        public Builder setIoExecutor(@Nullable Executor ioExecutor){
+            this.ioExecutor = ioExecutor;
+            return this;
+        }
+
+        /**
+         * Sets registry recording operation counts, latencies, encoded sizes
+         * and cache hit rates of the instance. Disabled by default.
+         * @param metrics The registry or null to disable metrics.
+         * @return Current Builder instance.
+         */
+
+        public Builder setMetrics(@Nullable MetricsRegistry metrics){
+            this.metrics = metrics;
+            return this;
+        }
+
+        /**
+         * Enables write-behind mode for fields saved with {@code set}. Values are
+         * kept in memory and reads see them immediately, a document is encoded
+         * and saved once {@code delayMillis} after its first unsaved set or as soon
+         * as {@code maxPendingFields} of its fields are waiting. Use it for fields
+         * updated many times per second, like counters and progress.
+         * <br><br>
+         * Other operations on a waiting field save it first. Pending values are
+         * saved when an activity is paused or on {@link EssData#flush()}, values
+         * set shortly before the process is killed otherwise may be lost. Other
+         * EssData instances and change listeners see values once they're saved.
+         * Don't modify objects after setting them, they're encoded when saved.
+         * @param delayMillis The longest time a value waits, 0 disables write-behind.
+         * @param maxPendingFields The number of waiting fields which saves a document right away.
+         * @return Current Builder instance.
+         */
+
+        public Builder setWriteBehind(long delayMillis, int maxPendingFields){
+            this.writeBehindDelay = Math.max(0, delayMillis);
+            this.writeBehindFields = Math.max(1, maxPendingFields);
+            return this;
+        }
+
+        /**
+         * Enables Deflate compression of values whose json has at least {@code minSize}
+         * characters, e.g. large objects and lists. Compressed values are saved as
+         * Base64, so a value is compressed only if that makes it smaller. Values are
+         * decompressed automatically when read, by any instance.
+         * Elements of {@link ListStorage#CHUNKED} lists aren't compressed.
+         * Disabled by default.
+         * @param minSize Minimum length of compressed json, 0 disables compression.
+         * @return Current Builder instance.
+         * @see EssData#trainCompressionDictionary(String)
+         */
+
+        public Builder setCompression(int minSize){
+            this.compressionMinSize = Math.max(0, minSize);
+            return this;
+        }
+
+        /**
+         * Sets how long counters changed with {@link EssData#increment(String, String, long)}
+         * and similar methods wait before their document is saved, 1 second by default.
+         * All changes made meanwhile are saved at once.
+         * @param delayMillis The delay, 0 saves in background right after a change.
+         * @return Current Builder instance.
+         */
+
+        public Builder setCounterFlushDelay(long delayMillis){
+            this.counterFlushDelay = Math.max(0, delayMillis);
+            return this;
+        }
+
+        /**
+         * Sets the default document.
+         * @param document The name of document.
+         * @return Current Builder instance.
+         * @see EssData#setDocument(String)
+         */
+
+        public Builder setDocument(@Nullable String document){
+            this.document = document;
+            return this;
+        }
+
+        /**
+         * Creates new EssData instance.
+         * @return New EssData instance.
+         */
+
+        public EssData build(){
+            Codec codec = Codec.create(gson, factories);
+            DecodeCache cache;
+            if(cacheSize < 0 && codec == Codec.getDefault())
+                cache = DecodeCache.getDefault();
+            else
+                cache = new DecodeCache(cacheSize < 0 ? DecodeCache.DEFAULT_MAX_SIZE : cacheSize);
+
+            EssData res = new EssData(context,
+                    backend != null ? backend : SharedPreferencesBackend.getDefault(context),
+                    codec, cache, listStorage, bitmapFormat, bitmapQuality,
+                    ioExecutor != null ? ioExecutor : IoExecutor.io(), metrics,
+                    writeBehindDelay, writeBehindFields, compressionMinSize, counterFlushDelay);
+            if(document != null)
+                res.setDocument(document);
+            return res;
+        }
+
+    }
+
 }
@@ -0,0 +1,110 @@
+package com.fivesoft.database;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Result of an {@link AsyncEssData} operation.
+ * <br><br>
+ * You can block on it with {@link #get()} on a background thread or
+ * register a {@link Callback}, which is called on the callback executor
+ * of the {@link AsyncEssData} which created the future.
+ * @param <T> The type of result.
+ */
+
+public class EssFuture<T> extends FutureTask<T> {
+
+    /**
+     * Called when the operation finishes.
+     * @param <T> The type of result.
+     */
+
+    public interface Callback<T> {
+
+        /**
+         * @param result The result, null if operation failed.
+         * @param error Exception thrown by the operation or null if it succeeded.
+         */
+
+        void onComplete(@Nullable T result, @Nullable Throwable error);
+
+    }
+
+    private final Executor callbackExecutor;
+    private List<Runnable> callbacks = new ArrayList<>(2);
+
+    EssFuture(@NonNull Callable<T> callable, @NonNull Executor callbackExecutor){
+        super(callable);
+        this.callbackExecutor = callbackExecutor;
+    }
+
+    /**
+     * Registers callback called on the default callback executor.
+     * If the operation has already finished, callback is scheduled immediately.
+     * @param callback The callback.
+     * @return Current EssFuture instance.
+     */
+
+    public EssFuture<T> addCallback(@NonNull Callback<? super T> callback){
+        return addCallback(callback, callbackExecutor);
+    }
+
+    /**
+     * Registers callback called on given executor.
+     * If the operation has already finished, callback is scheduled immediately.
+     * @param callback The callback.
+     * @param executor Executor which calls the callback.
+     * @return Current EssFuture instance.
+     */
+
+    public EssFuture<T> addCallback(@NonNull final Callback<? super T> callback, @NonNull final Executor executor){
+        final Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                T result = null;
+                Throwable error = null;
+                try {
+                    result = get();
+                } catch (ExecutionException e){
+                    error = e.getCause() != null ? e.getCause() : e;
+                } catch (Exception e){
+                    error = e;
+                }
+                callback.onComplete(result, error);
+            }
+        };
+
+        synchronized (this){
+            if(callbacks != null){
+                callbacks.add(new Runnable() {
+                    @Override
+                    public void run() {
+                        executor.execute(task);
+                    }
+                });
+                return this;
+            }
+        }
+        executor.execute(task);
+        return this;
+    }
+
+    @Override
+    protected void done() {
+        List<Runnable> res;
+        synchronized (this){
+            res = callbacks;
+            callbacks = null;
+        }
+        for(Runnable callback: res)
+            callback.run();
+    }
+
+}
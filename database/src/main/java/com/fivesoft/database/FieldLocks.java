@@ -0,0 +1,106 @@
+package com.fivesoft.database;
+
+import android.content.SharedPreferences;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Striped locks guarding read-modify-write of single fields.
+ * <br><br>
+ * Every (document, field) pair maps to one of a fixed number of locks,
+ * so modifications of the same field are serialized while modifications
+ * of other fields and documents mostly run in parallel. Locks are shared
+ * by all {@link EssData} instances, as they share the documents. Reads
+ * don't take locks.
+ */
+
+final class FieldLocks {
+
+    //Power of two.
+    private static final int STRIPES = 64;
+
+    private static final ReentrantLock[] LOCKS = new ReentrantLock[STRIPES];
+
+    static {
+        for(int i = 0; i < STRIPES; i++)
+            LOCKS[i] = new ReentrantLock();
+    }
+
+    private FieldLocks(){}
+
+    /**
+     * Returns lock of given field.
+     * @param data The document.
+     * @param field The name of field.
+     * @return The lock.
+     */
+
+    @NonNull
+    static ReentrantLock get(@NonNull SharedPreferences data, @Nullable String field){
+        return LOCKS[stripe(data, field)];
+    }
+
+    /**
+     * Locks all given fields. Locks are taken in a fixed order,
+     * so two threads locking overlapping fields don't deadlock.
+     * @param data The document.
+     * @param fields Names of fields.
+     * @return Taken locks, pass them to {@link #unlockAll(ReentrantLock[])}.
+     */
+
+    @NonNull
+    static ReentrantLock[] lockAll(@NonNull SharedPreferences data, @NonNull Collection<String> fields){
+        return lockAll(Collections.singletonMap(data, fields));
+    }
+
+    /**
+     * Locks given fields of many documents at once. Taking locks of one
+     * document after another could deadlock, as documents share locks.
+     * @param fields Names of fields by document.
+     * @return Taken locks, pass them to {@link #unlockAll(ReentrantLock[])}.
+     */
+
+    @NonNull
+    static ReentrantLock[] lockAll(@NonNull Map<SharedPreferences, ? extends Collection<String>> fields){
+        boolean[] stripes = new boolean[STRIPES];
+        int count = 0;
+        for(Map.Entry<SharedPreferences, ? extends Collection<String>> entry: fields.entrySet()){
+            for(String field: entry.getValue()){
+                int stripe = stripe(entry.getKey(), field);
+                if(!stripes[stripe]){
+                    stripes[stripe] = true;
+                    count++;
+                }
+            }
+        }
+
+        ReentrantLock[] res = new ReentrantLock[count];
+        int index = 0;
+        for(int i = 0; i < STRIPES; i++){
+            if(stripes[i]){
+                LOCKS[i].lock();
+                res[index++] = LOCKS[i];
+            }
+        }
+        return res;
+    }
+
+    static void unlockAll(@NonNull ReentrantLock[] locks){
+        for(int i = locks.length - 1; i >= 0; i--)
+            locks[i].unlock();
+    }
+
+    private static int stripe(SharedPreferences data, String field){
+        int hash = 31 * System.identityHashCode(data) + (field == null ? 0 : field.hashCode());
+        //Spread bits like HashMap does.
+        hash ^= (hash >>> 16);
+        return hash & (STRIPES - 1);
+    }
+
+}
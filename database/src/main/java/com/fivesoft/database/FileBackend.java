@@ -0,0 +1,372 @@
+package com.fivesoft.database;
+
+import android.content.SharedPreferences;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Backend keeping every document in its own binary file.
+ * <br><br>
+ * Fields are saved as length-prefixed records, which are much faster
+ * to load than {@link SharedPreferences} XML. Files are written to
+ * a temporary file first and then renamed, so a crash never leaves
+ * a half written document. Many {@link SharedPreferences.Editor#apply()}
+ * calls in a row are saved with a single write.
+ * <br><br>
+ * The backend doesn't use any Android classes apart from the
+ * {@link SharedPreferences} interface, so it works in plain JVM tests.
+ * Listeners are notified on the thread which modified the document.
+ */
+
+public class FileBackend extends DirectoryBackend {
+
+    static final String EXTENSION = ".ess";
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int MAGIC = 0x45535344;
+    private static final int FORMAT_VERSION = 1;
+
+    static final byte TYPE_STRING = 1;
+    static final byte TYPE_INT = 2;
+    static final byte TYPE_LONG = 3;
+    static final byte TYPE_FLOAT = 4;
+    static final byte TYPE_BOOLEAN = 5;
+    static final byte TYPE_STRING_SET = 6;
+
+    /**
+     * Creates new backend.
+     * @param directory Directory where documents are saved. Created when needed.
+     */
+
+    public FileBackend(@NonNull File directory){
+        super(directory, EXTENSION);
+    }
+
+    @NonNull
+    @Override
+    BaseDocument createDocument(@NonNull String document, @NonNull File file) {
+        return new FileDocument(document, this, file);
+    }
+
+    /**
+     * Encodes document name, so it can be used as file name.
+     * Letters, digits, '-' and '_' are kept, other characters are
+     * saved as '.' followed by two hex digits of each UTF-8 byte.
+     */
+
+    @NonNull
+    static String encodeName(@NonNull String name){
+        StringBuilder res = new StringBuilder(name.length() + 8);
+        for(byte b: name.getBytes(UTF_8)){
+            char c = (char) (b & 0xFF);
+            if((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' || c == '_'){
+                res.append(c);
+            } else {
+                res.append('.').append(Character.forDigit((b >> 4) & 0xF, 16))
+                        .append(Character.forDigit(b & 0xF, 16));
+            }
+        }
+        return res.toString();
+    }
+
+    @NonNull
+    static String decodeName(@NonNull String name){
+        ByteArrayOutputStream res = new ByteArrayOutputStream(name.length());
+        for(int i = 0; i < name.length(); i++){
+            char c = name.charAt(i);
+            if(c == '.' && i + 2 < name.length()){
+                res.write(Integer.parseInt(name.substring(i + 1, i + 3), 16));
+                i += 2;
+            } else {
+                res.write(c);
+            }
+        }
+        return new String(res.toByteArray(), UTF_8);
+    }
+
+    /**
+     * Reads fields of a document file.
+     * @param file The file.
+     * @return Fields or empty map if file doesn't exist.
+     * @throws IOException When file can't be read or is damaged.
+     */
+
+    @NonNull
+    static Map<String, Object> read(@NonNull File file) throws IOException {
+        if(!file.exists())
+            return new HashMap<>();
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+        try {
+            if(in.readInt() != MAGIC || in.readByte() != FORMAT_VERSION)
+                throw new IOException("Not an EssData document: " + file);
+
+            int count = in.readInt();
+            Map<String, Object> res = new HashMap<>(Math.max(16, count * 4 / 3 + 1));
+            for(int i = 0; i < count; i++){
+                String field = readString(in);
+                res.put(field, readValue(in));
+            }
+            return res;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes fields to a temporary file and renames it to the target file.
+     * @param file Target file.
+     * @param fields Fields to write.
+     * @throws IOException When file can't be written.
+     */
+
+    static void write(@NonNull File file, @NonNull Map<String, ?> fields) throws IOException {
+        File dir = file.getParentFile();
+        if(dir != null && !dir.exists() && !dir.mkdirs() && !dir.exists())
+            throw new IOException("Can't create directory: " + dir);
+
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 64 * 1024));
+            out.writeInt(MAGIC);
+            out.writeByte(FORMAT_VERSION);
+            out.writeInt(fields.size());
+            for(Map.Entry<String, ?> entry: fields.entrySet()){
+                writeString(out, entry.getKey());
+                writeValue(out, entry.getValue());
+            }
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+
+        if(!tmp.renameTo(file)){
+            //Some file systems don't replace existing files.
+            if(!file.delete() || !tmp.renameTo(file))
+                throw new IOException("Can't replace: " + file);
+        }
+    }
+
+    static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if(value instanceof String){
+            out.writeByte(TYPE_STRING);
+            writeString(out, (String) value);
+        } else if(value instanceof Integer){
+            out.writeByte(TYPE_INT);
+            out.writeInt((Integer) value);
+        } else if(value instanceof Long){
+            out.writeByte(TYPE_LONG);
+            out.writeLong((Long) value);
+        } else if(value instanceof Float){
+            out.writeByte(TYPE_FLOAT);
+            out.writeFloat((Float) value);
+        } else if(value instanceof Boolean){
+            out.writeByte(TYPE_BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if(value instanceof Set){
+            Set<?> set = (Set<?>) value;
+            out.writeByte(TYPE_STRING_SET);
+            out.writeInt(set.size());
+            for(Object item: set)
+                writeString(out, (String) item);
+        } else {
+            throw new IOException("Unsupported value: " + value);
+        }
+    }
+
+    static Object readValue(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        switch (type){
+            case TYPE_STRING: return readString(in);
+            case TYPE_INT: return in.readInt();
+            case TYPE_LONG: return in.readLong();
+            case TYPE_FLOAT: return in.readFloat();
+            case TYPE_BOOLEAN: return in.readBoolean();
+            case TYPE_STRING_SET:
+                int size = in.readInt();
+                Set<String> set = new HashSet<>(Math.max(4, size * 4 / 3 + 1));
+                for(int i = 0; i < size; i++)
+                    set.add(readString(in));
+                return set;
+            default:
+                throw new IOException("Unknown value type: " + type);
+        }
+    }
+
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if(length < 0)
+            throw new IOException("Negative length: " + length);
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * Document kept in memory and saved to one file.
+     */
+
+    static class FileDocument extends BaseDocument {
+
+        private final File file;
+        private final Object writeLock = new Object();
+
+        private Map<String, Object> map;
+        private long memoryVersion;
+        private long diskVersion;
+        //Set when a damaged file couldn't be moved aside, it's never overwritten.
+        private boolean damaged;
+
+        FileDocument(@NonNull String name, @NonNull DirectoryBackend backend, @NonNull File file){
+            super(name, backend);
+            this.file = file;
+        }
+
+        /**
+         * Loads the document if it isn't loaded yet.
+         * Must be called while holding the lock of this document.
+         */
+
+        void load(){
+            if(map != null)
+                return;
+            long start = System.nanoTime();
+            try {
+                map = read(file);
+            } catch (IOException e){
+                //Damaged file, kept aside and started with an empty document.
+                map = new HashMap<>();
+                damaged = !moveAside(file);
+            }
+            onLoaded(map.size(), System.nanoTime() - start);
+        }
+
+        @Nullable
+        @Override
+        synchronized Boolean isEmptyIfLoaded(){
+            return map == null ? null : map.isEmpty();
+        }
+
+        @Override
+        synchronized boolean unload(){
+            if(map == null || memoryVersion != diskVersion)
+                return false;
+            map = null;
+            return true;
+        }
+
+        @Nullable
+        @Override
+        synchronized Object getValue(@NonNull String key) {
+            load();
+            return map.get(key);
+        }
+
+        @Override
+        public synchronized Map<String, ?> getAll() {
+            load();
+            return new HashMap<>(map);
+        }
+
+        @Override
+        public synchronized boolean contains(String key) {
+            load();
+            return map.containsKey(key);
+        }
+
+        @Nullable
+        @Override
+        synchronized List<String> commitToMemory(boolean clear, @NonNull Map<String, Object> modified){
+            load();
+            List<String> res = new ArrayList<>(modified.size());
+            boolean changed = false;
+
+            if(clear && !map.isEmpty()){
+                map.clear();
+                changed = true;
+            }
+
+            for(Map.Entry<String, Object> entry: modified.entrySet()){
+                String key = entry.getKey();
+                Object value = entry.getValue();
+                if(value == REMOVED){
+                    if(map.remove(key) == null)
+                        continue;
+                } else {
+                    Object prev = map.put(key, value);
+                    if(value.equals(prev))
+                        continue;
+                }
+                changed = true;
+                res.add(key);
+            }
+
+            if(!changed)
+                return null;
+            memoryVersion++;
+            return res;
+        }
+
+        @Override
+        boolean writeToDisk(){
+            synchronized (writeLock){
+                Map<String, Object> snapshot;
+                long version;
+                synchronized (this){
+                    if(memoryVersion == diskVersion)
+                        return true;
+                    if(damaged)
+                        return false;
+                    snapshot = new LinkedHashMap<>(map);
+                    version = memoryVersion;
+                }
+
+                try {
+                    if(snapshot.isEmpty()){
+                        if(file.exists() && !file.delete())
+                            return false;
+                    } else {
+                        write(file, snapshot);
+                    }
+                } catch (IOException e){
+                    return false;
+                }
+
+                synchronized (this){
+                    diskVersion = version;
+                }
+                return true;
+            }
+        }
+
+    }
+
+}
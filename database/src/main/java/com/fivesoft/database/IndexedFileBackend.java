@@ -0,0 +1,416 @@
+package com.fivesoft.database;
+
+import android.content.SharedPreferences;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Backend keeping every document in a binary file with a key index
+ * at the beginning.
+ * <br><br>
+ * Opening a document reads only the index (field names, offsets and lengths),
+ * a field's value is read and decoded the first time it's used. Reading one
+ * field from a document with thousands of fields doesn't touch the others.
+ * Modifications are kept in memory and the file is rewritten on the write thread,
+ * values which weren't read are copied without decoding.
+ * Index entries pointing past the end of the file are dropped on open
+ * and the file is rewritten with a rebuilt index.
+ * <br><br>
+ * Use {@link #setOnDocumentLoadedListener(OnDocumentLoadedListener)} to see
+ * how long opening each document takes.
+ */
+
+public class IndexedFileBackend extends DirectoryBackend {
+
+    static final String EXTENSION = ".idx";
+
+    private static final int MAGIC = 0x45535349;
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * Creates new backend.
+     * @param directory Directory where documents are saved. Created when needed.
+     */
+
+    public IndexedFileBackend(@NonNull File directory){
+        super(directory, EXTENSION);
+    }
+
+    @NonNull
+    @Override
+    BaseDocument createDocument(@NonNull String document, @NonNull File file) {
+        return new IndexedDocument(document, this, file);
+    }
+
+    /**
+     * Document with lazily read values.
+     * <br><br>
+     * File layout: {@code MAGIC, VERSION, count, dataStart}, then {@code count}
+     * index entries {@code field, offset, length} and the values.
+     * Offsets are relative to {@code dataStart}.
+     */
+
+    static class IndexedDocument extends BaseDocument {
+
+        private final File file;
+        private final Object writeLock = new Object();
+
+        private Map<String, Entry> index;
+        private RandomAccessFile raf;
+        private long dataStart;
+        private long memoryVersion;
+        private long diskVersion;
+        //Set when a damaged file couldn't be moved aside, it's never overwritten.
+        private boolean damaged;
+
+        IndexedDocument(@NonNull String name, @NonNull DirectoryBackend backend, @NonNull File file){
+            super(name, backend);
+            this.file = file;
+        }
+
+        /**
+         * Reads the index if it isn't read yet.
+         * Must be called while holding the lock of this document.
+         */
+
+        private void load(){
+            if(index != null)
+                return;
+
+            long start = System.nanoTime();
+            try {
+                index = readIndex();
+            } catch (IOException e){
+                //Damaged file, kept aside and started with an empty document.
+                closeFile();
+                index = new HashMap<>();
+                damaged = !moveAside(file);
+            }
+            onLoaded(index.size(), System.nanoTime() - start);
+        }
+
+        private Map<String, Entry> readIndex() throws IOException {
+            if(!file.exists())
+                return new HashMap<>();
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 16 * 1024));
+            try {
+                if(in.readInt() != MAGIC || in.readByte() != FORMAT_VERSION)
+                    throw new IOException("Not an EssData document: " + file);
+
+                int count = in.readInt();
+                dataStart = in.readLong();
+                long dataLength = file.length() - dataStart;
+                if(count < 0 || dataLength < 0)
+                    throw new IOException("Bad header: " + file);
+
+                Map<String, Entry> res = new HashMap<>(Math.max(16, count * 4 / 3 + 1));
+                boolean stale = false;
+                for(int i = 0; i < count; i++){
+                    String field = FileBackend.readString(in);
+                    long offset = in.readLong();
+                    int length = in.readInt();
+                    //Values the index points past, e.g. after the file was cut, are dropped.
+                    if(offset < 0 || length < 0 || offset + length > dataLength)
+                        stale = true;
+                    else
+                        res.put(field, new Entry(offset, length, null));
+                }
+                if(stale){
+                    //The file is rewritten with a rebuilt index.
+                    memoryVersion++;
+                    scheduleWrite();
+                }
+                return res;
+            } finally {
+                in.close();
+            }
+        }
+
+        @Nullable
+        @Override
+        synchronized Boolean isEmptyIfLoaded(){
+            return index == null ? null : index.isEmpty();
+        }
+
+        @Override
+        synchronized boolean unload(){
+            if(index == null || memoryVersion != diskVersion)
+                return false;
+            closeFile();
+            index = null;
+            return true;
+        }
+
+        @Nullable
+        @Override
+        synchronized Object getValue(@NonNull String key) {
+            load();
+            Entry entry = index.get(key);
+            if(entry == null)
+                return null;
+            try {
+                return value(entry);
+            } catch (IOException e){
+                drop(Collections.singletonList(key));
+                return null;
+            }
+        }
+
+        /**
+         * Returns value of an entry, reading it from the file on first use.
+         * @throws IOException When the value can't be read.
+         */
+
+        @NonNull
+        private Object value(Entry entry) throws IOException {
+            if(entry.value == null)
+                entry.value = FileBackend.readValue(new DataInputStream(
+                        new ByteArrayInputStream(readBytes(entry))));
+            return entry.value;
+        }
+
+        /**
+         * Removes fields which values can't be read, so {@link #contains(String)}
+         * agrees with reads. Like stale index entries, they are left out
+         * when the file is rewritten.
+         */
+
+        private void drop(List<String> keys){
+            for(String key: keys)
+                index.remove(key);
+            memoryVersion++;
+            scheduleWrite();
+        }
+
+        private boolean holds(Entry entry, Object value){
+            try {
+                return value.equals(value(entry));
+            } catch (IOException e){
+                //Replaced, so the unreadable value is gone anyway.
+                return false;
+            }
+        }
+
+        private byte[] readBytes(Entry entry) throws IOException {
+            if(raf == null)
+                raf = new RandomAccessFile(file, "r");
+            byte[] res = new byte[entry.length];
+            raf.seek(dataStart + entry.offset);
+            raf.readFully(res);
+            return res;
+        }
+
+        @Override
+        public synchronized Map<String, ?> getAll() {
+            load();
+            Map<String, Object> res = new HashMap<>(Math.max(16, index.size() * 4 / 3 + 1));
+            List<String> unreadable = null;
+            for(Map.Entry<String, Entry> entry: index.entrySet()){
+                try {
+                    res.put(entry.getKey(), value(entry.getValue()));
+                } catch (IOException e){
+                    if(unreadable == null)
+                        unreadable = new ArrayList<>();
+                    unreadable.add(entry.getKey());
+                }
+            }
+            if(unreadable != null)
+                drop(unreadable);
+            return res;
+        }
+
+        @Override
+        public synchronized boolean contains(String key) {
+            load();
+            return index.containsKey(key);
+        }
+
+        @Nullable
+        @Override
+        synchronized List<String> commitToMemory(boolean clear, @NonNull Map<String, Object> modified) {
+            load();
+            List<String> res = new ArrayList<>(modified.size());
+            boolean changed = false;
+
+            if(clear && !index.isEmpty()){
+                index.clear();
+                changed = true;
+            }
+
+            for(Map.Entry<String, Object> entry: modified.entrySet()){
+                String key = entry.getKey();
+                Object value = entry.getValue();
+                if(value == REMOVED){
+                    if(index.remove(key) == null)
+                        continue;
+                } else {
+                    Entry prev = index.get(key);
+                    if(prev != null && holds(prev, value))
+                        continue;
+                    index.put(key, new Entry(-1, 0, value));
+                }
+                changed = true;
+                res.add(key);
+            }
+
+            if(!changed)
+                return null;
+            memoryVersion++;
+            return res;
+        }
+
+        @Override
+        boolean writeToDisk() {
+            synchronized (writeLock){
+                Map<String, Entry> snapshot;
+                long version;
+                synchronized (this){
+                    if(memoryVersion == diskVersion)
+                        return true;
+                    if(damaged)
+                        return false;
+                    snapshot = new LinkedHashMap<>(index);
+                    version = memoryVersion;
+                }
+
+                File tmp = new File(file.getPath() + ".tmp");
+                Map<String, Entry> written = new HashMap<>(Math.max(16, snapshot.size() * 4 / 3 + 1));
+                long start = 0;
+                try {
+                    if(!snapshot.isEmpty())
+                        start = write(tmp, snapshot, written);
+                } catch (IOException e){
+                    return false;
+                }
+
+                synchronized (this){
+                    closeFile();
+                    if(snapshot.isEmpty()){
+                        if(file.exists() && !file.delete())
+                            return false;
+                    } else {
+                        if(!tmp.renameTo(file) && (!file.delete() || !tmp.renameTo(file)))
+                            return false;
+                        dataStart = start;
+                        //Point entries which didn't change in the meantime to the new file,
+                        //the others are kept in memory until the next write.
+                        for(Map.Entry<String, Entry> entry: index.entrySet()){
+                            Entry current = entry.getValue();
+                            if(current == snapshot.get(entry.getKey()))
+                                entry.setValue(written.get(entry.getKey()));
+                        }
+                    }
+                    diskVersion = version;
+                }
+                return true;
+            }
+        }
+
+        /**
+         * Writes snapshot to a temporary file.
+         * @param written Receives entries located in the new file.
+         * @return Data start of the new file.
+         */
+
+        private long write(File tmp, Map<String, Entry> snapshot, Map<String, Entry> written) throws IOException {
+            //Encode values first, offsets are needed for the index.
+            List<byte[]> values = new ArrayList<>(snapshot.size());
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            DataOutputStream encoder = new DataOutputStream(bytes);
+            ByteArrayOutputStream header = new ByteArrayOutputStream(snapshot.size() * 32 + 32);
+            DataOutputStream indexOut = new DataOutputStream(header);
+
+            long offset = 0;
+            for(Map.Entry<String, Entry> entry: snapshot.entrySet()){
+                byte[] value;
+                Entry current = entry.getValue();
+                if(current.offset >= 0){
+                    synchronized (this){
+                        value = readBytes(current);
+                    }
+                } else {
+                    bytes.reset();
+                    FileBackend.writeValue(encoder, current.value);
+                    encoder.flush();
+                    value = bytes.toByteArray();
+                }
+                values.add(value);
+                FileBackend.writeString(indexOut, entry.getKey());
+                indexOut.writeLong(offset);
+                indexOut.writeInt(value.length);
+                written.put(entry.getKey(), new Entry(offset, value.length, current.value));
+                offset += value.length;
+            }
+            indexOut.flush();
+
+            File dir = file.getParentFile();
+            if(dir != null && !dir.exists() && !dir.mkdirs() && !dir.exists())
+                throw new IOException("Can't create directory: " + dir);
+
+            FileOutputStream fos = new FileOutputStream(tmp);
+            long start = 4 + 1 + 4 + 8 + header.size();
+            try {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 64 * 1024));
+                out.writeInt(MAGIC);
+                out.writeByte(FORMAT_VERSION);
+                out.writeInt(snapshot.size());
+                out.writeLong(start);
+                header.writeTo(out);
+                for(byte[] value: values)
+                    out.write(value);
+                out.flush();
+                fos.getFD().sync();
+            } finally {
+                fos.close();
+            }
+
+            return start;
+        }
+
+        private void closeFile(){
+            if(raf != null){
+                try {
+                    raf.close();
+                } catch (IOException ignored){}
+                raf = null;
+            }
+        }
+
+        private static final class Entry {
+
+            //Offset of value relative to data start, -1 if value is only in memory.
+            private final long offset;
+            private final int length;
+            private Object value;
+
+            Entry(long offset, int length, Object value){
+                this.offset = offset;
+                this.length = length;
+                this.value = value;
+            }
+
+        }
+
+    }
+
+}
@@ -0,0 +1,192 @@
+package com.fivesoft.database;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Background threads used by EssData for disk work.
+ */
+
+final class IoExecutor {
+
+    //Upper limit of threads reading documents in parallel.
+    static final int MAX_IO_THREADS = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    private static volatile ExecutorService writes;
+    private static volatile ExecutorService io;
+    private static volatile Executor mainThread;
+    private static volatile ScheduledExecutorService scheduler;
+
+    private IoExecutor(){}
+
+    /**
+     * Returns single thread executor for writes, so writes
+     * scheduled one after another reach the disk in the same order.
+     * The thread stops when idle.
+     * @return Write executor.
+     */
+
+    @NonNull
+    static Executor writes(){
+        ExecutorService res = writes;
+        if(res == null){
+            synchronized (IoExecutor.class){
+                res = writes;
+                if(res == null){
+                    ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1,
+                            10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                            new NamedThreadFactory("EssData-write"));
+                    executor.allowCoreThreadTimeOut(true);
+                    writes = res = executor;
+                }
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Returns bounded pool used by {@link AsyncEssData} by default.
+     * Threads stop when idle.
+     * @return IO executor.
+     */
+
+    @NonNull
+    static Executor io(){
+        ExecutorService res = io;
+        if(res == null){
+            synchronized (IoExecutor.class){
+                res = io;
+                if(res == null){
+                    ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_IO_THREADS, MAX_IO_THREADS,
+                            10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                            new NamedThreadFactory("EssData-io"));
+                    executor.allowCoreThreadTimeOut(true);
+                    io = res = executor;
+                }
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Returns single thread executor running delayed tasks,
+     * e.g. write-behind flushes. The thread stops when idle.
+     * @return Scheduled executor.
+     */
+
+    @NonNull
+    static ScheduledExecutorService scheduler(){
+        ScheduledExecutorService res = scheduler;
+        if(res == null){
+            synchronized (IoExecutor.class){
+                res = scheduler;
+                if(res == null){
+                    ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1,
+                            new NamedThreadFactory("EssData-flush"));
+                    executor.setKeepAliveTime(10, TimeUnit.SECONDS);
+                    executor.allowCoreThreadTimeOut(true);
+                    scheduler = res = executor;
+                }
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Returns executor posting tasks to the main thread.
+     * @return Main thread executor.
+     */
+
+    @NonNull
+    static Executor mainThread(){
+        Executor res = mainThread;
+        if(res == null){
+            final Handler handler = new Handler(Looper.getMainLooper());
+            mainThread = res = new Executor() {
+                @Override
+                public void execute(@NonNull Runnable command) {
+                    handler.post(command);
+                }
+            };
+        }
+        return res;
+    }
+
+    /**
+     * Runs tasks one after another on another executor,
+     * in the order they were submitted.
+     */
+
+    static final class SerialExecutor implements Executor {
+
+        private final Executor executor;
+        private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+        private Runnable active;
+
+        SerialExecutor(@NonNull Executor executor){
+            this.executor = executor;
+        }
+
+        @Override
+        public synchronized void execute(@NonNull final Runnable command) {
+            tasks.add(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        command.run();
+                    } finally {
+                        scheduleNext();
+                    }
+                }
+            });
+            if(active == null)
+                scheduleNext();
+        }
+
+        /**
+         * @return True if no task is waiting or running.
+         */
+
+        synchronized boolean isIdle(){
+            return active == null;
+        }
+
+        private synchronized void scheduleNext(){
+            if((active = tasks.poll()) != null)
+                executor.execute(active);
+        }
+
+    }
+
+    static final class NamedThreadFactory implements ThreadFactory {
+
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger();
+
+        NamedThreadFactory(String name){
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(@NonNull Runnable runnable) {
+            Thread res = new Thread(runnable, name + "-" + count.incrementAndGet());
+            res.setDaemon(true);
+            return res;
+        }
+
+    }
+
+}
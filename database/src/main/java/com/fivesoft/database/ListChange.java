@@ -0,0 +1,73 @@
+package com.fivesoft.database;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Single structural change of a list field, made by
+ * {@code addToList}, {@code setInList} or {@code removeFromList}.
+ *
+ * @see EssData#observe(String, String, EssData.OnChangeListener)
+ */
+
+public class ListChange {
+
+    /**
+     * Kind of change.
+     */
+
+    public enum Type {
+
+        /**
+         * Element was inserted at the position.
+         */
+
+        INSERTED,
+
+        /**
+         * Element at the position was removed.
+         */
+
+        REMOVED,
+
+        /**
+         * Element at the position was replaced.
+         */
+
+        CHANGED
+
+    }
+
+    private final Type type;
+    private final int position;
+
+    ListChange(@NonNull Type type, int position){
+        this.type = type;
+        this.position = position;
+    }
+
+    /**
+     * @return Kind of change.
+     */
+
+    @NonNull
+    public Type getType(){
+        return type;
+    }
+
+    /**
+     * Returns position of the element, valid after all
+     * previous changes of the same notification are applied.
+     * @return Position in the list.
+     */
+
+    public int getPosition(){
+        return position;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return type + "@" + position;
+    }
+
+}
@@ -0,0 +1,409 @@
+package com.fivesoft.database;
+
+import android.content.SharedPreferences;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Indexes over a property of list elements, created with
+ * {@link EssData#createIndex(String, String, String)}.
+ * <br><br>
+ * An index keeps the property value of every element in list order,
+ * read from json without decoding the elements. List mutators update
+ * it in place, the sorted view used by queries is rebuilt on the next
+ * query after a change. Like {@link ChangeDispatcher}, every index
+ * remembers the raw value of the field it describes and is rebuilt
+ * when the field was changed in another way.
+ * <br><br>
+ * Indexes are kept in memory, declare them once per process.
+ * Queries hold the lock of the field from {@link FieldLocks},
+ * so the index and the elements they decode come from the same list.
+ */
+
+final class ListIndexes {
+
+    /**
+     * Order of keys: booleans, numbers, strings.
+     */
+
+    static final Comparator<Object> KEY_ORDER = new Comparator<Object>() {
+        @Override
+        public int compare(Object a, Object b) {
+            int rank = Integer.compare(rank(a), rank(b));
+            if(rank != 0)
+                return rank;
+            if(a instanceof Boolean)
+                return ((Boolean) a).compareTo((Boolean) b);
+            if(a instanceof Long && b instanceof Long)
+                return ((Long) a).compareTo((Long) b);
+            if(a instanceof Number)
+                return Double.compare(((Number) a).doubleValue(), ((Number) b).doubleValue());
+            return ((String) a).compareTo((String) b);
+        }
+    };
+
+    private static volatile ListIndexes defaultIndexes;
+
+    private final Map<SharedPreferences, Map<String, Map<String, Index>>> documents = new IdentityHashMap<>();
+
+    /**
+     * Returns indexes shared by every EssData instance.
+     * @return Shared indexes.
+     */
+
+    @NonNull
+    static ListIndexes getDefault(){
+        ListIndexes res = defaultIndexes;
+        if(res == null){
+            synchronized (ListIndexes.class){
+                res = defaultIndexes;
+                if(res == null)
+                    defaultIndexes = res = new ListIndexes();
+            }
+        }
+        return res;
+    }
+
+    synchronized void create(@NonNull SharedPreferences data, @NonNull String field, @NonNull String property){
+        Map<String, Map<String, Index>> fields = documents.get(data);
+        if(fields == null){
+            fields = new HashMap<>();
+            documents.put(data, fields);
+        }
+        Map<String, Index> properties = fields.get(field);
+        if(properties == null){
+            properties = new HashMap<>(2);
+            fields.put(field, properties);
+        }
+        if(!properties.containsKey(property))
+            properties.put(property, new Index(property));
+    }
+
+    synchronized void drop(@NonNull SharedPreferences data, @NonNull String field, @NonNull String property){
+        Map<String, Map<String, Index>> fields = documents.get(data);
+        Map<String, Index> properties = fields == null ? null : fields.get(field);
+        if(properties == null)
+            return;
+
+        properties.remove(property);
+        if(properties.isEmpty())
+            fields.remove(field);
+        if(fields.isEmpty())
+            documents.remove(data);
+    }
+
+    /**
+     * Returns declared index.
+     * @return The index or null if it wasn't created.
+     */
+
+    @Nullable
+    synchronized Index get(@NonNull SharedPreferences data, @NonNull String field, @NonNull String property){
+        Map<String, Map<String, Index>> fields = documents.get(data);
+        Map<String, Index> properties = fields == null ? null : fields.get(field);
+        return properties == null ? null : properties.get(property);
+    }
+
+    /**
+     * Checks if any index is declared on given field. Cheap, call it
+     * before reading the value needed by {@link #onListChange}.
+     */
+
+    synchronized boolean isIndexed(@NonNull SharedPreferences data, @NonNull String field){
+        Map<String, Map<String, Index>> fields = documents.get(data);
+        return fields != null && fields.containsKey(field);
+    }
+
+    /**
+     * Applies list change which was just made to indexes of the field.
+     * @param data The document.
+     * @param field The name of field.
+     * @param before Raw value of the field before the change.
+     * @param change The change.
+     * @param element New element for inserts and replacements.
+     */
+
+    void onListChange(@NonNull SharedPreferences data, @NonNull String field, @Nullable String before,
+                      @NonNull ListChange change, @Nullable JsonElement element){
+        List<Index> indexes;
+        synchronized (this){
+            Map<String, Map<String, Index>> fields = documents.get(data);
+            Map<String, Index> properties = fields == null ? null : fields.get(field);
+            if(properties == null)
+                return;
+            indexes = new ArrayList<>(properties.values());
+        }
+
+        String after = ChangeDispatcher.raw(data, field);
+        for(Index index: indexes)
+            index.apply(before, after, change, element);
+    }
+
+    /**
+     * Drops contents of indexes of a field replaced in another way than
+     * by a list mutator. Needed because a new chunked list can have the
+     * same header as the previous one.
+     */
+
+    void invalidate(@NonNull SharedPreferences data, @NonNull String field){
+        List<Index> indexes;
+        synchronized (this){
+            Map<String, Map<String, Index>> fields = documents.get(data);
+            Map<String, Index> properties = fields == null ? null : fields.get(field);
+            if(properties == null)
+                return;
+            indexes = new ArrayList<>(properties.values());
+        }
+        for(Index index: indexes)
+            index.clear();
+    }
+
+    /**
+     * Drops contents of all indexes in a document.
+     */
+
+    void invalidate(@NonNull SharedPreferences data){
+        List<Index> indexes = new ArrayList<>();
+        synchronized (this){
+            Map<String, Map<String, Index>> fields = documents.get(data);
+            if(fields == null)
+                return;
+            for(Map<String, Index> properties: fields.values())
+                indexes.addAll(properties.values());
+        }
+        for(Index index: indexes)
+            index.clear();
+    }
+
+    /**
+     * Converts value to comparable key.
+     * @param value String, number, boolean or character.
+     * @return The key or null if value can't be indexed.
+     */
+
+    @Nullable
+    static Object key(@Nullable Object value){
+        if(value instanceof String || value instanceof Boolean)
+            return value;
+        if(value instanceof Character)
+            return value.toString();
+        if(value instanceof Integer || value instanceof Long
+                || value instanceof Short || value instanceof Byte)
+            return ((Number) value).longValue();
+        if(value instanceof Double || value instanceof Float)
+            return number(((Number) value).doubleValue());
+        if(value instanceof BigInteger || value instanceof BigDecimal)
+            return number(value.toString());
+        if(value instanceof JsonPrimitive)
+            return key((JsonPrimitive) value);
+        return null;
+    }
+
+    /**
+     * Returns key of a property of json object.
+     * @param element List element.
+     * @param property The name of property.
+     * @return The key or null if element doesn't have such property.
+     */
+
+    @Nullable
+    static Object key(@Nullable JsonElement element, @NonNull String property){
+        if(element == null || !element.isJsonObject())
+            return null;
+        JsonElement value = ((JsonObject) element).get(property);
+        return value != null && value.isJsonPrimitive() ? key(value.getAsJsonPrimitive()) : null;
+    }
+
+    /**
+     * Parses json number. Integral numbers become longs, so equal
+     * numbers always have equal keys.
+     * @param text Number as written in json.
+     * @return Long or Double.
+     */
+
+    @NonNull
+    static Object number(@NonNull String text){
+        try {
+            return Long.parseLong(text);
+        } catch (NumberFormatException e){
+            return number(Double.parseDouble(text));
+        }
+    }
+
+    private static Object number(double value){
+        long integral = (long) value;
+        return integral == value && integral != Long.MAX_VALUE && integral != Long.MIN_VALUE
+                ? (Object) integral : (Object) value;
+    }
+
+    private static Object key(JsonPrimitive value){
+        if(value.isBoolean())
+            return value.getAsBoolean();
+        if(value.isNumber())
+            return number(value.getAsString());
+        return value.getAsString();
+    }
+
+    private static int rank(Object key){
+        return key instanceof Boolean ? 0 : key instanceof Number ? 1 : 2;
+    }
+
+    /**
+     * Index of one property.
+     */
+
+    static final class Index {
+
+        private final String property;
+        //Raw value of the field keys describe.
+        private String raw;
+        private ArrayList<Object> keys;
+        //Positions of elements with a key, sorted by key and position.
+        private int[] sorted;
+
+        Index(@NonNull String property){
+            this.property = property;
+        }
+
+        @NonNull
+        String getProperty(){
+            return property;
+        }
+
+        /**
+         * Makes sure keys describe current value of the field.
+         * @param raw Current raw value.
+         * @param arrays Json arrays of the list, read only when index must be rebuilt.
+         */
+
+        synchronized void validate(@Nullable String raw, @NonNull Source arrays) throws IOException {
+            if(keys != null && (this.raw == null ? raw == null : this.raw.equals(raw)))
+                return;
+
+            ArrayList<Object> res = new ArrayList<>();
+            Codec.extract(arrays.get(), property, res);
+            keys = res;
+            sorted = null;
+            this.raw = raw;
+        }
+
+        /**
+         * Returns positions of elements with a key from given range,
+         * ordered by key and position.
+         * @param from The lowest key, inclusive, or null.
+         * @param to The highest key, or null.
+         * @param toInclusive Whether elements with key {@code to} are included.
+         */
+
+        @NonNull
+        synchronized int[] find(@Nullable Object from, @Nullable Object to, boolean toInclusive){
+            int[] sorted = sorted();
+            int start = from == null ? 0 : bound(sorted, from, false);
+            int end = to == null ? sorted.length : bound(sorted, to, toInclusive);
+            return start < end ? Arrays.copyOfRange(sorted, start, end) : new int[0];
+        }
+
+        synchronized void clear(){
+            keys = null;
+            sorted = null;
+            raw = null;
+        }
+
+        synchronized void apply(@Nullable String before, @Nullable String after,
+                                @NonNull ListChange change, @Nullable JsonElement element){
+            if(keys == null)
+                return;
+            if(raw == null ? before != null : !raw.equals(before)){
+                clear();
+                return;
+            }
+
+            int position = change.getPosition();
+            switch (change.getType()){
+                case INSERTED:
+                    keys.add(position, key(element, property));
+                    break;
+                case REMOVED:
+                    keys.remove(position);
+                    break;
+                case CHANGED:
+                    keys.set(position, key(element, property));
+                    break;
+            }
+            sorted = null;
+            raw = after;
+        }
+
+        private int[] sorted(){
+            if(sorted != null)
+                return sorted;
+
+            List<Integer> positions = new ArrayList<>(keys.size());
+            for(int i = 0; i < keys.size(); i++)
+                if(keys.get(i) != null)
+                    positions.add(i);
+            //Stable, equal keys stay in list order.
+            Collections.sort(positions, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return KEY_ORDER.compare(keys.get(a), keys.get(b));
+                }
+            });
+
+            int[] res = new int[positions.size()];
+            for(int i = 0; i < res.length; i++)
+                res[i] = positions.get(i);
+            return sorted = res;
+        }
+
+        /**
+         * @param after Whether to return the first position after elements equal to key.
+         * @return The first position in sorted which key isn't lower than
+         *         (or isn't lower or equal to) given key.
+         */
+
+        private int bound(int[] sorted, Object key, boolean after){
+            int low = 0;
+            int high = sorted.length;
+            while(low < high){
+                int mid = (low + high) >>> 1;
+                int cmp = KEY_ORDER.compare(keys.get(sorted[mid]), key);
+                if(cmp < 0 || (after && cmp == 0))
+                    low = mid + 1;
+                else
+                    high = mid;
+            }
+            return low;
+        }
+
+    }
+
+    /**
+     * Supplies json arrays of a list when an index is rebuilt.
+     */
+
+    interface Source {
+
+        @NonNull
+        List<String> get();
+
+    }
+
+}
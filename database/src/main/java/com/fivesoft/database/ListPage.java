@@ -0,0 +1,84 @@
+package com.fivesoft.database;
+
+import androidx.annotation.NonNull;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Slice of a list returned by {@link EssData#getListPage(String, String, int, int)}.
+ * <br><br>
+ * Recently read pages of json values are cached,
+ * every returned page has its own copy of elements.
+ * @param <T> The type of elements.
+ */
+
+public class ListPage<T> {
+
+    private final List<T> items;
+    private final int offset;
+    private final int total;
+
+    ListPage(@NonNull List<T> items, int offset, int total){
+        this.items = Collections.unmodifiableList(items);
+        this.offset = offset;
+        this.total = total;
+    }
+
+    /**
+     * Returns elements of this page.
+     * @return Unmodifiable list of elements.
+     */
+
+    @NonNull
+    public List<T> getItems(){
+        return items;
+    }
+
+    /**
+     * Returns position of the first element of this page in the whole list.
+     * @return The offset.
+     */
+
+    public int getOffset(){
+        return offset;
+    }
+
+    /**
+     * Returns the number of elements in the whole list.
+     * @return List size.
+     */
+
+    public int getTotal(){
+        return total;
+    }
+
+    /**
+     * Returns the number of elements in this page.
+     * @return Page size.
+     */
+
+    public int size(){
+        return items.size();
+    }
+
+    /**
+     * Returns element at given position of the whole list.
+     * @param position Position in the whole list.
+     * @return The element.
+     * @throws IndexOutOfBoundsException When this page doesn't contain the position.
+     */
+
+    public T get(int position){
+        return items.get(position - offset);
+    }
+
+    /**
+     * @return True if there are elements after this page.
+     */
+
+    public boolean hasNext(){
+        return offset + items.size() < total;
+    }
+
+}
@@ -0,0 +1,25 @@
+package com.fivesoft.database;
+
+/**
+ * Defines how {@link EssData} stores lists modified with
+ * {@code addToList}, {@code setInList} and {@code removeFromList}.
+ */
+
+public enum ListStorage {
+
+    /**
+     * Whole list is saved as one json array.
+     * Every change rewrites the whole list.
+     */
+
+    JSON,
+
+    /**
+     * List is saved in chunks of {@value ChunkedList#CHUNK_SIZE} elements.
+     * Single element changes rewrite only one chunk.
+     * Lists saved as json are migrated on first modification.
+     */
+
+    CHUNKED
+
+}
@@ -0,0 +1,637 @@
+package com.fivesoft.database;
+
+import android.content.SharedPreferences;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Backend appending every modification to a memory-mapped log file.
+ * <br><br>
+ * Each {@link SharedPreferences.Editor#commit()} or {@link SharedPreferences.Editor#apply()}
+ * appends one checksummed record with all modified fields, so saving
+ * a field costs as much as the field itself, no matter how big the
+ * document is. Fields are found through an in-memory index of
+ * offsets and decoded from the mapped file on first read.
+ * <br><br>
+ * When more than half of the log holds overridden values the log is
+ * compacted on the write thread. Records damaged by a crash in the
+ * middle of a write fail the checksum and are dropped on open.
+ * <br><br>
+ * Like {@link FileBackend} it works in plain JVM tests.
+ */
+
+public class MappedLogBackend extends DirectoryBackend {
+
+    static final String EXTENSION = ".log";
+
+    /**
+     * Creates new backend.
+     * @param directory Directory where documents are saved. Created when needed.
+     */
+
+    public MappedLogBackend(@NonNull File directory){
+        super(directory, EXTENSION);
+    }
+
+    @NonNull
+    @Override
+    BaseDocument createDocument(@NonNull String document, @NonNull File file) {
+        return new LogDocument(document, this, file);
+    }
+
+    @Override
+    public void clear(@NonNull String document) {
+        ((LogDocument) open(document)).delete();
+    }
+
+    /**
+     * Document saved as a log of modifications.
+     * <br><br>
+     * File layout: {@code MAGIC, VERSION} followed by records
+     * {@code length, crc32, payload}. Payload is {@code count} operations,
+     * each {@code op, field[, value]}. Zero length ends the log.
+     */
+
+    static class LogDocument extends BaseDocument {
+
+        private static final int MAGIC = 0x45534c47;
+        private static final int FORMAT_VERSION = 1;
+        private static final int HEADER_SIZE = 8;
+        private static final int RECORD_HEADER_SIZE = 8;
+        private static final int INITIAL_CAPACITY = 64 * 1024;
+        private static final int MIN_COMPACTION_SIZE = 256 * 1024;
+        private static final int COMPACTION_RECORD_SIZE = 64 * 1024;
+
+        private static final byte OP_PUT = 1;
+        private static final byte OP_REMOVE = 2;
+        private static final byte OP_CLEAR = 3;
+
+        private final File file;
+        private final Object compactLock = new Object();
+
+        private RandomAccessFile raf;
+        private MappedByteBuffer buffer;
+        private Map<String, Entry> index;
+        private int position;
+        private long liveBytes;
+        //Changed when offsets of records change, i.e. by compaction and delete.
+        private long generation;
+        private boolean dirty;
+        private boolean compactionScheduled;
+        //Set when a damaged file couldn't be moved aside, it's never overwritten.
+        private boolean damaged;
+
+        LogDocument(@NonNull String name, @NonNull DirectoryBackend backend, @NonNull File file){
+            super(name, backend);
+            this.file = file;
+        }
+
+        /**
+         * Loads index if it isn't loaded yet.
+         * Must be called while holding the lock of this document.
+         */
+
+        private void load(){
+            if(index != null)
+                return;
+
+            index = new HashMap<>();
+            liveBytes = 0;
+            position = HEADER_SIZE;
+            //Empty file is left by a crash before the header was written.
+            if(!file.exists() || file.length() == 0)
+                return;
+
+            long start = System.nanoTime();
+            try {
+                if(!hasHeader())
+                    throw new IOException("Not an EssData log: " + file);
+                map(Math.max(INITIAL_CAPACITY, (int) file.length()));
+                scan();
+            } catch (IOException e){
+                //Not our file or damaged header, kept aside and started over.
+                close();
+                damaged = !moveAside(file);
+            }
+            onLoaded(index.size(), System.nanoTime() - start);
+        }
+
+        /**
+         * Checks the header before the file is mapped,
+         * mapping would extend a damaged file.
+         */
+
+        private boolean hasHeader() throws IOException {
+            if(file.length() < HEADER_SIZE)
+                return false;
+            raf = new RandomAccessFile(file, "rw");
+            return raf.readInt() == MAGIC && raf.readInt() == FORMAT_VERSION;
+        }
+
+        private void scan(){
+            CRC32 crc = new CRC32();
+            int capacity = buffer.capacity();
+            int pos = HEADER_SIZE;
+
+            while(pos + RECORD_HEADER_SIZE <= capacity){
+                int length = buffer.getInt(pos);
+                if(length <= 0 || length > capacity - pos - RECORD_HEADER_SIZE)
+                    break;
+
+                byte[] payload = new byte[length];
+                ByteBuffer in = buffer.duplicate();
+                in.position(pos + RECORD_HEADER_SIZE);
+                in.get(payload);
+                crc.reset();
+                crc.update(payload, 0, length);
+                if((int) crc.getValue() != buffer.getInt(pos + 4))
+                    break;
+
+                try {
+                    replay(ByteBuffer.wrap(payload), pos + RECORD_HEADER_SIZE);
+                } catch (RuntimeException e){
+                    break;
+                }
+                pos += RECORD_HEADER_SIZE + length;
+            }
+            position = pos;
+        }
+
+        private void replay(ByteBuffer payload, int base){
+            int count = payload.getInt();
+            for(int i = 0; i < count; i++){
+                int start = payload.position();
+                byte op = payload.get();
+                if(op == OP_CLEAR){
+                    index.clear();
+                    liveBytes = 0;
+                    continue;
+                }
+
+                String field = readString(payload);
+                if(op == OP_PUT){
+                    int offset = base + payload.position();
+                    skipValue(payload);
+                    put(field, new Entry(offset, payload.position() - start, null));
+                } else {
+                    remove(field);
+                }
+            }
+        }
+
+        private void put(String field, Entry entry){
+            Entry prev = index.put(field, entry);
+            if(prev != null)
+                liveBytes -= prev.size;
+            liveBytes += entry.size;
+        }
+
+        private void remove(String field){
+            Entry prev = index.remove(field);
+            if(prev != null)
+                liveBytes -= prev.size;
+        }
+
+        @Nullable
+        @Override
+        synchronized Boolean isEmptyIfLoaded(){
+            return index == null ? null : index.isEmpty();
+        }
+
+        @Nullable
+        @Override
+        synchronized Object getValue(@NonNull String key) {
+            load();
+            Entry entry = index.get(key);
+            return entry == null ? null : value(entry);
+        }
+
+        private Object value(Entry entry){
+            if(entry.value == null){
+                ByteBuffer in = buffer.duplicate();
+                in.position(entry.offset);
+                entry.value = readValue(in);
+            }
+            return entry.value;
+        }
+
+        @Override
+        public synchronized Map<String, ?> getAll() {
+            load();
+            Map<String, Object> res = new HashMap<>(Math.max(16, index.size() * 4 / 3 + 1));
+            for(Map.Entry<String, Entry> entry: index.entrySet())
+                res.put(entry.getKey(), value(entry.getValue()));
+            return res;
+        }
+
+        @Override
+        public synchronized boolean contains(String key) {
+            load();
+            return index.containsKey(key);
+        }
+
+        /**
+         * Returns the number of bytes used by records, live or overridden.
+         */
+
+        synchronized int getLogSize(){
+            load();
+            return position - HEADER_SIZE;
+        }
+
+        @Nullable
+        @Override
+        synchronized List<String> commitToMemory(boolean clear, @NonNull Map<String, Object> modified) {
+            load();
+
+            List<String> res = new ArrayList<>(modified.size());
+            boolean cleared = clear && !index.isEmpty();
+            for(Map.Entry<String, Object> entry: modified.entrySet()){
+                Entry prev = cleared ? null : index.get(entry.getKey());
+                Object value = entry.getValue();
+                if(value == REMOVED ? prev != null : prev == null || !value.equals(value(prev)))
+                    res.add(entry.getKey());
+            }
+            if(!cleared && res.isEmpty())
+                return null;
+
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + res.size() * 32);
+                DataOutputStream out = new DataOutputStream(bytes);
+                Map<String, Entry> added = new LinkedHashMap<>();
+
+                out.writeInt(res.size() + (cleared ? 1 : 0));
+                if(cleared)
+                    out.writeByte(OP_CLEAR);
+                for(String field: res){
+                    Object value = modified.get(field);
+                    int start = out.size();
+                    out.writeByte(value == REMOVED ? OP_REMOVE : OP_PUT);
+                    FileBackend.writeString(out, field);
+                    if(value != REMOVED){
+                        int offset = out.size();
+                        FileBackend.writeValue(out, value);
+                        added.put(field, new Entry(offset, out.size() - start, value));
+                    } else {
+                        added.put(field, null);
+                    }
+                }
+                out.flush();
+
+                int base = append(bytes.toByteArray());
+                if(cleared){
+                    index.clear();
+                    liveBytes = 0;
+                }
+                for(Map.Entry<String, Entry> entry: added.entrySet()){
+                    Entry value = entry.getValue();
+                    if(value == null){
+                        remove(entry.getKey());
+                    } else {
+                        value.offset += base;
+                        put(entry.getKey(), value);
+                    }
+                }
+            } catch (IOException e){
+                //Nothing was applied, the caller's commit fails.
+                return FAILED;
+            }
+
+            dirty = true;
+            maybeCompact();
+            return res;
+        }
+
+        /**
+         * Appends record to the log.
+         * @return File offset of the payload.
+         */
+
+        private int append(byte[] payload) throws IOException {
+            if(damaged)
+                throw new IOException("Damaged log wasn't moved aside: " + file);
+            int needed = position + RECORD_HEADER_SIZE + payload.length + 4;
+            if(buffer == null){
+                map(Math.max(INITIAL_CAPACITY, needed));
+                writeHeader();
+            } else if(needed > buffer.capacity()){
+                map((int) Math.min(Integer.MAX_VALUE, Math.max((long) buffer.capacity() * 2, needed)));
+            }
+
+            CRC32 crc = new CRC32();
+            crc.update(payload, 0, payload.length);
+
+            ByteBuffer out = buffer.duplicate();
+            out.position(position + RECORD_HEADER_SIZE);
+            out.put(payload);
+            //Terminates the log, so leftovers of dropped records are never replayed.
+            out.putInt(0);
+            buffer.putInt(position + 4, (int) crc.getValue());
+            //Length goes last, record is valid only when it's complete.
+            buffer.putInt(position, payload.length);
+
+            int res = position + RECORD_HEADER_SIZE;
+            position += RECORD_HEADER_SIZE + payload.length;
+            return res;
+        }
+
+        private void map(int capacity) throws IOException {
+            File dir = file.getParentFile();
+            if(dir != null && !dir.exists() && !dir.mkdirs() && !dir.exists())
+                throw new IOException("Can't create directory: " + dir);
+            if(raf == null)
+                raf = new RandomAccessFile(file, "rw");
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        }
+
+        private void writeHeader(){
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, FORMAT_VERSION);
+            buffer.putInt(HEADER_SIZE, 0);
+            position = HEADER_SIZE;
+            index.clear();
+            liveBytes = 0;
+        }
+
+        private void close(){
+            buffer = null;
+            if(raf != null){
+                try {
+                    raf.close();
+                } catch (IOException ignored){}
+                raf = null;
+            }
+        }
+
+        @Override
+        boolean writeToDisk() {
+            MappedByteBuffer res;
+            synchronized (this){
+                if(!dirty || buffer == null)
+                    return true;
+                dirty = false;
+                res = buffer;
+            }
+            res.force();
+            return true;
+        }
+
+        /**
+         * Removes the log file and all fields.
+         */
+
+        void delete(){
+            boolean cleared;
+            synchronized (this){
+                load();
+                cleared = !index.isEmpty();
+                close();
+                if(file.exists())
+                    //noinspection ResultOfMethodCallIgnored
+                    file.delete();
+                index.clear();
+                liveBytes = 0;
+                position = HEADER_SIZE;
+                dirty = false;
+                damaged = false;
+                generation++;
+            }
+            if(cleared)
+                notifyListeners(true, new ArrayList<String>());
+        }
+
+        private void maybeCompact(){
+            int used = position - HEADER_SIZE;
+            if(compactionScheduled || used < MIN_COMPACTION_SIZE || liveBytes * 2 > used)
+                return;
+
+            compactionScheduled = true;
+            IoExecutor.writes().execute(new Runnable() {
+                @Override
+                public void run() {
+                    compact();
+                }
+            });
+        }
+
+        /**
+         * Rewrites the log with live fields only. Values are written
+         * to a temporary file without holding the lock, records appended
+         * in the meantime are then copied after them as they are and
+         * the file replaces the log.
+         */
+
+        void compact(){
+            //Compactions share the temporary file.
+            synchronized (compactLock){
+                compactLocked();
+            }
+        }
+
+        private void compactLocked(){
+            Map<String, Object> snapshot;
+            long startGeneration;
+            int startPosition;
+            synchronized (this){
+                compactionScheduled = false;
+                if(buffer == null)
+                    return;
+                snapshot = new LinkedHashMap<>(getAll());
+                startGeneration = generation;
+                startPosition = position;
+            }
+
+            File tmp = new File(file.getPath() + ".tmp");
+            try {
+                writeCompacted(tmp, snapshot);
+            } catch (IOException e){
+                //noinspection ResultOfMethodCallIgnored
+                tmp.delete();
+                return;
+            }
+
+            synchronized (this){
+                if(generation != startGeneration || buffer == null){
+                    //noinspection ResultOfMethodCallIgnored
+                    tmp.delete();
+                    return;
+                }
+                try {
+                    appendTail(tmp, startPosition);
+                } catch (IOException e){
+                    //noinspection ResultOfMethodCallIgnored
+                    tmp.delete();
+                    return;
+                }
+                close();
+                if(!tmp.renameTo(file)){
+                    //noinspection ResultOfMethodCallIgnored
+                    tmp.delete();
+                }
+                generation++;
+                index = null;
+                load();
+            }
+        }
+
+        /**
+         * Copies records appended since given position to the end of
+         * compacted log and terminates it. Called while holding the lock.
+         */
+
+        private void appendTail(File tmp, int from) throws IOException {
+            byte[] tail = new byte[position - from + 4];
+            ByteBuffer in = buffer.duplicate();
+            in.position(from);
+            //Last 4 bytes stay zero and end the log.
+            in.get(tail, 0, position - from);
+
+            FileOutputStream fos = new FileOutputStream(tmp, true);
+            try {
+                fos.write(tail);
+                fos.getFD().sync();
+            } finally {
+                fos.close();
+            }
+        }
+
+        /**
+         * Writes live fields as records, the log is terminated by {@link #appendTail}.
+         */
+
+        private static void writeCompacted(File tmp, Map<String, Object> fields) throws IOException {
+            FileOutputStream fos = new FileOutputStream(tmp);
+            try {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 64 * 1024));
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+
+                CRC32 crc = new CRC32();
+                ByteArrayOutputStream record = new ByteArrayOutputStream(COMPACTION_RECORD_SIZE + 1024);
+                DataOutputStream ops = new DataOutputStream(record);
+                int count = 0;
+
+                for(Map.Entry<String, Object> entry: fields.entrySet()){
+                    ops.writeByte(OP_PUT);
+                    FileBackend.writeString(ops, entry.getKey());
+                    FileBackend.writeValue(ops, entry.getValue());
+                    count++;
+                    if(record.size() >= COMPACTION_RECORD_SIZE){
+                        writeRecord(out, crc, count, record);
+                        count = 0;
+                    }
+                }
+                if(count > 0)
+                    writeRecord(out, crc, count, record);
+
+                out.flush();
+                fos.getFD().sync();
+            } finally {
+                fos.close();
+            }
+        }
+
+        private static void writeRecord(DataOutputStream out, CRC32 crc, int count,
+                                         ByteArrayOutputStream ops) throws IOException {
+            byte[] body = ops.toByteArray();
+            ops.reset();
+
+            ByteBuffer payload = ByteBuffer.allocate(4 + body.length);
+            payload.putInt(count).put(body);
+            crc.reset();
+            crc.update(payload.array(), 0, payload.capacity());
+
+            out.writeInt(payload.capacity());
+            out.writeInt((int) crc.getValue());
+            out.write(payload.array());
+        }
+
+        private static String readString(ByteBuffer in){
+            int length = in.getInt();
+            if(length < 0 || length > in.remaining())
+                throw new IllegalStateException("Bad string length: " + length);
+            byte[] bytes = new byte[length];
+            in.get(bytes);
+            return new String(bytes, FileBackend.UTF_8);
+        }
+
+        private static Object readValue(ByteBuffer in){
+            byte type = in.get();
+            switch (type){
+                case FileBackend.TYPE_STRING: return readString(in);
+                case FileBackend.TYPE_INT: return in.getInt();
+                case FileBackend.TYPE_LONG: return in.getLong();
+                case FileBackend.TYPE_FLOAT: return in.getFloat();
+                case FileBackend.TYPE_BOOLEAN: return in.get() != 0;
+                case FileBackend.TYPE_STRING_SET:
+                    int size = in.getInt();
+                    Set<String> set = new HashSet<>(Math.max(4, size * 4 / 3 + 1));
+                    for(int i = 0; i < size; i++)
+                        set.add(readString(in));
+                    return set;
+                default:
+                    throw new IllegalStateException("Unknown value type: " + type);
+            }
+        }
+
+        private static void skipValue(ByteBuffer in){
+            byte type = in.get();
+            switch (type){
+                case FileBackend.TYPE_STRING: skip(in, in.getInt()); break;
+                case FileBackend.TYPE_INT: skip(in, 4); break;
+                case FileBackend.TYPE_LONG: skip(in, 8); break;
+                case FileBackend.TYPE_FLOAT: skip(in, 4); break;
+                case FileBackend.TYPE_BOOLEAN: skip(in, 1); break;
+                case FileBackend.TYPE_STRING_SET:
+                    int size = in.getInt();
+                    for(int i = 0; i < size; i++)
+                        skip(in, in.getInt());
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown value type: " + type);
+            }
+        }
+
+        private static void skip(ByteBuffer in, int length){
+            if(length < 0 || length > in.remaining())
+                throw new IllegalStateException("Bad length: " + length);
+            in.position(in.position() + length);
+        }
+
+        private static final class Entry {
+
+            private int offset;
+            private final int size;
+            private Object value;
+
+            Entry(int offset, int size, Object value){
+                this.offset = offset;
+                this.size = size;
+                this.value = value;
+            }
+
+        }
+
+    }
+
+}
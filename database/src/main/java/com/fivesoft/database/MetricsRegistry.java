@@ -0,0 +1,254 @@
+package com.fivesoft.database;
+
+import androidx.annotation.NonNull;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Counts operations, their latencies and encoded sizes per document.
+ * <br><br>
+ * Pass it to {@link EssData.Builder#setMetrics(MetricsRegistry)}, one registry
+ * can be shared by many instances. Instances without a registry only check
+ * a null field, nothing is measured. Time spent in gson is recorded
+ * separately as {@link Operation#ENCODE} and {@link Operation#DECODE},
+ * set the registry as {@link DirectoryBackend#setOnDocumentLoadedListener(StorageBackend.OnDocumentLoadedListener)}
+ * to record loading documents from disk as {@link Operation#LOAD}.
+ * <br><br>
+ * Recording is lock free, read the numbers with {@link #snapshot()}.
+ */
+
+public final class MetricsRegistry implements StorageBackend.OnDocumentLoadedListener {
+
+    /**
+     * Type of recorded operation.
+     */
+
+    public enum Operation {
+
+        /**
+         * Reading a field with {@code get} methods.
+         */
+        READ,
+
+        /**
+         * Saving a field with {@code set} methods.
+         */
+        WRITE,
+
+        /**
+         * Removing a field.
+         */
+        REMOVE,
+
+        /**
+         * Reading a whole list or a page of it.
+         */
+        LIST_READ,
+
+        /**
+         * Adding, setting or removing a list element.
+         */
+        LIST_WRITE,
+
+        /**
+         * Decoding a bitmap.
+         */
+        BITMAP_READ,
+
+        /**
+         * Compressing and saving a bitmap.
+         */
+        BITMAP_WRITE,
+
+        /**
+         * Converting a value to json, part of other operations.
+         */
+        ENCODE,
+
+        /**
+         * Converting json to a value on a cache miss, part of other operations.
+         */
+        DECODE,
+
+        /**
+         * Loading a document from disk.
+         */
+        LOAD
+
+    }
+
+    private static final Operation[] OPERATIONS = Operation.values();
+
+    private final ConcurrentHashMap<String, DocumentStats> documents = new ConcurrentHashMap<>();
+
+    /**
+     * Returns current numbers. Recording continues, numbers of operations
+     * running while the snapshot is taken may be partially included.
+     * @return New snapshot.
+     */
+
+    @NonNull
+    public MetricsSnapshot snapshot(){
+        Map<String, MetricsSnapshot.DocumentMetrics> res = new LinkedHashMap<>();
+        for(Map.Entry<String, DocumentStats> entry: documents.entrySet())
+            res.put(entry.getKey(), entry.getValue().snapshot());
+        return new MetricsSnapshot(res);
+    }
+
+    /**
+     * Drops all recorded numbers.
+     */
+
+    public void reset(){
+        documents.clear();
+    }
+
+    @Override
+    public void onDocumentLoaded(@NonNull String document, int fields, long nanos) {
+        stats(document).operation(Operation.LOAD).add(nanos, 0);
+    }
+
+    /**
+     * Records an operation started at {@code start} and finished now.
+     * @param start Value of {@link System#nanoTime()} when the operation started.
+     * @param size Encoded size in characters or bytes, 0 if unknown.
+     */
+
+    void record(String document, Operation operation, long start, long size){
+        if(document != null)
+            stats(document).operation(operation).add(System.nanoTime() - start, size);
+    }
+
+    void onCacheHit(String document){
+        if(document != null)
+            stats(document).hits.incrementAndGet();
+    }
+
+    void onCacheMiss(String document){
+        if(document != null)
+            stats(document).misses.incrementAndGet();
+    }
+
+    private DocumentStats stats(String document){
+        DocumentStats res = documents.get(document);
+        if(res == null){
+            DocumentStats created = new DocumentStats();
+            res = documents.putIfAbsent(document, created);
+            if(res == null)
+                res = created;
+        }
+        return res;
+    }
+
+    private static final class DocumentStats {
+
+        final AtomicLong hits = new AtomicLong();
+        final AtomicLong misses = new AtomicLong();
+        //Created on first use, most documents see only a few operation types.
+        final AtomicReferenceArray<OperationStats> operations = new AtomicReferenceArray<>(OPERATIONS.length);
+
+        OperationStats operation(Operation operation){
+            OperationStats res = operations.get(operation.ordinal());
+            if(res == null){
+                operations.compareAndSet(operation.ordinal(), null, new OperationStats());
+                res = operations.get(operation.ordinal());
+            }
+            return res;
+        }
+
+        MetricsSnapshot.DocumentMetrics snapshot(){
+            Map<Operation, MetricsSnapshot.OperationMetrics> res = new LinkedHashMap<>();
+            for(Operation operation: OPERATIONS){
+                OperationStats stats = operations.get(operation.ordinal());
+                if(stats != null)
+                    res.put(operation, stats.snapshot());
+            }
+            return new MetricsSnapshot.DocumentMetrics(res, hits.get(), misses.get());
+        }
+
+    }
+
+    private static final class OperationStats {
+
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong nanos = new AtomicLong();
+        final AtomicLong size = new AtomicLong();
+        final AtomicLong max = new AtomicLong();
+        final Histogram histogram = new Histogram();
+
+        void add(long nanos, long size){
+            nanos = Math.max(0, nanos);
+            count.incrementAndGet();
+            this.nanos.addAndGet(nanos);
+            if(size > 0)
+                this.size.addAndGet(size);
+            long current = max.get();
+            while(nanos > current && !max.compareAndSet(current, nanos))
+                current = max.get();
+            histogram.add(nanos);
+        }
+
+        MetricsSnapshot.OperationMetrics snapshot(){
+            return new MetricsSnapshot.OperationMetrics(count.get(), nanos.get(), max.get(),
+                    size.get(), histogram.counts());
+        }
+
+    }
+
+    /**
+     * Latency histogram with logarithmic buckets, every power of two
+     * is split into {@link #SUB_BUCKETS} linear buckets, so recorded
+     * values are within 12.5% of the real ones. Covers 0 to about 2^40 ns
+     * (18 minutes) in 312 counters.
+     */
+
+    static final class Histogram {
+
+        static final int SUB_BITS = 3;
+        static final int SUB_BUCKETS = 1 << SUB_BITS;
+        static final int MAX_EXPONENT = 40;
+        static final int BUCKETS = 2 * SUB_BUCKETS + (MAX_EXPONENT - SUB_BITS) * SUB_BUCKETS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+        void add(long value){
+            counts.incrementAndGet(bucket(value));
+        }
+
+        long[] counts(){
+            long[] res = new long[BUCKETS];
+            for(int i = 0; i < BUCKETS; i++)
+                res[i] = counts.get(i);
+            return res;
+        }
+
+        static int bucket(long value){
+            if(value < 2 * SUB_BUCKETS)
+                return (int) Math.max(0, value);
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            if(exponent > MAX_EXPONENT)
+                return BUCKETS - 1;
+            int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+            return 2 * SUB_BUCKETS + (exponent - SUB_BITS - 1) * SUB_BUCKETS + sub;
+        }
+
+        /**
+         * @return The highest value counted in given bucket.
+         */
+
+        static long upperBound(int bucket){
+            if(bucket < 2 * SUB_BUCKETS)
+                return bucket;
+            int exponent = (bucket - 2 * SUB_BUCKETS) / SUB_BUCKETS + SUB_BITS + 1;
+            long sub = (bucket - 2 * SUB_BUCKETS) % SUB_BUCKETS;
+            return ((SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS)) - 1;
+        }
+
+    }
+
+}
@@ -0,0 +1,226 @@
+package com.fivesoft.database;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Numbers recorded by {@link MetricsRegistry} at one moment.
+ * Doesn't change when new operations are recorded.
+ * {@link #toString()} returns a readable table, e.g. to log or attach to bug reports.
+ */
+
+public final class MetricsSnapshot {
+
+    private final Map<String, DocumentMetrics> documents;
+
+    MetricsSnapshot(@NonNull Map<String, DocumentMetrics> documents){
+        this.documents = Collections.unmodifiableMap(documents);
+    }
+
+    /**
+     * @return Names of documents with recorded operations.
+     */
+
+    @NonNull
+    public Set<String> getDocuments(){
+        return documents.keySet();
+    }
+
+    /**
+     * @param document The name of document.
+     * @return Numbers of given document or null if nothing was recorded.
+     */
+
+    @Nullable
+    public DocumentMetrics get(@NonNull String document){
+        return documents.get(document);
+    }
+
+    /**
+     * @param document The name of document.
+     * @param operation The type of operation.
+     * @return Numbers of given operation or null if nothing was recorded.
+     */
+
+    @Nullable
+    public OperationMetrics get(@NonNull String document, @NonNull MetricsRegistry.Operation operation){
+        DocumentMetrics res = documents.get(document);
+        return res == null ? null : res.get(operation);
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        StringBuilder res = new StringBuilder();
+        for(Map.Entry<String, DocumentMetrics> document: documents.entrySet()){
+            DocumentMetrics metrics = document.getValue();
+            res.append(document.getKey()).append(String.format(Locale.US, "  cache %d hits, %d misses\n",
+                    metrics.getCacheHits(), metrics.getCacheMisses()));
+            for(Map.Entry<MetricsRegistry.Operation, OperationMetrics> operation: metrics.getOperations().entrySet())
+                res.append(String.format(Locale.US, "  %-12s %s\n", operation.getKey(), operation.getValue()));
+        }
+        return res.toString();
+    }
+
+    /**
+     * Numbers of one document.
+     */
+
+    public static final class DocumentMetrics {
+
+        private final Map<MetricsRegistry.Operation, OperationMetrics> operations;
+        private final long cacheHits;
+        private final long cacheMisses;
+
+        DocumentMetrics(Map<MetricsRegistry.Operation, OperationMetrics> operations, long cacheHits, long cacheMisses){
+            this.operations = Collections.unmodifiableMap(operations);
+            this.cacheHits = cacheHits;
+            this.cacheMisses = cacheMisses;
+        }
+
+        /**
+         * @return Numbers of recorded operation types.
+         */
+
+        @NonNull
+        public Map<MetricsRegistry.Operation, OperationMetrics> getOperations(){
+            return operations;
+        }
+
+        /**
+         * @param operation The type of operation.
+         * @return Numbers of given operation or null if nothing was recorded.
+         */
+
+        @Nullable
+        public OperationMetrics get(@NonNull MetricsRegistry.Operation operation){
+            return operations.get(operation);
+        }
+
+        /**
+         * @return The number of reads served by the decode cache.
+         */
+
+        public long getCacheHits(){
+            return cacheHits;
+        }
+
+        /**
+         * @return The number of reads which had to decode json.
+         */
+
+        public long getCacheMisses(){
+            return cacheMisses;
+        }
+
+        /**
+         * @return Part of reads served by the decode cache, 0-1, or 0 when nothing was read.
+         */
+
+        public double getCacheHitRate(){
+            long total = cacheHits + cacheMisses;
+            return total == 0 ? 0 : (double) cacheHits / total;
+        }
+
+    }
+
+    /**
+     * Numbers of one operation type in one document.
+     */
+
+    public static final class OperationMetrics {
+
+        private final long count;
+        private final long totalNanos;
+        private final long maxNanos;
+        private final long size;
+        private final long[] histogram;
+
+        OperationMetrics(long count, long totalNanos, long maxNanos, long size, long[] histogram){
+            this.count = count;
+            this.totalNanos = totalNanos;
+            this.maxNanos = maxNanos;
+            this.size = size;
+            this.histogram = histogram;
+        }
+
+        /**
+         * @return The number of operations.
+         */
+
+        public long getCount(){
+            return count;
+        }
+
+        /**
+         * @return Total time of all operations in nanoseconds.
+         */
+
+        public long getTotalNanos(){
+            return totalNanos;
+        }
+
+        /**
+         * @return Mean time of an operation in nanoseconds.
+         */
+
+        public long getMeanNanos(){
+            return count == 0 ? 0 : totalNanos / count;
+        }
+
+        /**
+         * @return The longest operation in nanoseconds.
+         */
+
+        public long getMaxNanos(){
+            return maxNanos;
+        }
+
+        /**
+         * Returns total encoded size. Json values are counted in characters,
+         * which for ascii json equals bytes written, bitmaps in bytes.
+         * @return Total size or 0 when operation doesn't write.
+         */
+
+        public long getSize(){
+            return size;
+        }
+
+        /**
+         * Returns time under which given part of operations finished,
+         * accurate to 12.5%.
+         * @param percentile Percentile, 0-100, e.g. 99.
+         * @return Time in nanoseconds.
+         */
+
+        public long getPercentileNanos(double percentile){
+            if(count == 0)
+                return 0;
+            long total = 0;
+            for(long value: histogram)
+                total += value;
+            long target = Math.max(1, (long) Math.ceil(total * Math.max(0, Math.min(100, percentile)) / 100));
+            long seen = 0;
+            for(int i = 0; i < histogram.length; i++){
+                seen += histogram[i];
+                if(seen >= target)
+                    return Math.min(maxNanos, MetricsRegistry.Histogram.upperBound(i));
+            }
+            return maxNanos;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%8d ops  mean %9d ns  p50 %9d ns  p99 %9d ns  max %9d ns  %10d size",
+                    count, getMeanNanos(), getPercentileNanos(50), getPercentileNanos(99), maxNanos, size);
+        }
+
+    }
+
+}
@@ -0,0 +1,101 @@
+package com.fivesoft.database;
+
+import androidx.annotation.NonNull;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handle of documents loaded in background by {@link EssData#prefetch(String...)}.
+ * <br><br>
+ * Documents are loaded in parallel and their values are decoded
+ * into the cache, so later reads don't touch the disk.
+ */
+
+public class Prefetch {
+
+    private final String[] documents;
+    private final Map<String, Long> durations = new LinkedHashMap<>();
+    private final CountDownLatch latch;
+
+    Prefetch(@NonNull String[] documents){
+        this.documents = documents;
+        this.latch = new CountDownLatch(documents.length);
+    }
+
+    /**
+     * Blocks until all documents are loaded.
+     * Don't call it on the main thread.
+     * @throws InterruptedException When current thread is interrupted.
+     */
+
+    public void await() throws InterruptedException {
+        latch.await();
+    }
+
+    /**
+     * Blocks until all documents are loaded or the timeout elapses.
+     * @param timeout Maximum time to wait.
+     * @param unit Unit of timeout.
+     * @return True if all documents are loaded.
+     * @throws InterruptedException When current thread is interrupted.
+     */
+
+    public boolean await(long timeout, @NonNull TimeUnit unit) throws InterruptedException {
+        return latch.await(timeout, unit);
+    }
+
+    /**
+     * @return True if all documents are loaded.
+     */
+
+    public boolean isDone(){
+        return latch.getCount() == 0;
+    }
+
+    /**
+     * Returns names of prefetched documents.
+     * @return Documents names.
+     */
+
+    @NonNull
+    public String[] getDocuments(){
+        return documents.clone();
+    }
+
+    /**
+     * Returns time spent loading and decoding each document which is already loaded.
+     * @return Durations in nanoseconds, by document name.
+     */
+
+    @NonNull
+    public Map<String, Long> getDurations(){
+        synchronized (durations){
+            return Collections.unmodifiableMap(new LinkedHashMap<>(durations));
+        }
+    }
+
+    /**
+     * Returns time spent loading and decoding given document.
+     * @param document The name of document.
+     * @return Duration in nanoseconds or -1 if the document isn't loaded yet.
+     */
+
+    public long getDuration(@NonNull String document){
+        synchronized (durations){
+            Long res = durations.get(document);
+            return res == null ? -1 : res;
+        }
+    }
+
+    void onLoaded(String document, long nanos){
+        synchronized (durations){
+            durations.put(document, nanos);
+        }
+        latch.countDown();
+    }
+
+}
@@ -0,0 +1,171 @@
+package com.fivesoft.database;
+
+import android.content.SharedPreferences;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Stores Integer, Long, Float and Boolean values as native
+ * {@link SharedPreferences} values instead of json strings.
+ * <br><br>
+ * Values saved as json by older versions are converted to native
+ * values the first time they are read with a typed getter
+ * like {@link EssData#getInt(String, String)}.
+ */
+
+final class Primitives {
+
+    private Primitives(){}
+
+    /**
+     * Checks if value is saved natively.
+     * @param value The value.
+     * @return True for Integer, Long, Float and Boolean.
+     */
+
+    static boolean isNative(@Nullable Object value){
+        return value instanceof Integer || value instanceof Long
+                || value instanceof Float || value instanceof Boolean;
+    }
+
+    /**
+     * Puts native value to the editor.
+     * @param editor The editor.
+     * @param field The name of field.
+     * @param value The value.
+     * @return False if value isn't saved natively and must be encoded.
+     */
+
+    static boolean put(@NonNull SharedPreferences.Editor editor, @NonNull String field, @Nullable Object value){
+        if(value instanceof Integer)
+            editor.putInt(field, (Integer) value);
+        else if(value instanceof Long)
+            editor.putLong(field, (Long) value);
+        else if(value instanceof Float)
+            editor.putFloat(field, (Float) value);
+        else if(value instanceof Boolean)
+            editor.putBoolean(field, (Boolean) value);
+        else
+            return false;
+        return true;
+    }
+
+    /**
+     * Returns value of a field which isn't a string.
+     * @param data The document.
+     * @param field The name of field.
+     * @return Native value or null if field doesn't exist.
+     */
+
+    @Nullable
+    static Object get(@NonNull SharedPreferences data, @NonNull String field){
+        if(data instanceof BaseDocument)
+            return ((BaseDocument) data).getValue(field);
+
+        //SharedPreferences can't tell the type of a value,
+        //try types one by one. Field is known to exist here.
+        try {
+            return data.getInt(field, 0);
+        } catch (ClassCastException ignored){}
+        try {
+            return data.getLong(field, 0);
+        } catch (ClassCastException ignored){}
+        try {
+            return data.getFloat(field, 0);
+        } catch (ClassCastException ignored){}
+        try {
+            return data.getBoolean(field, false);
+        } catch (ClassCastException ignored){}
+        try {
+            return data.getStringSet(field, null);
+        } catch (ClassCastException ignored){}
+        return null;
+    }
+
+    /**
+     * Reads value of a field which isn't saved as the requested native type.
+     * Json numbers and booleans saved by older versions are decoded
+     * and saved back natively as {@code type}, except for floats, as the json
+     * number may be a double. Native values of other types are converted but never saved.
+     * @param data The document.
+     * @param field The name of field.
+     * @param type Integer, Long, Float or Boolean class.
+     * @param codec Codec used to decode json.
+     * @return The value as {@code type} or null if field can't be converted.
+     */
+
+    @Nullable
+    static Object migrate(@NonNull SharedPreferences data, @NonNull String field,
+                          @NonNull Class<?> type, @NonNull Codec codec){
+        String raw;
+        try {
+            raw = data.getString(field, null);
+        } catch (ClassCastException e){
+            //Native value of another type, e.g. long read with getInt.
+            return convert(get(data, field), type);
+        }
+
+        Object decoded;
+        try {
+            //Large longs would lose precision as doubles.
+            decoded = type == Long.class ? codec.decode(raw, Long.class) : codec.decode(raw);
+        } catch (Exception e){
+            return null;
+        }
+
+        Object res = convert(decoded, type);
+        //Json numbers may be doubles, e.g. saved by increment(double),
+        //so they are never replaced by floats.
+        if(res != null && type != Float.class)
+            save(data, field, raw, res);
+        return res;
+    }
+
+    /**
+     * Saves migrated value if field still holds the json it was read from.
+     * Holds the lock of the field, so a value set in the meantime isn't replaced.
+     */
+
+    private static void save(SharedPreferences data, String field, String raw, Object value){
+        ReentrantLock lock = FieldLocks.get(data, field);
+        lock.lock();
+        try {
+            String current;
+            try {
+                current = data.getString(field, null);
+            } catch (ClassCastException e){
+                //Already saved natively.
+                return;
+            }
+            if(!raw.equals(current))
+                return;
+            SharedPreferences.Editor editor = data.edit();
+            put(editor, field, value);
+            editor.apply();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Nullable
+    private static Object convert(@Nullable Object value, @NonNull Class<?> type){
+        if(type == Boolean.class)
+            return value instanceof Boolean ? value : null;
+        if(!(value instanceof Number))
+            return null;
+
+        Number number = (Number) value;
+        if(type == Integer.class)
+            return number.longValue() == number.doubleValue() && number.longValue() == number.intValue()
+                    ? number.intValue() : null;
+        if(type == Long.class)
+            return number.doubleValue() == number.longValue() ? number.longValue() : null;
+        if(type == Float.class)
+            return number.floatValue();
+        return null;
+    }
+
+}
@@ -0,0 +1,275 @@
+package com.fivesoft.database;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Default backend keeping every document in its own {@link SharedPreferences} file.
+ * <br><br>
+ * Names of documents are kept in a catalog, a small {@link SharedPreferences}
+ * file updated when a document gets its first field and when it's cleared,
+ * so listing documents doesn't scan the shared_prefs directory. The catalog
+ * is built from the directory once, when it doesn't exist yet.
+ * <br><br>
+ * {@link SharedPreferences} notifies listeners about writes on the main thread,
+ * so documents opened but not in the catalog yet are kept in a pending set.
+ * {@link #getDocuments()} and {@link #contains(String)} add pending documents
+ * which already have fields, so a document written on any thread is listed
+ * right after the write. The catalog state is shared by all backends
+ * using the same catalog file.
+ * <br><br>
+ * Opened handles are kept, so repeated {@link #open(String)} calls are
+ * one concurrent map lookup. Use {@link #getDefault(Context)} to share
+ * the handles between EssData instances.
+ */
+
+public class SharedPreferencesBackend implements StorageBackend {
+
+    //Awful, random prefix to avoid collisions with other shared_prefs
+    //files from other libraries or the app.
+    static final String DOC_PREFIX = "03f8eojdgf74_";
+
+    //Doesn't start with DOC_PREFIX, so it's never listed as a document.
+    static final String CATALOG = ChunkedList.INTERNAL_PREFIX + "catalog";
+
+    //Set once the catalog contains documents saved by older versions.
+    private static final String CATALOG_READY = ChunkedList.INTERNAL_PREFIX + "ready";
+
+    private static volatile SharedPreferencesBackend defaultBackend;
+
+    //Catalogs by their handle, Context returns the same handle for the same file.
+    private static final Map<SharedPreferences, Catalog> CATALOGS = new IdentityHashMap<>();
+
+    private final Context context;
+    private final ConcurrentHashMap<String, SharedPreferences> handles = new ConcurrentHashMap<>();
+    private volatile Catalog catalog;
+
+    /**
+     * Creates new backend.
+     * @param context Non null context necessary to read and edit {@link SharedPreferences}
+     */
+
+    public SharedPreferencesBackend(@NonNull Context context){
+        this.context = context;
+    }
+
+    /**
+     * Returns backend shared by the whole process, used by
+     * {@link EssData#with(Context)} and by builders without own backend.
+     * @param context Any context, application context is kept.
+     * @return Shared backend.
+     */
+
+    @NonNull
+    public static SharedPreferencesBackend getDefault(@NonNull Context context){
+        SharedPreferencesBackend res = defaultBackend;
+        if(res == null){
+            synchronized (SharedPreferencesBackend.class){
+                res = defaultBackend;
+                if(res == null){
+                    Context app = context.getApplicationContext();
+                    defaultBackend = res = new SharedPreferencesBackend(app != null ? app : context);
+                }
+            }
+        }
+        return res;
+    }
+
+    @NonNull
+    @Override
+    public SharedPreferences open(@NonNull String document) {
+        SharedPreferences res = handles.get(document);
+        if(res != null)
+            return res;
+
+        if(document.equals(EssData.DEFAULT_DOCUMENT)){
+            //Default document was always saved without prefix.
+            res = context.getSharedPreferences(document, Context.MODE_PRIVATE);
+        } else {
+            res = context.getSharedPreferences(DOC_PREFIX.concat(document), Context.MODE_PRIVATE);
+            //Watched before the handle is visible to other threads, so no write is missed.
+            Catalog catalog = catalog();
+            if(!catalog.documents.contains(document))
+                catalog.watch(document, res);
+        }
+        handles.put(document, res);
+        return res;
+    }
+
+    @NonNull
+    @Override
+    public List<String> getDocuments() {
+        Catalog catalog = catalog();
+        catalog.registerWritten();
+        return new ArrayList<>(catalog.documents);
+    }
+
+    /**
+     * Checks if a document exists without listing or loading documents.
+     * @param document The name of document.
+     * @return True if the document is in the catalog.
+     */
+
+    public boolean contains(@NonNull String document) {
+        if(document.equals(EssData.DEFAULT_DOCUMENT))
+            return !open(document).getAll().isEmpty();
+
+        Catalog catalog = catalog();
+        if(catalog.documents.contains(document))
+            return true;
+        catalog.registerWritten();
+        return catalog.documents.contains(document);
+    }
+
+    @Override
+    public void clear(@NonNull String document) {
+        clear(Collections.singletonList(document));
+    }
+
+    /**
+     * Removes given documents, the catalog is written once.
+     * Documents are cleared through {@link SharedPreferences.Editor#clear()},
+     * deleting the file would leave old values in the instance cached by
+     * {@link Context} and the next write would bring them back.
+     * Values are dropped from memory immediately, files are written in background.
+     * @param documents Names of documents.
+     */
+
+    void clear(@NonNull Collection<String> documents){
+        Catalog catalog = catalog();
+        SharedPreferences.Editor editor = catalog.data.edit();
+        for(String document: documents){
+            SharedPreferences data = open(document);
+            data.edit().clear().apply();
+            if(document.equals(EssData.DEFAULT_DOCUMENT))
+                continue;
+            catalog.documents.remove(document);
+            editor.remove(document);
+            //Handle is kept, wait for the next first write.
+            catalog.watch(document, data);
+        }
+        editor.apply();
+    }
+
+    /**
+     * Returns the catalog, loading it on first use.
+     */
+
+    private Catalog catalog(){
+        Catalog res = catalog;
+        if(res == null){
+            SharedPreferences data = context.getSharedPreferences(CATALOG, Context.MODE_PRIVATE);
+            synchronized (CATALOGS){
+                res = CATALOGS.get(data);
+                if(res == null){
+                    if(!data.getBoolean(CATALOG_READY, false))
+                        migrate(data);
+                    res = new Catalog(data);
+                    CATALOGS.put(data, res);
+                }
+            }
+            catalog = res;
+        }
+        return res;
+    }
+
+    /**
+     * Adds documents saved before the catalog existed.
+     */
+
+    @SuppressWarnings("ConstantConditions")
+    private void migrate(SharedPreferences catalog){
+        SharedPreferences.Editor editor = catalog.edit();
+        File prefsdir = new File(context.getApplicationInfo().dataDir,"shared_prefs");
+        if(prefsdir.exists() && prefsdir.isDirectory()){
+            String[] files = prefsdir.list();
+            if(files != null)
+                for(String document: files)
+                    if(document.startsWith(DOC_PREFIX) && document.endsWith(".xml")
+                            && !document.equals(DOC_PREFIX.concat(".xml")))
+                        editor.putBoolean(document.substring(DOC_PREFIX.length(), document.length() - 4), true);
+        }
+        editor.putBoolean(CATALOG_READY, true).apply();
+    }
+
+    /**
+     * Names of documents kept in one catalog file.
+     */
+
+    private static final class Catalog {
+
+        private final SharedPreferences data;
+        private final Set<String> documents = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        //Opened documents which aren't in the catalog yet, waiting for the first write.
+        private final ConcurrentHashMap<String, Watcher> watched = new ConcurrentHashMap<>();
+
+        Catalog(SharedPreferences data){
+            this.data = data;
+            for(String document: data.getAll().keySet())
+                if(!document.equals(CATALOG_READY))
+                    documents.add(document);
+        }
+
+        void register(String document){
+            if(documents.add(document))
+                data.edit().putBoolean(document, true).apply();
+            unwatch(document);
+        }
+
+        /**
+         * Adds pending documents which already have fields. Writes are visible
+         * in memory as soon as they are applied, before listeners are notified.
+         */
+
+        void registerWritten(){
+            for(Watcher watcher: watched.values())
+                if(!watcher.data.getAll().isEmpty())
+                    register(watcher.document);
+        }
+
+        void watch(String document, SharedPreferences data){
+            Watcher watcher = new Watcher(document, data);
+            if(watched.putIfAbsent(document, watcher) == null)
+                //SharedPreferences keeps listeners as weak references, watched holds them.
+                data.registerOnSharedPreferenceChangeListener(watcher);
+        }
+
+        private void unwatch(String document){
+            Watcher watcher = watched.remove(document);
+            if(watcher != null)
+                watcher.data.unregisterOnSharedPreferenceChangeListener(watcher);
+        }
+
+        private final class Watcher implements SharedPreferences.OnSharedPreferenceChangeListener {
+
+            private final String document;
+            private final SharedPreferences data;
+
+            Watcher(String document, SharedPreferences data){
+                this.document = document;
+                this.data = data;
+            }
+
+            @Override
+            public void onSharedPreferenceChanged(SharedPreferences data, String field) {
+                if(field != null && data.contains(field))
+                    register(document);
+            }
+
+        }
+
+    }
+
+}
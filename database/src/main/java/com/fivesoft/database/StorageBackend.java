@@ -0,0 +1,65 @@
+package com.fivesoft.database;
+
+import android.content.SharedPreferences;
+
+import androidx.annotation.NonNull;
+
+import java.util.List;
+
+/**
+ * Stores EssData documents.
+ * <br><br>
+ * Every document is exposed as {@link SharedPreferences}, so
+ * a backend only has to decide how the fields are kept on disk.
+ * {@link SharedPreferencesBackend} is used by default,
+ * {@link FileBackend} keeps every document in a compact binary file,
+ * {@link IndexedFileBackend} reads only the fields which are used.
+ *
+ * @see EssData.Builder#setStorageBackend(StorageBackend)
+ */
+
+public interface StorageBackend {
+
+    /**
+     * Returns handle of given document. Every call with the same name
+     * should return the same instance. Document is created on first write.
+     * @param document The name of document.
+     * @return Document handle.
+     */
+
+    @NonNull
+    SharedPreferences open(@NonNull String document);
+
+    /**
+     * Returns names of all stored documents.
+     * @return All documents names.
+     */
+
+    @NonNull
+    List<String> getDocuments();
+
+    /**
+     * Removes all fields of given document.
+     * @param document The name of document.
+     */
+
+    void clear(@NonNull String document);
+
+    /**
+     * Notified when a document is loaded from disk.
+     */
+
+    interface OnDocumentLoadedListener {
+
+        /**
+         * Called on the thread which opened the document.
+         * @param document The name of document.
+         * @param fields The number of fields in the document.
+         * @param nanos Time spent loading the document in nanoseconds.
+         */
+
+        void onDocumentLoaded(@NonNull String document, int fields, long nanos);
+
+    }
+
+}
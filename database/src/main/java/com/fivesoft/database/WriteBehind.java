@@ -0,0 +1,237 @@
+package com.fivesoft.database;
+
+import android.app.Activity;
+import android.app.Application;
+import android.content.Context;
+import android.os.Bundle;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Values set in write-behind mode which aren't saved yet.
+ * <br><br>
+ * Sets only replace the pending value of a field. A document is flushed
+ * {@code delayMillis} after its first pending set, or right away when it
+ * has {@code maxPendingFields} pending fields, so a field updated many times
+ * per second is encoded and saved once per delay. The flush itself is done by
+ * {@link Writer}, i.e. EssData.
+ * <br><br>
+ * All instances are flushed synchronously when an activity is paused,
+ * values are then applied before Android waits for pending
+ * {@link android.content.SharedPreferences} writes on pause.
+ */
+
+final class WriteBehind implements DeferredWrites {
+
+    /**
+     * Saves pending values of a document.
+     */
+
+    interface Writer {
+
+        void write(@NonNull String document);
+
+    }
+
+    private static final Set<DeferredWrites> instances = Collections.newSetFromMap(new WeakHashMap<DeferredWrites, Boolean>());
+    private static boolean registered;
+
+    private final long delayMillis;
+    private final int maxPendingFields;
+    private final Writer writer;
+    private final ConcurrentHashMap<String, Pending> documents = new ConcurrentHashMap<>();
+
+    WriteBehind(long delayMillis, int maxPendingFields, @NonNull Writer writer){
+        this.delayMillis = Math.max(0, delayMillis);
+        this.maxPendingFields = Math.max(1, maxPendingFields);
+        this.writer = writer;
+    }
+
+    /**
+     * Flushes given instance when an activity of the app is paused.
+     * Does nothing when context doesn't belong to an {@link Application}.
+     */
+
+    static void flushOnPause(@NonNull Context context, @NonNull DeferredWrites writeBehind){
+        Context app = context.getApplicationContext();
+        if(!(app instanceof Application))
+            return;
+
+        synchronized (instances){
+            instances.add(writeBehind);
+            if(registered)
+                return;
+            registered = true;
+        }
+        ((Application) app).registerActivityLifecycleCallbacks(new PauseCallbacks());
+    }
+
+    /**
+     * Flushes all instances, called on the main thread.
+     */
+
+    static void flushAllInstances(){
+        List<DeferredWrites> copy;
+        synchronized (instances){
+            copy = new ArrayList<>(instances);
+        }
+        for(DeferredWrites writeBehind: copy)
+            writeBehind.flushAll();
+    }
+
+    /**
+     * Sets pending value of a field and schedules a flush.
+     * @param value Non null value.
+     */
+
+    void put(@NonNull String document, @NonNull String field, @NonNull Object value){
+        Pending pending = pending(document);
+        pending.fields.put(field, value);
+        if(pending.fields.size() >= maxPendingFields)
+            schedule(document, pending.urgent, 0);
+        else
+            schedule(document, pending.scheduled, delayMillis);
+    }
+
+    /**
+     * @return Pending value or null if field has no pending value.
+     */
+
+    @Nullable
+    Object get(@NonNull String document, @Nullable String field){
+        Pending pending = documents.get(document);
+        return pending == null || field == null ? null : pending.fields.get(field);
+    }
+
+    /**
+     * @return Copy of pending values of a document or null if there are none.
+     */
+
+    @Nullable
+    Map<String, Object> getAll(@NonNull String document){
+        Pending pending = documents.get(document);
+        if(pending == null || pending.fields.isEmpty())
+            return null;
+        return new LinkedHashMap<>(pending.fields);
+    }
+
+    /**
+     * Drops pending value once it's saved. Value set after
+     * the flush started stays pending.
+     */
+
+    void onFlushed(@NonNull String document, @NonNull String field, @NonNull Object value){
+        Pending pending = documents.get(document);
+        if(pending != null)
+            pending.fields.remove(field, value);
+    }
+
+    /**
+     * Drops all pending values of a document, e.g. when it's cleared.
+     */
+
+    void discard(@NonNull String document){
+        Pending pending = documents.get(document);
+        if(pending != null)
+            pending.fields.clear();
+    }
+
+    /**
+     * Drops pending value of a field, e.g. when it's removed.
+     */
+
+    void discard(@NonNull String document, @NonNull String field){
+        Pending pending = documents.get(document);
+        if(pending != null)
+            pending.fields.remove(field);
+    }
+
+    void discardAll(){
+        for(Pending pending: documents.values())
+            pending.fields.clear();
+    }
+
+    /**
+     * Saves pending values of all documents on the calling thread.
+     */
+
+    @Override
+    public void flushAll(){
+        for(Map.Entry<String, Pending> entry: documents.entrySet())
+            if(!entry.getValue().fields.isEmpty())
+                writer.write(entry.getKey());
+    }
+
+    private Pending pending(String document){
+        Pending res = documents.get(document);
+        if(res == null){
+            Pending created = new Pending();
+            res = documents.putIfAbsent(document, created);
+            if(res == null)
+                res = created;
+        }
+        return res;
+    }
+
+    private void schedule(final String document, final AtomicBoolean flag, long delay){
+        if(!flag.compareAndSet(false, true))
+            return;
+        IoExecutor.scheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                flag.set(false);
+                writer.write(document);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private static final class Pending {
+
+        final ConcurrentHashMap<String, Object> fields = new ConcurrentHashMap<>();
+        //Set while a delayed flush is waiting.
+        final AtomicBoolean scheduled = new AtomicBoolean();
+        //Set while an immediate flush, after reaching the size threshold, is waiting.
+        final AtomicBoolean urgent = new AtomicBoolean();
+
+    }
+
+    private static final class PauseCallbacks implements Application.ActivityLifecycleCallbacks {
+
+        @Override
+        public void onActivityPaused(@NonNull Activity activity) {
+            flushAllInstances();
+        }
+
+        @Override
+        public void onActivityCreated(@NonNull Activity activity, @Nullable Bundle savedInstanceState) {}
+
+        @Override
+        public void onActivityStarted(@NonNull Activity activity) {}
+
+        @Override
+        public void onActivityResumed(@NonNull Activity activity) {}
+
+        @Override
+        public void onActivityStopped(@NonNull Activity activity) {}
+
+        @Override
+        public void onActivitySaveInstanceState(@NonNull Activity activity, @NonNull Bundle outState) {}
+
+        @Override
+        public void onActivityDestroyed(@NonNull Activity activity) {}
+
+    }
+
+}
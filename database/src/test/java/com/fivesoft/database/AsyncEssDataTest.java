@@ -0,0 +1,187 @@
+package com.fivesoft.database;
+
+import androidx.annotation.Nullable;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@link AsyncEssData} and {@link EssFuture} on {@link FileBackend} documents.
+ * Callbacks run on the thread which completes the future.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class AsyncEssDataTest {
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ExecutorService io;
+    private AsyncEssData async;
+
+    @Before
+    public void setUp() {
+        io = Executors.newFixedThreadPool(4);
+        async = EssData.builder(RuntimeEnvironment.getApplication())
+                .setStorageBackend(new FileBackend(folder.getRoot()))
+                .setIoExecutor(io)
+                .build()
+                .async(DIRECT);
+    }
+
+    @After
+    public void tearDown() {
+        io.shutdownNow();
+    }
+
+    @Test
+    public void keepsOrderOfWrites() throws Exception {
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            async.addToList("doc", "list", i, Integer.MAX_VALUE);
+            async.set("doc", "last", i);
+            expected.add(i);
+        }
+        async.removeFromList("doc", "list", 0);
+        expected.remove(0);
+
+        //Reads wait for pending writes.
+        assertEquals(199, (int) async.<Integer>get("doc", "last").get(5, TimeUnit.SECONDS));
+        assertEquals(expected.size(), async.getList("doc", "list").get(5, TimeUnit.SECONDS).size());
+        assertEquals(expected, async.sync().getList("doc", "list", Integer.class));
+    }
+
+    @Test
+    public void readsOwnWrites() throws Exception {
+        for (int i = 0; i < 50; i++) {
+            async.set("doc", "field", "value" + i);
+            assertEquals("value" + i, async.<String>get("doc", "field").get(5, TimeUnit.SECONDS));
+        }
+        async.remove("doc", "field");
+        assertNull(async.get("doc", "field").get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void callsCallbackAddedAfterCompletion() throws Exception {
+        EssFuture<Integer> future = async.update("doc", "count", new EssData.Updater<Integer>() {
+            @Override
+            public Integer update(@Nullable Integer current) {
+                return current == null ? 1 : current + 1;
+            }
+        });
+        assertEquals(1, (int) future.get(5, TimeUnit.SECONDS));
+        assertTrue(future.isDone());
+
+        final AtomicReference<Object> result = new AtomicReference<>();
+        final CountDownLatch called = new CountDownLatch(1);
+        future.addCallback(new EssFuture.Callback<Integer>() {
+            @Override
+            public void onComplete(@Nullable Integer value, @Nullable Throwable error) {
+                result.set(error == null ? value : error);
+                called.countDown();
+            }
+        });
+        assertTrue(called.await(5, TimeUnit.SECONDS));
+        assertEquals(1, result.get());
+    }
+
+    @Test
+    public void callsEveryCallbackOnce() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        EssFuture<String> future = new EssFuture<>(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                release.await();
+                return "done";
+            }
+        }, DIRECT);
+
+        //Callbacks are queued and run here, so each scheduled call is seen exactly once.
+        final List<Runnable> queued = new ArrayList<>();
+        final CountDownLatch scheduled = new CountDownLatch(3);
+        Executor queue = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                synchronized (queued) {
+                    queued.add(command);
+                }
+                scheduled.countDown();
+            }
+        };
+
+        final List<String> calls = new ArrayList<>();
+        EssFuture.Callback<String> callback = new EssFuture.Callback<String>() {
+            @Override
+            public void onComplete(@Nullable String value, @Nullable Throwable error) {
+                calls.add(value);
+            }
+        };
+        future.addCallback(callback, queue);
+        io.execute(future);
+        future.addCallback(callback, queue);
+        release.countDown();
+        future.get(5, TimeUnit.SECONDS);
+        future.addCallback(callback, queue);
+        assertTrue(scheduled.await(5, TimeUnit.SECONDS));
+
+        //Callbacks added before completion are scheduled from done() on the pool,
+        //once it's idle nothing can be scheduled anymore.
+        io.shutdown();
+        assertTrue(io.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(3, queued.size());
+        for (Runnable task : queued)
+            task.run();
+        assertEquals(3, calls.size());
+        for (String call : calls)
+            assertEquals("done", call);
+    }
+
+    @Test
+    public void reportsErrors() throws Exception {
+        EssFuture<Object> future = new EssFuture<>(new Callable<Object>() {
+            @Override
+            public Object call() {
+                throw new IllegalStateException("failed");
+            }
+        }, DIRECT);
+        future.run();
+
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        future.addCallback(new EssFuture.Callback<Object>() {
+            @Override
+            public void onComplete(@Nullable Object value, @Nullable Throwable e) {
+                assertNull(value);
+                error.set(e);
+            }
+        });
+        assertTrue(error.get() instanceof IllegalStateException);
+        assertEquals("failed", error.get().getMessage());
+    }
+
+}
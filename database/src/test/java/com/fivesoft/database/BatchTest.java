@@ -0,0 +1,178 @@
+package com.fivesoft.database;
+
+import android.content.SharedPreferences;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@link Batch} on {@link FileBackend} documents.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class BatchTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FileBackend backend;
+    private EssData db;
+
+    @Before
+    public void setUp() {
+        backend = new FileBackend(folder.getRoot());
+        db = EssData.builder(RuntimeEnvironment.getApplication())
+                .setStorageBackend(backend)
+                .build();
+    }
+
+    @Test
+    public void commitsAllDocuments() {
+        db.set("a", "removed", "x");
+        db.addToList("a", "list", "first", 0);
+
+        Batch batch = db.beginBatch().setDocument("a");
+        assertTrue(batch.isEmpty());
+        batch.set("text", "value")
+                .set("number", 5)
+                .remove("removed")
+                .addToList("list", "second", Integer.MAX_VALUE)
+                .setInList("list", "replaced", 0)
+                .set("b", "other", "value b");
+        assertFalse(batch.isEmpty());
+
+        //Nothing is visible before commit.
+        assertNull(db.get("a", "text"));
+        assertTrue(batch.commit());
+        assertTrue(batch.isEmpty());
+
+        assertEquals("value", db.get("a", "text"));
+        assertEquals(5, (int) db.<Integer>get("a", "number"));
+        assertNull(db.get("a", "removed"));
+        assertEquals(Arrays.asList("replaced", "second"), db.getList("a", "list"));
+        assertEquals("value b", db.get("b", "other"));
+
+        //Saved, not only kept in memory.
+        EssData reopened = EssData.builder(RuntimeEnvironment.getApplication())
+                .setStorageBackend(new FileBackend(folder.getRoot()))
+                .build();
+        assertEquals("value", reopened.get("a", "text"));
+        assertEquals("value b", reopened.get("b", "other"));
+    }
+
+    @Test
+    public void appliesInMemoryImmediately() {
+        Batch batch = db.beginBatch();
+        batch.set("doc", "field", "applied").addToList("doc", "list", "element", 0);
+        batch.apply();
+        assertTrue(batch.isEmpty());
+        assertEquals("applied", db.get("doc", "field"));
+        assertEquals(Arrays.asList("element"), db.getList("doc", "list"));
+    }
+
+    @Test
+    public void batchBlockCommits() {
+        assertTrue(db.batch("doc", new Batch.Block() {
+            @Override
+            public void run(@NonNull Batch batch) {
+                for (int i = 0; i < 10; i++)
+                    batch.addToList("list", i, Integer.MAX_VALUE);
+            }
+        }));
+        assertEquals(10, db.getList("doc", "list").size());
+    }
+
+    @Test
+    public void notifiesCommitListener() throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicBoolean result = new AtomicBoolean();
+        final AtomicBoolean visible = new AtomicBoolean();
+
+        Batch batch = db.beginBatch().setDocument("doc");
+        batch.set("field", "async");
+        batch.commit(new Batch.OnCommitListener() {
+            @Override
+            public void onCommit(boolean success) {
+                result.set(success);
+                visible.set("async".equals(db.get("doc", "field")));
+                done.countDown();
+            }
+        });
+        //The batch is handed over, it can be reused immediately.
+        assertTrue(batch.isEmpty());
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(result.get());
+        assertTrue(visible.get());
+
+        //Listener is optional.
+        final CountDownLatch second = new CountDownLatch(1);
+        db.beginBatch().set("doc", "field", "without listener").commit(null);
+        IoExecutor.writes().execute(new Runnable() {
+            @Override
+            public void run() {
+                second.countDown();
+            }
+        });
+        assertTrue(second.await(5, TimeUnit.SECONDS));
+        assertEquals("without listener", db.get("doc", "field"));
+    }
+
+    @Test
+    public void notifiesObserversOnceWithWholeFieldChange() {
+        final List<Runnable> tasks = new ArrayList<>();
+        ChangeDispatcher dispatcher = new ChangeDispatcher(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                tasks.add(command);
+            }
+        });
+        final List<String> fields = new ArrayList<>();
+        final List<List<ListChange>> changes = new ArrayList<>();
+        EssData.OnChangeListener listener = new EssData.OnChangeListener() {
+            @Override
+            public void onChange(@NonNull String document, @NonNull String field, @Nullable List<ListChange> list) {
+                fields.add(field);
+                changes.add(list);
+            }
+        };
+        SharedPreferences data = backend.open("doc");
+        dispatcher.observe(data, "doc", "list", listener);
+        dispatcher.observe(data, "doc", "field", listener);
+
+        db.beginBatch().setDocument("doc")
+                .addToList("list", "a", 0)
+                .addToList("list", "b", 1)
+                .set("field", "value")
+                .set("unobserved", "value")
+                .commit();
+
+        assertEquals(1, tasks.size());
+        tasks.get(0).run();
+        assertEquals(2, fields.size());
+        assertTrue(fields.containsAll(Arrays.asList("list", "field")));
+        //Batches don't record list changes.
+        assertNull(changes.get(0));
+        assertNull(changes.get(1));
+    }
+
+}
@@ -0,0 +1,130 @@
+package com.fivesoft.database;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Small harness measuring throughput, latency percentiles and allocation
+ * of an operation on the JVM. Used by {@link EssDataBenchmark}.
+ * <br><br>
+ * Every call of the operation is timed separately, so operations faster
+ * than about 100ns are dominated by {@link System#nanoTime()}. Allocation
+ * is measured for the calling thread only, work done by background
+ * writes isn't included.
+ */
+final class Benchmark {
+
+    /**
+     * Measured operation.
+     */
+    interface Operation {
+
+        /**
+         * @param i Number of the call, use it to pick fields or positions.
+         */
+        void run(int i) throws Exception;
+
+    }
+
+    //Latencies of at most this many calls are kept.
+    private static final int MAX_SAMPLES = 1 << 20;
+
+    private final long warmupNanos;
+    private final long measureNanos;
+
+    Benchmark(long warmupMillis, long measureMillis) {
+        this.warmupNanos = TimeUnit.MILLISECONDS.toNanos(warmupMillis);
+        this.measureNanos = TimeUnit.MILLISECONDS.toNanos(measureMillis);
+    }
+
+    Result run(String name, Operation operation) throws Exception {
+        int i = 0;
+        long end = System.nanoTime() + warmupNanos;
+        while (System.nanoTime() < end)
+            operation.run(i++);
+
+        long[] samples = new long[1024];
+        int count = 0;
+        long allocated = allocatedBytes();
+        long start = System.nanoTime();
+        end = start + measureNanos;
+        long now = start;
+        while (now < end) {
+            operation.run(i++);
+            long next = System.nanoTime();
+            if (count < MAX_SAMPLES) {
+                if (count == samples.length)
+                    samples = Arrays.copyOf(samples, count * 2);
+                samples[count] = next - now;
+            }
+            count++;
+            now = next;
+        }
+        long elapsed = now - start;
+        allocated = allocated < 0 ? -1 : allocatedBytes() - allocated;
+
+        long[] sorted = Arrays.copyOf(samples, Math.min(count, MAX_SAMPLES));
+        Arrays.sort(sorted);
+        return new Result(name, count, count * 1e9 / elapsed,
+                percentile(sorted, 0.5), percentile(sorted, 0.9), percentile(sorted, 0.99),
+                sorted.length == 0 ? 0 : sorted[sorted.length - 1],
+                allocated < 0 ? -1 : allocated / Math.max(1, count));
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0)
+            return 0;
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)];
+    }
+
+    /**
+     * @return Bytes allocated by current thread or -1 if the JVM can't tell.
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean) bean;
+            if (sun.isThreadAllocatedMemorySupported() && sun.isThreadAllocatedMemoryEnabled())
+                return sun.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /**
+     * Measurements of one operation.
+     */
+    static final class Result {
+
+        final String name;
+        final long operations;
+        final double opsPerSecond;
+        final long p50;
+        final long p90;
+        final long p99;
+        final long max;
+        final long bytesPerOp;
+
+        Result(String name, long operations, double opsPerSecond,
+               long p50, long p90, long p99, long max, long bytesPerOp) {
+            this.name = name;
+            this.operations = operations;
+            this.opsPerSecond = opsPerSecond;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+            this.max = max;
+            this.bytesPerOp = bytesPerOp;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%-48s %12.0f ops/s  p50 %9d ns  p90 %9d ns  p99 %9d ns  %9d B/op",
+                    name, opsPerSecond, p50, p90, p99, bytesPerOp);
+        }
+
+    }
+
+}
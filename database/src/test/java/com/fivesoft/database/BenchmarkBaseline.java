@@ -0,0 +1,100 @@
+package com.fivesoft.database;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * Results of a previous benchmark run kept in a properties file,
+ * {@code <name>.opsPerSecond}, {@code <name>.p50} and {@code <name>.bytesPerOp}
+ * for every operation.
+ */
+final class BenchmarkBaseline {
+
+    private final File file;
+    private final Properties values = new Properties();
+
+    BenchmarkBaseline(File file) throws IOException {
+        this.file = file;
+        if (file.exists()) {
+            InputStream in = new FileInputStream(file);
+            try {
+                values.load(in);
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    boolean isEmpty() {
+        return values.isEmpty();
+    }
+
+    /**
+     * Compares results with the baseline.
+     * @param tolerance Allowed relative slowdown, e.g. 0.2 for 20%.
+     * @return Descriptions of regressions, empty if there are none.
+     */
+    List<String> compare(List<Benchmark.Result> results, double tolerance) {
+        List<String> res = new ArrayList<>();
+        for (Benchmark.Result result : results) {
+            double ops = get(result.name + ".opsPerSecond");
+            if (ops > 0 && result.opsPerSecond < ops * (1 - tolerance))
+                res.add(String.format(Locale.US, "%s: %.0f ops/s, baseline %.0f ops/s",
+                        result.name, result.opsPerSecond, ops));
+
+            double p50 = get(result.name + ".p50");
+            if (p50 > 0 && result.p50 > p50 * (1 + tolerance))
+                res.add(String.format(Locale.US, "%s: p50 %d ns, baseline %.0f ns",
+                        result.name, result.p50, p50));
+
+            double bytes = get(result.name + ".bytesPerOp");
+            //Small allocations jitter, ignore differences under 64 bytes.
+            if (bytes >= 0 && result.bytesPerOp > bytes * (1 + tolerance) + 64)
+                res.add(String.format(Locale.US, "%s: %d B/op, baseline %.0f B/op",
+                        result.name, result.bytesPerOp, bytes));
+        }
+        return res;
+    }
+
+    /**
+     * Replaces the baseline with given results and saves it.
+     */
+    void save(List<Benchmark.Result> results) throws IOException {
+        values.clear();
+        for (Benchmark.Result result : results) {
+            values.setProperty(result.name + ".opsPerSecond", String.format(Locale.US, "%.0f", result.opsPerSecond));
+            values.setProperty(result.name + ".p50", Long.toString(result.p50));
+            values.setProperty(result.name + ".bytesPerOp", Long.toString(result.bytesPerOp));
+        }
+
+        File dir = file.getParentFile();
+        if (dir != null)
+            dir.mkdirs();
+        OutputStream out = new FileOutputStream(file);
+        try {
+            values.store(out, "EssData benchmark baseline, update with -PupdateBaseline");
+        } finally {
+            out.close();
+        }
+    }
+
+    private double get(String key) {
+        String value = values.getProperty(key);
+        if (value == null)
+            return -1;
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+}
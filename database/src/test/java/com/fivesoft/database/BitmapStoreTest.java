@@ -0,0 +1,105 @@
+package com.fivesoft.database;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of bitmap files kept by {@link BitmapStore}, Robolectric provides {@link Bitmap}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class BitmapStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Context context;
+    private EssData db;
+
+    @Before
+    public void setUp() {
+        context = RuntimeEnvironment.getApplication();
+        db = EssData.builder(context)
+                .setStorageBackend(new FileBackend(folder.getRoot()))
+                .setIoExecutor(new Executor() {
+                    @Override
+                    public void execute(Runnable command) {
+                        command.run();
+                    }
+                })
+                .build();
+    }
+
+    @Test
+    public void savesReferenceToFile() {
+        db.set("doc", "image", bitmap());
+        File[] files = files("doc");
+        assertEquals(1, files.length);
+        assertTrue(files[0].length() > 0);
+        assertTrue(BitmapStore.isReference(db.getData("doc").getString("image", null)));
+    }
+
+    @Test
+    public void deletesFileWhenValueIsReplaced() {
+        db.set("doc", "image", bitmap());
+        File first = files("doc")[0];
+
+        db.set("doc", "image", bitmap());
+        assertFalse(first.exists());
+        File[] files = files("doc");
+        assertEquals(1, files.length);
+        File second = files[0];
+
+        //Replaced with another type of value.
+        db.set("doc", "image", "text");
+        assertFalse(second.exists());
+        assertEquals(0, files("doc").length);
+
+        db.set("doc", "image", bitmap());
+        db.remove("doc", "image");
+        assertEquals(0, files("doc").length);
+
+        db.set("doc", "image", bitmap());
+        db.beginBatch().set("doc", "image", 5).commit();
+        assertEquals(0, files("doc").length);
+    }
+
+    @Test
+    public void keepsFilesOfOtherFields() {
+        db.set("doc", "a", bitmap());
+        db.set("doc", "b", bitmap());
+        db.set("other", "a", bitmap());
+        db.set("doc", "a", "text");
+        assertEquals(1, files("doc").length);
+        assertEquals(1, files("other").length);
+
+        db.clear("doc");
+        assertEquals(0, files("doc").length);
+        assertEquals(1, files("other").length);
+    }
+
+    private File[] files(String document) {
+        File dir = new File(new File(context.getFilesDir(), BitmapStore.DIRECTORY), FileBackend.encodeName(document));
+        File[] res = dir.listFiles();
+        return res == null ? new File[0] : res;
+    }
+
+    private static Bitmap bitmap() {
+        return Bitmap.createBitmap(4, 4, Bitmap.Config.ARGB_8888);
+    }
+
+}
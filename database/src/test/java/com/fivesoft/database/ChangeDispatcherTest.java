@@ -0,0 +1,162 @@
+package com.fivesoft.database;
+
+import android.content.SharedPreferences;
+
+import androidx.annotation.Nullable;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+/**
+ * Plain JVM tests of {@link ChangeDispatcher} on {@link FileBackend} documents.
+ * Delivery tasks are collected and run by hand.
+ */
+public class ChangeDispatcherTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<Runnable> tasks = new ArrayList<>();
+    private final List<List<ListChange>> calls = new ArrayList<>();
+
+    private SharedPreferences doc;
+    private ChangeDispatcher dispatcher;
+    private EssData.OnChangeListener listener;
+
+    @Before
+    public void setUp() {
+        doc = new FileBackend(folder.getRoot()).open("doc");
+        doc.edit().putString("list", "[]").commit();
+        dispatcher = new ChangeDispatcher(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                tasks.add(command);
+            }
+        });
+        listener = new EssData.OnChangeListener() {
+            @Override
+            public void onChange(String document, String field, @Nullable List<ListChange> changes) {
+                assertEquals("doc", document);
+                assertEquals("list", field);
+                calls.add(changes);
+            }
+        };
+        dispatcher.observe(doc, "doc", "list", listener);
+    }
+
+    @Test
+    public void coalescesListChanges() {
+        listChange("[1]", ListChange.Type.INSERTED, 0);
+        listChange("[1,2]", ListChange.Type.INSERTED, 1);
+        listChange("[2]", ListChange.Type.REMOVED, 0);
+        listChange("[3]", ListChange.Type.CHANGED, 0);
+        assertEquals(1, tasks.size());
+
+        deliver();
+        assertEquals(1, calls.size());
+        List<ListChange> changes = calls.get(0);
+        assertEquals(4, changes.size());
+        assertChange(changes.get(0), ListChange.Type.INSERTED, 0);
+        assertChange(changes.get(1), ListChange.Type.INSERTED, 1);
+        assertChange(changes.get(2), ListChange.Type.REMOVED, 0);
+        assertChange(changes.get(3), ListChange.Type.CHANGED, 0);
+
+        //Next burst starts from the delivered value.
+        listChange("[3,4]", ListChange.Type.INSERTED, 1);
+        deliver();
+        assertEquals(2, calls.size());
+        assertEquals(1, calls.get(1).size());
+        assertChange(calls.get(1).get(0), ListChange.Type.INSERTED, 1);
+    }
+
+    @Test
+    public void reportsWholeFieldWhenFieldWasAlsoSet() {
+        listChange("[1]", ListChange.Type.INSERTED, 0);
+        doc.edit().putString("list", "[5,6]").commit();
+        assertEquals(1, tasks.size());
+
+        deliver();
+        assertEquals(1, calls.size());
+        assertNull(calls.get(0));
+    }
+
+    @Test
+    public void reportsWholeFieldWhenOpsDontConnect() {
+        //Set between two recorded changes, the second one doesn't start where the first ended.
+        listChange("[1]", ListChange.Type.INSERTED, 0);
+        doc.edit().putString("list", "[7]").commit();
+        listChange("[7,2]", ListChange.Type.INSERTED, 1);
+
+        deliver();
+        assertEquals(1, calls.size());
+        assertNull(calls.get(0));
+
+        //Field set before the recorded change, it doesn't start at the delivered value.
+        doc.edit().putString("list", "[8]").commit();
+        listChange("[8,9]", ListChange.Type.INSERTED, 1);
+        deliver();
+        assertEquals(2, calls.size());
+        assertNull(calls.get(1));
+    }
+
+    @Test
+    public void skipsChangesWhichCancelOut() {
+        doc.edit().putString("list", "[1]").commit();
+        doc.edit().putString("list", "[]").commit();
+        deliver();
+        assertTrue(calls.isEmpty());
+
+        doc.edit().putString("list", "[1]").commit();
+        deliver();
+        assertEquals(1, calls.size());
+        assertNull(calls.get(0));
+    }
+
+    @Test
+    public void ignoresUnobservedFields() {
+        assertTrue(dispatcher.isObserved(doc, "list"));
+        assertFalse(dispatcher.isObserved(doc, "other"));
+
+        doc.edit().putString("other", "[1]").commit();
+        dispatcher.onListChange(doc, "other", null, new ListChange(ListChange.Type.INSERTED, 0));
+        assertTrue(tasks.isEmpty());
+
+        dispatcher.stopObserving(doc, "list", listener);
+        assertFalse(dispatcher.isObserved(doc, "list"));
+        listChange("[1]", ListChange.Type.INSERTED, 0);
+        deliver();
+        assertTrue(calls.isEmpty());
+    }
+
+    /**
+     * Writes new value of the list and records change which led to it,
+     * the way list mutators of {@link EssData} do.
+     */
+
+    private void listChange(String after, ListChange.Type type, int position) {
+        String before = ChangeDispatcher.raw(doc, "list");
+        doc.edit().putString("list", after).commit();
+        dispatcher.onListChange(doc, "list", before, new ListChange(type, position));
+    }
+
+    private void deliver() {
+        List<Runnable> pending = new ArrayList<>(tasks);
+        tasks.clear();
+        for (Runnable task : pending)
+            task.run();
+    }
+
+    private static void assertChange(ListChange change, ListChange.Type type, int position) {
+        assertEquals(type, change.getType());
+        assertEquals(position, change.getPosition());
+    }
+
+}
@@ -0,0 +1,346 @@
+package com.fivesoft.database;
+
+import android.content.SharedPreferences;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonPrimitive;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@link ChunkedList} on {@link FileBackend} documents. Every mutation
+ * is followed by reading the list back with read, readRange and get.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class ChunkedListTest {
+
+    private static final int CHUNK = ChunkedList.CHUNK_SIZE;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FileBackend backend;
+    private SharedPreferences doc;
+    private Codec codec;
+
+    @Before
+    public void setUp() {
+        backend = new FileBackend(folder.getRoot());
+        doc = backend.open("doc");
+        codec = Codec.getDefault();
+    }
+
+    @Test
+    public void splitsChunkAtTwiceChunkSize() throws Exception {
+        ChunkedList list = ChunkedList.empty();
+        List<Object> expected = new ArrayList<>();
+        for (int i = 0; i < CHUNK * 2 - 1; i++) {
+            insert(list, i, "v" + i);
+            expected.add("v" + i);
+        }
+        assertEquals(1, chunks());
+        check(expected);
+
+        //Inserted into the middle, so the split moves the tail to a new chunk.
+        insert(list, CHUNK, "middle");
+        expected.add(CHUNK, "middle");
+        assertEquals(2, chunks());
+        assertEquals(CHUNK, Codec.parseArray(parse().readChunks(doc, "f").get(0)).size());
+        check(expected);
+
+        for (int i = 0; i < CHUNK * 3; i++) {
+            insert(list, 0, "head" + i);
+            expected.add(0, "head" + i);
+            check(expected);
+        }
+        assertTrue(chunks() > 2);
+    }
+
+    @Test
+    public void replacesElements() throws Exception {
+        ChunkedList list = write(values(CHUNK * 3));
+        List<Object> expected = new ArrayList<>(values(CHUNK * 3));
+
+        for (int position : new int[]{0, CHUNK - 1, CHUNK, CHUNK * 3 - 1}) {
+            SharedPreferences.Editor editor = doc.edit();
+            list.set(doc, editor, "f", position, new JsonPrimitive("set" + position));
+            editor.commit();
+            expected.set(position, "set" + position);
+            check(expected);
+        }
+
+        try {
+            list.set(doc, doc.edit(), "f", CHUNK * 3, new JsonPrimitive("x"));
+            fail();
+        } catch (IndexOutOfBoundsException expectedException) {
+            //Expected.
+        }
+    }
+
+    @Test
+    public void removesLastElementOfChunk() throws Exception {
+        ChunkedList list = write(values(CHUNK * 2 + 1));
+        List<Object> expected = new ArrayList<>(values(CHUNK * 2 + 1));
+        assertEquals(3, chunks());
+
+        //The last chunk has one element, removing it removes the chunk.
+        remove(list, CHUNK * 2);
+        expected.remove(CHUNK * 2);
+        assertEquals(2, chunks());
+        check(expected);
+        assertEquals(CHUNK * 2, internalFields());
+
+        //Emptying the first chunk keeps the second one readable.
+        for (int i = 0; i < CHUNK; i++) {
+            remove(list, 0);
+            expected.remove(0);
+            check(expected);
+        }
+        assertEquals(1, chunks());
+
+        insert(list, 0, "first");
+        expected.add(0, "first");
+        check(expected);
+    }
+
+    @Test
+    public void readsHeaderWithoutChunks() throws Exception {
+        ChunkedList list = write(values(3));
+        for (int i = 0; i < 3; i++)
+            remove(list, 0);
+
+        assertEquals(0, chunks());
+        assertTrue(ChunkedList.isHeader(doc.getString("f", null)));
+        assertEquals(0, internalFields());
+        check(new ArrayList<>());
+        assertEquals("[]", parse().readJson(doc, "f"));
+        try {
+            parse().get(doc, "f", 0, codec);
+            fail();
+        } catch (IndexOutOfBoundsException expected) {
+            //Expected.
+        }
+
+        //Next insert creates the first chunk again.
+        insert(list, 5, "again");
+        List<Object> expected = new ArrayList<>();
+        expected.add("again");
+        check(expected);
+    }
+
+    @Test
+    public void rewritesChunksWithWriteAll() throws Exception {
+        ChunkedList list = write(values(CHUNK * 4));
+        assertEquals(4, chunks());
+        assertEquals(CHUNK * 4, internalFields());
+
+        //Same path as Batch#write, old chunks are removed.
+        List<Object> expected = values(CHUNK + 1);
+        SharedPreferences.Editor editor = doc.edit();
+        list.writeAll(editor, "f", array(expected));
+        editor.commit();
+        assertEquals(2, chunks());
+        assertEquals(CHUNK + 1, internalFields());
+        check(expected);
+
+        editor = doc.edit();
+        list.writeAll(editor, "f", new JsonArray());
+        editor.commit();
+        assertEquals(0, internalFields());
+        check(new ArrayList<>());
+    }
+
+    @Test
+    public void migratesJsonListOnFirstModification() throws Exception {
+        EssData db = EssData.builder(RuntimeEnvironment.getApplication())
+                .setStorageBackend(backend)
+                .setListStorage(ListStorage.CHUNKED)
+                .build();
+        List<Object> expected = values(CHUNK * 2 + 10);
+        doc.edit().putString("f", array(expected).toString()).commit();
+
+        //Reading doesn't migrate.
+        assertEquals(expected, db.getList("doc", "f"));
+        assertFalse(ChunkedList.isHeader(doc.getString("f", null)));
+
+        db.addToList("doc", "f", "added", 1);
+        expected.add(1, "added");
+        assertTrue(ChunkedList.isHeader(doc.getString("f", null)));
+        assertEquals(3, chunks());
+        check(expected);
+        assertEquals(expected, db.getList("doc", "f"));
+        assertEquals("added", db.getFromList("doc", "f", 1));
+
+        //Batch rewrites the whole list through writeAll.
+        Batch batch = db.beginBatch().setDocument("doc");
+        for (int i = 0; i < CHUNK + 12; i++)
+            batch.removeFromList("f", 0);
+        batch.addToList("f", "batch", 0);
+        assertTrue(batch.commit());
+        expected = new ArrayList<>(expected.subList(CHUNK + 12, expected.size()));
+        expected.add(0, "batch");
+        assertEquals(1, chunks());
+        check(expected);
+        assertEquals(expected.size(), internalFields());
+    }
+
+    @Test
+    public void readsNewChunksThroughStaleHeader() throws Exception {
+        ChunkedList list = write(values(CHUNK * 2));
+        ChunkedList stale = parse();
+        List<Object> expected = new ArrayList<>(values(CHUNK * 2));
+
+        //Changed chunks get new ids. Unchanged chunks are still read
+        //through the stale header, a missing one makes it read the current
+        //header instead of mixing both versions.
+        insert(list, 0, "head");
+        expected.add(0, "head");
+        assertEquals("v64", stale.get(doc, "f", CHUNK, codec));
+        assertEquals("head", stale.get(doc, "f", 0, codec));
+        assertEquals(expected, stale.read(doc, "f", codec));
+        assertEquals(expected.size(), stale.size());
+
+        stale = parse();
+        remove(list, CHUNK * 2);
+        expected.remove(CHUNK * 2);
+        List<Object> range = new ArrayList<>();
+        stale.readRange(doc, "f", CHUNK - 1, 3, Codec.OBJECT_TYPE, codec, range);
+        assertEquals(expected.subList(CHUNK - 1, CHUNK + 2), range);
+        assertEquals(CHUNK * 2, internalFields());
+    }
+
+    @Test
+    public void readsConsistentListDuringInserts() throws Exception {
+        final EssData db = EssData.builder(RuntimeEnvironment.getApplication())
+                .setStorageBackend(backend)
+                .setListStorage(ListStorage.CHUNKED)
+                .build();
+        final List<Object> initial = values(CHUNK * 3);
+        doc.edit().putString("f", array(initial).toString()).commit();
+        final int inserts = 300;
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < inserts; i++)
+                    db.addToList("doc", "f", "head" + i, 0);
+            }
+        });
+        writer.start();
+        int reads = 0;
+        while (writer.isAlive() || reads == 0) {
+            checkHeads(db.<List<Object>>getList("doc", "f"), initial);
+            checkHeads(db.getListPage("doc", "f", 0, Integer.MAX_VALUE).getItems(), initial);
+            reads++;
+        }
+        writer.join();
+        assertEquals(inserts + initial.size(), db.listSize("doc", "f"));
+    }
+
+    /**
+     * Checks that the list is the initial one with some heads inserted
+     * in front of it, newest first.
+     */
+
+    private static void checkHeads(List<?> list, List<Object> initial) {
+        int heads = list.size() - initial.size();
+        assertTrue(list.toString(), heads >= 0);
+        for (int i = 0; i < heads; i++)
+            assertEquals("head" + (heads - 1 - i), list.get(i));
+        assertEquals(initial, list.subList(heads, list.size()));
+    }
+
+    private void insert(ChunkedList list, int position, String value) {
+        SharedPreferences.Editor editor = doc.edit();
+        list.insert(doc, editor, "f", position, new JsonPrimitive(value));
+        editor.commit();
+    }
+
+    private void remove(ChunkedList list, int position) {
+        SharedPreferences.Editor editor = doc.edit();
+        list.remove(doc, editor, "f", position);
+        editor.commit();
+    }
+
+    private ChunkedList write(List<Object> values) {
+        ChunkedList list = ChunkedList.empty();
+        SharedPreferences.Editor editor = doc.edit();
+        list.writeAll(editor, "f", array(values));
+        editor.commit();
+        return list;
+    }
+
+    private ChunkedList parse() {
+        ChunkedList res = ChunkedList.parse(doc.getString("f", null));
+        assertNotNull(res);
+        return res;
+    }
+
+    private int chunks() {
+        return parse().readChunks(doc, "f").size();
+    }
+
+    /**
+     * @return Number of elements in all internal fields.
+     */
+
+    private int internalFields() {
+        int res = 0;
+        for (String key : doc.getAll().keySet())
+            if (ChunkedList.isInternal(key) && !ChunkedList.isHeader(doc.getString(key, null)))
+                res += Codec.parseArray(doc.getString(key, null)).size();
+        return res;
+    }
+
+    /**
+     * Reads the list from its saved header in every supported way.
+     */
+
+    private void check(List<Object> expected) throws Exception {
+        ChunkedList list = parse();
+        assertEquals(expected.size(), list.size());
+        assertEquals(expected, list.read(doc, "f", codec));
+        assertEquals(array(expected).toString(), list.readJson(doc, "f"));
+
+        for (int i = 0; i < expected.size(); i++)
+            assertEquals(expected.get(i), list.get(doc, "f", i, codec));
+
+        for (int offset : new int[]{0, 1, CHUNK - 1, CHUNK, expected.size() - 1}) {
+            if (offset < 0 || offset >= Math.max(1, expected.size()))
+                continue;
+            int limit = CHUNK + 3;
+            List<Object> range = new ArrayList<>();
+            list.readRange(doc, "f", offset, limit, Codec.OBJECT_TYPE, codec, range);
+            assertEquals(expected.subList(Math.min(offset, expected.size()),
+                    Math.min(expected.size(), offset + limit)), range);
+        }
+    }
+
+    private static List<Object> values(int count) {
+        List<Object> res = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+            res.add("v" + i);
+        return res;
+    }
+
+    private static JsonArray array(List<Object> values) {
+        JsonArray res = new JsonArray();
+        for (Object value : values)
+            res.add((String) value);
+        return res;
+    }
+
+}
@@ -0,0 +1,88 @@
+package com.fivesoft.database;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares cold serialization (new {@link Gson} per call, as EssData did before)
+ * with warm serialization through shared {@link Codec}.
+ * Results are printed to standard output.
+ * <br><br>
+ * Skipped unless benchmarks are enabled, like {@link EssDataBenchmark}:
+ * <pre>
+ * ./gradlew :database:testDebugUnitTest --tests '*CodecBenchmark' -Pbenchmark
+ * </pre>
+ */
+public class CodecBenchmark {
+
+    private static final int WARMUP = 2_000;
+    private static final int ITERATIONS = 20_000;
+
+    static class Item implements Serializable {
+        String name;
+        int count;
+        List<String> tags;
+
+        Item(String name, int count, List<String> tags) {
+            this.name = name;
+            this.count = count;
+            this.tags = tags;
+        }
+    }
+
+    @Test
+    public void coldVersusWarm() throws Exception {
+        Assume.assumeTrue("Benchmarks are disabled, run with -Pbenchmark",
+                Boolean.getBoolean("essdata.benchmark"));
+
+        List<Object> list = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            List<String> tags = new ArrayList<>();
+            tags.add("tag" + i);
+            list.add(new Item("item" + i, i, tags));
+        }
+
+        Codec codec = Codec.getDefault();
+        String json = codec.encode(list);
+        assertEquals(20, codec.decodeList(json).size());
+
+        for (int i = 0; i < WARMUP; i++) {
+            cold(list);
+            warm(codec, list);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++)
+            cold(list);
+        long coldNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++)
+            warm(codec, list);
+        long warmNanos = System.nanoTime() - start;
+
+        System.out.println("CodecBenchmark cold: " + coldNanos / ITERATIONS + " ns/op, warm: "
+                + warmNanos / ITERATIONS + " ns/op");
+    }
+
+    private static int cold(List<Object> list) {
+        String json = new Gson().toJson(list);
+        List<Object> res = new Gson().fromJson(json, new TypeToken<List<Object>>(){}.getType());
+        return res.size();
+    }
+
+    private static int warm(Codec codec, List<Object> list) throws Exception {
+        List<Object> res = codec.decodeList(codec.encode(list));
+        return res == null ? 0 : res.size();
+    }
+
+}
@@ -0,0 +1,74 @@
+package com.fivesoft.database;
+
+import com.google.gson.reflect.TypeToken;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Plain JVM tests of {@link Codec}.
+ */
+public class CodecTest {
+
+    private static class Point {
+        int x;
+        int y;
+    }
+
+    @Test
+    public void decodesPrimitiveArrays() throws Exception {
+        assertArrayEquals(new int[]{1, 2, 3}, Codec.decodeInts("[1.0,2,3]"));
+        assertArrayEquals(new long[]{5000000000L}, Codec.decodeLongs("[5000000000]"));
+        assertArrayEquals(new double[]{0.5, 2}, Codec.decodeDoubles("[0.5,2]"), 0);
+        assertEquals(0, Codec.decodeInts(null).length);
+        assertEquals(0, Codec.decodeInts("").length);
+    }
+
+    @Test
+    public void decodesTypedValues() throws Exception {
+        Codec codec = Codec.getDefault();
+        Point point = codec.decode("{\"x\":1,\"y\":2}", Point.class);
+        assertEquals(2, point.y);
+
+        List<Point> points = codec.decode("[{\"x\":3},{\"y\":4}]", new TypeToken<List<Point>>(){}.getType());
+        assertEquals(3, points.get(0).x);
+        assertEquals(4, points.get(1).y);
+    }
+
+    @Test
+    public void streamsListElements() throws Exception {
+        Codec codec = Codec.getDefault();
+        String json = "[{\"x\":1},[1,2],\"a\",3]";
+        assertEquals(4, Codec.count(json));
+        assertEquals("a", codec.decodeElement(json, 2, Codec.OBJECT_TYPE));
+
+        try {
+            codec.decodeElement(json, 4, Codec.OBJECT_TYPE);
+            fail();
+        } catch (IndexOutOfBoundsException expected){}
+
+        Iterator<Integer> iterator = codec.iterate(Arrays.asList("[1,2]", "[]", "[3]"), Integer.class);
+        int sum = 0;
+        while(iterator.hasNext())
+            sum += iterator.next();
+        assertEquals(6, sum);
+    }
+
+    @Test
+    public void readsPropertiesWithoutDecoding() throws Exception {
+        List<Object> keys = new ArrayList<>();
+        Codec.extract(Arrays.asList("[{\"id\":\"a\",\"n\":{\"id\":1}},{\"id\":2.0}]", "[3,{}]"), "id", keys);
+        assertEquals(Arrays.<Object>asList("a", 2L, null, null), keys);
+
+        List<String> values = Codec.getDefault().decodeAt(Arrays.asList("[\"a\",\"b\"]", "[\"c\"]"),
+                new int[]{2, 0, 2}, String.class);
+        assertEquals(Arrays.asList("c", "a", "c"), values);
+    }
+
+}
@@ -0,0 +1,90 @@
+package com.fivesoft.database;
+
+import android.content.SharedPreferences;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@link Compression} on {@link FileBackend} documents,
+ * Robolectric provides {@link android.util.Base64}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class CompressionTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() {
+        dir = new File(System.getProperty("java.io.tmpdir"), "essdata-test-" + System.nanoTime());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void compressesLargeValues() {
+        SharedPreferences doc = new FileBackend(dir).open("doc");
+        Compression compression = new Compression(64);
+
+        assertEquals("[1,2,3]", compression.compress(doc, "[1,2,3]"));
+
+        String json = json(0, 200);
+        String stored = compression.compress(doc, json);
+        assertTrue(Compression.isCompressed(stored));
+        assertTrue(stored.length() < json.length());
+        assertEquals(json, Compression.inflate(doc, stored));
+        assertEquals(json, Compression.inflate(doc, json));
+        assertNull(Compression.inflate(doc, Compression.PREFIX + "AAAA"));
+    }
+
+    @Test
+    public void usesDocumentDictionary() {
+        SharedPreferences doc = new FileBackend(dir).open("doc");
+        Compression compression = new Compression(16);
+        SharedPreferences.Editor editor = doc.edit();
+        for (int i = 0; i < 50; i++)
+            editor.putString("item" + i, json(i, 1));
+        editor.commit();
+
+        String json = json(100, 1);
+        String before = compression.compress(doc, json);
+        assertTrue(Compression.train(doc));
+        String after = compression.compress(doc, json);
+        assertTrue(Compression.isCompressed(after));
+        assertTrue(after.length() < before.length());
+        assertEquals(json, Compression.inflate(doc, after));
+
+        //Values stay readable after the dictionary is replaced.
+        doc.edit().putString("other", "{\"different\":true,\"values\":[9,8,7]}").commit();
+        assertTrue(Compression.train(doc));
+        assertEquals(json, Compression.inflate(new FileBackend(dir).open("doc"), after));
+    }
+
+    private static String json(int from, int count) {
+        StringBuilder res = new StringBuilder("[");
+        for (int i = from; i < from + count; i++) {
+            if (i > from)
+                res.append(',');
+            res.append("{\"name\":\"item number ").append(i)
+                    .append("\",\"description\":\"a fairly long description text\",\"id\":").append(i).append('}');
+        }
+        return res.append(']').toString();
+    }
+
+}
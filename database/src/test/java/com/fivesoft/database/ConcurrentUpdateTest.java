@@ -0,0 +1,207 @@
+package com.fivesoft.database;
+
+import androidx.annotation.Nullable;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of read-modify-write guarded by {@link FieldLocks}, made from many threads
+ * on {@link FileBackend} documents.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class ConcurrentUpdateTest {
+
+    private static final int THREADS = 8;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private EssData db;
+    private ExecutorService threads;
+
+    @Before
+    public void setUp() {
+        db = EssData.builder(RuntimeEnvironment.getApplication())
+                .setStorageBackend(new FileBackend(folder.getRoot()))
+                .build();
+        threads = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @After
+    public void tearDown() {
+        threads.shutdownNow();
+    }
+
+    @Test
+    public void keepsEveryIncrement() throws Exception {
+        final int increments = 500;
+        final EssData.Updater<Integer> increment = new EssData.Updater<Integer>() {
+            @Override
+            public Integer update(@Nullable Integer current) {
+                return current == null ? 1 : current + 1;
+            }
+        };
+
+        run(new Callable<Void>() {
+            @Override
+            public Void call() {
+                for (int i = 0; i < increments; i++) {
+                    db.update("doc", "count", Integer.class, increment);
+                    //Unrelated field of the same document.
+                    db.set("doc", "other" + (i % 4), i);
+                }
+                return null;
+            }
+        });
+
+        assertEquals(THREADS * increments, db.getInt("doc", "count"));
+        assertEquals(THREADS * increments, (int) db.<Integer>get("doc", "count"));
+    }
+
+    @Test
+    public void keepsEveryListElement() throws Exception {
+        final int elements = 100;
+        final List<Integer> ids = Collections.synchronizedList(new ArrayList<Integer>());
+
+        run(new Callable<Void>() {
+            @Override
+            public Void call() {
+                int id;
+                synchronized (ids) {
+                    id = ids.size();
+                    ids.add(id);
+                }
+                for (int i = 0; i < elements; i++)
+                    db.addToList("doc", "list", id * elements + i, Integer.MAX_VALUE);
+                return null;
+            }
+        });
+
+        List<Integer> list = new ArrayList<>(db.getList("doc", "list", Integer.class));
+        assertEquals(THREADS * elements, list.size());
+        Collections.sort(list);
+        for (int i = 0; i < list.size(); i++)
+            assertEquals(i, (int) list.get(i));
+    }
+
+    @Test
+    public void keepsListElementsAddedDuringBatch() throws Exception {
+        final int elements = 100;
+        final List<Integer> ids = Collections.synchronizedList(new ArrayList<Integer>());
+
+        run(new Callable<Void>() {
+            @Override
+            public Void call() {
+                int id;
+                synchronized (ids) {
+                    id = ids.size();
+                    ids.add(id);
+                }
+                for (int i = 0; i < elements; i += 2) {
+                    //Batch modifications are replayed on the current list.
+                    Batch batch = db.beginBatch().setDocument("doc");
+                    batch.addToList("list", id * elements + i, Integer.MAX_VALUE);
+                    db.addToList("doc", "list", id * elements + i + 1, 0);
+                    batch.commit();
+                }
+                return null;
+            }
+        });
+
+        List<Integer> list = new ArrayList<>(db.getList("doc", "list", Integer.class));
+        assertEquals(THREADS * elements, list.size());
+        Collections.sort(list);
+        for (int i = 0; i < list.size(); i++)
+            assertEquals(i, (int) list.get(i));
+    }
+
+    @Test
+    public void replaysBatchOnCurrentList() {
+        db.addToList("doc", "list", "a", 0);
+        db.addToList("doc", "list", "b", 1);
+        Batch batch = db.beginBatch().setDocument("doc");
+        batch.removeFromList("list", 0);
+        batch.addToList("list", "batch", Integer.MAX_VALUE);
+        batch.setInList("list", "set", 5);
+
+        db.addToList("doc", "list", "first", 0);
+        assertTrue(batch.commit());
+        assertEquals(Arrays.asList("a", "b", "batch"), db.getList("doc", "list"));
+    }
+
+    @Test
+    public void batchAndSetDontDeadlock() throws Exception {
+        final int rounds = 300;
+        final String[] fields = {"a", "b", "c", "d", "e"};
+
+        run(new Callable<Void>() {
+            private int thread;
+
+            @Override
+            public Void call() {
+                int id;
+                synchronized (this) {
+                    id = thread++;
+                }
+                for (int i = 0; i < rounds; i++) {
+                    if (id % 2 == 0) {
+                        //Fields in a different order in every round.
+                        Batch batch = db.beginBatch().setDocument("doc");
+                        for (int j = 0; j < fields.length; j++)
+                            batch.set(fields[(i + j * (id + 1)) % fields.length], i);
+                        batch.commit();
+                    } else {
+                        String field = fields[(i + id) % fields.length];
+                        db.set("doc", field, i);
+                        db.update("doc", field, Integer.class, new EssData.Updater<Integer>() {
+                            @Override
+                            public Integer update(@Nullable Integer current) {
+                                return current == null ? 0 : current + 1;
+                            }
+                        });
+                    }
+                }
+                return null;
+            }
+        });
+
+        //Whoever wrote last, every field holds a value written by one of the threads.
+        for (String field : fields)
+            assertNotNull(db.get("doc", field));
+    }
+
+    /**
+     * Runs the task on every thread at once and waits until all of them finish.
+     * A deadlock fails the test instead of hanging it.
+     */
+
+    private void run(Callable<Void> task) throws Exception {
+        List<Future<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++)
+            futures.add(threads.submit(task));
+        for (Future<Void> future : futures)
+            future.get(60, TimeUnit.SECONDS);
+    }
+
+}
@@ -0,0 +1,185 @@
+package com.fivesoft.database;
+
+import android.content.SharedPreferences;
+
+import androidx.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of counters shared by EssData instances using one {@link FileBackend}.
+ * The flush delay is long, so cells are saved only by explicit flushes.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class CountersTest {
+
+    private static final int THREADS = 8;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FileBackend backend;
+    private EssData first;
+    private EssData second;
+    private ExecutorService threads;
+
+    @Before
+    public void setUp() {
+        backend = new FileBackend(folder.getRoot());
+        first = build();
+        second = build();
+        threads = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @After
+    public void tearDown() {
+        threads.shutdownNow();
+    }
+
+    @Test
+    public void sharesCellsBetweenInstances() throws Exception {
+        final int increments = 2000;
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            final EssData db = i % 2 == 0 ? first : second;
+            futures.add(threads.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    for (int j = 0; j < increments; j++)
+                        db.increment("doc", "count", 1);
+                    return null;
+                }
+            }));
+        }
+        for (Future<?> future : futures)
+            future.get(60, TimeUnit.SECONDS);
+
+        long total = (long) THREADS * increments;
+        assertEquals(total, first.getLong("doc", "count"));
+        assertEquals(total, second.getLong("doc", "count"));
+
+        //Either instance saves the shared cell.
+        second.flush();
+        assertEquals(total, backend.open("doc").getLong("count", 0));
+        first.flush();
+        assertEquals(total, build().getLong("doc", "count"));
+    }
+
+    @Test
+    public void setOnOtherInstanceReplacesCell() {
+        first.increment("doc", "count", 5);
+        assertEquals(5, second.getLong("doc", "count"));
+
+        second.set("doc", "count", 100L);
+        assertEquals(101, first.increment("doc", "count", 1));
+        first.flush();
+        second.flush();
+        assertEquals(101, backend.open("doc").getLong("count", 0));
+
+        second.remove("doc", "count");
+        assertEquals(1, first.increment("doc", "count", 1));
+        second.set("doc", "count", (Serializable) null);
+        first.flush();
+        assertNull(second.get("doc", "count"));
+    }
+
+    @Test
+    public void clearDropsCellsOfOtherInstances() {
+        first.increment("doc", "count", 5);
+        second.clear("doc");
+        first.flush();
+        second.flush();
+        assertFalse(backend.open("doc").contains("count"));
+        assertEquals(1, first.increment("doc", "count", 1));
+    }
+
+    @Test
+    public void readsDoubleCellAsFloat() {
+        first.increment("doc", "ratio", 0.1);
+        first.increment("doc", "ratio", 0.2);
+        assertEquals(0.3f, second.getFloat("doc", "ratio"), 1e-6f);
+        first.increment("doc", "count", 3);
+        assertEquals(3f, second.getFloat("doc", "count"), 0);
+
+        //Saved as a double, reading it without the cell doesn't turn it into a float.
+        first.flush();
+        SharedPreferences saved = backend.open("doc");
+        String json = saved.getString("ratio", null);
+        assertEquals(0.3f, (Float) Primitives.migrate(saved, "ratio", Float.class, Codec.getDefault()), 1e-6f);
+        assertEquals(json, saved.getString("ratio", null));
+        assertEquals(0.1 + 0.2, (Double) build().get("doc", "ratio"), 0);
+    }
+
+    @Test
+    public void retiresDiscardedCells() throws Exception {
+        final CountDownLatch loaded = new CountDownLatch(1);
+        final CountDownLatch discarded = new CountDownLatch(1);
+        final Counters[] counters = new Counters[1];
+        counters[0] = new Counters(backend, TimeUnit.MINUTES.toMillis(10), new Counters.Loader() {
+            @NonNull
+            @Override
+            public Counters.Cell load(@NonNull String document, @NonNull String field, boolean floating) {
+                Counters.Cell res = counters[0].create(document, field, floating, 0);
+                if (loaded.getCount() > 0) {
+                    //The first increment holds the cell while the document is cleared.
+                    loaded.countDown();
+                    try {
+                        discarded.await();
+                    } catch (InterruptedException e) {
+                        throw new AssertionError(e);
+                    }
+                }
+                return res;
+            }
+        }, new WriteBehind.Writer() {
+            @Override
+            public void write(@NonNull String document) {}
+        });
+
+        Future<Long> increment = threads.submit(new Callable<Long>() {
+            @Override
+            public Long call() {
+                return counters[0].getAndAdd("doc", "count", 5);
+            }
+        });
+        assertTrue(loaded.await(10, TimeUnit.SECONDS));
+        Counters.Cell old = counters[0].get("doc", "count");
+        counters[0].discard("doc");
+        assertNull(counters[0].get("doc", "count"));
+        discarded.countDown();
+
+        //The increment retried against a new cell instead of the dropped one.
+        assertEquals(0L, (long) increment.get(10, TimeUnit.SECONDS));
+        assertEquals(0L, old.get());
+        assertEquals(5L, counters[0].get("doc", "count").get());
+    }
+
+    private EssData build() {
+        return EssData.builder(RuntimeEnvironment.getApplication())
+                .setStorageBackend(backend)
+                .setCounterFlushDelay(TimeUnit.MINUTES.toMillis(10))
+                .build();
+    }
+
+}
@@ -0,0 +1,121 @@
+package com.fivesoft.database;
+
+import android.content.SharedPreferences;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Plain JVM tests of {@link DecodeCache} on {@link FileBackend} documents.
+ */
+@SuppressWarnings("unchecked")
+public class DecodeCacheTest {
+
+    private static final Object MISS = new Object();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SharedPreferences doc;
+    private DecodeCache cache;
+
+    @Before
+    public void setUp() {
+        doc = new FileBackend(folder.getRoot()).open("doc");
+        cache = new DecodeCache(DecodeCache.DEFAULT_MAX_SIZE);
+    }
+
+    @Test
+    public void missesWhenRawValueChanges() {
+        cache.put(doc, "f", "[1]", list(1.0));
+        assertEquals(list(1.0), cache.get(doc, "f", "[1]", MISS));
+        //Equal string, not the same instance.
+        assertEquals(list(1.0), cache.get(doc, "f", new String("[1]"), MISS));
+
+        assertSame(MISS, cache.get(doc, "f", "[2]", MISS));
+        //Stale entry is dropped.
+        assertSame(MISS, cache.get(doc, "f", "[1]", MISS));
+    }
+
+    @Test
+    public void invalidatesChangedFields() {
+        cache.put(doc, "f", "[1]", list(1.0));
+        cache.put(doc, "g", "[2]", list(2.0));
+        cache.invalidate(doc, "f");
+        assertSame(MISS, cache.get(doc, "f", "[1]", MISS));
+        assertEquals(list(2.0), cache.get(doc, "g", "[2]", MISS));
+
+        //Writes made directly to the document are seen by the listener.
+        doc.edit().putString("g", "[2]").commit();
+        assertSame(MISS, cache.get(doc, "g", "[2]", MISS));
+
+        cache.put(doc, "f", "[1]", list(1.0));
+        cache.invalidate(doc);
+        assertSame(MISS, cache.get(doc, "f", "[1]", MISS));
+    }
+
+    @Test
+    public void callersGetOwnCopies() {
+        Map<String, Object> element = new LinkedHashMap<>();
+        element.put("name", "a");
+        element.put("tags", list("x"));
+        List<Object> value = list(element);
+        cache.put(doc, "f", "raw", value);
+
+        //Modifying the cached object doesn't change the cache.
+        element.put("name", "changed");
+        List<Object> first = (List<Object>) cache.get(doc, "f", "raw", MISS);
+        assertEquals("a", ((Map<?, ?>) first.get(0)).get("name"));
+
+        ((Map<String, Object>) first.get(0)).put("name", "b");
+        ((List<Object>) ((Map<?, ?>) first.get(0)).get("tags")).add("y");
+        first.add("extra");
+
+        List<Object> second = (List<Object>) cache.get(doc, "f", "raw", MISS);
+        assertNotSame(first, second);
+        assertEquals(1, second.size());
+        assertEquals("a", ((Map<?, ?>) second.get(0)).get("name"));
+        assertEquals(list("x"), ((Map<?, ?>) second.get(0)).get("tags"));
+    }
+
+    @Test
+    public void pagesAreCopied() {
+        ListPage<Object> page = new ListPage<>(list(list(1.0)), 0, 5);
+        cache.putPage(doc, "f", "raw", 0, 1, Codec.OBJECT_TYPE, page);
+
+        ListPage<Object> first = (ListPage<Object>) cache.getPage(doc, "f", "raw", 0, 1, Codec.OBJECT_TYPE, MISS);
+        ((List<Object>) first.get(0)).add(2.0);
+        ListPage<Object> second = (ListPage<Object>) cache.getPage(doc, "f", "raw", 0, 1, Codec.OBJECT_TYPE, MISS);
+        assertEquals(list(1.0), second.get(0));
+        assertEquals(5, second.getTotal());
+        assertSame(MISS, cache.getPage(doc, "f", "other", 0, 1, Codec.OBJECT_TYPE, MISS));
+    }
+
+    @Test
+    public void skipsValuesWhichCantBeCopied() {
+        cache.put(doc, "f", "{}", new StringBuilder("mutable"));
+        assertSame(MISS, cache.get(doc, "f", "{}", MISS));
+        cache.put(doc, "g", "5", 5.0);
+        assertEquals(5.0, cache.get(doc, "g", "5", MISS));
+        cache.put(doc, "h", "null", null);
+        assertNull(cache.get(doc, "h", "null", MISS));
+        assertEquals(Collections.emptyList(), DecodeCache.copy(new ArrayList<>()));
+    }
+
+    private static List<Object> list(Object... values) {
+        List<Object> res = new ArrayList<>();
+        Collections.addAll(res, values);
+        return res;
+    }
+
+}
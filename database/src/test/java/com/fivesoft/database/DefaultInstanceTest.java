@@ -0,0 +1,39 @@
+package com.fivesoft.database;
+
+import android.content.Context;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of instances returned by {@link EssData#with(Context)}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class DefaultInstanceTest {
+
+    @Test
+    public void setDocumentChangesOnlyReceiver() {
+        Context context = RuntimeEnvironment.getApplication();
+        EssData db = EssData.with(context);
+        assertSame(db, db.setDocument("x"));
+        db.set("field", "value");
+        assertEquals("x", db.getDocument());
+        assertEquals("value", db.get("field"));
+
+        //Other instances keep the default document and share the handles.
+        EssData other = EssData.with(context);
+        assertNotSame(db, other);
+        assertEquals(EssData.DEFAULT_DOCUMENT, other.getDocument());
+        assertNull(other.get("field"));
+        assertEquals("value", other.get("x", "field"));
+        assertSame(db.getData("x"), other.getData("x"));
+        assertSame(db.getCache(), other.getCache());
+    }
+
+}
@@ -0,0 +1,271 @@
+package com.fivesoft.database;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Benchmarks of EssData hot paths on the JVM. Robolectric provides the
+ * {@link Context}, SharedPreferences and Bitmap, {@link FileBackend}
+ * runs as it does on a device. Results are printed, written to
+ * {@code build/benchmark/results.txt} and compared with the baseline.
+ * <br><br>
+ * Skipped unless enabled, run with:
+ * <pre>
+ * ./gradlew :database:testDebugUnitTest --tests '*EssDataBenchmark' -Pbenchmark
+ * </pre>
+ * Add {@code -PupdateBaseline} to save results as the new baseline,
+ * {@code -PbenchmarkFilter=lists} to run only matching operations.
+ * {@code -PbenchmarkWarmupMillis} and {@code -PbenchmarkMeasureMillis}
+ * change how long every operation runs.
+ * <br><br>
+ * The baseline is {@code database/benchmark-baseline.properties}, or the file
+ * given with {@code -PbenchmarkBaseline=path}. It isn't committed, numbers
+ * only compare between runs on the same machine. The first run without
+ * a baseline saves one. CI keeps the baseline from a run of the target branch,
+ * e.g. in its cache, and passes it to runs of changes with:
+ * <pre>
+ * ./gradlew :database:testDebugUnitTest --tests '*EssDataBenchmark' -Pbenchmark \
+ *     -PbenchmarkStrict -PbenchmarkTolerance=0.2 -PbenchmarkBaseline=path
+ * </pre>
+ * Regressions over the tolerance are printed, with {@code -PbenchmarkStrict}
+ * they fail the run, as does a missing baseline.
+ * Robolectric Bitmaps aren't really compressed, bitmap numbers only show
+ * EssData's own overhead.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class EssDataBenchmark {
+
+    private static final int[] FIELDS = {10, 1_000, 100_000};
+    private static final int[] ELEMENTS = {10, 1_000, 100_000};
+    private static final int[] BITMAP_SIZES = {64, 512};
+
+    private static final List<Benchmark.Result> results = Collections.synchronizedList(new ArrayList<Benchmark.Result>());
+
+    private Benchmark benchmark;
+    private String filter;
+    private Context context;
+
+    @Before
+    public void setUp() {
+        Assume.assumeTrue("Benchmarks are disabled, run with -Pbenchmark",
+                Boolean.getBoolean("essdata.benchmark"));
+        benchmark = new Benchmark(Long.getLong("essdata.benchmark.warmupMillis", 300),
+                Long.getLong("essdata.benchmark.measureMillis", 1000));
+        filter = System.getProperty("essdata.benchmark.filter", "");
+        context = RuntimeEnvironment.getApplication();
+    }
+
+    @Test
+    public void documents() throws Exception {
+        for (String backend : backends()) {
+            for (final int fields : FIELDS) {
+                final EssData db = open(backend, ListStorage.JSON);
+                final String doc = "fields" + fields;
+                Batch batch = db.beginBatch();
+                for (int i = 0; i < fields; i++)
+                    batch.set(doc, "f" + i, "value" + i);
+                batch.set(doc, "count", 0);
+                assertTrue(batch.commit());
+
+                String name = backend + "/document/" + fields + "/";
+                run(name + "get", new Benchmark.Operation() {
+                    @Override
+                    public void run(int i) {
+                        db.get(doc, "f" + (i % fields));
+                    }
+                });
+                run(name + "getInt", new Benchmark.Operation() {
+                    @Override
+                    public void run(int i) {
+                        db.getInt(doc, "count");
+                    }
+                });
+                run(name + "set", new Benchmark.Operation() {
+                    @Override
+                    public void run(int i) {
+                        db.set(doc, "f" + (i % fields), "value" + i);
+                    }
+                });
+                run(name + "getFields", new Benchmark.Operation() {
+                    @Override
+                    public void run(int i) {
+                        db.getFields(doc);
+                    }
+                });
+                db.clear(doc);
+            }
+        }
+    }
+
+    @Test
+    public void lists() throws Exception {
+        for (String backend : backends()) {
+            for (ListStorage storage : ListStorage.values()) {
+                for (final int elements : ELEMENTS) {
+                    final EssData db = open(backend, storage);
+                    final String doc = "list" + elements;
+                    ArrayList<Object> list = new ArrayList<>(elements);
+                    for (int i = 0; i < elements; i++)
+                        list.add(record(i));
+                    db.set(doc, "items", list);
+                    //Lists become chunked on the first modification.
+                    db.addToList(doc, "items", record(-1), 0);
+                    db.removeFromList(doc, "items", 0);
+                    assertEquals(elements, db.listSize(doc, "items"));
+
+                    final Random random = new Random(elements);
+                    String name = backend + "/list/" + storage.name().toLowerCase() + "/" + elements + "/";
+                    run(name + "getList", new Benchmark.Operation() {
+                        @Override
+                        public void run(int i) {
+                            db.getList(doc, "items");
+                        }
+                    });
+                    run(name + "getFromList", new Benchmark.Operation() {
+                        @Override
+                        public void run(int i) {
+                            db.getFromList(doc, "items", random.nextInt(elements));
+                        }
+                    });
+                    run(name + "getListPage", new Benchmark.Operation() {
+                        @Override
+                        public void run(int i) {
+                            db.getListPage(doc, "items", random.nextInt(elements), 20);
+                        }
+                    });
+                    run(name + "setInList", new Benchmark.Operation() {
+                        @Override
+                        public void run(int i) {
+                            db.setInList(doc, "items", record(i), random.nextInt(elements));
+                        }
+                    });
+                    //Insert and remove keep the size constant.
+                    run(name + "addAndRemove", new Benchmark.Operation() {
+                        @Override
+                        public void run(int i) {
+                            int position = random.nextInt(elements);
+                            db.addToList(doc, "items", record(i), position);
+                            db.removeFromList(doc, "items", position);
+                        }
+                    });
+                    db.clear(doc);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void bitmaps() throws Exception {
+        for (String backend : backends()) {
+            for (int size : BITMAP_SIZES) {
+                final EssData db = open(backend, ListStorage.JSON);
+                final Bitmap bitmap = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+                final String doc = "bitmap" + size;
+                db.set(doc, "image", bitmap);
+
+                String name = backend + "/bitmap/" + size + "/";
+                run(name + "set", new Benchmark.Operation() {
+                    @Override
+                    public void run(int i) {
+                        db.set(doc, "image", bitmap);
+                    }
+                });
+                run(name + "getBitmap", new Benchmark.Operation() {
+                    @Override
+                    public void run(int i) {
+                        db.getBitmap(doc, "image");
+                    }
+                });
+                db.clear(doc);
+            }
+        }
+    }
+
+    @AfterClass
+    public static void report() throws Exception {
+        if (results.isEmpty())
+            return;
+
+        StringBuilder report = new StringBuilder();
+        for (Benchmark.Result result : results)
+            report.append(result).append('\n');
+
+        File out = new File("build/benchmark/results.txt");
+        out.getParentFile().mkdirs();
+        FileWriter writer = new FileWriter(out);
+        try {
+            writer.write(report.toString());
+        } finally {
+            writer.close();
+        }
+
+        BenchmarkBaseline baseline = new BenchmarkBaseline(new File(
+                System.getProperty("essdata.benchmark.baseline", "benchmark-baseline.properties")));
+        boolean strict = Boolean.getBoolean("essdata.benchmark.strict");
+        assertFalse("No benchmark baseline to compare with, create one with -PupdateBaseline",
+                strict && baseline.isEmpty() && !Boolean.getBoolean("essdata.benchmark.update"));
+        if (Boolean.getBoolean("essdata.benchmark.update") || baseline.isEmpty()) {
+            baseline.save(results);
+            System.out.println("Benchmark baseline saved");
+            return;
+        }
+
+        double tolerance = Double.parseDouble(System.getProperty("essdata.benchmark.tolerance", "0.2"));
+        List<String> regressions = baseline.compare(results, tolerance);
+        for (String regression : regressions)
+            System.out.println("REGRESSION " + regression);
+        if (strict)
+            assertTrue(regressions.size() + " regressions, see output", regressions.isEmpty());
+    }
+
+    private void run(String name, Benchmark.Operation operation) throws Exception {
+        if (!name.contains(filter))
+            return;
+        Benchmark.Result result = benchmark.run(name, operation);
+        System.out.println(result);
+        results.add(result);
+    }
+
+    private String[] backends() {
+        return new String[]{"prefs", "file"};
+    }
+
+    private EssData open(String backend, ListStorage storage) {
+        EssData.Builder builder = EssData.builder(context).setListStorage(storage);
+        if (backend.equals("file"))
+            builder.setStorageBackend(new FileBackend(new File(context.getFilesDir(), "benchmark")));
+        else
+            builder.setStorageBackend(new SharedPreferencesBackend(context));
+        return builder.build();
+    }
+
+    private static Serializable record(int id) {
+        LinkedHashMap<String, Object> res = new LinkedHashMap<>();
+        res.put("id", id);
+        res.put("name", "item" + id);
+        res.put("done", id % 2 == 0);
+        return res;
+    }
+
+}
@@ -0,0 +1,54 @@
+package com.fivesoft.database;
+
+import android.content.SharedPreferences;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * Plain JVM tests of {@link FileBackend}.
+ */
+public class FileBackendTest extends StorageBackendContract {
+
+    @Override
+    protected StorageBackend createBackend(File directory) {
+        return new FileBackend(directory);
+    }
+
+    @Test
+    public void encodesDocumentNames() {
+        String name = "a/b .c_\u017c";
+        assertEquals(name, FileBackend.decodeName(FileBackend.encodeName(name)));
+    }
+
+    @Test
+    public void keepsDamagedFile() throws IOException {
+        File file = new File(folder.getRoot(), "doc" + FileBackend.EXTENSION);
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[]{1, 2, 3});
+        out.close();
+
+        //Damaged document starts empty and writes don't touch the old file.
+        SharedPreferences doc = createBackend().open("doc");
+        assertTrue(doc.getAll().isEmpty());
+        assertTrue(doc.edit().putString("a", "1").commit());
+        assertEquals("1", createBackend().open("doc").getString("a", null));
+
+        String[] damaged = folder.getRoot().list();
+        assertEquals(2, damaged.length);
+        File kept = null;
+        for (String name : damaged)
+            if (name.startsWith("doc" + FileBackend.EXTENSION + DirectoryBackend.DAMAGED_SUFFIX))
+                kept = new File(folder.getRoot(), name);
+        assertNotNull(kept);
+        assertEquals(3, kept.length());
+        assertEquals(Collections.singletonList("doc"), createBackend().getDocuments());
+    }
+
+}
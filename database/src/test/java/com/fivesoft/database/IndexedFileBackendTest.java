@@ -0,0 +1,220 @@
+package com.fivesoft.database;
+
+import android.content.SharedPreferences;
+
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Plain JVM tests of {@link IndexedFileBackend}.
+ */
+public class IndexedFileBackendTest extends StorageBackendContract {
+
+    @Override
+    protected StorageBackend createBackend(File directory) {
+        return new IndexedFileBackend(directory);
+    }
+
+    @Test
+    public void readsSingleFieldsAfterReopen() {
+        SharedPreferences doc = createBackend().open("doc");
+        SharedPreferences.Editor editor = doc.edit();
+        for (int i = 0; i < 1000; i++)
+            editor.putString("field" + i, "value" + i);
+        editor.putInt("int", 7);
+        assertTrue(editor.commit());
+
+        final int[] loaded = new int[1];
+        IndexedFileBackend backend = new IndexedFileBackend(folder.getRoot());
+        backend.setOnDocumentLoadedListener(new StorageBackend.OnDocumentLoadedListener() {
+            @Override
+            public void onDocumentLoaded(String document, int fields, long nanos) {
+                loaded[0] = fields;
+            }
+        });
+
+        SharedPreferences reopened = backend.open("doc");
+        assertEquals("value500", reopened.getString("field500", null));
+        assertEquals(7, reopened.getInt("int", 0));
+        assertEquals(1001, loaded[0]);
+    }
+
+    @Test
+    public void rewritesWithoutDecodingUntouchedValues() {
+        SharedPreferences doc = createBackend().open("doc");
+        doc.edit().putString("a", "1").putString("b", "2").commit();
+
+        SharedPreferences reopened = createBackend().open("doc");
+        reopened.edit().putString("c", "3").remove("a").commit();
+        reopened.edit().putString("c", "4").commit();
+
+        SharedPreferences last = createBackend().open("doc");
+        assertNull(last.getString("a", null));
+        assertEquals("2", last.getString("b", null));
+        assertEquals("4", last.getString("c", null));
+        assertEquals(2, last.getAll().size());
+    }
+
+    @Test
+    public void rebuildsStaleIndex() throws Exception {
+        SharedPreferences doc = createBackend().open("doc");
+        SharedPreferences.Editor editor = doc.edit();
+        for (int i = 0; i < 20; i++)
+            editor.putString("field" + i, "value" + i);
+        assertTrue(editor.commit());
+
+        //Cut the file inside the last value, its index entry points past the end.
+        File file = new File(folder.getRoot(), "doc" + IndexedFileBackend.EXTENSION);
+        String cut = lastField(file);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 2);
+        raf.close();
+
+        SharedPreferences reopened = createBackend().open("doc");
+        assertFalse(reopened.contains(cut));
+        assertEquals(19, reopened.getAll().size());
+
+        //The file is rewritten on the write thread without the dropped value.
+        final CountDownLatch written = new CountDownLatch(1);
+        IoExecutor.writes().execute(new Runnable() {
+            @Override
+            public void run() {
+                written.countDown();
+            }
+        });
+        assertTrue(written.await(5, TimeUnit.SECONDS));
+        Map<String, Long> index = index(file);
+        assertEquals(19, index.size());
+        assertFalse(index.containsKey(cut));
+
+        SharedPreferences rebuilt = createBackend().open("doc");
+        assertEquals(19, rebuilt.getAll().size());
+        for (int i = 0; i < 20; i++)
+            if (!cut.equals("field" + i))
+                assertEquals("value" + i, rebuilt.getString("field" + i, null));
+
+        //Rebuilt document is written normally.
+        rebuilt.edit().putString(cut, "again").commit();
+        assertEquals("again", createBackend().open("doc").getString(cut, null));
+    }
+
+    @Test
+    public void dropsUnreadableValue() throws Exception {
+        SharedPreferences doc = createBackend().open("doc");
+        assertTrue(doc.edit().putString("a", "1").putString("b", "2").putString("c", "3").commit());
+
+        File file = new File(folder.getRoot(), "doc" + IndexedFileBackend.EXTENSION);
+        corrupt(file, "b");
+
+        SharedPreferences reopened = createBackend().open("doc");
+        assertTrue(reopened.contains("b"));
+        assertNull(reopened.getString("b", null));
+        assertFalse(reopened.contains("b"));
+        assertEquals(2, reopened.getAll().size());
+
+        //The file is rewritten on the write thread without the dropped value.
+        final CountDownLatch written = new CountDownLatch(1);
+        IoExecutor.writes().execute(new Runnable() {
+            @Override
+            public void run() {
+                written.countDown();
+            }
+        });
+        assertTrue(written.await(5, TimeUnit.SECONDS));
+        assertFalse(index(file).containsKey("b"));
+
+        SharedPreferences rebuilt = createBackend().open("doc");
+        assertFalse(rebuilt.contains("b"));
+        assertEquals("1", rebuilt.getString("a", null));
+        assertEquals("3", rebuilt.getString("c", null));
+
+        //Unreadable values found by getAll are dropped as well.
+        corrupt(file, "c");
+        SharedPreferences all = createBackend().open("doc");
+        assertEquals(1, all.getAll().size());
+        assertFalse(all.contains("c"));
+    }
+
+    @Test
+    public void keepsDamagedFile() throws Exception {
+        assertTrue(folder.getRoot().exists());
+        File file = new File(folder.getRoot(), "doc" + IndexedFileBackend.EXTENSION);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.writeInt(12345);
+        raf.close();
+
+        SharedPreferences doc = createBackend().open("doc");
+        assertTrue(doc.getAll().isEmpty());
+        assertTrue(doc.edit().putString("a", "1").commit());
+        assertEquals("1", createBackend().open("doc").getString("a", null));
+
+        int kept = 0;
+        for (String name : folder.getRoot().list())
+            if (name.startsWith("doc" + IndexedFileBackend.EXTENSION + DirectoryBackend.DAMAGED_SUFFIX))
+                kept++;
+        assertEquals(1, kept);
+    }
+
+    /**
+     * Reads the index of a document file.
+     * @return Offsets of values by field.
+     */
+
+    private static Map<String, Long> index(File file) throws Exception {
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readInt();
+            in.readByte();
+            int count = in.readInt();
+            in.readLong();
+            Map<String, Long> res = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                String field = FileBackend.readString(in);
+                res.put(field, in.readLong());
+                in.readInt();
+            }
+            return res;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Replaces the type of a value with an unknown one, the index stays valid.
+     */
+
+    private static void corrupt(File file, String field) throws Exception {
+        long offset = index(file).get(field);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(4 + 1 + 4);
+            raf.seek(raf.readLong() + offset);
+            raf.writeByte(0x7F);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static String lastField(File file) throws Exception {
+        String res = null;
+        long max = -1;
+        for (Map.Entry<String, Long> entry : index(file).entrySet()) {
+            if (entry.getValue() > max) {
+                max = entry.getValue();
+                res = entry.getKey();
+            }
+        }
+        return res;
+    }
+
+}
@@ -0,0 +1,229 @@
+package com.fivesoft.database;
+
+import android.content.SharedPreferences;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@link ListIndexes} and the queries of EssData using them,
+ * on {@link FileBackend} documents. List elements are users with
+ * a name and an age, queries are checked by the names they return.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class ListIndexesTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FileBackend backend;
+    private EssData db;
+
+    @Before
+    public void setUp() {
+        backend = new FileBackend(folder.getRoot());
+        db = build(ListStorage.JSON);
+    }
+
+    @Test
+    public void updatesIndexWithListMutators() throws Exception {
+        db.addToList("doc", "users", user("a", 30), 0);
+        db.addToList("doc", "users", user("b", 20), 1);
+        db.createIndex("doc", "users", "age");
+        assertEquals(names("b"), names(db.findInList("doc", "users", "age", 20)));
+
+        //Every mutator updates keys in place, the list isn't read again.
+        db.addToList("doc", "users", user("c", 20), 0);
+        assertCurrent("age");
+        assertEquals(names("c", "b"), names(db.findInList("doc", "users", "age", 20)));
+
+        db.setInList("doc", "users", user("d", 40), 2);
+        assertCurrent("age");
+        assertEquals(1, db.findInList("doc", "users", "age", 20).size());
+        assertEquals(names("d"), names(db.findInList("doc", "users", "age", 40)));
+
+        db.removeFromList("doc", "users", 0);
+        assertCurrent("age");
+        assertTrue(db.findInList("doc", "users", "age", 20).isEmpty());
+        assertEquals(names("a", "d"), names(db.findRangeInList("doc", "users", "age", null, null)));
+    }
+
+    @Test
+    public void rebuildsIndexWhenListIsSet() {
+        db.set("doc", "users", list(user("a", 30), user("b", 20)));
+        db.createIndex("doc", "users", "age");
+        assertEquals(0, db.indexOfInList("doc", "users", "age", 30));
+
+        db.set("doc", "users", list(user("c", 20), user("d", 30)));
+        assertEquals(1, db.indexOfInList("doc", "users", "age", 30));
+        assertEquals(names("c"), names(db.findInList("doc", "users", "age", 20)));
+
+        db.remove("doc", "users");
+        assertEquals(-1, db.indexOfInList("doc", "users", "age", 30));
+        assertTrue(db.findInList("doc", "users", "age", 20).isEmpty());
+    }
+
+    @Test
+    public void findsRangeBetweenBounds() {
+        db.set("doc", "users", list(user("a", 10), user("b", 18), user("c", 30),
+                user("d", 18), user("e", 65), named("f")));
+        db.createIndex("doc", "users", "age");
+
+        //From is inclusive, to is exclusive, equal keys stay in list order.
+        assertEquals(names("b", "d", "c"), names(db.findRangeInList("doc", "users", "age", 18, 65)));
+        assertEquals(names("b", "d", "c", "e"), names(db.findRangeInList("doc", "users", "age", 18, null)));
+        assertEquals(names("a"), names(db.findRangeInList("doc", "users", "age", null, 18)));
+        assertEquals(names("c"), names(db.findRangeInList("doc", "users", "age", 18.5, 30.5)));
+        assertTrue(db.findRangeInList("doc", "users", "age", 30, 30).isEmpty());
+        assertTrue(db.findRangeInList("doc", "users", "age", 65, 10).isEmpty());
+        //Elements without the property aren't indexed.
+        assertEquals(5, db.findRangeInList("doc", "users", "age", null, null).size());
+        //Values which can't be keys match nothing.
+        assertTrue(db.findRangeInList("doc", "users", "age", new ArrayList<>(), null).isEmpty());
+    }
+
+    @Test
+    public void ordersMixedKeys() {
+        Object[] sorted = {false, true, -1.5, 0L, 2L, 2.5, 3L, "", "a", "b"};
+        for (int i = 0; i < sorted.length; i++) {
+            for (int j = 0; j < sorted.length; j++) {
+                int cmp = ListIndexes.KEY_ORDER.compare(sorted[i], sorted[j]);
+                assertEquals(sorted[i] + " vs " + sorted[j], Integer.signum(Integer.compare(i, j)), Integer.signum(cmp));
+            }
+        }
+
+        //Equal numbers have equal keys whatever their type.
+        assertEquals(3L, ListIndexes.key(3));
+        assertEquals(3L, ListIndexes.key(3.0f));
+        assertEquals(3L, ListIndexes.number("3.0"));
+        assertEquals(2.5, ListIndexes.key(2.5));
+        assertEquals("c", ListIndexes.key('c'));
+        assertNull(ListIndexes.key(new Object()));
+
+        HashMap<String, Object> text = named("text");
+        text.put("key", "5");
+        HashMap<String, Object> flag = named("flag");
+        flag.put("key", true);
+        HashMap<String, Object> number = named("number");
+        number.put("key", 5.0);
+        db.set("doc", "users", list(text, flag, number));
+        db.createIndex("doc", "users", "key");
+        assertEquals(names("flag", "number", "text"), names(db.findRangeInList("doc", "users", "key", null, null)));
+        assertEquals(names("number"), names(db.findInList("doc", "users", "key", 5)));
+        assertEquals(names("text"), names(db.findInList("doc", "users", "key", "5")));
+        assertEquals(names("flag"), names(db.findRangeInList("doc", "users", "key", null, 0)));
+    }
+
+    @Test
+    public void indexesChunkedList() throws Exception {
+        EssData chunked = build(ListStorage.CHUNKED);
+        int size = ChunkedList.CHUNK_SIZE * 3;
+        for (int i = 0; i < size; i++)
+            chunked.addToList("doc", "users", user("u" + i, i % 10), i);
+        assertTrue(ChunkedList.isHeader(backend.open("doc").getString("users", null)));
+        chunked.createIndex("doc", "users", "age");
+        assertEquals(size / 10 + 1, chunked.findInList("doc", "users", "age", 0).size());
+        assertEquals(7, chunked.indexOfInList("doc", "users", "age", 7));
+
+        //Inserted into the middle chunk, positions after it move.
+        chunked.addToList("doc", "users", user("new", 100), ChunkedList.CHUNK_SIZE + 5);
+        assertCurrent("age");
+        assertEquals(ChunkedList.CHUNK_SIZE + 5, chunked.indexOfInList("doc", "users", "age", 100));
+        assertEquals(names("new"), names(chunked.findRangeInList("doc", "users", "age", 10, null)));
+
+        chunked.removeFromList("doc", "users", 0);
+        chunked.setInList("doc", "users", user("last", 50), size - 1);
+        assertCurrent("age");
+        assertEquals(ChunkedList.CHUNK_SIZE + 4, chunked.indexOfInList("doc", "users", "age", 100));
+        assertEquals(size - 1, chunked.indexOfInList("doc", "users", "age", 50));
+        assertEquals(names("u10", "u20"), names(chunked.findInList("doc", "users", "age", 0)).subList(0, 2));
+    }
+
+    @Test
+    public void findsWithoutIndex() {
+        db.set("doc", "users", list(user("a", 30), user("b", 20), user("c", 30)));
+        assertEquals(names("a", "c"), names(db.findInList("doc", "users", "age", 30)));
+        assertEquals(1, db.indexOfInList("doc", "users", "age", 20));
+        assertEquals(-1, db.indexOfInList("doc", "users", "age", 21));
+        assertEquals(names("b", "a", "c"), names(db.findRangeInList("doc", "users", "age", 0, 100)));
+
+        //Created and dropped, queries give the same results either way.
+        db.createIndex("doc", "users", "age");
+        assertNotNull(db.getIndexes().get(backend.open("doc"), "users", "age"));
+        assertEquals(names("a", "c"), names(db.findInList("doc", "users", "age", 30)));
+        db.dropIndex("doc", "users", "age");
+        assertNull(db.getIndexes().get(backend.open("doc"), "users", "age"));
+        assertEquals(names("a", "c"), names(db.findInList("doc", "users", "age", 30)));
+        assertTrue(db.findInList("doc", "missing", "age", 30).isEmpty());
+    }
+
+    /**
+     * Checks that the index describes the saved list without reading it again.
+     */
+
+    private void assertCurrent(String property) throws Exception {
+        SharedPreferences data = backend.open("doc");
+        ListIndexes.Index index = db.getIndexes().get(data, "users", property);
+        assertNotNull(index);
+        index.validate(ChangeDispatcher.raw(data, "users"), new ListIndexes.Source() {
+            @NonNull
+            @Override
+            public List<String> get() {
+                throw new AssertionError("Index was rebuilt");
+            }
+        });
+    }
+
+    private EssData build(ListStorage storage) {
+        return EssData.builder(RuntimeEnvironment.getApplication())
+                .setStorageBackend(backend)
+                .setListStorage(storage)
+                .build();
+    }
+
+    private static HashMap<String, Object> user(String name, int age) {
+        HashMap<String, Object> res = named(name);
+        res.put("age", age);
+        return res;
+    }
+
+    private static HashMap<String, Object> named(String name) {
+        HashMap<String, Object> res = new HashMap<>();
+        res.put("name", name);
+        return res;
+    }
+
+    @SafeVarargs
+    private static ArrayList<HashMap<String, Object>> list(HashMap<String, Object>... users) {
+        return new ArrayList<>(Arrays.asList(users));
+    }
+
+    private static List<String> names(String... names) {
+        return Arrays.asList(names);
+    }
+
+    private static List<String> names(List<?> users) {
+        List<String> res = new ArrayList<>();
+        for (Object user : users)
+            res.add((String) ((Map<?, ?>) user).get("name"));
+        return res;
+    }
+
+}
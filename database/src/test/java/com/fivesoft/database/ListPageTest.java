@@ -0,0 +1,166 @@
+package com.fivesoft.database;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@link EssData#getListPage(String, String, int, int)} and {@link ListPage}
+ * on json and chunked lists.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class ListPageTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private EssData db;
+
+    @Before
+    public void setUp() {
+        db = build(ListStorage.JSON);
+    }
+
+    @Test
+    public void readsPagesOfJsonList() {
+        db.set("doc", "list", values(25));
+        checkPages(25);
+    }
+
+    @Test
+    public void readsPagesOfChunkedList() {
+        db = build(ListStorage.CHUNKED);
+        int size = ChunkedList.CHUNK_SIZE * 3;
+        db.set("doc", "list", values(size - 1));
+        //The first modification of a long list splits it into chunks.
+        db.addToList("doc", "list", size - 1, Integer.MAX_VALUE);
+        assertTrue(ChunkedList.isHeader(db.getData("doc").getString("list", null)));
+        checkPages(size);
+    }
+
+    @Test
+    public void clampsBounds() {
+        db.set("doc", "list", values(10));
+
+        ListPage<Integer> page = db.getListPage("doc", "list", -5, 3, Integer.class);
+        assertEquals(0, page.getOffset());
+        assertEquals(values(3), page.getItems());
+
+        page = db.getListPage("doc", "list", 8, 5, Integer.class);
+        assertEquals(2, page.size());
+        assertEquals(10, page.getTotal());
+        assertFalse(page.hasNext());
+
+        page = db.getListPage("doc", "list", 10, 5, Integer.class);
+        assertEquals(0, page.size());
+        assertEquals(10, page.getTotal());
+        assertFalse(page.hasNext());
+
+        page = db.getListPage("doc", "list", 20, 5, Integer.class);
+        assertEquals(0, page.size());
+        assertEquals(20, page.getOffset());
+        assertFalse(page.hasNext());
+
+        //Empty page which isn't at the end still has next elements.
+        page = db.getListPage("doc", "list", 4, -1, Integer.class);
+        assertEquals(0, page.size());
+        assertTrue(page.hasNext());
+    }
+
+    @Test
+    public void returnsEmptyPageForMissingList() {
+        db.set("doc", "text", "value");
+
+        ListPage<Object> page = db.getListPage("doc", "missing", 0, 10);
+        assertEquals(0, page.size());
+        assertEquals(0, page.getTotal());
+        assertFalse(page.hasNext());
+
+        page = db.getListPage("doc", "text", 0, 10);
+        assertEquals(0, page.size());
+        assertFalse(page.hasNext());
+
+        page = db.getListPage(null, "list", 3, 10);
+        assertEquals(3, page.getOffset());
+        assertFalse(page.hasNext());
+    }
+
+    @Test
+    public void returnsFreshPageAfterChange() {
+        db.set("doc", "list", values(10));
+        ListPage<Integer> page = db.getListPage("doc", "list", 5, 5, Integer.class);
+        assertFalse(page.hasNext());
+
+        db.addToList("doc", "list", 10, Integer.MAX_VALUE);
+        ListPage<Integer> changed = db.getListPage("doc", "list", 5, 5, Integer.class);
+        assertEquals(11, changed.getTotal());
+        assertTrue(changed.hasNext());
+        //The old page isn't affected.
+        assertEquals(10, page.getTotal());
+
+        try {
+            changed.getItems().add(1);
+            fail();
+        } catch (UnsupportedOperationException e) {
+            //Expected.
+        }
+    }
+
+    /**
+     * Reads list of given size page by page with a few page sizes
+     * and checks elements, positions and {@link ListPage#hasNext()}.
+     */
+
+    private void checkPages(int size) {
+        for (int limit : new int[]{1, 7, 10, size, size + 5}) {
+            List<Integer> read = new ArrayList<>();
+            int offset = 0;
+            ListPage<Integer> page;
+            do {
+                page = db.getListPage("doc", "list", offset, limit, Integer.class);
+                assertEquals(offset, page.getOffset());
+                assertEquals(size, page.getTotal());
+                assertEquals(Math.min(limit, size - offset), page.size());
+                assertEquals(offset + limit < size, page.hasNext());
+                for (int i = offset; i < offset + page.size(); i++)
+                    assertEquals(i, (int) page.get(i));
+                read.addAll(page.getItems());
+                offset += limit;
+            } while (page.hasNext());
+            assertEquals(values(size), read);
+        }
+    }
+
+    private EssData build(ListStorage storage) {
+        return EssData.builder(RuntimeEnvironment.getApplication())
+                .setStorageBackend(new FileBackend(folder.getRoot()))
+                .setListStorage(storage)
+                .setIoExecutor(new Executor() {
+                    @Override
+                    public void execute(Runnable command) {
+                        command.run();
+                    }
+                })
+                .build();
+    }
+
+    private static ArrayList<Integer> values(int count) {
+        ArrayList<Integer> res = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+            res.add(i);
+        return res;
+    }
+
+}
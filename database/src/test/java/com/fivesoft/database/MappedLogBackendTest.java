@@ -0,0 +1,226 @@
+package com.fivesoft.database;
+
+import android.content.SharedPreferences;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Plain JVM tests of {@link MappedLogBackend}.
+ */
+public class MappedLogBackendTest extends StorageBackendContract {
+
+    @Override
+    protected StorageBackend createBackend(File directory) {
+        return new MappedLogBackend(directory);
+    }
+
+    @Test
+    public void replaysLog() {
+        SharedPreferences doc = createBackend().open("doc");
+        doc.edit().putString("a", "1").putInt("b", 2).commit();
+        doc.edit().putString("a", "3").remove("b").putLong("c", 4L).commit();
+        doc.edit().clear().putString("d", "5").commit();
+
+        SharedPreferences reopened = createBackend().open("doc");
+        assertEquals("5", reopened.getString("d", null));
+        assertEquals(1, reopened.getAll().size());
+    }
+
+    @Test
+    public void dropsDamagedRecord() throws Exception {
+        SharedPreferences doc = createBackend().open("doc");
+        doc.edit().putString("a", "first").commit();
+        doc.edit().putString("a", "second").commit();
+
+        //Damage the last byte of the second record, like a crash in the middle of a write.
+        RandomAccessFile raf = new RandomAccessFile(logFile(), "rw");
+        int pos = recordOffset(raf, 1);
+        int second = raf.readInt();
+        raf.seek(pos + 8 + second - 1);
+        raf.write('x');
+        raf.close();
+
+        assertEquals("first", createBackend().open("doc").getString("a", null));
+    }
+
+    @Test
+    public void recoversFromTornRecord() throws Exception {
+        SharedPreferences doc = createBackend().open("doc");
+        doc.edit().putString("a", "first").commit();
+        doc.edit().putString("a", "second").putString("b", "torn").commit();
+        doc.edit().putString("c", "after").commit();
+
+        //Payload of the second record is complete but its CRC32 isn't.
+        RandomAccessFile raf = new RandomAccessFile(logFile(), "rw");
+        int pos = recordOffset(raf, 1);
+        raf.seek(pos + 4);
+        int crc = raf.readInt();
+        raf.seek(pos + 4);
+        raf.writeInt(crc ^ 1);
+        raf.close();
+
+        //The record and everything after it is dropped.
+        SharedPreferences reopened = createBackend().open("doc");
+        assertEquals("first", reopened.getString("a", null));
+        assertFalse(reopened.contains("b"));
+        assertFalse(reopened.contains("c"));
+
+        //New records replace the torn one and are replayed after reopening.
+        reopened.edit().putString("d", "new").commit();
+        SharedPreferences last = createBackend().open("doc");
+        assertEquals("first", last.getString("a", null));
+        assertEquals("new", last.getString("d", null));
+        assertEquals(2, last.getAll().size());
+    }
+
+    @Test
+    public void compactsOverriddenValues() {
+        MappedLogBackend.LogDocument doc = (MappedLogBackend.LogDocument) createBackend().open("doc");
+        String value = value();
+        for (int i = 0; i < 2000; i++)
+            doc.edit().putString("field" + (i % 10), value + i).commit();
+
+        doc.compact();
+        assertTrue(logFile().length() < 256 * 1024);
+
+        SharedPreferences reopened = createBackend().open("doc");
+        assertEquals(10, reopened.getAll().size());
+        assertEquals(value + 1999, reopened.getString("field9", null));
+    }
+
+    @Test
+    public void compactsUnderContinuousWrites() throws Exception {
+        final MappedLogBackend.LogDocument doc = (MappedLogBackend.LogDocument) createBackend().open("doc");
+        String value = value();
+        //Stays below the size which starts compaction on its own.
+        for (int i = 0; i < 200; i++)
+            doc.edit().putString("field" + (i % 10), value + i).commit();
+        int before = doc.getLogSize();
+        assertTrue(before > 150 * 1024);
+
+        final AtomicBoolean stop = new AtomicBoolean();
+        final AtomicInteger written = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; !stop.get(); i++) {
+                    doc.edit().putInt("counter", i).putString("writer" + (i % 5), "w" + i).commit();
+                    written.set(i + 1);
+                    if (i == 10)
+                        started.countDown();
+                }
+            }
+        });
+        writer.start();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        int writtenBefore = written.get();
+        doc.compact();
+        int after = doc.getLogSize();
+        int writtenAfter = written.get();
+        stop.set(true);
+        writer.join();
+
+        //Compaction wasn't given up because of the writes.
+        assertTrue(writtenAfter > writtenBefore);
+        assertTrue(after < before / 2);
+
+        int last = written.get() - 1;
+        assertEquals(last, doc.getInt("counter", -1));
+        SharedPreferences reopened = createBackend().open("doc");
+        assertEquals(last, reopened.getInt("counter", -1));
+        for (int i = Math.max(0, last - 4); i <= last; i++)
+            assertEquals("w" + i, reopened.getString("writer" + (i % 5), null));
+        assertEquals(value + 199, reopened.getString("field9", null));
+        assertEquals(16, reopened.getAll().size());
+    }
+
+    @Test
+    public void keepsFileWithDamagedHeader() throws Exception {
+        assertTrue(folder.getRoot().exists());
+        RandomAccessFile raf = new RandomAccessFile(logFile(), "rw");
+        raf.writeInt(12345);
+        raf.close();
+
+        SharedPreferences doc = createBackend().open("doc");
+        assertTrue(doc.getAll().isEmpty());
+        doc.edit().putString("a", "1").commit();
+        assertEquals("1", createBackend().open("doc").getString("a", null));
+
+        int kept = 0;
+        for (String name : folder.getRoot().list())
+            if (name.startsWith("doc" + MappedLogBackend.EXTENSION + DirectoryBackend.DAMAGED_SUFFIX))
+                kept++;
+        assertEquals(1, kept);
+    }
+
+    @Test
+    public void failsCommitToDamagedLog() throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(logFile(), "rw");
+        raf.writeInt(12345);
+        raf.close();
+        //Directories in place of every name the damaged file could be moved to
+        //in the next seconds, so it can't be moved aside.
+        long now = System.currentTimeMillis();
+        for (long time = now; time < now + 10000; time++) {
+            File dir = new File(folder.getRoot(), logFile().getName() + DirectoryBackend.DAMAGED_SUFFIX + time);
+            assertTrue(new File(dir, "blocked").mkdirs());
+        }
+
+        SharedPreferences doc = createBackend().open("doc");
+        assertTrue(doc.getAll().isEmpty());
+        assertFalse(doc.edit().putString("a", "1").commit());
+        doc.edit().putString("b", "2").apply();
+        assertFalse(doc.contains("a"));
+        assertFalse(doc.contains("b"));
+
+        //The damaged file is never overwritten.
+        assertEquals(4, logFile().length());
+    }
+
+    @Test
+    public void failsCommitWhenLogCantBeWritten() throws Exception {
+        //A file in place of the directory of documents.
+        File root = folder.newFile("root");
+        SharedPreferences doc = createBackend(root).open("doc");
+        assertFalse(doc.edit().putString("a", "1").commit());
+        assertFalse(doc.contains("a"));
+    }
+
+    private File logFile() {
+        return new File(folder.getRoot(), "doc" + MappedLogBackend.EXTENSION);
+    }
+
+    /**
+     * Moves to the length of given record.
+     * @return File offset of the record.
+     */
+
+    private static int recordOffset(RandomAccessFile raf, int record) throws Exception {
+        int pos = 8;
+        for (int i = 0; i < record; i++) {
+            raf.seek(pos);
+            pos += 8 + raf.readInt();
+        }
+        raf.seek(pos);
+        return pos;
+    }
+
+    private static String value() {
+        StringBuilder res = new StringBuilder();
+        for (int i = 0; i < 1000; i++)
+            res.append('v');
+        return res.toString();
+    }
+
+}
@@ -0,0 +1,60 @@
+package com.fivesoft.database;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Plain JVM tests of {@link MetricsRegistry} and {@link MetricsSnapshot}.
+ */
+public class MetricsRegistryTest {
+
+    @Test
+    public void bucketsCoverValues() {
+        long previous = -1;
+        for (int i = 0; i < MetricsRegistry.Histogram.BUCKETS; i++) {
+            long bound = MetricsRegistry.Histogram.upperBound(i);
+            assertTrue(bound > previous);
+            assertEquals(i, MetricsRegistry.Histogram.bucket(bound));
+            assertEquals(i, MetricsRegistry.Histogram.bucket(previous + 1));
+            previous = bound;
+        }
+        assertEquals(MetricsRegistry.Histogram.BUCKETS - 1, MetricsRegistry.Histogram.bucket(Long.MAX_VALUE));
+        assertEquals(0, MetricsRegistry.Histogram.bucket(-5));
+    }
+
+    @Test
+    public void snapshotsRecordedOperations() {
+        MetricsRegistry registry = new MetricsRegistry();
+        for (int i = 0; i < 100; i++)
+            registry.record("doc", MetricsRegistry.Operation.WRITE, System.nanoTime(), 10);
+        registry.onCacheHit("doc");
+        registry.onCacheHit("doc");
+        registry.onCacheMiss("doc");
+        registry.onDocumentLoaded("doc", 3, 1_000_000);
+
+        MetricsSnapshot snapshot = registry.snapshot();
+        MetricsSnapshot.OperationMetrics writes = snapshot.get("doc", MetricsRegistry.Operation.WRITE);
+        assertNotNull(writes);
+        assertEquals(100, writes.getCount());
+        assertEquals(1000, writes.getSize());
+        assertTrue(writes.getPercentileNanos(50) <= writes.getPercentileNanos(99));
+        assertTrue(writes.getPercentileNanos(99) <= writes.getMaxNanos());
+
+        MetricsSnapshot.OperationMetrics loads = snapshot.get("doc", MetricsRegistry.Operation.LOAD);
+        assertNotNull(loads);
+        assertEquals(1_000_000, loads.getMaxNanos());
+        //Within histogram precision.
+        assertTrue(loads.getPercentileNanos(50) >= 1_000_000 * 7 / 8);
+
+        assertEquals(2.0 / 3, snapshot.get("doc").getCacheHitRate(), 1e-9);
+        assertNull(snapshot.get("doc", MetricsRegistry.Operation.READ));
+        assertNull(snapshot.get("other"));
+
+        //Snapshot doesn't change with later operations.
+        registry.reset();
+        assertEquals(100, writes.getCount());
+        assertTrue(registry.snapshot().getDocuments().isEmpty());
+    }
+
+}
@@ -0,0 +1,124 @@
+package com.fivesoft.database;
+
+import android.content.SharedPreferences;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@link EssData#prefetch(String...)} on {@link FileBackend} documents.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class PrefetchTest {
+
+    private static final Object MISS = new Object();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void loadsAndDecodesDocuments() throws Exception {
+        EssData writer = build(new FileBackend(folder.getRoot()), null);
+        writer.set("a", "list", new ArrayList<>(Arrays.asList(1, 2, 3)));
+        writer.set("b", "text", "value");
+        //Values are applied, wait until they are written.
+        final CountDownLatch written = new CountDownLatch(1);
+        IoExecutor.writes().execute(new Runnable() {
+            @Override
+            public void run() {
+                written.countDown();
+            }
+        });
+        assertTrue(written.await(5, TimeUnit.SECONDS));
+
+        //New backend, so documents are read from disk again.
+        FileBackend backend = new FileBackend(folder.getRoot());
+        final List<String> loaded = Collections.synchronizedList(new ArrayList<String>());
+        backend.setOnDocumentLoadedListener(new StorageBackend.OnDocumentLoadedListener() {
+            @Override
+            public void onDocumentLoaded(String document, int fields, long nanos) {
+                loaded.add(document);
+            }
+        });
+        ExecutorService io = Executors.newFixedThreadPool(2);
+        try {
+            EssData db = build(backend, io);
+            Prefetch prefetch = db.prefetch("a", "b");
+            assertTrue(prefetch.await(5, TimeUnit.SECONDS));
+            assertTrue(prefetch.isDone());
+
+            assertEquals(2, loaded.size());
+            assertTrue(loaded.containsAll(Arrays.asList("a", "b")));
+            assertEquals(2, prefetch.getDurations().size());
+            assertTrue(prefetch.getDuration("a") >= 0);
+            assertEquals(-1, prefetch.getDuration("c"));
+
+            //Values are decoded into the cache.
+            SharedPreferences data = db.getData("a");
+            assertNotSame(MISS, db.getCache().peek(data, "list", data.getString("list", null), MISS));
+            assertEquals(Arrays.asList(1, 2, 3), db.getList("a", "list", Integer.class));
+            assertEquals("value", db.get("b", "text"));
+            //Reads didn't load the documents again.
+            assertEquals(2, loaded.size());
+        } finally {
+            io.shutdownNow();
+        }
+    }
+
+    @Test
+    public void reportsProgress() throws Exception {
+        final List<Runnable> tasks = new ArrayList<>();
+        EssData db = build(new FileBackend(folder.getRoot()), new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                tasks.add(command);
+            }
+        });
+
+        Prefetch prefetch = db.prefetch("a", "b");
+        assertEquals(2, tasks.size());
+        assertFalse(prefetch.isDone());
+        assertFalse(prefetch.await(10, TimeUnit.MILLISECONDS));
+        assertEquals(-1, prefetch.getDuration("a"));
+
+        tasks.get(0).run();
+        assertFalse(prefetch.isDone());
+        assertEquals(1, prefetch.getDurations().size());
+        tasks.get(1).run();
+        assertTrue(prefetch.isDone());
+        prefetch.await();
+
+        String[] documents = prefetch.getDocuments();
+        documents[0] = "changed";
+        assertEquals("a", prefetch.getDocuments()[0]);
+
+        assertTrue(db.prefetch().isDone());
+    }
+
+    private EssData build(StorageBackend backend, Executor io) {
+        EssData.Builder builder = EssData.builder(RuntimeEnvironment.getApplication())
+                .setStorageBackend(backend);
+        if (io != null)
+            builder.setIoExecutor(io);
+        return builder.build();
+    }
+
+}
@@ -0,0 +1,168 @@
+package com.fivesoft.database;
+
+import android.content.SharedPreferences;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.junit.Assert.*;
+
+/**
+ * Plain JVM tests of {@link Primitives} on {@link FileBackend} documents.
+ */
+public class PrimitivesTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SharedPreferences doc;
+    private Codec codec;
+
+    @Before
+    public void setUp() {
+        doc = new FileBackend(folder.getRoot()).open("doc");
+        codec = Codec.getDefault();
+    }
+
+    @Test
+    public void migratesJsonToNativeValues() {
+        doc.edit()
+                .putString("int", "5")
+                .putString("long", "9007199254740993")
+                .putString("float", "1.5")
+                .putString("boolean", "true")
+                .commit();
+
+        assertEquals(5, Primitives.migrate(doc, "int", Integer.class, codec));
+        //Above 2^53, so it would change if decoded as a double.
+        assertEquals(9007199254740993L, Primitives.migrate(doc, "long", Long.class, codec));
+        assertEquals(1.5f, Primitives.migrate(doc, "float", Float.class, codec));
+        assertEquals(true, Primitives.migrate(doc, "boolean", Boolean.class, codec));
+
+        //Saved back natively, typed getters don't need json anymore.
+        assertEquals(5, doc.getInt("int", 0));
+        assertEquals(9007199254740993L, doc.getLong("long", 0));
+        assertTrue(doc.getBoolean("boolean", false));
+        //The json number may be a double, it isn't replaced by a float.
+        assertEquals("1.5", doc.getString("float", null));
+        assertEquals(5, doc.getAll().get("int"));
+    }
+
+    @Test
+    public void keepsValuesWhichCantBeConverted() {
+        doc.edit()
+                .putString("fraction", "5.5")
+                .putString("text", "\"text\"")
+                .putString("broken", "{")
+                .putString("number", "5")
+                .commit();
+
+        assertNull(Primitives.migrate(doc, "fraction", Integer.class, codec));
+        assertNull(Primitives.migrate(doc, "text", Integer.class, codec));
+        assertNull(Primitives.migrate(doc, "broken", Long.class, codec));
+        assertNull(Primitives.migrate(doc, "number", Boolean.class, codec));
+
+        assertEquals("5.5", doc.getString("fraction", null));
+        assertEquals("\"text\"", doc.getString("text", null));
+        assertEquals("{", doc.getString("broken", null));
+        assertEquals("5", doc.getString("number", null));
+    }
+
+    @Test
+    public void savesOnlyExactConversions() {
+        doc.edit()
+                .putString("fraction", "0.1")
+                .putString("long", "5.5")
+                .putString("big", "16777217")
+                .commit();
+
+        //Rounded to the nearest float, the json stays as with every float.
+        assertEquals(0.1f, Primitives.migrate(doc, "fraction", Float.class, codec));
+        assertEquals(16777216f, Primitives.migrate(doc, "big", Float.class, codec));
+        assertNull(Primitives.migrate(doc, "long", Long.class, codec));
+        assertEquals("0.1", doc.getString("fraction", null));
+        assertEquals("16777217", doc.getString("big", null));
+        assertEquals("5.5", doc.getString("long", null));
+
+        //Still exact when read with the right getter.
+        assertEquals(16777217L, Primitives.migrate(doc, "big", Long.class, codec));
+        assertEquals(16777217L, doc.getLong("big", 0));
+    }
+
+    @Test
+    public void keepsValueSetDuringMigration() throws Exception {
+        doc.edit().putString("field", "5").commit();
+        ReentrantLock lock = FieldLocks.get(doc, "field");
+        final AtomicReference<Object> res = new AtomicReference<>();
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                res.set(Primitives.migrate(doc, "field", Integer.class, codec));
+            }
+        });
+
+        lock.lock();
+        try {
+            reader.start();
+            long end = System.currentTimeMillis() + 5000;
+            while (!lock.hasQueuedThread(reader) && System.currentTimeMillis() < end)
+                Thread.sleep(1);
+            //Waits for the lock before saving.
+            assertTrue(lock.hasQueuedThread(reader));
+            doc.edit().putString("field", "\"text\"").commit();
+        } finally {
+            lock.unlock();
+        }
+        reader.join(10000);
+
+        //Returns what it read, but doesn't replace the newer value.
+        assertEquals(5, res.get());
+        assertEquals("\"text\"", doc.getString("field", null));
+    }
+
+    @Test
+    public void convertsNativeValuesOfOtherType() {
+        doc.edit()
+                .putLong("long", 7L)
+                .putLong("big", Long.MAX_VALUE)
+                .putInt("int", 3)
+                .putFloat("float", 2.5f)
+                .commit();
+
+        //A long read with getInt.
+        assertEquals(7, Primitives.migrate(doc, "long", Integer.class, codec));
+        assertNull(Primitives.migrate(doc, "big", Integer.class, codec));
+        assertEquals(3L, Primitives.migrate(doc, "int", Long.class, codec));
+        assertEquals(3f, Primitives.migrate(doc, "int", Float.class, codec));
+        assertNull(Primitives.migrate(doc, "float", Long.class, codec));
+        assertNull(Primitives.migrate(doc, "int", Boolean.class, codec));
+
+        //Native values are left as they are.
+        assertEquals(7L, doc.getLong("long", 0));
+        assertEquals(3, doc.getInt("int", 0));
+    }
+
+    @Test
+    public void putsOnlyNativeTypes() {
+        SharedPreferences.Editor editor = doc.edit();
+        assertTrue(Primitives.put(editor, "int", 1));
+        assertTrue(Primitives.put(editor, "long", 2L));
+        assertTrue(Primitives.put(editor, "float", 3f));
+        assertTrue(Primitives.put(editor, "boolean", true));
+        assertFalse(Primitives.put(editor, "double", 4.0));
+        assertFalse(Primitives.put(editor, "string", "5"));
+        assertFalse(Primitives.put(editor, "null", null));
+        editor.commit();
+
+        assertEquals(4, doc.getAll().size());
+        assertEquals(2L, Primitives.get(doc, "long"));
+        assertTrue(Primitives.isNative(1));
+        assertFalse(Primitives.isNative(1.0));
+    }
+
+}
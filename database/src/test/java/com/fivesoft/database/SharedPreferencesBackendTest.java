@@ -0,0 +1,171 @@
+package com.fivesoft.database;
+
+import android.content.Context;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the document catalog and clearing of {@link SharedPreferencesBackend}. The main looper
+ * isn't run, so listeners notified about background writes are never called.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class SharedPreferencesBackendTest {
+
+    private Context context;
+
+    @Before
+    public void setUp() {
+        context = RuntimeEnvironment.getApplication();
+    }
+
+    @Test
+    public void listsDocumentWrittenOnBackgroundThread() throws Exception {
+        final SharedPreferencesBackend backend = new SharedPreferencesBackend(context);
+        backend.open("opened");
+        assertFalse(backend.getDocuments().contains("opened"));
+
+        inBackground(new Runnable() {
+            @Override
+            public void run() {
+                backend.open("doc").edit().putString("field", "value").apply();
+            }
+        });
+        assertTrue(backend.contains("doc"));
+        assertTrue(backend.getDocuments().contains("doc"));
+        assertFalse(backend.getDocuments().contains("opened"));
+
+        //Saved in the catalog file, new backends see it without the pending set.
+        assertTrue(new SharedPreferencesBackend(context).getDocuments().contains("doc"));
+    }
+
+    @Test
+    public void listsDocumentWrittenThroughEssData() throws Exception {
+        final EssData db = EssData.builder(context)
+                .setStorageBackend(new SharedPreferencesBackend(context))
+                .build();
+        inBackground(new Runnable() {
+            @Override
+            public void run() {
+                db.set("doc", "field", 1);
+            }
+        });
+        assertTrue(db.getDocuments().contains("doc"));
+    }
+
+    @Test
+    public void sharesCatalogBetweenBackends() throws Exception {
+        final SharedPreferencesBackend writer = new SharedPreferencesBackend(context);
+        SharedPreferencesBackend reader = new SharedPreferencesBackend(context);
+        //Both catalogs are loaded before the write.
+        assertTrue(writer.getDocuments().isEmpty());
+        assertTrue(reader.getDocuments().isEmpty());
+
+        inBackground(new Runnable() {
+            @Override
+            public void run() {
+                writer.open("doc").edit().putInt("field", 1).commit();
+            }
+        });
+        assertTrue(reader.contains("doc"));
+        assertTrue(reader.getDocuments().contains("doc"));
+    }
+
+    @Test
+    public void removesClearedDocument() throws Exception {
+        final SharedPreferencesBackend backend = new SharedPreferencesBackend(context);
+        inBackground(new Runnable() {
+            @Override
+            public void run() {
+                backend.open("doc").edit().putString("field", "value").commit();
+            }
+        });
+        assertTrue(backend.getDocuments().contains("doc"));
+
+        backend.clear("doc");
+        assertFalse(backend.contains("doc"));
+        assertFalse(backend.getDocuments().contains("doc"));
+        assertFalse(new SharedPreferencesBackend(context).getDocuments().contains("doc"));
+
+        inBackground(new Runnable() {
+            @Override
+            public void run() {
+                backend.open("doc").edit().putString("field", "again").commit();
+            }
+        });
+        assertTrue(backend.getDocuments().contains("doc"));
+    }
+
+    @Test
+    public void clearedDocumentStaysEmpty() {
+        EssData db = EssData.builder(context)
+                .setStorageBackend(new SharedPreferencesBackend(context))
+                .build();
+        ArrayList<HashMap<String, Object>> users = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            HashMap<String, Object> user = new HashMap<>();
+            user.put("id", i);
+            users.add(user);
+        }
+        db.set("doc", "name", "value");
+        db.set("doc", "users", users);
+        db.createIndex("doc", "users", "id");
+
+        //Fills the decode cache, a cached page and the index.
+        assertEquals("value", db.get("doc", "name"));
+        assertEquals(3, db.getList("doc", "users").size());
+        assertEquals(3, db.getListPage("doc", "users", 0, 10).getItems().size());
+        assertEquals(1, db.findInList("doc", "users", "id", 1).size());
+
+        db.clear("doc");
+        assertNull(db.get("doc", "name"));
+        assertTrue(db.getList("doc", "users").isEmpty());
+        ListPage<Object> page = db.getListPage("doc", "users", 0, 10);
+        assertTrue(page.getItems().isEmpty());
+        assertEquals(0, page.getTotal());
+        assertTrue(db.findInList("doc", "users", "id", 1).isEmpty());
+        assertEquals(-1, db.indexOfInList("doc", "users", "id", 1));
+
+        //Later writes go through the same SharedPreferences, old values don't come back.
+        db.set("doc", "other", "new");
+        assertNull(db.get("doc", "name"));
+        assertEquals("new", db.get("doc", "other"));
+        assertEquals(Collections.singleton("other"), new SharedPreferencesBackend(context).open("doc").getAll().keySet());
+    }
+
+    /**
+     * Runs the task on a new thread and waits until it finishes.
+     */
+
+    private static void inBackground(final Runnable task) throws Exception {
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } catch (Throwable e) {
+                    error.set(e);
+                }
+            }
+        });
+        thread.start();
+        thread.join(10000);
+        assertFalse(thread.isAlive());
+        if (error.get() != null)
+            throw new AssertionError(error.get());
+    }
+
+}
@@ -0,0 +1,150 @@
+package com.fivesoft.database;
+
+import android.content.SharedPreferences;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Behaviour shared by all {@link StorageBackend}s keeping documents in a directory.
+ * Subclasses create the backend and add their own cases.
+ */
+public abstract class StorageBackendContract {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Creates new backend over given directory, every call simulates
+     * a new process reading what the previous one saved.
+     */
+    protected abstract StorageBackend createBackend(File directory);
+
+    protected StorageBackend createBackend() {
+        return createBackend(folder.getRoot());
+    }
+
+    @Test
+    public void savesAndLoadsAllTypes() {
+        SharedPreferences doc = createBackend().open("settings/main");
+        assertTrue(doc.edit()
+                .putString("string", "\u017c\u00f3\u0142w")
+                .putInt("int", 5)
+                .putLong("long", Long.MAX_VALUE)
+                .putFloat("float", 1.5f)
+                .putBoolean("boolean", true)
+                .putStringSet("set", new HashSet<>(Collections.singletonList("a")))
+                .commit());
+
+        Map<String, ?> all = createBackend().open("settings/main").getAll();
+        assertEquals(6, all.size());
+        assertEquals("\u017c\u00f3\u0142w", all.get("string"));
+        assertEquals(5, all.get("int"));
+        assertEquals(Long.MAX_VALUE, all.get("long"));
+        assertEquals(1.5f, all.get("float"));
+        assertEquals(true, all.get("boolean"));
+        assertEquals(Collections.singleton("a"), all.get("set"));
+        assertEquals(Collections.singletonList("settings/main"), createBackend().getDocuments());
+    }
+
+    @Test
+    public void listsDocumentsWithoutLoadingThem() {
+        DirectoryBackend backend = (DirectoryBackend) createBackend();
+        assertTrue(backend.open("doc").edit().putString("a", "1").commit());
+        backend.open("opened");
+        backend.releaseUnused(0);
+
+        final int[] loads = new int[1];
+        backend.setOnDocumentLoadedListener(new StorageBackend.OnDocumentLoadedListener() {
+            @Override
+            public void onDocumentLoaded(String document, int fields, long nanos) {
+                loads[0]++;
+            }
+        });
+        assertEquals(Collections.singletonList("doc"), backend.getDocuments());
+        assertEquals(0, loads[0]);
+
+        //Loaded documents are listed from memory.
+        backend.open("opened").edit().putString("a", "1").apply();
+        assertEquals(new HashSet<>(Arrays.asList("doc", "opened")), new HashSet<>(backend.getDocuments()));
+    }
+
+    @Test
+    public void returnsSameHandle() {
+        StorageBackend backend = createBackend();
+        SharedPreferences doc = backend.open("doc");
+        assertSame(doc, backend.open("doc"));
+        assertNotSame(doc, backend.open("other"));
+
+        //Documents exist once they are written.
+        assertTrue(backend.getDocuments().isEmpty());
+        doc.edit().putString("a", "1").apply();
+        assertEquals(Collections.singletonList("doc"), backend.getDocuments());
+    }
+
+    @Test
+    public void overridesAndRemovesFields() {
+        SharedPreferences doc = createBackend().open("doc");
+        doc.edit().putString("a", "1").putString("b", "2").putInt("c", 3).commit();
+        doc.edit().remove("a").putString("b", "changed").putInt("c", 4).commit();
+        assertEquals("changed", doc.getString("b", null));
+
+        SharedPreferences reopened = createBackend().open("doc");
+        assertFalse(reopened.contains("a"));
+        assertEquals("changed", reopened.getString("b", null));
+        assertEquals(4, reopened.getInt("c", 0));
+        assertEquals(2, reopened.getAll().size());
+    }
+
+    @Test
+    public void clearsDocument() {
+        StorageBackend backend = createBackend();
+        backend.open("doc").edit().putString("a", "1").commit();
+        backend.open("other").edit().putString("b", "2").commit();
+
+        backend.clear("doc");
+        assertTrue(backend.open("doc").getAll().isEmpty());
+        assertEquals(Collections.singletonList("other"), backend.getDocuments());
+        assertTrue(createBackend().open("doc").getAll().isEmpty());
+        assertEquals("2", createBackend().open("other").getString("b", null));
+
+        //Cleared document can be written again.
+        backend.open("doc").edit().putString("c", "3").commit();
+        assertEquals("3", createBackend().open("doc").getString("c", null));
+        assertEquals(new HashSet<>(Arrays.asList("doc", "other")),
+                new HashSet<>(createBackend().getDocuments()));
+    }
+
+    @Test
+    public void notifiesListeners() {
+        SharedPreferences doc = createBackend().open("doc");
+        final StringBuilder changed = new StringBuilder();
+        SharedPreferences.OnSharedPreferenceChangeListener listener =
+                new SharedPreferences.OnSharedPreferenceChangeListener() {
+                    @Override
+                    public void onSharedPreferenceChanged(SharedPreferences data, String key) {
+                        changed.append(key).append(';');
+                    }
+                };
+        doc.registerOnSharedPreferenceChangeListener(listener);
+        doc.edit().putInt("x", 1).apply();
+        //Same value, nothing changed.
+        doc.edit().putInt("x", 1).apply();
+        doc.edit().remove("x").commit();
+        assertEquals("x;x;", changed.toString());
+
+        doc.unregisterOnSharedPreferenceChangeListener(listener);
+        doc.edit().putInt("y", 1).commit();
+        assertEquals("x;x;", changed.toString());
+    }
+
+}
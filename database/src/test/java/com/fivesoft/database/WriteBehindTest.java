@@ -0,0 +1,181 @@
+package com.fivesoft.database;
+
+import android.content.SharedPreferences;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@link WriteBehind} and of EssData in write-behind mode
+ * on {@link FileBackend} documents. The delay is long, so values are
+ * saved only by explicit flushes unless a test says otherwise.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class WriteBehindTest {
+
+    private static final long DELAY = TimeUnit.MINUTES.toMillis(10);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FileBackend backend;
+    private EssData db;
+
+    @Before
+    public void setUp() {
+        backend = new FileBackend(folder.getRoot());
+        db = EssData.builder(RuntimeEnvironment.getApplication())
+                .setStorageBackend(backend)
+                .setWriteBehind(DELAY, 100)
+                .build();
+    }
+
+    @Test
+    public void keepsValuesUntilFlush() {
+        db.set("doc", "a", "first");
+        db.set("doc", "a", "second");
+        db.set("doc", "b", 5);
+        assertTrue(stored().getAll().isEmpty());
+        assertEquals(5, db.getInt("doc", "b"));
+        assertEquals("second", db.get("doc", "a"));
+
+        db.flush("doc");
+        assertEquals(2, stored().getAll().size());
+        assertEquals(5, stored().getInt("b", 0));
+        assertEquals("second", reopened().get("doc", "a"));
+    }
+
+    @Test
+    public void removesPendingValueWhenSetToNull() {
+        db.set("doc", "a", "saved");
+        db.flush();
+        db.set("doc", "a", "pending");
+        db.set("doc", "a", (Serializable) null);
+        assertNull(reopened().get("doc", "a"));
+
+        //The pending value mustn't be saved over the null.
+        db.flush();
+        assertNull(db.get("doc", "a"));
+        assertNull(reopened().get("doc", "a"));
+
+        //Field which was never saved.
+        db.set("doc", "b", "pending");
+        db.set("doc", "b", (Serializable) null);
+        db.flush();
+        assertNull(reopened().get("doc", "b"));
+    }
+
+    @Test
+    public void removesPendingValueOnRemove() {
+        db.set("doc", "a", "pending");
+        db.remove("doc", "a");
+        assertNull(db.get("doc", "a"));
+        db.flush();
+        assertFalse(stored().contains("a"));
+
+        db.set("doc", "a", "again");
+        db.flush();
+        assertEquals("again", reopened().get("doc", "a"));
+    }
+
+    @Test
+    public void flushesDocumentWithTooManyFields() throws Exception {
+        EssData small = EssData.builder(RuntimeEnvironment.getApplication())
+                .setStorageBackend(backend)
+                .setWriteBehind(DELAY, 3)
+                .build();
+        small.set("doc", "a", 1);
+        small.set("doc", "b", 2);
+        assertTrue(stored().getAll().isEmpty());
+        small.set("doc", "c", 3);
+
+        long end = System.currentTimeMillis() + 5000;
+        while (stored().getAll().size() < 3 && System.currentTimeMillis() < end)
+            Thread.sleep(10);
+        assertEquals(3, stored().getAll().size());
+    }
+
+    @Test
+    public void keepsValueSetDuringFlush() {
+        final List<String> written = Collections.synchronizedList(new ArrayList<String>());
+        WriteBehind writeBehind = new WriteBehind(DELAY, 100, new WriteBehind.Writer() {
+            @Override
+            public void write(@NonNull String document) {
+                written.add(document);
+            }
+        });
+        writeBehind.put("doc", "a", "first");
+        writeBehind.put("doc", "b", "value");
+        writeBehind.put("doc", "a", "second");
+        assertEquals("second", writeBehind.get("doc", "a"));
+        assertEquals(2, writeBehind.getAll("doc").size());
+
+        //Flush saved the older value, the newer one stays pending.
+        writeBehind.onFlushed("doc", "a", "first");
+        assertEquals("second", writeBehind.get("doc", "a"));
+        writeBehind.onFlushed("doc", "a", "second");
+        assertNull(writeBehind.get("doc", "a"));
+
+        writeBehind.discard("doc", "b");
+        assertNull(writeBehind.getAll("doc"));
+
+        writeBehind.put("doc", "a", "value");
+        writeBehind.put("other", "a", "value");
+        writeBehind.flushAll();
+        assertEquals(2, written.size());
+        assertTrue(written.contains("doc"));
+        assertTrue(written.contains("other"));
+
+        writeBehind.discard("doc");
+        assertNull(writeBehind.getAll("doc"));
+        writeBehind.discardAll();
+        assertNull(writeBehind.getAll("other"));
+    }
+
+    @Test
+    public void flushesAfterDelay() throws Exception {
+        final CountDownLatch written = new CountDownLatch(1);
+        WriteBehind writeBehind = new WriteBehind(20, 100, new WriteBehind.Writer() {
+            @Override
+            public void write(@NonNull String document) {
+                assertEquals("doc", document);
+                written.countDown();
+            }
+        });
+        writeBehind.put("doc", "a", 1);
+        assertTrue(written.await(5, TimeUnit.SECONDS));
+    }
+
+    private SharedPreferences stored() {
+        return backend.open("doc");
+    }
+
+    /**
+     * Returns new instance without pending values, reading what's stored.
+     */
+
+    private EssData reopened() {
+        return EssData.builder(RuntimeEnvironment.getApplication())
+                .setStorageBackend(backend)
+                .build();
+    }
+
+}